@@ -140,7 +140,11 @@ public class CommonConfig {
   public static final String DEFAULT_BATCH_SIZE = "5000";
 
   /**
-   * This defines the key used for setting the buffer size.
+   * This defines the key used for setting the buffer size. The value is either
+   * the high water mark on its own, or the high and low water marks in the form
+   * "high:low". A module which pushes a buffer over the high water mark is
+   * blocked until the buffer has drained to the low water mark. If no low water
+   * mark is given, it is the same as the high water mark.
    */
   public static final String BUFFER_SIZE = "BufferSize";
 
@@ -166,6 +170,21 @@ public class CommonConfig {
    */
   public static final String NUM_PROCESSING_THREADS_DEFAULT = "1";
 
+  /**
+   * Defines the properties key for the way that the threads of a multi-threaded
+   * processing plugin share the work. "Unordered" lets the threads overtake
+   * each other, "Ordered" re-sequences the batches so that they leave the
+   * plugin in the order that they arrived, with header and trailer records
+   * acting as barriers. "Partitioned" runs each thread as a lane, and sends
+   * all records with the same partition key to the same lane.
+   */
+  public static final String PARALLEL_MODE = "ParallelMode";
+
+  /**
+   * Defines the default value for the parallel mode of a processing module.
+   */
+  public static final String PARALLEL_MODE_DEFAULT = "Unordered";
+
   /**
    * Defines the response string for the ECI when a non-dynamic parameter is
    * changed
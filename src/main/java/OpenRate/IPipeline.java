@@ -130,6 +130,23 @@ public interface IPipeline
    */
   public boolean getSchedulerHigh();
 
+  /**
+   * Used for processing schedule management - tell the pipe that there is work
+   * to do (a new file, new rows, data on a socket or a transaction slot that
+   * has become free). In the event driven schedule this wakes the pipe
+   * immediately instead of waiting for the end of the sleep time.
+   */
+  public void signalWorkAvailable();
+
+  /**
+   * Used for processing schedule management - see if the pipe uses the event
+   * driven schedule, in which case modules should signal work as it arrives
+   * using signalWorkAvailable().
+   *
+   * @return true if the pipe is using the event driven schedule
+   */
+  public boolean isEventScheduler();
+
   /**
    * Returns true if the pipe aborted
    *
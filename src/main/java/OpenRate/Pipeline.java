@@ -74,6 +74,7 @@ import OpenRate.utils.PropertyUtils;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Pipeline encapsulates the pipeline as defines as Input adapter, some
@@ -170,6 +171,13 @@ public class Pipeline
   private final String SERVICE_HALT_ON_EXCP = "HaltOnException";
   private final String SERVICE_BUFFER_STATUS = "BufferStatus";
   private final String SERVICE_PIPELINE_TYPE = "PipelineType";
+  private final String SERVICE_SCHEDULER = "Scheduler";
+  private final String SERVICE_SCHEDULER_STATS = "SchedulerStats";
+  private final String SERVICE_SCHEDULER_STATSRESET = "SchedulerStatsReset";
+
+  // The values for the scheduler mode
+  private final String SCHEDULER_POLL = "Poll";
+  private final String SCHEDULER_EVENT = "Event";
 
   // If we encounter an unhadled processing exception, this says if we stop
   private boolean haltOnException = true;
@@ -187,6 +195,20 @@ public class Pipeline
   // long enough to roll from one file to the next at high speed.
   private long schedulerHighSpeed = 0;
 
+  // In the event driven schedule, the pipe waits on the scheduler lock instead
+  // of sleeping, and is woken up as soon as a module signals that there is
+  // work to do. The sleep time then is only a fallback timeout.
+  private volatile boolean eventScheduler = false;
+  private final Object schedulerLock = new Object();
+  private boolean workSignalled = false;
+
+  // Scheduler statistics: how long we spent idle, and how we were woken.
+  // Written by the pipe and read or reset through the ECI.
+  private final AtomicLong schedulerStatsStart = new AtomicLong(System.currentTimeMillis());
+  private final AtomicLong schedulerIdleTime = new AtomicLong(0);
+  private final AtomicLong schedulerSignalWakeups = new AtomicLong(0);
+  private final AtomicLong schedulerTimeoutWakeups = new AtomicLong(0);
+
   // Used to map the buffers in order that we can interrogate them
   ArrayList<IBuffer> bufferList = new ArrayList<>();
 
@@ -266,6 +288,7 @@ public class Pipeline
     // used in setting up the pipe
     String strActiveState;
     String strHaltOnExcp;
+    String strScheduler;
 
     // Initialise the default polling sleep time
     sleepTime = 5000;
@@ -286,6 +309,11 @@ public class Pipeline
       strHaltOnExcp = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + "." + SERVICE_HALT_ON_EXCP,
               "True");
 
+      // set the scheduler mode of the pipeline. We need this before we create
+      // the modules, so that they know if they should signal work to us
+      strScheduler = PropertyUtils.getPropertyUtils().getPropertyValueDef("PipelineList." + symbolicName + "." + SERVICE_SCHEDULER,
+              SCHEDULER_POLL);
+
       // Get the transaction controller configuration
       // Validate what we got for the pipe type
       if (pipelineType.equalsIgnoreCase("Batch")) {
@@ -314,6 +342,17 @@ public class Pipeline
       // set the halt on exception state
       haltOnException = strHaltOnExcp.equalsIgnoreCase("true");
 
+      // set the scheduler mode
+      if (strScheduler.equalsIgnoreCase(SCHEDULER_EVENT)) {
+        eventScheduler = true;
+        OpenRate.getOpenRateFrameworkLog().info("Pipeline <" + symbolicName + "> using event driven scheduler");
+      } else if (strScheduler.equalsIgnoreCase(SCHEDULER_POLL)) {
+        eventScheduler = false;
+      } else {
+        message = "Scheduler must be either " + SCHEDULER_POLL + " or " + SCHEDULER_EVENT + ", but we got <" + strScheduler + "> in pipeline <" + symbolicName + ">. Aborting.";
+        throw new InitializationException(message, getSymbolicName());
+      }
+
       // Construct the pipeline according to the batch model
       if (batchPipeline) {
         // Get the initialised batch input adapter
@@ -785,6 +824,11 @@ public class Pipeline
    * open for a few cycles means that we can close one transaction and open a
    * new one without ever returning to the slow cycles.
    *
+   * In the event driven schedule, we do not sleep at all while the input
+   * adapter is delivering records (the buffer back pressure paces us), and
+   * when we are idle we wait for a module to signal that there is work to do,
+   * using the sleep time only as a fallback timeout.
+   *
    * Additionally, the active state of the pipeline is read and managed in this
    * section. A pipeline can only change state when we are not processing. To
    * enforce this, we manage the "Active" and "ActiveStateRequested" variables.
@@ -800,17 +844,23 @@ public class Pipeline
     // The number of records in the pipe
     long recordsInPipe;
 
+    // true if the input adapter gave us records in this cycle
+    boolean inputDelivered;
+
     try {
       startPipeline();
 
       // **** Manage the main processing loop ****
       while (!stop) {
+        inputDelivered = false;
+
         // perform the pipeline processing if the pipe is active
         if (active) {
           // retrieve input records, if there are any that need doing. We only
           // do this if there is a batch input adapter that is set
           if (batchInputAdapter != null) {
             recordsReceived = batchInputAdapter.push(batchInputAdapter.getBatchOutboundValidBuffer());
+            inputDelivered = (recordsReceived > 0);
           }
         }
 
@@ -879,16 +929,13 @@ public class Pipeline
         }
 
         // **** Manage pipeline scheduling (loop timeouts) ****
-        // This is the pipeline idle loop
-        if (tmpSleepTime > 0) {
-          try {
-            OpenRate.getOpenRateFrameworkLog().debug(
-                    "Pipeline <" + symbolicName + "> will sleep for "
-                    + tmpSleepTime + " ms.");
-            Thread.sleep(tmpSleepTime);
-          } catch (InterruptedException e) {
-            // ignore the exception
-          }
+        // This is the pipeline idle loop. In the event driven schedule we go
+        // straight round again while the input is delivering records
+        if ((tmpSleepTime > 0) && !(eventScheduler && inputDelivered)) {
+          OpenRate.getOpenRateFrameworkLog().debug(
+                  "Pipeline <" + symbolicName + "> will sleep for "
+                  + tmpSleepTime + " ms.");
+          waitForWork(tmpSleepTime);
         }
 
         // Update the runcount. We use this to stop the pipeline after a
@@ -954,6 +1001,9 @@ public class Pipeline
 
     // set the scheduler to make sure we purge out anything in progress as quickly as possible
     setSchedulerHigh();
+
+    // and wake the pipe to start acting on it
+    signalWorkAvailable();
   }
 
   /**
@@ -979,6 +1029,9 @@ public class Pipeline
                 + "> scheduled to become inactive after transaction completion");
       }
     }
+
+    // wake the pipe so that the change is picked up straight away
+    signalWorkAvailable();
   }
 
   /**
@@ -1330,6 +1383,84 @@ public class Pipeline
     return (schedulerHighSpeed > ConversionUtils.getConversionUtilsObject().getCurrentUTCms());
   }
 
+  /**
+   * Tell the pipe that there is work to do. In the event driven schedule this
+   * wakes the pipe immediately if it is waiting. It does not change the
+   * schedule: the pipe goes into the high speed schedule by itself once it
+   * finds records to process.
+   */
+  @Override
+  public void signalWorkAvailable() {
+    synchronized (schedulerLock) {
+      workSignalled = true;
+      schedulerLock.notifyAll();
+    }
+  }
+
+  /**
+   * Tell us if the pipe is using the event driven schedule.
+   *
+   * @return true if we are using the event driven schedule
+   */
+  @Override
+  public boolean isEventScheduler() {
+    return eventScheduler;
+  }
+
+  /**
+   * Set the schedule of the pipe, and tell the input adapter, which may have
+   * to start or stop watching for input.
+   *
+   * @param newState true for the event driven schedule, false for polling
+   */
+  void setEventScheduler(boolean newState) {
+    eventScheduler = newState;
+
+    if (batchInputAdapter != null) {
+      batchInputAdapter.schedulerChanged(newState);
+    }
+  }
+
+  /**
+   * Idle the pipe for the given time. In the polling schedule we just sleep,
+   * in the event driven schedule we wait until either a module signals that
+   * there is work to do, or the time runs out.
+   *
+   * @param waitTime The maximum time to wait in ms
+   * @return true if we were woken by a signal
+   */
+  boolean waitForWork(long waitTime) {
+    boolean signalled = false;
+    long waitStart = System.currentTimeMillis();
+
+    try {
+      if (eventScheduler) {
+        synchronized (schedulerLock) {
+          if (!workSignalled) {
+            schedulerLock.wait(waitTime);
+          }
+
+          signalled = workSignalled;
+          workSignalled = false;
+        }
+      } else {
+        Thread.sleep(waitTime);
+      }
+    } catch (InterruptedException e) {
+      // ignore the exception
+    }
+
+    // Update the statistics
+    schedulerIdleTime.addAndGet(System.currentTimeMillis() - waitStart);
+    if (signalled) {
+      schedulerSignalWakeups.incrementAndGet();
+    } else {
+      schedulerTimeoutWakeups.incrementAndGet();
+    }
+
+    return signalled;
+  }
+
   /**
    * Abstration function for the possibility to run pipelines without a
    * Transaction Manager.
@@ -1456,6 +1587,46 @@ public class Pipeline
       }
     }
 
+    if (Command.equalsIgnoreCase(SERVICE_SCHEDULER)) {
+      if (Parameter.equalsIgnoreCase(SCHEDULER_EVENT)) {
+        setEventScheduler(true);
+        ResultCode = 0;
+      }
+
+      if (Parameter.equalsIgnoreCase(SCHEDULER_POLL)) {
+        setEventScheduler(false);
+        ResultCode = 0;
+      }
+
+      if (Parameter.equals("")) {
+        // Get the current status
+        return eventScheduler ? SCHEDULER_EVENT : SCHEDULER_POLL;
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_SCHEDULER_STATS)) {
+      // busy time:idle time:signal wakeups:timeout wakeups
+      long elapsedTime = System.currentTimeMillis() - schedulerStatsStart.get();
+      long idleTime = schedulerIdleTime.get();
+
+      return Long.toString(elapsedTime - idleTime) + ":"
+              + Long.toString(idleTime) + ":"
+              + Long.toString(schedulerSignalWakeups.get()) + ":"
+              + Long.toString(schedulerTimeoutWakeups.get());
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_SCHEDULER_STATSRESET)) {
+      if (Parameter.equalsIgnoreCase("true")) {
+        schedulerStatsStart.set(System.currentTimeMillis());
+        schedulerIdleTime.set(0);
+        schedulerSignalWakeups.set(0);
+        schedulerTimeoutWakeups.set(0);
+        ResultCode = 0;
+      } else {
+        return "false";
+      }
+    }
+
     if (Command.equalsIgnoreCase(SERVICE_BUFFER_STATUS)) {
       Iterator<IBuffer> bufferIter = bufferList.iterator();
       String responseString = "";
@@ -1504,6 +1675,9 @@ public class Pipeline
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_RUNCOUNT, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_HALT_ON_EXCP, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_BUFFER_STATUS, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_SCHEDULER, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_SCHEDULER_STATS, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_SCHEDULER_STATSRESET, ClientManager.PARAM_DYNAMIC);
   }
 
   // -----------------------------------------------------------------------------
@@ -98,6 +98,12 @@ public abstract class AbstractInputAdapter
    */
   private int bufferSize;
 
+  /**
+   * This is the buffer low water mark, at which we continue pushing after we
+   * have been blocked by going over the high water mark.
+   */
+  private int bufferLowWaterMark;
+
   // This is the buffer we will be writing to
   private IConsumer consumer;
 
@@ -195,29 +201,22 @@ public abstract class AbstractInputAdapter
 
       // see how many records we got
       size = all.size();
-      if (size > 0) {
-        // push the records into the buffer if we had any
-        validBuffer.push(validRecords);
-      }
 
       endTime = System.currentTimeMillis();
       BatchTime = (endTime - startTime);
       processingTime += BatchTime;
       recordsProcessed += size;
-      outBufferCapacity = validBuffer.getEventCount();
 
-      while (outBufferCapacity > bufferSize) {
-        bufferHits++;
-        OpenRate.getOpenRateStatsLog().debug("Input  <" + getSymbolicName() + "> buffer high water mark! Buffer max = <" + bufferSize + "> current count = <" + outBufferCapacity + ">");
-        try {
-          Thread.sleep(100);
-        } catch (InterruptedException ex) {
-          //
+      if (size > 0) {
+        // push the records into the buffer if we had any, waiting for the
+        // pipeline to catch up if we have gone over the high water mark
+        if (validBuffer.push(validRecords, bufferSize, bufferLowWaterMark)) {
+          bufferHits++;
+          OpenRate.getOpenRateStatsLog().debug("Input  <" + getSymbolicName() + "> buffer high water mark! Buffer max = <" + bufferSize + "> resumed at = <" + bufferLowWaterMark + ">");
         }
-
-        // refresh
-        outBufferCapacity = validBuffer.getEventCount();
       }
+
+      outBufferCapacity = validBuffer.getEventCount();
     } catch (ProcessingException pe) {
       getPipeLog().error("Processing exception caught in Input Adapter <"
               + getSymbolicName() + ">", pe);
@@ -401,12 +400,32 @@ public abstract class AbstractInputAdapter
       }
     }
 
+    // The buffer size is either the high water mark on its own, or the high
+    // and the low water mark in the form "high:low"
     if (Command.equalsIgnoreCase(SERVICE_BUFFERSIZE)) {
       if (Parameter.equals("")) {
-        return Integer.toString(bufferSize);
+        if (bufferLowWaterMark == bufferSize) {
+          return Integer.toString(bufferSize);
+        } else {
+          return Integer.toString(bufferSize) + ":" + Integer.toString(bufferLowWaterMark);
+        }
       } else {
         try {
-          bufferSize = Integer.parseInt(Parameter);
+          String[] waterMarks = Parameter.split(":");
+          int highWaterMark = Integer.parseInt(waterMarks[0].trim());
+          int lowWaterMark = highWaterMark;
+
+          if (waterMarks.length > 1) {
+            lowWaterMark = Integer.parseInt(waterMarks[1].trim());
+          }
+
+          if (lowWaterMark > highWaterMark) {
+            getPipeLog().error("Buffer low water mark <" + lowWaterMark + "> is above the high water mark <" + highWaterMark + ">. Using the high water mark.");
+            lowWaterMark = highWaterMark;
+          }
+
+          bufferSize = highWaterMark;
+          bufferLowWaterMark = lowWaterMark;
         } catch (NumberFormatException nfe) {
           getPipeLog().error(
                   "Invalid number for buffer size. Passed value = <"
@@ -483,6 +502,17 @@ public abstract class AbstractInputAdapter
     this.pipeline = pipeline;
   }
 
+  /**
+   * The pipeline has changed its schedule. Override this in adapters which
+   * signal the pipeline when new input arrives.
+   *
+   * @param eventScheduler true for the event driven schedule, false for polling
+   */
+  @Override
+  public void schedulerChanged(boolean eventScheduler) {
+    // Nothing to do
+  }
+
   /**
    * Return the pipeline logger.
    *
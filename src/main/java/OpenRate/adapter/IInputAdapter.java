@@ -116,4 +116,12 @@ public interface IInputAdapter
    * @return the pipeline
    */
   public IPipeline getPipeline();
+
+  /**
+   * Tell the adapter that the pipeline has changed its schedule, so that it
+   * can start or stop signalling the pipeline when new input arrives.
+   *
+   * @param eventScheduler true for the event driven schedule, false for polling
+   */
+  public void schedulerChanged(boolean eventScheduler);
 }
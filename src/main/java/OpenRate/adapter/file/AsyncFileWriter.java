@@ -0,0 +1,386 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.adapter.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A file writer which moves the disk writes off the calling thread. The
+ * characters are encoded into one of two large buffers, and when a buffer is
+ * full it is handed to an I/O thread which writes it to the file through a
+ * FileChannel while the caller fills the other buffer. The caller only waits
+ * when both buffers are in use.
+ *
+ * close() waits until everything has been written, and optionally forces the
+ * data to the disk, so that the file is complete when close() returns. Errors
+ * in the I/O thread are thrown from the next call to write(), flush() or
+ * close().
+ *
+ * The file can also be gzip compressed, in which case the compression is done
+ * by the I/O thread as well.
+ */
+public class AsyncFileWriter extends Writer {
+
+  // Tells the I/O thread that there is nothing more to write
+  private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+
+  // The file we are writing to
+  private final FileOutputStream fileStream;
+  private final FileChannel channel;
+
+  // If we force the data to the disk on close
+  private final boolean forceOnClose;
+
+  // The compressor, if we are writing a gzip file, only used by the I/O thread
+  private final GzipStream gzipStream;
+
+  // Used to pass the direct buffers to the compressor
+  private final byte[] gzipBuffer;
+
+  // Encodes the characters into the buffer
+  private final CharsetEncoder encoder;
+
+  // The buffer we are filling
+  private ByteBuffer fillBuffer;
+
+  // Buffers which are free to be filled
+  private final ArrayBlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(2);
+
+  // Buffers waiting to be written, and the close marker
+  private final ArrayBlockingQueue<ByteBuffer> fullBuffers = new ArrayBlockingQueue<>(3);
+
+  // The thread doing the writing
+  private final Thread ioThread;
+
+  // The first error the I/O thread had
+  private volatile IOException writeError = null;
+
+  // A high surrogate left over from the last write, 0 if none
+  private char pendingSurrogate = 0;
+
+  private boolean closed = false;
+
+  /**
+   * Creates the writer, opening the file and starting the I/O thread.
+   *
+   * @param file The file to write to, which is truncated
+   * @param charset The charset to encode the characters with
+   * @param bufferSize The size of each of the two buffers, in bytes
+   * @param forceOnClose true if close() should force the data to the disk
+   * @param threadName The name of the I/O thread
+   * @throws IOException if the file could not be opened
+   */
+  public AsyncFileWriter(File file, Charset charset, int bufferSize, boolean forceOnClose, String threadName)
+          throws IOException {
+    this(file, charset, bufferSize, forceOnClose, false, threadName);
+  }
+
+  /**
+   * Creates the writer, opening the file and starting the I/O thread.
+   *
+   * @param file The file to write to, which is truncated
+   * @param charset The charset to encode the characters with
+   * @param bufferSize The size of each of the two buffers, in bytes
+   * @param forceOnClose true if close() should force the data to the disk
+   * @param gzip true if the file should be gzip compressed
+   * @param threadName The name of the I/O thread
+   * @throws IOException if the file could not be opened
+   */
+  public AsyncFileWriter(File file, Charset charset, int bufferSize, boolean forceOnClose, boolean gzip, String threadName)
+          throws IOException {
+    fileStream = new FileOutputStream(file);
+    channel = fileStream.getChannel();
+    this.forceOnClose = forceOnClose;
+
+    if (gzip) {
+      gzipStream = new GzipStream(Channels.newOutputStream(channel), bufferSize);
+      gzipBuffer = new byte[bufferSize];
+    } else {
+      gzipStream = null;
+      gzipBuffer = null;
+    }
+
+    // behave like a FileWriter on characters we cannot encode
+    encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    fillBuffer = ByteBuffer.allocateDirect(bufferSize);
+    freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+
+    ioThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeBuffers();
+      }
+    }, threadName);
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    checkOpen();
+
+    if (len == 0) {
+      return;
+    }
+
+    // finish a surrogate pair which was split between two writes
+    if (pendingSurrogate != 0) {
+      char[] pair = {pendingSurrogate, cbuf[off]};
+      pendingSurrogate = 0;
+      encode(CharBuffer.wrap(pair), false);
+      off++;
+      len--;
+    }
+
+    encode(CharBuffer.wrap(cbuf, off, len), false);
+  }
+
+  /**
+   * Hand the characters we have to the I/O thread, without waiting for them
+   * to be written.
+   *
+   * @throws IOException
+   */
+  @Override
+  public void flush() throws IOException {
+    checkOpen();
+
+    if (fillBuffer.position() > 0) {
+      swapBuffers();
+    }
+  }
+
+  /**
+   * Write everything we have, wait for the I/O thread to finish and close the
+   * file.
+   *
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      // finish the encoding
+      CharBuffer remaining = (pendingSurrogate != 0) ? CharBuffer.wrap(new char[]{pendingSurrogate}) : CharBuffer.allocate(0);
+      pendingSurrogate = 0;
+      encode(remaining, true);
+      while (encoder.flush(fillBuffer).isOverflow()) {
+        swapBuffers();
+      }
+
+      if (fillBuffer.position() > 0) {
+        swapBuffers();
+      }
+
+      fullBuffers.put(CLOSE_MARKER);
+      ioThread.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      ioThread.interrupt();
+      throw new InterruptedIOException("Interrupted waiting for the file to be written");
+    } finally {
+      // make sure the I/O thread does not wait for ever if we failed
+      ioThread.interrupt();
+      closed = true;
+      fileStream.close();
+    }
+
+    if (writeError != null) {
+      throw writeError;
+    }
+  }
+
+  /**
+   * Encode the characters into the buffer, handing full buffers to the I/O
+   * thread.
+   */
+  private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+    while (true) {
+      CoderResult result = encoder.encode(in, fillBuffer, endOfInput);
+      if (result.isOverflow()) {
+        swapBuffers();
+      } else {
+        break;
+      }
+    }
+
+    // the encoder leaves the high half of a split surrogate pair for us
+    if (in.hasRemaining()) {
+      pendingSurrogate = in.get();
+    }
+  }
+
+  /**
+   * Pass the filled buffer to the I/O thread and take a free one, waiting if
+   * the I/O thread is still writing both.
+   */
+  private void swapBuffers() throws IOException {
+    checkError();
+
+    try {
+      fillBuffer.flip();
+      fullBuffers.put(fillBuffer);
+      fillBuffer = freeBuffers.take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a free buffer");
+    }
+  }
+
+  /**
+   * The I/O thread. Writes the buffers in the order they were filled and
+   * gives them back. After an error the buffers are still given back, so that
+   * the caller never waits for ever, and the error is reported to the caller.
+   */
+  private void writeBuffers() {
+    try {
+      while (true) {
+        ByteBuffer buffer = fullBuffers.take();
+
+        if (buffer == CLOSE_MARKER) {
+          if ((gzipStream != null) && (writeError == null)) {
+            gzipStream.finish();
+          }
+          if (forceOnClose && (writeError == null)) {
+            channel.force(true);
+          }
+          return;
+        }
+
+        if (writeError == null) {
+          try {
+            if (gzipStream != null) {
+              while (buffer.hasRemaining()) {
+                int length = Math.min(buffer.remaining(), gzipBuffer.length);
+                buffer.get(gzipBuffer, 0, length);
+                gzipStream.write(gzipBuffer, 0, length);
+              }
+            } else {
+              while (buffer.hasRemaining()) {
+                channel.write(buffer);
+              }
+            }
+          } catch (IOException ex) {
+            writeError = ex;
+          }
+        }
+
+        buffer.clear();
+        freeBuffers.put(buffer);
+      }
+    } catch (IOException ex) {
+      writeError = ex;
+    } catch (InterruptedException ex) {
+      // we have been stopped
+    } finally {
+      // the channel is closed by close(), but the native memory of the
+      // compressor is only freed when we end it
+      if (gzipStream != null) {
+        gzipStream.end();
+      }
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Writer closed");
+    }
+
+    checkError();
+  }
+
+  private void checkError() throws IOException {
+    if (writeError != null) {
+      throw writeError;
+    }
+  }
+
+  /**
+   * A gzip stream whose compressor can be ended without closing the stream
+   * underneath, which would close the channel from the I/O thread.
+   */
+  private static final class GzipStream extends GZIPOutputStream {
+
+    GzipStream(OutputStream out, int size) throws IOException {
+      super(out, size);
+    }
+
+    void end() {
+      def.end();
+    }
+  }
+}
@@ -66,6 +66,9 @@ import OpenRate.record.IRecord;
 import OpenRate.record.TrailerRecord;
 import OpenRate.utils.PropertyUtils;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -147,6 +150,19 @@ import org.apache.oro.text.GlobCompiler;
  * not arrive until a long time after the input adapter has finished processing
  * the input file. In this case, successive transactions can be opened before
  * the preceding transaction is closed.
+ *
+ * <p>
+ * Streaming<br>
+ * ---------
+ *
+ * <p>
+ * Reading the whole file into memory is not practical for very large files.
+ * Setting "ReadMode" to "Streaming" memory maps the file instead, in windows
+ * of "MapWindowSize" bytes (default 64MB), and calls parseNextRecord() to take
+ * the records from the mapped buffer one at a time, so that only batchSize
+ * records are created per call to loadBatch(). The implementation class must
+ * override parseNextRecord() to use this mode. The default "ReadMode" of
+ * "Whole" uses parseBinaryFileContents().
  */
 public abstract class BinaryFileInputAdapter
         extends AbstractTransactionalInputAdapter
@@ -251,6 +267,21 @@ public abstract class BinaryFileInputAdapter
   private static final String SERVICE_D_SUFFIX = "DoneFileSuffix";
   private static final String SERVICE_E_SUFFIX = "ErrFileSuffix";
   private static final String SERVICE_PROCPREFIX = "ProcessingPrefix";
+  private static final String SERVICE_READ_MODE = "ReadMode";
+  private static final String SERVICE_MAP_WINDOW = "MapWindowSize";
+
+  // The read modes
+  private static final String READ_MODE_WHOLE = "Whole";
+  private static final String READ_MODE_STREAMING = "Streaming";
+
+  // Streaming state: we map the file a window at a time
+  private boolean streamingMode = false;
+  private long mapWindowSize = 64 * 1024 * 1024;
+  private FileChannel fileChannel;
+  private MappedByteBuffer mappedWindow;
+  private long windowStart;
+  private long fileLength;
+  private boolean streamExhausted;
 
   /**
    * This method calls a parser to parse the binary input which has been read
@@ -262,6 +293,26 @@ public abstract class BinaryFileInputAdapter
    */
   public abstract ArrayList<IRecord> parseBinaryFileContents(byte[] fileContents);
 
+  /**
+   * This method is called in the streaming read mode to parse the next record
+   * out of the mapped file contents. The buffer is positioned at the first
+   * byte that has not been parsed yet, and the parser must leave it positioned
+   * after the record it returns.
+   *
+   * If the buffer does not hold a complete record, the parser should return
+   * null, leaving the position where it was. The adapter then maps the next
+   * window of the file starting at that position and calls the parser again.
+   * Returning null at the end of the file ends the stream.
+   *
+   * @param fileBuffer The mapped file contents
+   * @return The next record, or null if there is no complete record
+   * @throws ProcessingException
+   */
+  public IRecord parseNextRecord(ByteBuffer fileBuffer) throws ProcessingException {
+    throw new ProcessingException("Read mode <" + READ_MODE_STREAMING
+            + "> needs parseNextRecord() to be implemented", getSymbolicName());
+  }
+
   // This is used to hold the calculated file names
   private class TransControlStructure {
 
@@ -271,6 +322,9 @@ public abstract class BinaryFileInputAdapter
     String BaseName;
   }
 
+  // Used to wake the pipe when new files arrive in the event driven schedule
+  private InputDirectoryWatcher inputDirectoryWatcher;
+
   // This holds the file names for the files that are in processing at any
   // given moment
   private HashMap<Integer, TransControlStructure> CurrentFileNames;
@@ -324,6 +378,18 @@ public abstract class BinaryFileInputAdapter
     processControlEvent(SERVICE_E_SUFFIX, true, ConfigHelper);
     ConfigHelper = initGetProcPrefix();
     processControlEvent(SERVICE_PROCPREFIX, true, ConfigHelper);
+    ConfigHelper = initGetReadMode();
+    if (!processControlEvent(SERVICE_READ_MODE, true, ConfigHelper).equals("OK")) {
+      message = "Read mode must be <" + READ_MODE_WHOLE + "> or <" + READ_MODE_STREAMING
+              + ">, found <" + ConfigHelper + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    ConfigHelper = initGetMapWindowSize();
+    if (!processControlEvent(SERVICE_MAP_WINDOW, true, ConfigHelper).equals("OK")) {
+      message = "Map window size must be a positive number, found <" + ConfigHelper
+              + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
 
     // Check the file name scanning variables, throw initialisation exception
     // if something is wrong.
@@ -331,6 +397,11 @@ public abstract class BinaryFileInputAdapter
 
     // create the structure for storing filenames
     CurrentFileNames = new HashMap<>(10);
+
+    // In the event driven schedule, wake the pipe as soon as a file arrives
+    if (getPipeline().isEventScheduler()) {
+      initInputDirectoryWatcher();
+    }
   }
 
   /**
@@ -345,7 +416,8 @@ public abstract class BinaryFileInputAdapter
    * In contrast to the flat file adapter, this adapter loads all of the file
    * into memory, parses it in one go (using an implementation level parser) and
    * then pumps the records into the pipeline. Thus, a single call to load batch
-   * will load the whole file.
+   * will load the whole file. In the streaming read mode, the records are
+   * parsed from the mapped file a batch at a time instead.
    *
    * @return
    * @throws OpenRate.exception.ProcessingException
@@ -408,18 +480,26 @@ public abstract class BinaryFileInputAdapter
           tmpHeader = procHeader(tmpHeader);
           Outbatch.add(tmpHeader);
 
-          // now load the file into a memory buffer - it's difficult to know
-          // where to split up binary files, so we don't attempt to, and let the
-          // parser work this out
-          int fileLength = (int) reader.length();
-          bytes = new byte[fileLength];
-          reader.readFully(bytes);
-
-          // call the parser to process the binary contents
-          Collection<IRecord> recordList = parseBinaryFileContents(bytes);
-
-          // Prepare the iterator for loading the records
-          recordListIterator = recordList.iterator();
+          if (streamingMode) {
+            // map the start of the file, the parser takes the records out
+            // of the mapped window as we need them
+            fileChannel = reader.getChannel();
+            fileLength = fileChannel.size();
+            streamExhausted = false;
+            mapWindow(0);
+          } else {
+            // now load the file into a memory buffer - it's difficult to know
+            // where to split up binary files, so we don't attempt to, and let the
+            // parser work this out
+            bytes = new byte[(int) reader.length()];
+            reader.readFully(bytes);
+
+            // call the parser to process the binary contents
+            Collection<IRecord> recordList = parseBinaryFileContents(bytes);
+
+            // Prepare the iterator for loading the records
+            recordListIterator = recordList.iterator();
+          }
         } catch (FileNotFoundException exFileNotFound) {
           getPipeLog().error(
                   "Application is not able to read file <" + getProcName(transactionNumber) + ">");
@@ -439,8 +519,8 @@ public abstract class BinaryFileInputAdapter
       }
 
       // read from the file and prepare the batch
-      while ((recordListIterator.hasNext()) & (ThisBatchCounter < batchSize)) {
-        tmpDataRecord = recordListIterator.next();
+      while ((hasMoreRecords()) & (ThisBatchCounter < batchSize)) {
+        tmpDataRecord = getNextRecord();
 
         // skip blank records
         if (tmpDataRecord == null) {
@@ -483,7 +563,7 @@ public abstract class BinaryFileInputAdapter
       updateRecordCount(transactionNumber, InputRecordNumber);
 
       // see the reason that we closed
-      if (recordListIterator.hasNext() == false) {
+      if (hasMoreRecords() == false) {
         // we have finished
         InputStreamOpen = false;
 
@@ -541,6 +621,147 @@ public abstract class BinaryFileInputAdapter
     return Outbatch;
   }
 
+  /**
+   * See if there are more records to read from the current file.
+   *
+   * @return true if there are more records
+   */
+  private boolean hasMoreRecords() {
+    if (streamingMode) {
+      return (streamExhausted == false)
+              && (windowStart + mappedWindow.position() < fileLength);
+    } else {
+      return recordListIterator.hasNext();
+    }
+  }
+
+  /**
+   * Get the next record from the current file. In the streaming read mode, a
+   * null return means that the stream has ended. Otherwise the parser may have
+   * returned null records, which are skipped by the caller.
+   *
+   * @return The next record
+   * @throws ProcessingException
+   */
+  private IRecord getNextRecord() throws ProcessingException {
+    if (streamingMode == false) {
+      return recordListIterator.next();
+    }
+
+    IRecord tmpRecord = parseNextRecord(mappedWindow);
+
+    if (tmpRecord == null) {
+      long parsedTo = windowStart + mappedWindow.position();
+
+      if (windowStart + mappedWindow.limit() >= fileLength) {
+        // the window reaches the end of the file, so there is nothing more
+        if (parsedTo < fileLength) {
+          getPipeLog().warning("Ignored <" + (fileLength - parsedTo) + "> bytes at the end of file <"
+                  + getProcName(transactionNumber) + ">");
+        }
+
+        streamExhausted = true;
+      } else if (parsedTo == windowStart) {
+        // the record does not fit in a window
+        throw new ProcessingException("Record at offset <" + parsedTo + "> in file <"
+                + getProcName(transactionNumber) + "> is larger than the map window size <"
+                + mapWindowSize + ">", getSymbolicName());
+      } else {
+        // the record runs over the end of the window, so move the window on
+        try {
+          mapWindow(parsedTo);
+        } catch (IOException ioex) {
+          throw new ProcessingException("Application is not able to read file: <"
+                  + getProcName(transactionNumber) + "> ",
+                  ioex,
+                  getSymbolicName());
+        }
+
+        tmpRecord = getNextRecord();
+      }
+    }
+
+    return tmpRecord;
+  }
+
+  /**
+   * Map the window of the file starting at the given offset.
+   *
+   * @param newWindowStart The offset of the start of the window
+   * @throws IOException
+   */
+  private void mapWindow(long newWindowStart) throws IOException {
+    long windowLength = Math.min(mapWindowSize, fileLength - newWindowStart);
+
+    mappedWindow = fileChannel.map(FileChannel.MapMode.READ_ONLY, newWindowStart, windowLength);
+    windowStart = newWindowStart;
+  }
+
+  /**
+   * Start watching the input directory, so that we can signal the pipe as soon
+   * as a new input file arrives.
+   *
+   * @throws InitializationException
+   */
+  private synchronized void initInputDirectoryWatcher() throws InitializationException {
+    if (inputDirectoryWatcher != null) {
+      // already watching
+      return;
+    }
+
+    FilenameFilter filter = new GlobFilenameFilter(InputFilePrefix + "*"
+            + InputFileSuffix,
+            GlobCompiler.STAR_CANNOT_MATCH_NULL_MASK);
+
+    try {
+      inputDirectoryWatcher = new InputDirectoryWatcher(InputFilePath, filter, getPipeline());
+      inputDirectoryWatcher.start(getSymbolicName() + ".DirWatcher");
+    } catch (IOException ex) {
+      message = "Could not watch input directory <" + InputFilePath + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, ex, getSymbolicName());
+    }
+  }
+
+  /**
+   * Stop watching the input directory.
+   */
+  private synchronized void stopInputDirectoryWatcher() {
+    if (inputDirectoryWatcher != null) {
+      inputDirectoryWatcher.close();
+      inputDirectoryWatcher = null;
+    }
+  }
+
+  /**
+   * Start watching the input directory when the pipeline changes to the event
+   * driven schedule, and stop when it goes back to polling.
+   *
+   * @param eventScheduler true for the event driven schedule, false for polling
+   */
+  @Override
+  public void schedulerChanged(boolean eventScheduler) {
+    if (eventScheduler) {
+      try {
+        initInputDirectoryWatcher();
+      } catch (InitializationException ex) {
+        // we still pick up the files on the timeout, only later
+        getPipeLog().error(ex.getMessage() + ", falling back to the sleep time");
+      }
+    } else {
+      stopInputDirectoryWatcher();
+    }
+  }
+
+  /**
+   * Stop watching the input directory when the adapter is shut down.
+   */
+  @Override
+  public void cleanup() {
+    stopInputDirectoryWatcher();
+
+    super.cleanup();
+  }
+
   /**
    * Closes down the input stream after all the input has been collected
    *
@@ -549,6 +770,10 @@ public abstract class BinaryFileInputAdapter
    */
   public void closeStream(int TransactionNumber)
           throws ProcessingException {
+    // the mapping is released when the buffer is collected
+    mappedWindow = null;
+    fileChannel = null;
+
     try {
       reader.close();
     } catch (IOException exFileNotFound) {
@@ -790,6 +1015,46 @@ public abstract class BinaryFileInputAdapter
       }
     }
 
+    if (Command.equalsIgnoreCase(SERVICE_READ_MODE)) {
+      if (Init) {
+        if (Parameter.equalsIgnoreCase(READ_MODE_STREAMING)) {
+          streamingMode = true;
+          ResultCode = 0;
+        } else if (Parameter.equalsIgnoreCase(READ_MODE_WHOLE)) {
+          streamingMode = false;
+          ResultCode = 0;
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return streamingMode ? READ_MODE_STREAMING : READ_MODE_WHOLE;
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_MAP_WINDOW)) {
+      if (Init) {
+        try {
+          long tmpWindowSize = Long.parseLong(Parameter);
+
+          // a single mapping cannot be larger than 2GB
+          if ((tmpWindowSize > 0) && (tmpWindowSize <= Integer.MAX_VALUE)) {
+            mapWindowSize = tmpWindowSize;
+            ResultCode = 0;
+          }
+        } catch (NumberFormatException nfe) {
+          // reported by the caller
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return Long.toString(mapWindowSize);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
     if (ResultCode == 0) {
       getPipeLog().debug(LogUtil.LogECIPipeCommand(getSymbolicName(), getPipeName(), Command, Parameter));
 
@@ -823,6 +1088,8 @@ public abstract class BinaryFileInputAdapter
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_D_SUFFIX, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_E_SUFFIX, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_PROCPREFIX, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_READ_MODE, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MAP_WINDOW, ClientManager.PARAM_NONE);
   }
 
   // -----------------------------------------------------------------------------
@@ -940,6 +1207,32 @@ public abstract class BinaryFileInputAdapter
     return tmpProcPrefix;
   }
 
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetReadMode() throws InitializationException {
+    String tmpReadMode;
+    tmpReadMode = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_READ_MODE,
+            READ_MODE_WHOLE);
+
+    return tmpReadMode;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetMapWindowSize() throws InitializationException {
+    String tmpWindowSize;
+    tmpWindowSize = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_MAP_WINDOW,
+            Long.toString(mapWindowSize));
+
+    return tmpWindowSize;
+  }
+
   /**
    * Checks the file name from the input parameters. Refactored from init() into
    * a method of its own so that derived classes can still reuse most of the
@@ -0,0 +1,289 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.adapter.file;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Splits a file into lines on the raw bytes, using a large direct read buffer,
+ * and decodes each line with the configured charset into a reusable character
+ * buffer. The line is handed out as a CharSequence view, which is only valid
+ * until the next line is read, so that the caller can decide which parts of the
+ * line it needs to turn into Strings.
+ *
+ * Lines end with '\n', and a '\r' before it is removed. Because the split is
+ * done on the bytes, the charset must encode '\n' as the single byte 0x0A,
+ * which is true for UTF-8 and the single byte charsets.
+ *
+ * The buffers are kept between files, so one reader is created for the adapter
+ * and opened for each file in turn.
+ */
+public class ByteLineReader {
+
+  // The initial size of the decoded line buffer, in characters
+  private static final int INITIAL_LINE_SIZE = 4096;
+
+  // The bytes read from the file, in read mode between calls
+  private ByteBuffer readBuffer;
+
+  // The decoded current line
+  private CharBuffer lineBuffer;
+
+  // The decoder for the charset of the file
+  private final CharsetDecoder decoder;
+
+  // The file we are reading
+  private FileInputStream fileStream;
+  private FileChannel channel;
+
+  // The number of bytes after the buffer position we know contain no newline
+  private int scanned = 0;
+
+  // true when the channel has no more bytes for us
+  private boolean endOfFile = false;
+
+  // true when the line buffer holds a line that has not been taken yet
+  private boolean lineReady = false;
+
+  /**
+   * Creates a new line reader.
+   *
+   * @param charset The charset of the files we will read
+   * @param bufferSize The initial size of the read buffer, in bytes
+   */
+  public ByteLineReader(Charset charset, int bufferSize) {
+    if (isSupported(charset) == false) {
+      throw new IllegalArgumentException("Charset <" + charset.name() + "> cannot be split on bytes");
+    }
+
+    readBuffer = ByteBuffer.allocateDirect(bufferSize);
+    readBuffer.limit(0);
+    lineBuffer = CharBuffer.allocate(INITIAL_LINE_SIZE);
+
+    // behave like a Reader on bad input
+    decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * See if the lines of files in the given charset can be split on bytes.
+   *
+   * @param charset The charset to check
+   * @return true if '\n' is encoded as the single byte 0x0A
+   */
+  public static boolean isSupported(Charset charset) {
+    if (charset.canEncode() == false) {
+      return false;
+    }
+
+    try {
+      ByteBuffer newline = charset.newEncoder().encode(CharBuffer.wrap("\n"));
+      return (newline.remaining() == 1) && (newline.get(0) == '\n');
+    } catch (CharacterCodingException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Open a file for reading, closing any file we are still reading.
+   *
+   * @param fileName The name of the file to read
+   * @throws IOException
+   */
+  public void open(String fileName) throws IOException {
+    close();
+
+    fileStream = new FileInputStream(fileName);
+    channel = fileStream.getChannel();
+    readBuffer.clear();
+    readBuffer.limit(0);
+    scanned = 0;
+    endOfFile = false;
+    lineReady = false;
+  }
+
+  /**
+   * Close the file we are reading.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    channel = null;
+    lineReady = false;
+
+    if (fileStream != null) {
+      FileInputStream closingStream = fileStream;
+      fileStream = null;
+      closingStream.close();
+    }
+  }
+
+  /**
+   * Read the next line of the file, if we have not already done so.
+   *
+   * @return true if there is a line, false at the end of the file
+   * @throws IOException
+   */
+  public boolean hasNext() throws IOException {
+    if (lineReady) {
+      return true;
+    }
+
+    if (channel == null) {
+      return false;
+    }
+
+    while (true) {
+      // look for the end of the line in the bytes we have not yet scanned
+      int lineStart = readBuffer.position();
+      int limit = readBuffer.limit();
+      for (int i = lineStart + scanned; i < limit; i++) {
+        if (readBuffer.get(i) == '\n') {
+          decodeLine(i);
+          readBuffer.position(i + 1);
+          scanned = 0;
+          lineReady = true;
+          return true;
+        }
+      }
+      scanned = limit - lineStart;
+
+      if (endOfFile) {
+        if (scanned > 0) {
+          // the last line has no newline
+          decodeLine(limit);
+          readBuffer.position(limit);
+          scanned = 0;
+          lineReady = true;
+          return true;
+        }
+
+        return false;
+      }
+
+      fill();
+    }
+  }
+
+  /**
+   * Take the current line. The view is overwritten by the next call to
+   * hasNext(), so use toString() on it to keep it.
+   *
+   * @return The line, without the line end
+   */
+  public CharSequence next() {
+    lineReady = false;
+    return lineBuffer;
+  }
+
+  /**
+   * Move the unread bytes to the start of the buffer and read more from the
+   * file, growing the buffer if a single line does not fit in it.
+   */
+  private void fill() throws IOException {
+    readBuffer.compact();
+
+    if (readBuffer.hasRemaining() == false) {
+      ByteBuffer largerBuffer = ByteBuffer.allocateDirect(readBuffer.capacity() * 2);
+      readBuffer.flip();
+      largerBuffer.put(readBuffer);
+      readBuffer = largerBuffer;
+    }
+
+    if (channel.read(readBuffer) < 0) {
+      endOfFile = true;
+    }
+
+    readBuffer.flip();
+  }
+
+  /**
+   * Decode the bytes from the buffer position to the line end into the line
+   * buffer.
+   *
+   * @param lineEnd The position of the line end in the read buffer
+   */
+  private void decodeLine(int lineEnd) {
+    int oldLimit = readBuffer.limit();
+
+    if ((lineEnd > readBuffer.position()) && (readBuffer.get(lineEnd - 1) == '\r')) {
+      lineEnd--;
+    }
+
+    // make sure the decoded line fits, so that we never overflow
+    int maxChars = (int) ((lineEnd - readBuffer.position()) * (double) decoder.maxCharsPerByte()) + 1;
+    if (lineBuffer.capacity() < maxChars) {
+      lineBuffer = CharBuffer.allocate(Math.max(maxChars, lineBuffer.capacity() * 2));
+    }
+
+    readBuffer.limit(lineEnd);
+    lineBuffer.clear();
+    decoder.reset();
+    decoder.decode(readBuffer, lineBuffer, true);
+    decoder.flush(lineBuffer);
+    lineBuffer.flip();
+    readBuffer.limit(oldLimit);
+  }
+}
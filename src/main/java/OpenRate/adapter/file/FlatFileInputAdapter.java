@@ -67,10 +67,24 @@ import OpenRate.record.IRecord;
 import OpenRate.record.TrailerRecord;
 import OpenRate.utils.PropertyUtils;
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 import org.apache.oro.io.GlobFilenameFilter;
 import org.apache.oro.text.GlobCompiler;
 
@@ -148,6 +162,64 @@ import org.apache.oro.text.GlobCompiler;
  * not arrive until a long time after the input adapter has finished processing
  * the input file. In this case, successive transactions can be opened before
  * the preceding transaction is closed.
+ *
+ * <p>
+ * Read Ahead<br>
+ * ----------
+ *
+ * <p>
+ * Normally the files are read one after the other on the adapter thread, so a
+ * slow or very large file holds up all of the files waiting behind it. Setting
+ * "ReadAheadFiles" to a value greater than 0 reads up to that many of the
+ * assigned files concurrently, each in its own reader thread, into a queue of
+ * at most "ReadAheadLines" lines (default 10000) per file. The adapter still
+ * takes the files in order, so the header, records and trailer of each file
+ * stay contiguous in the stream and procValidRecord() is always called from
+ * the adapter thread. In this mode getFileReader() returns null.
+ *
+ * <p>
+ * Chunked Parsing<br>
+ * ---------------
+ *
+ * <p>
+ * For single very large files, setting "ChunkThreads" to a value greater than
+ * 0 memory maps the file and splits it into chunks of "ChunkSize" bytes
+ * (default 8MB). The chunks are split into lines and decoded by that many
+ * decoder threads, and the adapter takes the lines back chunk by chunk in file
+ * order, so the records and their record numbers are the same as when the file
+ * is read on demand. A line belongs to the chunk in which it starts. Lines are
+ * split on '\n' (a trailing '\r' is removed), so the file must use an ASCII
+ * compatible encoding. In this mode getFileReader() returns null. Chunked
+ * parsing cannot be combined with "ReadAheadFiles".
+ *
+ * <p>
+ * Charset and Line Splitting<br>
+ * --------------------------
+ *
+ * <p>
+ * The files are decoded with the "Charset" charset, which defaults to the
+ * platform default. Setting "LineSplitter" to "Bytes" reads the file through a
+ * ByteLineReader instead of a BufferedReader, which splits the lines on the raw
+ * bytes of a direct buffer of "ReadBufferSize" bytes (default 1MB) and decodes
+ * each line into a reusable buffer. Each line is passed to procValidLine() as
+ * a CharSequence view, which by default makes a FlatRecord from it and calls
+ * procValidRecord(). Implementation classes can override procValidLine() to
+ * work on the view directly and create only the Strings they need. In this
+ * mode getFileReader() returns null. The "Bytes" line splitter cannot be combined with "ReadAheadFiles" or
+ * "ChunkThreads".
+ *
+ * <p>
+ * Compressed Files<br>
+ * ----------------
+ *
+ * <p>
+ * Setting "Compression" to "Gzip" reads all input files as gzip files, and
+ * setting it to "Auto" reads the files whose names end with ".gz" as gzip
+ * files and the others as plain files. The default "None" reads all files as
+ * plain files. A compressed file is always decompressed by a read ahead reader
+ * thread, even when "ReadAheadFiles" is 0, so that the decompression does not
+ * hold up loadBatch(). Chunked parsing and the "Bytes" line splitter are not
+ * used for compressed files.
  */
 public abstract class FlatFileInputAdapter
         extends AbstractTransactionalInputAdapter
@@ -254,6 +326,71 @@ public abstract class FlatFileInputAdapter
   private static final String SERVICE_E_SUFFIX = "ErrFileSuffix";
   private static final String SERVICE_PROCPREFIX = "ProcessingPrefix";
   private static final String DEFAULT_PROCPREFIX = "tmp";
+  private static final String SERVICE_READ_AHEAD = "ReadAheadFiles";
+  private static final String SERVICE_READ_AHEAD_LINES = "ReadAheadLines";
+  private static final String DEFAULT_READ_AHEAD = "0";
+  private static final String DEFAULT_READ_AHEAD_LINES = "10000";
+  private static final String SERVICE_CHUNK_THREADS = "ChunkThreads";
+  private static final String SERVICE_CHUNK_SIZE = "ChunkSize";
+  private static final String DEFAULT_CHUNK_THREADS = "0";
+  private static final String DEFAULT_CHUNK_SIZE = "8388608";
+
+  private static final String SERVICE_CHARSET = "Charset";
+  private static final String SERVICE_LINE_SPLITTER = "LineSplitter";
+  private static final String SERVICE_READ_BUFFER = "ReadBufferSize";
+  private static final String LINE_SPLITTER_READER = "Reader";
+  private static final String LINE_SPLITTER_BYTES = "Bytes";
+  private static final String DEFAULT_READ_BUFFER = "1048576";
+  private static final String SERVICE_COMPRESSION = "Compression";
+  private static final String COMPRESSION_NONE = "None";
+  private static final String COMPRESSION_GZIP = "Gzip";
+  private static final String COMPRESSION_AUTO = "Auto";
+  private static final String GZIP_SUFFIX = ".gz";
+
+  // The initial overlap we map after a chunk to find the end of its last line
+  private static final int CHUNK_TAIL = 65536;
+
+  // Marks the end of a read ahead file, compared by identity
+  private static final String END_OF_FILE = new String();
+
+  // The number of files we read ahead concurrently, 0 means read on demand
+  private int readAheadFiles = 0;
+
+  // The number of lines we buffer for each read ahead file
+  private int readAheadLines = 0;
+
+  // The read ahead readers of the files waiting behind the current file
+  private final HashMap<Integer, FileReadAhead> readAheadReaders = new HashMap<>();
+
+  // The read ahead reader of the file we are currently emitting
+  private FileReadAhead currentReadAhead;
+
+  // The number of threads decoding chunks, 0 means chunked parsing is off
+  private int chunkThreads = 0;
+
+  // The size of the chunks we split the file into for decoding
+  private int chunkSize = 0;
+
+  // The decoder threads for chunked parsing
+  private ExecutorService chunkDecoders;
+
+  // The chunked reader of the file we are currently emitting
+  private ChunkedFileReader currentChunkReader;
+
+  // The charset of the input files
+  private Charset inputCharset = Charset.defaultCharset();
+
+  // true if we split the lines on bytes with the byte line reader
+  private boolean byteLineSplit = false;
+
+  // The size of the read buffer of the byte line reader
+  private int readBufferSize = 0;
+
+  // The byte line reader, kept between files so we reuse its buffers
+  private ByteLineReader byteLineReader;
+
+  // How we decide if the input files are compressed
+  private String compression = COMPRESSION_NONE;
 
   // This is used to hold the calculated file names
   private class TransControlStructure {
@@ -265,6 +402,254 @@ public abstract class FlatFileInputAdapter
     String baseName;
   }
 
+  // This reads one file into a bounded queue of lines in its own thread
+  private class FileReadAhead implements Runnable {
+
+    private final BufferedReader fileReader;
+    private final ArrayBlockingQueue<String> lines;
+    private volatile IOException readError = null;
+    private volatile boolean cancelled = false;
+    private Thread readerThread;
+
+    // only used by the adapter thread
+    private String nextLine = null;
+    private boolean finished = false;
+
+    FileReadAhead(BufferedReader fileReader, int queueSize) {
+      this.fileReader = fileReader;
+      this.lines = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    void start(String threadName) {
+      readerThread = new Thread(this, threadName);
+      readerThread.setDaemon(true);
+      readerThread.start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        String line;
+        while ((cancelled == false) && ((line = fileReader.readLine()) != null)) {
+          // blank records are skipped by the adapter anyway
+          if (line.length() > 0) {
+            lines.put(line);
+          }
+        }
+      } catch (IOException ex) {
+        readError = ex;
+      } catch (InterruptedException ex) {
+        // we have been cancelled
+        return;
+      } finally {
+        try {
+          fileReader.close();
+        } catch (IOException ex) {
+          // nothing more we can do with this file
+        }
+      }
+
+      try {
+        if (cancelled == false) {
+          lines.put(END_OF_FILE);
+        }
+      } catch (InterruptedException ex) {
+        // we have been cancelled
+      }
+    }
+
+    /**
+     * Waits for the next line of the file.
+     *
+     * @return true if there is a line, false at the end of the file
+     * @throws IOException if the reader thread could not read the file
+     */
+    boolean hasNext() throws IOException {
+      if ((nextLine == null) && (finished == false)) {
+        try {
+          nextLine = lines.take();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for read ahead");
+        }
+
+        if (nextLine == END_OF_FILE) {
+          nextLine = null;
+          finished = true;
+
+          if (readError != null) {
+            throw readError;
+          }
+        }
+      }
+
+      return (nextLine != null);
+    }
+
+    String next() {
+      String line = nextLine;
+      nextLine = null;
+      return line;
+    }
+
+    void cancel() {
+      cancelled = true;
+      lines.clear();
+      if (readerThread != null) {
+        readerThread.interrupt();
+      }
+    }
+  }
+
+  // This splits one chunk of a mapped file into decoded lines
+  private static class ChunkDecoder implements Callable<List<String>> {
+
+    private final FileChannel channel;
+    private final long fileLength;
+    private final long chunkStart;
+    private final long chunkEnd;
+    private final Charset charset;
+
+    ChunkDecoder(FileChannel channel, long fileLength, long chunkStart, long chunkEnd, Charset charset) {
+      this.channel = channel;
+      this.charset = charset;
+      this.fileLength = fileLength;
+      this.chunkStart = chunkStart;
+      this.chunkEnd = chunkEnd;
+    }
+
+    @Override
+    public List<String> call() throws IOException {
+      ArrayList<String> lines = new ArrayList<>();
+
+      // map the byte before the chunk so that we can see if the chunk starts
+      // on a line start, and a tail after it to finish the last line
+      long mapStart = (chunkStart == 0) ? 0 : chunkStart - 1;
+      long tail = CHUNK_TAIL;
+
+      while (true) {
+        long mapEnd = Math.min(fileLength, chunkEnd + tail);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        byte[] bytes = new byte[(int) (mapEnd - mapStart)];
+        window.get(bytes);
+
+        // lines starting at or after this belong to the next chunk
+        int limit = (int) (chunkEnd - mapStart);
+        int pos = 0;
+
+        if (chunkStart > 0) {
+          // skip the end of the line that belongs to the previous chunk
+          while ((pos < bytes.length) && (bytes[pos] != '\n')) {
+            pos++;
+          }
+          pos++;
+        }
+
+        boolean complete = true;
+        while (pos < limit) {
+          int eol = pos;
+          while ((eol < bytes.length) && (bytes[eol] != '\n')) {
+            eol++;
+          }
+
+          if ((eol == bytes.length) && (mapEnd < fileLength)) {
+            // the last line runs past the tail, map more and start again
+            complete = false;
+            break;
+          }
+
+          int end = eol;
+          if ((end > pos) && (bytes[end - 1] == '\r')) {
+            end--;
+          }
+
+          // skip blank records
+          if (end > pos) {
+            lines.add(new String(bytes, pos, end - pos, charset));
+          }
+
+          pos = eol + 1;
+        }
+
+        if (complete) {
+          return lines;
+        }
+
+        lines.clear();
+        tail *= 2;
+      }
+    }
+  }
+
+  // This hands out the lines of the chunks of a file in file order
+  private class ChunkedFileReader {
+
+    private final FileInputStream fileStream;
+    private final FileChannel channel;
+    private final long fileLength;
+    private long nextChunkStart = 0;
+    private final ArrayDeque<Future<List<String>>> pendingChunks = new ArrayDeque<>();
+    private Iterator<String> currentChunk = null;
+
+    ChunkedFileReader(String fileName) throws IOException {
+      fileStream = new FileInputStream(fileName);
+      channel = fileStream.getChannel();
+      fileLength = channel.size();
+      submitChunks();
+    }
+
+    // keep the decoder threads busy, without decoding too far ahead
+    private void submitChunks() {
+      while ((pendingChunks.size() < (chunkThreads * 2)) && (nextChunkStart < fileLength)) {
+        long chunkEnd = Math.min(fileLength, nextChunkStart + chunkSize);
+        pendingChunks.add(chunkDecoders.submit(new ChunkDecoder(channel, fileLength, nextChunkStart, chunkEnd, inputCharset)));
+        nextChunkStart = chunkEnd;
+      }
+    }
+
+    /**
+     * Waits for the next line of the file.
+     *
+     * @return true if there is a line, false at the end of the file
+     * @throws IOException if a chunk could not be decoded
+     */
+    boolean hasNext() throws IOException {
+      while ((currentChunk == null) || (currentChunk.hasNext() == false)) {
+        if (pendingChunks.isEmpty()) {
+          return false;
+        }
+
+        try {
+          currentChunk = pendingChunks.poll().get().iterator();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for chunk");
+        } catch (ExecutionException ex) {
+          throw new IOException("Could not decode chunk", ex.getCause());
+        }
+
+        submitChunks();
+      }
+
+      return true;
+    }
+
+    String next() {
+      return currentChunk.next();
+    }
+
+    void close() throws IOException {
+      for (Future<List<String>> pendingChunk : pendingChunks) {
+        pendingChunk.cancel(true);
+      }
+      pendingChunks.clear();
+      fileStream.close();
+    }
+  }
+
+  // Used to wake the pipe when new files arrive in the event driven schedule
+  private InputDirectoryWatcher inputDirectoryWatcher;
+
   // This holds the file names for the files that are in processing at any
   // given moment
   private HashMap<Integer, TransControlStructure> currentFileNames;
@@ -318,6 +703,74 @@ public abstract class FlatFileInputAdapter
     processControlEvent(SERVICE_E_SUFFIX, true, ConfigHelper);
     ConfigHelper = initGetProcPrefix();
     processControlEvent(SERVICE_PROCPREFIX, true, ConfigHelper);
+    ConfigHelper = initGetReadAheadFiles();
+    if (!processControlEvent(SERVICE_READ_AHEAD, true, ConfigHelper).equals("OK")) {
+      message = "Read ahead files must be 0 or a positive number, found <" + ConfigHelper
+              + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    ConfigHelper = initGetReadAheadLines();
+    if (!processControlEvent(SERVICE_READ_AHEAD_LINES, true, ConfigHelper).equals("OK")) {
+      message = "Read ahead lines must be a positive number, found <" + ConfigHelper
+              + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    ConfigHelper = initGetChunkThreads();
+    if (!processControlEvent(SERVICE_CHUNK_THREADS, true, ConfigHelper).equals("OK")) {
+      message = "Chunk threads must be 0 or a positive number, found <" + ConfigHelper
+              + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    ConfigHelper = initGetChunkSize();
+    if (!processControlEvent(SERVICE_CHUNK_SIZE, true, ConfigHelper).equals("OK")) {
+      message = "Chunk size must be a positive number of at most <" + (Integer.MAX_VALUE / 2)
+              + ">, found <" + ConfigHelper + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    if ((chunkThreads > 0) && (readAheadFiles > 0)) {
+      message = "Chunk threads and read ahead files cannot both be used in module <"
+              + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    ConfigHelper = initGetCharset();
+    if (!processControlEvent(SERVICE_CHARSET, true, ConfigHelper).equals("OK")) {
+      message = "Charset <" + ConfigHelper + "> is not supported in module <"
+              + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    ConfigHelper = initGetLineSplitter();
+    if (!processControlEvent(SERVICE_LINE_SPLITTER, true, ConfigHelper).equals("OK")) {
+      message = "Line splitter must be <" + LINE_SPLITTER_READER + "> or <" + LINE_SPLITTER_BYTES
+              + ">, found <" + ConfigHelper + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    ConfigHelper = initGetReadBufferSize();
+    if (!processControlEvent(SERVICE_READ_BUFFER, true, ConfigHelper).equals("OK")) {
+      message = "Read buffer size must be a positive number, found <" + ConfigHelper
+              + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    if (byteLineSplit) {
+      if ((chunkThreads > 0) || (readAheadFiles > 0)) {
+        message = "Line splitter <" + LINE_SPLITTER_BYTES + "> cannot be used with chunk threads or read ahead files in module <"
+                + getSymbolicName() + ">";
+        throw new InitializationException(message, getSymbolicName());
+      }
+
+      if (ByteLineReader.isSupported(inputCharset) == false) {
+        message = "Charset <" + inputCharset.name() + "> cannot be used with line splitter <"
+                + LINE_SPLITTER_BYTES + "> in module <" + getSymbolicName() + ">";
+        throw new InitializationException(message, getSymbolicName());
+      }
+
+      byteLineReader = new ByteLineReader(inputCharset, readBufferSize);
+    }
+    ConfigHelper = initGetCompression();
+    if (!processControlEvent(SERVICE_COMPRESSION, true, ConfigHelper).equals("OK")) {
+      message = "Compression must be <" + COMPRESSION_NONE + ">, <" + COMPRESSION_GZIP + "> or <"
+              + COMPRESSION_AUTO + ">, found <" + ConfigHelper + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
 
     // Check the file name scanning variables, throw initialisation exception
     // if something is wrong.
@@ -325,6 +778,16 @@ public abstract class FlatFileInputAdapter
 
     // create the structure for storing filenames
     currentFileNames = new HashMap<>(10);
+
+    // start the decoder threads for chunked parsing
+    if (chunkThreads > 0) {
+      initChunkDecoders();
+    }
+
+    // In the event driven schedule, wake the pipe as soon as a file arrives
+    if (getPipeline().isEventScheduler()) {
+      initInputDirectoryWatcher();
+    }
   }
 
   /**
@@ -341,7 +804,7 @@ public abstract class FlatFileInputAdapter
    */
   @Override
   protected Collection<IRecord> loadBatch() throws ProcessingException {
-    String tmpFileRecord;
+    CharSequence tmpFileRecord;
     String baseName = null;
     Collection<IRecord> Outbatch;
     int ThisBatchCounter = 0;
@@ -349,7 +812,6 @@ public abstract class FlatFileInputAdapter
     // The Record types we will have to deal with
     HeaderRecord tmpHeader;
     TrailerRecord tmpTrailer;
-    FlatRecord tmpDataRecord;
     IRecord batchRecord;
     Outbatch = new ArrayList<>();
 
@@ -364,6 +826,11 @@ public abstract class FlatFileInputAdapter
       fileTransactionNumbers.addAll(fileNames);
     }
 
+    // Start reading ahead on the files we have been given
+    if (readAheadFiles > 0) {
+      startReadAhead();
+    }
+
     // Process records if we are not yet full, or we have files waiting
     while ((ThisBatchCounter < batchSize) & ((fileTransactionNumbers.size() > 0) | (inputStreamOpen))) {
       // see if we can open a new file - we are not in a transaction but we have
@@ -379,7 +846,22 @@ public abstract class FlatFileInputAdapter
         // Now that we have the file name, try to open it from
         // the renamed file provided by assignInput
         try {
-          reader = new BufferedReader(new FileReader(getProcName(transactionNumber)), BUF_SIZE);
+          if (readAheadFiles > 0) {
+            // normally the reader was started when the file came into the window
+            currentReadAhead = readAheadReaders.remove(transactionNumber);
+            if (currentReadAhead == null) {
+              currentReadAhead = startFileReadAhead(transactionNumber);
+            }
+          } else if (isCompressed(transactionNumber)) {
+            // decompress in the read ahead thread
+            currentReadAhead = startFileReadAhead(transactionNumber);
+          } else if (chunkThreads > 0) {
+            currentChunkReader = new ChunkedFileReader(getProcName(transactionNumber));
+          } else if (byteLineSplit) {
+            byteLineReader.open(getProcName(transactionNumber));
+          } else {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(getProcName(transactionNumber)), inputCharset), BUF_SIZE);
+          }
           inputStreamOpen = true;
           inputRecordNumber = 0;
 
@@ -398,7 +880,7 @@ public abstract class FlatFileInputAdapter
           // needs to be done
           tmpHeader = procHeader(tmpHeader);
           Outbatch.add(tmpHeader);
-        } catch (FileNotFoundException exFileNotFound) {
+        } catch (IOException exFileNotFound) {
           getPipeLog().error(
                   "Application is not able to read file <" + getProcName(transactionNumber) + ">");
           throw new ProcessingException("Application is not able to read file <"
@@ -410,18 +892,16 @@ public abstract class FlatFileInputAdapter
         // Continue with the open file
         try {
           // read from the file and prepare the batch
-          while ((reader.ready()) & (ThisBatchCounter < batchSize)) {
-            tmpFileRecord = reader.readLine();
+          while ((inputReady()) & (ThisBatchCounter < batchSize)) {
+            tmpFileRecord = readInputLine();
 
             // skip blank records
             if (tmpFileRecord.length() == 0) {
               continue;
             }
 
-            tmpDataRecord = new FlatRecord(tmpFileRecord, inputRecordNumber);
-
             // Call the user layer for any processing that needs to be done
-            batchRecord = procValidRecord(tmpDataRecord);
+            batchRecord = procValidLine(tmpFileRecord, inputRecordNumber);
 
             // Add the prepared record to the batch, because of record compression
             // we may receive a null here. If we do, don't bother adding it
@@ -460,7 +940,7 @@ public abstract class FlatFileInputAdapter
           getPipeline().setSchedulerHigh();
 
           // see the reason that we closed
-          if (reader.ready() == false) {
+          if (inputReady() == false) {
             // we have finished
             inputStreamOpen = false;
 
@@ -510,6 +990,11 @@ public abstract class FlatFileInputAdapter
 
             // Reset the transaction number
             transactionNumber = 0;
+
+            // Move the read ahead window on to the next waiting file
+            if (readAheadFiles > 0) {
+              startReadAhead();
+            }
           }
         } catch (IOException ioex) {
           getPipeLog().fatal("Error reading input file. Message <" + ioex.getMessage() + ">");
@@ -520,6 +1005,245 @@ public abstract class FlatFileInputAdapter
     return Outbatch;
   }
 
+  /**
+   * Start the read ahead readers for the files at the head of the waiting list,
+   * up to the number of files we are allowed to read concurrently, including
+   * the file we are currently emitting.
+   *
+   * @throws ProcessingException
+   */
+  private void startReadAhead() throws ProcessingException {
+    int filesInFlight = readAheadReaders.size();
+    if (currentReadAhead != null) {
+      filesInFlight++;
+    }
+
+    for (Integer waitingTransaction : fileTransactionNumbers) {
+      if (filesInFlight >= readAheadFiles) {
+        break;
+      }
+
+      if (readAheadReaders.containsKey(waitingTransaction) == false) {
+        readAheadReaders.put(waitingTransaction, startFileReadAhead(waitingTransaction));
+        filesInFlight++;
+      }
+    }
+  }
+
+  /**
+   * Open the file of a transaction and start its read ahead reader thread.
+   *
+   * @param readTransaction The transaction of the file to read
+   * @return The running read ahead reader
+   * @throws ProcessingException
+   */
+  private FileReadAhead startFileReadAhead(int readTransaction) throws ProcessingException {
+    String procName = getProcName(readTransaction);
+    try {
+      InputStream fileStream = new FileInputStream(procName);
+      if (isCompressed(readTransaction)) {
+        try {
+          fileStream = new GZIPInputStream(fileStream, BUF_SIZE);
+        } catch (IOException ex) {
+          fileStream.close();
+          throw ex;
+        }
+      }
+
+      FileReadAhead readAhead = new FileReadAhead(new BufferedReader(new InputStreamReader(fileStream, inputCharset), BUF_SIZE), readAheadLines);
+      readAhead.start(getSymbolicName() + ".ReadAhead-" + readTransaction);
+      return readAhead;
+    } catch (IOException exFileNotFound) {
+      getPipeLog().error(
+              "Application is not able to read file <" + procName + ">");
+      throw new ProcessingException("Application is not able to read file <"
+              + procName + ">",
+              exFileNotFound,
+              getSymbolicName());
+    }
+  }
+
+  /**
+   * See if the file of a transaction is compressed, according to the
+   * compression setting.
+   *
+   * @param fileTransaction The transaction of the file
+   * @return true if the file is gzip compressed
+   */
+  private boolean isCompressed(int fileTransaction) {
+    switch (compression) {
+      case COMPRESSION_GZIP:
+        return true;
+      case COMPRESSION_AUTO:
+        return getProcName(fileTransaction).endsWith(GZIP_SUFFIX);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * See if there is more input in the current file. In read ahead mode this
+   * waits for the reader thread of the file.
+   *
+   * @return true if there is more to read
+   * @throws IOException
+   */
+  private boolean inputReady() throws IOException {
+    if (currentReadAhead != null) {
+      return currentReadAhead.hasNext();
+    }
+
+    if (currentChunkReader != null) {
+      return currentChunkReader.hasNext();
+    }
+
+    if (byteLineSplit) {
+      return byteLineReader.hasNext();
+    }
+
+    return reader.ready();
+  }
+
+  /**
+   * Get the next line of the current file.
+   *
+   * @return The line read
+   * @throws IOException
+   */
+  private CharSequence readInputLine() throws IOException {
+    if (currentReadAhead != null) {
+      return currentReadAhead.next();
+    }
+
+    if (currentChunkReader != null) {
+      return currentChunkReader.next();
+    }
+
+    if (byteLineSplit) {
+      return byteLineReader.next();
+    }
+
+    return reader.readLine();
+  }
+
+  /**
+   * Create the pool of threads that decode the chunks of the files in chunked
+   * parsing mode.
+   */
+  private void initChunkDecoders() {
+    final String threadPrefix = getSymbolicName() + ".ChunkDecoder-";
+
+    chunkDecoders = Executors.newFixedThreadPool(chunkThreads, new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread decoderThread = new Thread(r, threadPrefix + threadNumber.incrementAndGet());
+        decoderThread.setDaemon(true);
+        return decoderThread;
+      }
+    });
+  }
+
+  /**
+   * Start watching the input directory, so that we can signal the pipe as soon
+   * as a new input file arrives.
+   *
+   * @throws InitializationException
+   */
+  private synchronized void initInputDirectoryWatcher() throws InitializationException {
+    if (inputDirectoryWatcher != null) {
+      // already watching
+      return;
+    }
+
+    FilenameFilter filter = new GlobFilenameFilter(inputFilePrefix + "*"
+            + inputFileSuffix,
+            GlobCompiler.STAR_CANNOT_MATCH_NULL_MASK);
+
+    try {
+      inputDirectoryWatcher = new InputDirectoryWatcher(inputFilePath, filter, getPipeline());
+      inputDirectoryWatcher.start(getSymbolicName() + ".DirWatcher");
+    } catch (IOException ex) {
+      message = "Could not watch input directory <" + inputFilePath + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, ex, getSymbolicName());
+    }
+  }
+
+  /**
+   * Stop watching the input directory.
+   */
+  private synchronized void stopInputDirectoryWatcher() {
+    if (inputDirectoryWatcher != null) {
+      inputDirectoryWatcher.close();
+      inputDirectoryWatcher = null;
+    }
+  }
+
+  /**
+   * Start watching the input directory when the pipeline changes to the event
+   * driven schedule, and stop when it goes back to polling.
+   *
+   * @param eventScheduler true for the event driven schedule, false for polling
+   */
+  @Override
+  public void schedulerChanged(boolean eventScheduler) {
+    if (eventScheduler) {
+      try {
+        initInputDirectoryWatcher();
+      } catch (InitializationException ex) {
+        // we still pick up the files on the timeout, only later
+        getPipeLog().error(ex.getMessage() + ", falling back to the sleep time");
+      }
+    } else {
+      stopInputDirectoryWatcher();
+    }
+  }
+
+  /**
+   * Stop watching the input directory when the adapter is shut down.
+   */
+  @Override
+  public void cleanup() {
+    stopInputDirectoryWatcher();
+
+    // Stop any readers that are still reading ahead
+    for (FileReadAhead readAhead : readAheadReaders.values()) {
+      readAhead.cancel();
+    }
+    readAheadReaders.clear();
+
+    if (currentReadAhead != null) {
+      currentReadAhead.cancel();
+      currentReadAhead = null;
+    }
+
+    // Stop the chunk decoders
+    if (currentChunkReader != null) {
+      try {
+        currentChunkReader.close();
+      } catch (IOException ex) {
+        getPipeLog().error("Error closing chunked reader in module <" + getSymbolicName() + ">. Message <" + ex.getMessage() + ">");
+      }
+      currentChunkReader = null;
+    }
+
+    if (chunkDecoders != null) {
+      chunkDecoders.shutdownNow();
+      chunkDecoders = null;
+    }
+
+    if (byteLineReader != null) {
+      try {
+        byteLineReader.close();
+      } catch (IOException ex) {
+        getPipeLog().error("Error closing byte line reader in module <" + getSymbolicName() + ">. Message <" + ex.getMessage() + ">");
+      }
+    }
+
+    super.cleanup();
+  }
+
   /**
    * Closes down the input stream after all the input has been collected
    *
@@ -528,7 +1252,25 @@ public abstract class FlatFileInputAdapter
    */
   public void closeStream(int TransactionNumber)
           throws ProcessingException {
+    // the read ahead reader thread closes its own file
+    if (currentReadAhead != null) {
+      currentReadAhead = null;
+      return;
+    }
+
     try {
+      if (currentChunkReader != null) {
+        ChunkedFileReader closingReader = currentChunkReader;
+        currentChunkReader = null;
+        closingReader.close();
+        return;
+      }
+
+      if (byteLineSplit) {
+        byteLineReader.close();
+        return;
+      }
+
       reader.close();
     } catch (IOException exFileNotFound) {
       getPipeLog().error("Application is not able to close file <" + getProcName(TransactionNumber) + ">");
@@ -548,6 +1290,22 @@ public abstract class FlatFileInputAdapter
     return reader;
   }
 
+  /**
+   * This is called with each line read from the file. The default creates a
+   * FlatRecord from the line and passes it to procValidRecord(). With the
+   * "Bytes" line splitter the line is a reusable view, which is overwritten by
+   * the next line, so implementations which override this must copy anything
+   * they want to keep, for example with toString().
+   *
+   * @param line The line we have read
+   * @param recordNumber The record number to give the record
+   * @return The processed record
+   * @throws ProcessingException
+   */
+  public IRecord procValidLine(CharSequence line, int recordNumber) throws ProcessingException {
+    return procValidRecord(new FlatRecord(line.toString(), recordNumber));
+  }
+
   /**
    * This is called when a data record is encountered. You should do any normal
    * processing here.
@@ -775,6 +1533,164 @@ public abstract class FlatFileInputAdapter
       }
     }
 
+    if (Command.equalsIgnoreCase(SERVICE_READ_AHEAD)) {
+      if (Init) {
+        try {
+          int tmpReadAhead = Integer.parseInt(Parameter);
+          if (tmpReadAhead >= 0) {
+            readAheadFiles = tmpReadAhead;
+            ResultCode = 0;
+          }
+        } catch (NumberFormatException nfe) {
+          // reported by the caller
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return Integer.toString(readAheadFiles);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_READ_AHEAD_LINES)) {
+      if (Init) {
+        try {
+          int tmpReadAheadLines = Integer.parseInt(Parameter);
+          if (tmpReadAheadLines > 0) {
+            readAheadLines = tmpReadAheadLines;
+            ResultCode = 0;
+          }
+        } catch (NumberFormatException nfe) {
+          // reported by the caller
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return Integer.toString(readAheadLines);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_CHUNK_THREADS)) {
+      if (Init) {
+        try {
+          int tmpChunkThreads = Integer.parseInt(Parameter);
+          if (tmpChunkThreads >= 0) {
+            chunkThreads = tmpChunkThreads;
+            ResultCode = 0;
+          }
+        } catch (NumberFormatException nfe) {
+          // reported by the caller
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return Integer.toString(chunkThreads);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_CHUNK_SIZE)) {
+      if (Init) {
+        try {
+          int tmpChunkSize = Integer.parseInt(Parameter);
+
+          // leave room for the tail we map after the chunk
+          if ((tmpChunkSize > 0) && (tmpChunkSize <= Integer.MAX_VALUE / 2)) {
+            chunkSize = tmpChunkSize;
+            ResultCode = 0;
+          }
+        } catch (NumberFormatException nfe) {
+          // reported by the caller
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return Integer.toString(chunkSize);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_CHARSET)) {
+      if (Init) {
+        try {
+          inputCharset = Charset.forName(Parameter);
+          ResultCode = 0;
+        } catch (IllegalArgumentException ex) {
+          // unknown or illegal charset name, reported by the caller
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return inputCharset.name();
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_LINE_SPLITTER)) {
+      if (Init) {
+        if (Parameter.equalsIgnoreCase(LINE_SPLITTER_BYTES)) {
+          byteLineSplit = true;
+          ResultCode = 0;
+        } else if (Parameter.equalsIgnoreCase(LINE_SPLITTER_READER)) {
+          byteLineSplit = false;
+          ResultCode = 0;
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return byteLineSplit ? LINE_SPLITTER_BYTES : LINE_SPLITTER_READER;
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_READ_BUFFER)) {
+      if (Init) {
+        try {
+          int tmpReadBufferSize = Integer.parseInt(Parameter);
+          if (tmpReadBufferSize > 0) {
+            readBufferSize = tmpReadBufferSize;
+            ResultCode = 0;
+          }
+        } catch (NumberFormatException nfe) {
+          // reported by the caller
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return Integer.toString(readBufferSize);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_COMPRESSION)) {
+      if (Init) {
+        if (Parameter.equalsIgnoreCase(COMPRESSION_NONE)) {
+          compression = COMPRESSION_NONE;
+          ResultCode = 0;
+        } else if (Parameter.equalsIgnoreCase(COMPRESSION_GZIP)) {
+          compression = COMPRESSION_GZIP;
+          ResultCode = 0;
+        } else if (Parameter.equalsIgnoreCase(COMPRESSION_AUTO)) {
+          compression = COMPRESSION_AUTO;
+          ResultCode = 0;
+        }
+      } else {
+        if (Parameter.equals("")) {
+          return compression;
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
     if (ResultCode == 0) {
       getPipeLog().debug(LogUtil.LogECIPipeCommand(getSymbolicName(), getPipeName(), Command, Parameter));
 
@@ -808,6 +1724,14 @@ public abstract class FlatFileInputAdapter
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_D_SUFFIX, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_E_SUFFIX, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_PROCPREFIX, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_READ_AHEAD, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_READ_AHEAD_LINES, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_CHUNK_THREADS, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_CHUNK_SIZE, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_CHARSET, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_LINE_SPLITTER, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_READ_BUFFER, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_COMPRESSION, ClientManager.PARAM_NONE);
   }
 
   // -----------------------------------------------------------------------------
@@ -936,6 +1860,118 @@ public abstract class FlatFileInputAdapter
     return tmpProcPrefix;
   }
 
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetReadAheadFiles()
+          throws InitializationException {
+    String tmpReadAhead;
+    tmpReadAhead = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_READ_AHEAD,
+            DEFAULT_READ_AHEAD);
+
+    return tmpReadAhead;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetReadAheadLines()
+          throws InitializationException {
+    String tmpReadAheadLines;
+    tmpReadAheadLines = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_READ_AHEAD_LINES,
+            DEFAULT_READ_AHEAD_LINES);
+
+    return tmpReadAheadLines;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetChunkThreads()
+          throws InitializationException {
+    String tmpChunkThreads;
+    tmpChunkThreads = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_CHUNK_THREADS,
+            DEFAULT_CHUNK_THREADS);
+
+    return tmpChunkThreads;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetChunkSize()
+          throws InitializationException {
+    String tmpChunkSize;
+    tmpChunkSize = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_CHUNK_SIZE,
+            DEFAULT_CHUNK_SIZE);
+
+    return tmpChunkSize;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetCharset()
+          throws InitializationException {
+    String tmpCharset;
+    tmpCharset = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_CHARSET,
+            Charset.defaultCharset().name());
+
+    return tmpCharset;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetLineSplitter()
+          throws InitializationException {
+    String tmpLineSplitter;
+    tmpLineSplitter = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_LINE_SPLITTER,
+            LINE_SPLITTER_READER);
+
+    return tmpLineSplitter;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetReadBufferSize()
+          throws InitializationException {
+    String tmpReadBufferSize;
+    tmpReadBufferSize = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_READ_BUFFER,
+            DEFAULT_READ_BUFFER);
+
+    return tmpReadBufferSize;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetCompression()
+          throws InitializationException {
+    String tmpCompression;
+    tmpCompression = PropertyUtils.getPropertyUtils().getBatchInputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_COMPRESSION,
+            COMPRESSION_NONE);
+
+    return tmpCompression;
+  }
+
   /**
    * Checks the file name from the input parameters. Refactored from init() into
    * a method of its own so that derived classes can still reuse most of the
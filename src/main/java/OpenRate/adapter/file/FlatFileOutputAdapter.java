@@ -68,11 +68,18 @@ import OpenRate.record.TrailerRecord;
 import OpenRate.utils.PropertyUtils;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Please <a target='new'
@@ -80,6 +87,22 @@ import java.util.Iterator;
  * here</a> to go to wiki page.
  * <br>Flat File Output Adapter. Writes to a file stream output, using
  * transaction aware handling.
+ *
+ * <p>
+ * Setting "WriteMode" to "Async" writes the files with an AsyncFileWriter, so
+ * that the records are formatted into a buffer of "WriteBufferSize" bytes
+ * (default 4MB) and written to the disk by a separate I/O thread, instead of
+ * the adapter thread waiting for the disk. The files are still completely
+ * written when they are closed at the end of the stream, before the
+ * transaction is committed or rolled back. Setting "ForceOnCommit" to "true"
+ * also forces the data to the disk at that point.
+ *
+ * <p>
+ * Setting "Compression" to "Gzip" writes gzip compressed output and error
+ * files, and setting it to "Auto" compresses the files whose suffix ends with
+ * ".gz". In the "Async" write mode the compression is done by the I/O thread.
+ * A compressed file counts as empty for the empty file deletion when it has
+ * no uncompressed content.
  */
 public abstract class FlatFileOutputAdapter
         extends AbstractTransactionalOutputAdapter
@@ -127,6 +150,29 @@ public abstract class FlatFileOutputAdapter
   private final static String SERVICE_DEL_EMPTY_ERR_FILE = "DeleteEmptyErrorFile";
   private static final String SERVICE_PROCPREFIX = "ProcessingPrefix";
   private static final String DEFAULT_PROCPREFIX = "tmp";
+  private static final String SERVICE_WRITE_MODE = "WriteMode";
+  private static final String SERVICE_WRITE_BUFFER = "WriteBufferSize";
+  private static final String SERVICE_FORCE_ON_COMMIT = "ForceOnCommit";
+  private static final String WRITE_MODE_SYNC = "Sync";
+  private static final String WRITE_MODE_ASYNC = "Async";
+  private static final String DEFAULT_WRITE_BUFFER = "4194304";
+  private static final String SERVICE_COMPRESSION = "Compression";
+  private static final String COMPRESSION_NONE = "None";
+  private static final String COMPRESSION_GZIP = "Gzip";
+  private static final String COMPRESSION_AUTO = "Auto";
+  private static final String GZIP_SUFFIX = ".gz";
+
+  // How we decide if the output files are compressed
+  private String compression = COMPRESSION_NONE;
+
+  // If we write the files from a separate I/O thread
+  private boolean asyncWrite = false;
+
+  // The size of each of the async write buffers
+  private int writeBufferSize = 0;
+
+  // If we force the data to disk when we close the files
+  private boolean forceOnCommit = false;
 
   //final static String SERVICE_OUT_FILE_NAME = "OutputFileName";
   //final static String SERVICE_ERR_FILE_NAME = "ErrFileName";
@@ -217,6 +263,30 @@ public abstract class FlatFileOutputAdapter
 
     configHelper = initGetProcPrefix();
     processControlEvent(SERVICE_PROCPREFIX, true, configHelper);
+    configHelper = initGetWriteMode();
+    if (!processControlEvent(SERVICE_WRITE_MODE, true, configHelper).equals("OK")) {
+      message = "Write mode must be <" + WRITE_MODE_SYNC + "> or <" + WRITE_MODE_ASYNC
+              + ">, found <" + configHelper + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    configHelper = initGetWriteBufferSize();
+    if (!processControlEvent(SERVICE_WRITE_BUFFER, true, configHelper).equals("OK")) {
+      message = "Write buffer size must be a positive number, found <" + configHelper
+              + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    configHelper = initGetForceOnCommit();
+    if (!processControlEvent(SERVICE_FORCE_ON_COMMIT, true, configHelper).equals("OK")) {
+      message = "Force on commit must be <true> or <false>, found <" + configHelper
+              + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
+    configHelper = initGetCompression();
+    if (!processControlEvent(SERVICE_COMPRESSION, true, configHelper).equals("OK")) {
+      message = "Compression must be <" + COMPRESSION_NONE + ">, <" + COMPRESSION_GZIP + "> or <"
+              + COMPRESSION_AUTO + ">, found <" + configHelper + "> in module <" + getSymbolicName() + ">";
+      throw new InitializationException(message, getSymbolicName());
+    }
 
     // Check the parameters we received
     initFileName();
@@ -399,7 +469,7 @@ public abstract class FlatFileOutputAdapter
    * @param filename The name of the file to open
    */
   public void openValidFile(String filename) {
-    FileWriter fwriter = null;
+    Writer fwriter = null;
     File file;
     file = new File(filename);
 
@@ -408,7 +478,7 @@ public abstract class FlatFileOutputAdapter
         getPipeLog().error("output file already exists = " + filename);
       }
 
-      fwriter = new FileWriter(file);
+      fwriter = openFileWriter(file);
     } catch (IOException ex) {
       getPipeLog().error("Error opening valid stream output for file " + filename);
     }
@@ -422,7 +492,7 @@ public abstract class FlatFileOutputAdapter
    * @param filename The name of the file to open
    */
   public void openErrFile(String filename) {
-    FileWriter fwriter = null;
+    Writer fwriter = null;
     File file;
     file = new File(filename);
 
@@ -434,7 +504,7 @@ public abstract class FlatFileOutputAdapter
           getPipeLog().error("output file already exists = " + filename);
         }
 
-        fwriter = new FileWriter(file);
+        fwriter = openFileWriter(file);
       } catch (IOException ex) {
         getPipeLog().error("Error opening error stream output for file " + filename);
       }
@@ -443,6 +513,72 @@ public abstract class FlatFileOutputAdapter
     }
   }
 
+  /**
+   * Open the writer for an output file, either directly or through the I/O
+   * thread of an AsyncFileWriter, depending on the write mode.
+   *
+   * @param file The file to open
+   * @return The writer
+   * @throws IOException
+   */
+  private Writer openFileWriter(File file) throws IOException {
+    boolean gzip = isCompressed(file.getName());
+
+    if (asyncWrite) {
+      return new AsyncFileWriter(file, Charset.defaultCharset(), writeBufferSize, forceOnCommit, gzip,
+              getSymbolicName() + ".Writer-" + file.getName());
+    } else if (gzip) {
+      FileOutputStream fileStream = new FileOutputStream(file);
+      try {
+        return new OutputStreamWriter(new GZIPOutputStream(fileStream, BUF_SIZE), Charset.defaultCharset());
+      } catch (IOException ex) {
+        fileStream.close();
+        throw ex;
+      }
+    } else {
+      return new FileWriter(file);
+    }
+  }
+
+  /**
+   * See if an output file is compressed, according to the compression setting.
+   *
+   * @param fileName The name of the file
+   * @return true if the file is gzip compressed
+   */
+  private boolean isCompressed(String fileName) {
+    switch (compression) {
+      case COMPRESSION_GZIP:
+        return true;
+      case COMPRESSION_AUTO:
+        return fileName.endsWith(GZIP_SUFFIX);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * See if an output file has no content. For a compressed file this looks at
+   * the uncompressed content, because the gzip header is always written.
+   *
+   * @param fileName The name of the file
+   * @return true if the file is empty
+   */
+  private boolean isFileEmpty(String fileName) {
+    File f = new File(fileName);
+
+    if (isCompressed(fileName) && (f.length() > 0)) {
+      try (GZIPInputStream gzipStream = new GZIPInputStream(new FileInputStream(f))) {
+        return (gzipStream.read() == -1);
+      } catch (IOException ex) {
+        getPipeLog().error("Error reading compressed file <" + fileName + ">. Message <" + ex.getMessage() + ">");
+        return false;
+      }
+    }
+
+    return (f.length() == 0);
+  }
+
   @Override
   public void closeStream(int transactionNumber) {
     // Nothing for the moment
@@ -562,12 +698,7 @@ public abstract class FlatFileOutputAdapter
    * @return true if the file is empty, otherwise false
    */
   public boolean getOutputFileEmpty(int transactionNumber) {
-    File f = new File(getProcOutputName(transactionNumber));
-    if (f.length() == 0) {
-      return true;
-    } else {
-      return false;
-    }
+    return isFileEmpty(getProcOutputName(transactionNumber));
   }
 
   /**
@@ -586,12 +717,7 @@ public abstract class FlatFileOutputAdapter
    * @return true if the file is empty, otherwise false
    */
   public boolean getErrorFileEmpty(int transactionNumber) {
-    File f = new File(getProcErrorName(transactionNumber));
-    if (f.length() == 0) {
-      return true;
-    } else {
-      return false;
-    }
+    return isFileEmpty(getProcErrorName(transactionNumber));
   }
 
   // -----------------------------------------------------------------------------
@@ -837,6 +963,83 @@ public abstract class FlatFileOutputAdapter
       }
     }
 
+    if (command.equalsIgnoreCase(SERVICE_WRITE_MODE)) {
+      if (init) {
+        if (parameter.equalsIgnoreCase(WRITE_MODE_ASYNC)) {
+          asyncWrite = true;
+          ResultCode = 0;
+        } else if (parameter.equalsIgnoreCase(WRITE_MODE_SYNC)) {
+          asyncWrite = false;
+          ResultCode = 0;
+        }
+      } else {
+        if (parameter.equals("")) {
+          return asyncWrite ? WRITE_MODE_ASYNC : WRITE_MODE_SYNC;
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (command.equalsIgnoreCase(SERVICE_WRITE_BUFFER)) {
+      if (init) {
+        try {
+          int tmpWriteBufferSize = Integer.parseInt(parameter);
+          if (tmpWriteBufferSize > 0) {
+            writeBufferSize = tmpWriteBufferSize;
+            ResultCode = 0;
+          }
+        } catch (NumberFormatException nfe) {
+          // reported by the caller
+        }
+      } else {
+        if (parameter.equals("")) {
+          return Integer.toString(writeBufferSize);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (command.equalsIgnoreCase(SERVICE_FORCE_ON_COMMIT)) {
+      if (init) {
+        if (parameter.equalsIgnoreCase("true")) {
+          forceOnCommit = true;
+          ResultCode = 0;
+        } else if (parameter.equalsIgnoreCase("false")) {
+          forceOnCommit = false;
+          ResultCode = 0;
+        }
+      } else {
+        if (parameter.equals("")) {
+          return Boolean.toString(forceOnCommit);
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
+    if (command.equalsIgnoreCase(SERVICE_COMPRESSION)) {
+      if (init) {
+        if (parameter.equalsIgnoreCase(COMPRESSION_NONE)) {
+          compression = COMPRESSION_NONE;
+          ResultCode = 0;
+        } else if (parameter.equalsIgnoreCase(COMPRESSION_GZIP)) {
+          compression = COMPRESSION_GZIP;
+          ResultCode = 0;
+        } else if (parameter.equalsIgnoreCase(COMPRESSION_AUTO)) {
+          compression = COMPRESSION_AUTO;
+          ResultCode = 0;
+        }
+      } else {
+        if (parameter.equals("")) {
+          return compression;
+        } else {
+          return CommonConfig.NON_DYNAMIC_PARAM;
+        }
+      }
+    }
+
     if (ResultCode == 0) {
       getPipeLog().debug(LogUtil.LogECIPipeCommand(getSymbolicName(), getPipeName(), command, parameter));
 
@@ -870,6 +1073,10 @@ public abstract class FlatFileOutputAdapter
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_DEL_EMPTY_OUT_FILE, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_DEL_EMPTY_ERR_FILE, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_PROCPREFIX, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_WRITE_MODE, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_WRITE_BUFFER, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_FORCE_ON_COMMIT, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_COMPRESSION, ClientManager.PARAM_NONE);
 
     //ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_OUT_FILE_NAME, false, false);
     //ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_ERR_FILE_NAME, false, false);
@@ -1009,6 +1216,62 @@ public abstract class FlatFileOutputAdapter
     return tmpProcPrefix;
   }
 
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetWriteMode()
+          throws InitializationException {
+    String tmpWriteMode;
+    tmpWriteMode = PropertyUtils.getPropertyUtils().getBatchOutputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_WRITE_MODE,
+            WRITE_MODE_SYNC);
+
+    return tmpWriteMode;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetWriteBufferSize()
+          throws InitializationException {
+    String tmpWriteBufferSize;
+    tmpWriteBufferSize = PropertyUtils.getPropertyUtils().getBatchOutputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_WRITE_BUFFER,
+            DEFAULT_WRITE_BUFFER);
+
+    return tmpWriteBufferSize;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetForceOnCommit()
+          throws InitializationException {
+    String tmpForceOnCommit;
+    tmpForceOnCommit = PropertyUtils.getPropertyUtils().getBatchOutputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_FORCE_ON_COMMIT,
+            "false");
+
+    return tmpForceOnCommit;
+  }
+
+  /**
+   * Temporary function to gather the information from the properties file. Will
+   * be removed with the introduction of the new configuration model.
+   */
+  private String initGetCompression()
+          throws InitializationException {
+    String tmpCompression;
+    tmpCompression = PropertyUtils.getPropertyUtils().getBatchOutputAdapterPropertyValueDef(getPipeName(), getSymbolicName(),
+            SERVICE_COMPRESSION,
+            COMPRESSION_NONE);
+
+    return tmpCompression;
+  }
+
   /**
    * Checks the file name from the input parameters.
    *
@@ -0,0 +1,198 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.adapter.file;
+
+import OpenRate.IPipeline;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches an input directory for new files, and signals the pipeline as soon
+ * as a file arrives that matches the input filter. This is used by the file
+ * input adapters when the pipeline is running the event driven scheduler, so
+ * that a new file is picked up immediately instead of at the next scheduler
+ * poll.
+ *
+ * The watcher only wakes up the pipeline: the input adapter still scans the
+ * directory and assigns the files itself, so a missed or spurious event never
+ * leads to a file being lost or processed twice.
+ */
+public class InputDirectoryWatcher
+  implements Runnable
+{
+  // The directory we are watching
+  private final File directory;
+
+  // The filter for the files we are interested in
+  private final FilenameFilter filter;
+
+  // The pipeline we wake up
+  private final IPipeline pipeline;
+
+  // The watch service we are using
+  private final WatchService watchService;
+
+ /**
+  * Create a watcher for the given directory.
+  *
+  * @param directoryName The directory to watch
+  * @param filter The filter for the file names that we signal for
+  * @param pipeline The pipeline to signal
+  * @throws IOException If the directory could not be watched
+  */
+  public InputDirectoryWatcher(String directoryName, FilenameFilter filter, IPipeline pipeline)
+    throws IOException
+  {
+    this.directory = new File(directoryName);
+    this.filter = filter;
+    this.pipeline = pipeline;
+
+    Path dirPath = Paths.get(directoryName);
+    watchService = FileSystems.getDefault().newWatchService();
+    dirPath.register(watchService,
+                     StandardWatchEventKinds.ENTRY_CREATE,
+                     StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+ /**
+  * Start the watcher in its own daemon thread.
+  *
+  * @param threadName The name of the watcher thread
+  */
+  public void start(String threadName)
+  {
+    Thread watcherThread = new Thread(this, threadName);
+    watcherThread.setDaemon(true);
+    watcherThread.start();
+  }
+
+ /**
+  * Stop watching the directory.
+  */
+  public void close()
+  {
+    try
+    {
+      watchService.close();
+    }
+    catch (IOException ex)
+    {
+      // nothing we can do about it
+    }
+  }
+
+ /**
+  * Wait for directory events, and signal the pipeline for each batch of
+  * events that contains a file we are interested in.
+  */
+  @Override
+  public void run()
+  {
+    while (true)
+    {
+      WatchKey key;
+
+      try
+      {
+        key = watchService.take();
+      }
+      catch (InterruptedException | ClosedWatchServiceException ex)
+      {
+        // we have been closed down
+        return;
+      }
+
+      boolean interesting = false;
+
+      for (WatchEvent<?> event : key.pollEvents())
+      {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+        {
+          // we lost events, so we have to assume there is work
+          interesting = true;
+        }
+        else
+        {
+          String fileName = event.context().toString();
+          if ((filter == null) || filter.accept(directory, fileName))
+          {
+            interesting = true;
+          }
+        }
+      }
+
+      if (interesting)
+      {
+        pipeline.signalWorkAvailable();
+      }
+
+      // if the directory has gone away, there is nothing more to watch
+      if (key.reset() == false)
+      {
+        return;
+      }
+    }
+  }
+}
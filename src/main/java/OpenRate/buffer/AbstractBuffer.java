@@ -55,6 +55,8 @@
 
 package OpenRate.buffer;
 
+import OpenRate.record.IRecord;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -72,7 +74,8 @@ import java.util.Iterator;
  *
  * This abstract class must be extended with a storage class, which is able to
  * contain records, as this abstract class only deals with the monitor
- * management.
+ * management and the back pressure towards suppliers. Storage classes must
+ * call notifyDrained() each time records have been pulled out of the buffer.
  */
 public abstract class AbstractBuffer
   implements IBuffer
@@ -84,6 +87,20 @@ public abstract class AbstractBuffer
   private String Supplier;
   private String Consumer;
 
+  // The maximum time we wait for a drain notification before we look at the
+  // buffer again. This is only a safety net, normally we are notified.
+  private static final long DRAIN_CHECK_INTERVAL = 100;
+
+  // Suppliers waiting for the buffer to drain wait on this lock
+  private final Object drainLock = new Object();
+
+  // The number of suppliers waiting for the buffer to drain
+  private int drainWaiters = 0;
+
+  // The highest low water mark that a waiting supplier is waiting for, or -1
+  // if no one is waiting. Consumers signal when the buffer drops to this.
+  private volatile int drainMark = -1;
+
  /**
   * Constructor for AbstractBuffer
   */
@@ -109,6 +126,98 @@ public abstract class AbstractBuffer
     }
   }
 
+ /**
+  * notifyDrained wakes up any suppliers that are waiting for the buffer to
+  * drain, if the number of events has dropped to the level they are waiting
+  * for. This must be called by the storage class after records have been
+  * pulled from the buffer. It is cheap if no one is waiting.
+  */
+  protected void notifyDrained()
+  {
+    int mark = drainMark;
+
+    if ((mark >= 0) && (getEventCount() <= mark))
+    {
+      synchronized (drainLock)
+      {
+        drainLock.notifyAll();
+      }
+    }
+  }
+
+ /**
+  * Block until the number of events in the buffer has dropped to the given
+  * low water mark. The waiting thread is woken by the consumer which drains
+  * the buffer, so it can continue as soon as there is space again.
+  *
+  * @param lowWaterMark The event count we wait for
+  * @return true if we had to wait, false if the buffer was already drained
+  */
+  protected boolean awaitDrain(int lowWaterMark)
+  {
+    if (getEventCount() <= lowWaterMark)
+    {
+      return false;
+    }
+
+    synchronized (drainLock)
+    {
+      drainWaiters++;
+      if (lowWaterMark > drainMark)
+      {
+        drainMark = lowWaterMark;
+      }
+
+      try
+      {
+        while (getEventCount() > lowWaterMark)
+        {
+          try
+          {
+            drainLock.wait(DRAIN_CHECK_INTERVAL);
+          }
+          catch (InterruptedException ex)
+          {
+            // ignore the interrupt, we look at the buffer again
+          }
+        }
+      }
+      finally
+      {
+        drainWaiters--;
+        if (drainWaiters == 0)
+        {
+          drainMark = -1;
+        }
+      }
+    }
+
+    return true;
+  }
+
+ /**
+  * Push a collection of batch records into the buffer, and then apply back
+  * pressure: if the buffer holds more than the high water mark events, block
+  * until the consumers have drained it down to the low water mark.
+  *
+  * @param c The collection of records to push
+  * @param highWaterMark The event count above which we block
+  * @param lowWaterMark The event count at which we continue
+  * @return true if we had to wait for the buffer to drain
+  */
+  @Override
+  public boolean push(Collection<IRecord> c, int highWaterMark, int lowWaterMark)
+  {
+    push(c);
+
+    if (getEventCount() > highWaterMark)
+    {
+      return awaitDrain(Math.min(lowWaterMark, highWaterMark));
+    }
+
+    return false;
+  }
+
  /**
   * registerMonitor adds a new monitor to the internal list of monitors to
   * this buffer.
@@ -146,6 +146,12 @@ public class ArrayListQueueBuffer
       }
     }
 
+    // wake up any suppliers waiting for space
+    if (list.size() > 0)
+    {
+      notifyDrained();
+    }
+
     return list;
   }
 
@@ -73,6 +73,20 @@ public interface IConsumer
   */
   public void push(Collection<IRecord> c);
 
+ /**
+  * Place a collection of batch records into the FIFO buffer, applying back
+  * pressure to the caller. If the buffer holds more than the high water mark
+  * after the push, the caller is blocked until consumers have drained the
+  * buffer down to the low water mark. The caller is woken as soon as this
+  * happens, so no polling is needed.
+  *
+  * @param c The collection of records to push
+  * @param highWaterMark The event count above which the caller blocks
+  * @param lowWaterMark The event count at which the caller can continue
+  * @return true if the caller had to wait for the buffer to drain
+  */
+  public boolean push(Collection<IRecord> c, int highWaterMark, int lowWaterMark);
+
  /**
   * Return the number of events in the buffer. To be implemented by the
   * concrete implementation.
@@ -0,0 +1,311 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.buffer;
+
+import OpenRate.record.IRecord;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffer implementation using a bounded, array based ring as the buffering
+ * element. Unlike the list based buffers, no lock is taken to push or pull
+ * records: producers and consumers claim a contiguous range of slots with a
+ * single compare-and-set on the tail or head position, and then publish or
+ * drain the whole range at once. This makes the cost of a pull proportional to
+ * the number of records pulled instead of to the depth of the queue, and
+ * allows several plug in threads to work on the buffer without contending on
+ * a common monitor.
+ *
+ * Each slot carries a sequence number, which says whether the slot is free to
+ * be written for a given position, or holds a published record for that
+ * position. This means that producers which claim neighbouring ranges can
+ * publish in any order, while consumers only ever see records in the order in
+ * which the ranges were claimed, so record ordering is preserved.
+ *
+ * A batch that fits into the ring is always published as a single contiguous
+ * range, so that batches pushed concurrently do not get interleaved. If the
+ * ring does not have space for the batch, the push waits until consumers have
+ * drained enough records.
+ *
+ * To use this buffer, set the pipeline configuration property
+ * "BufferClassName" to "OpenRate.buffer.RingQueueBuffer".
+ */
+public class RingQueueBuffer
+  extends AbstractBuffer
+{
+ /**
+  * The default number of slots in the ring. This must comfortably exceed the
+  * buffer size plus the batch size of the modules writing to the buffer.
+  */
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  // The storage slots of the ring
+  private final AtomicReferenceArray<IRecord> slots;
+
+  // The sequence of each slot. A slot is free for position p when the sequence
+  // is p, and holds the published record for position p when it is p+1
+  private final AtomicLongArray sequences;
+
+  // The number of slots, always a power of 2 so that we can mask the position
+  private final int capacity;
+  private final int mask;
+
+  // The next position that will be claimed by a producer
+  private final AtomicLong tail = new AtomicLong();
+
+  // The next position that will be claimed by a consumer
+  private final AtomicLong head = new AtomicLong();
+
+ /**
+  * Default constructor.
+  */
+  public RingQueueBuffer()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+ /**
+  * Constructor with a given capacity. The capacity is rounded up to the next
+  * power of 2.
+  *
+  * @param requestedCapacity The minimum number of records the ring can hold
+  */
+  public RingQueueBuffer(int requestedCapacity)
+  {
+    super();
+
+    if (requestedCapacity < 2)
+    {
+      requestedCapacity = 2;
+    }
+
+    capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+    mask = capacity - 1;
+
+    slots = new AtomicReferenceArray<>(capacity);
+    sequences = new AtomicLongArray(capacity);
+
+    // all slots start free for their first position
+    for (int i = 0; i < capacity; i++)
+    {
+      sequences.set(i, i);
+    }
+  }
+
+ /**
+  * Push an entire collection of batch records into the buffer. This is the
+  * main event for the addition of records into a buffer. Batches which fit
+  * into the ring are published as a single range. Larger batches are published
+  * in ring sized chunks.
+  *
+  * @param collection The collection of records to push
+  */
+  @Override
+  public void push(Collection<IRecord> collection)
+  {
+    Iterator<IRecord> iter = collection.iterator();
+    int remaining = collection.size();
+
+    while (remaining > 0)
+    {
+      int wanted = Math.min(remaining, capacity);
+      long start = tail.get();
+
+      // See if the range of slots we want is free
+      int free = 0;
+      while ((free < wanted) && (sequences.get(index(start + free)) == start + free))
+      {
+        free++;
+      }
+
+      if (free < wanted)
+      {
+        if (tail.get() == start)
+        {
+          // The ring is full: make sure the consumers are awake, then wait
+          // until they have made space for us. If the space is claimed but
+          // the slots are not yet released, just give way for a moment
+          notifyMonitors();
+          if (awaitDrain(capacity - wanted) == false)
+          {
+            Thread.yield();
+          }
+        }
+
+        continue;
+      }
+
+      // Claim the range. If someone else got there first, try again
+      if (tail.compareAndSet(start, start + wanted))
+      {
+        for (int i = 0; i < wanted; i++)
+        {
+          long position = start + i;
+          int idx = index(position);
+          slots.lazySet(idx, iter.next());
+
+          // publishing the sequence makes the record visible to consumers
+          sequences.set(idx, position + 1);
+        }
+
+        remaining -= wanted;
+
+        // tell the downstream modules that there is stuff to do
+        notifyMonitors();
+      }
+    }
+  }
+
+ /**
+  * Retrieve a number of batch records from the buffer. The number of records
+  * that is returned is either all of the records available in the case that the
+  * number of records is less than the specified maximum, or the specified
+  * maximum. Records are always returned from the head of the ring, and only
+  * records which have been completely published are returned, so ordering is
+  * preserved.
+  *
+  * @param max The maximum number of records to pull
+  * @return The records pulled
+  */
+  @Override
+  public Collection<IRecord> pull(int max)
+  {
+    while (true)
+    {
+      long start = head.get();
+
+      // See how many published records we have in sequence
+      int available = 0;
+      while ((available < max) && (sequences.get(index(start + available)) == start + available + 1))
+      {
+        available++;
+      }
+
+      if (available == 0)
+      {
+        if (head.get() == start)
+        {
+          // nothing to do
+          return new ArrayList<>(0);
+        }
+
+        // another consumer moved the head on, look again
+        continue;
+      }
+
+      // Claim the range. If someone else got there first, try again
+      if (head.compareAndSet(start, start + available))
+      {
+        ArrayList<IRecord> list = new ArrayList<>(available);
+
+        for (int i = 0; i < available; i++)
+        {
+          long position = start + i;
+          int idx = index(position);
+          list.add(slots.get(idx));
+          slots.lazySet(idx, null);
+
+          // release the slot for the next lap of the ring
+          sequences.set(idx, position + capacity);
+        }
+
+        // wake up any suppliers waiting for space
+        notifyDrained();
+
+        return list;
+      }
+    }
+  }
+
+ /**
+  * Return the number of events in the buffer. This includes records which
+  * have been claimed by a producer but are not yet visible to consumers.
+  *
+  * @return The number of events in the buffer
+  */
+  @Override
+  public int getEventCount()
+  {
+    // read the head first, so that we can never see a negative count
+    long currentHead = head.get();
+    return (int) (tail.get() - currentHead);
+  }
+
+ /**
+  * Return the number of records the ring can hold.
+  *
+  * @return The ring capacity
+  */
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+ /**
+  * Map a position onto the index of the slot that holds it.
+  *
+  * @param position The position in the ring
+  * @return The slot index
+  */
+  private int index(long position)
+  {
+    return (int) position & mask;
+  }
+}
@@ -64,12 +64,15 @@ import OpenRate.logging.LogUtil;
 import OpenRate.transaction.ISyncPoint;
 import OpenRate.utils.ConversionUtils;
 import OpenRate.utils.PropertyUtils;
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class implements an abstract cache loader class that implements sync
@@ -79,6 +82,22 @@ import java.util.List;
  * transactionally safe reloading is required. This means that the processing
  * must be completely stopped before the loading can begin.
  *
+ * Caches that support it can instead be configured with "ReloadMode" set to
+ * "Shadow". A reload then loads a new instance of the cache on a separate
+ * thread while processing continues against the current data, and the loaded
+ * data is swapped in when it is complete. No sync point is needed. The
+ * default mode "InPlace" clears and reloads the data at a sync point.
+ *
+ * Caches implementing ICacheSnapshot can be configured with "SnapshotFile".
+ * After loading, the data is then written to the snapshot file, and on the
+ * next start it is restored from there instead of being loaded again, as long
+ * as the source data has not changed. For file sources the size and
+ * modification time of the data file are checked. For DB sources the
+ * "SnapshotValidationStatement" must be configured, and the snapshot is used
+ * if the statement returns the same values as when it was written (for
+ * example the latest modification date of the data). Method sources cannot be
+ * checked and are always loaded.
+ *
  * @author i.sparkes
  * @author AminS auto reloadable caches
  */
@@ -144,6 +163,15 @@ public abstract class AbstractSyncLoaderCache
   private final static String SERVICE_DATE_FORMAT   = "DateFormat";
   private final static String SERVICE_LOAD_LOG_STEP = "LoadLogStep";
   private final static String SERVICE_NO_AUTORELOAD = "ExcludeFromAutoReload";
+  private final static String SERVICE_RELOAD_MODE   = "ReloadMode";
+
+  // The reload modes
+  private final static String RELOAD_MODE_IN_PLACE  = "InPlace";
+  private final static String RELOAD_MODE_SHADOW    = "Shadow";
+
+  // The snapshot configuration
+  private final static String SNAPSHOT_FILE         = "SnapshotFile";
+  private final static String SNAPSHOT_VALIDATION   = "SnapshotValidationStatement";
 
   // Variables for managing the sync points
   private int syncStatus = 0;
@@ -165,6 +193,18 @@ public abstract class AbstractSyncLoaderCache
   // if we are to be excluded from auto-reload
   private boolean excludeFromAutoReload;
 
+  // if we reload into a shadow instance instead of in place
+  private boolean shadowReload = false;
+
+  // set while a shadow reload is running
+  private final AtomicBoolean shadowReloadRunning = new AtomicBoolean(false);
+
+  // The snapshot file, null if we do not use snapshots
+  private CacheSnapshot snapshot = null;
+
+  // The statement giving the version of the DB source data for the snapshot
+  private String snapshotValidationQuery = null;
+
  /**
   * the frequency with which we update the log progress messages on loading
   */
@@ -241,6 +281,9 @@ public abstract class AbstractSyncLoaderCache
     // Get the loading step, if one is defined
     loadingLogNotificationStep = initGetLoadingStep(ResourceName, CacheName);
 
+    // Get the snapshot file, if one is defined
+    initSnapshot(ResourceName, CacheName);
+
     // Get the configuration we are working on
     if (CacheDataSourceType.equalsIgnoreCase("File"))
     {
@@ -254,7 +297,7 @@ public abstract class AbstractSyncLoaderCache
       }
       else
       {
-        loadDataFromFile();
+        loadInitialData();
       }
     }
     else if (CacheDataSourceType.equalsIgnoreCase("DB"))
@@ -299,7 +342,7 @@ public abstract class AbstractSyncLoaderCache
         throw new InitializationException(message,getSymbolicName());
       }
 
-      loadDataFromDB();
+      loadInitialData();
     }
     else if (CacheDataSourceType.equalsIgnoreCase("Method"))
     {
@@ -319,11 +362,21 @@ public abstract class AbstractSyncLoaderCache
       }
 
       // Just call the method directly
-      loadDataFromMethod();
+      loadInitialData();
     }
 
     // Get the auto reload exclusion
     excludeFromAutoReload = initGetExcludeFromReload(ResourceName, CacheName);
+
+    // Get the reload mode
+    String tmpReloadMode = initGetReloadMode(ResourceName, CacheName);
+    String tmpResult = processControlEvent(SERVICE_RELOAD_MODE, true, tmpReloadMode);
+    if (!tmpResult.equals("OK"))
+    {
+      message = "Could not set reload mode <" + tmpReloadMode +
+                "> for cache <" + getSymbolicName() + ">: " + tmpResult;
+      throw new InitializationException(message,getSymbolicName());
+    }
   }
 
  /**
@@ -419,35 +472,355 @@ public abstract class AbstractSyncLoaderCache
     // See if we are excluded from reloading
     if (getExcludeFromAutoReload() == false)
     {
+      // Get the version of the data we are going to load
+      String sourceStamp = getSnapshotSourceStamp();
+
       // Clear down the old information
       clearCacheObjects();
 
-      if (CacheDataSourceType.equalsIgnoreCase("File"))
+      // Reload
+      loadData();
+
+      // Update the snapshot
+      saveSnapshot(sourceStamp);
+
+      // inform the user
+      System.out.println("    Reload Cacheable Class <" + getSymbolicName() + ">");
+    }
+    else
+    {
+      // log that we skipped it
+      OpenRate.getOpenRateFrameworkLog().info("Skipped auto reloading cache <" + getSymbolicName() + "> because it is excluded from AutoReload");
+    }
+  }
+
+ /**
+  * Load the data from the configured data source type
+  *
+  * @throws InitializationException
+  */
+  private void loadData() throws InitializationException
+  {
+    if (CacheDataSourceType.equalsIgnoreCase("File"))
+    {
+      loadDataFromFile();
+    }
+
+    if (CacheDataSourceType.equalsIgnoreCase("DB"))
+    {
+      loadDataFromDB();
+    }
+
+    if (CacheDataSourceType.equalsIgnoreCase("Method"))
+    {
+      loadDataFromMethod();
+    }
+  }
+
+ /**
+  * Reload the data into a new instance of the cache and then swap the loaded
+  * data into this instance. Lookups continue against the current data until
+  * the swap.
+  *
+  * @throws InitializationException
+  */
+  public void reloadShadowData() throws InitializationException
+  {
+    AbstractSyncLoaderCache shadowCache = createShadowCache();
+
+    // Get the version of the data we are going to load
+    String sourceStamp = getSnapshotSourceStamp();
+
+    shadowCache.loadData();
+
+    swapCacheObjects(shadowCache);
+
+    // Update the snapshot from the data we have taken over
+    saveSnapshot(sourceStamp);
+
+    // inform the user
+    OpenRate.getOpenRateFrameworkLog().info("Reloaded cache <" + getSymbolicName() + "> from a shadow instance");
+  }
+
+ /**
+  * Load the data on start up. If a current snapshot is available, the data is
+  * restored from it, otherwise it is loaded from the data source and a new
+  * snapshot is written.
+  *
+  * @throws InitializationException
+  */
+  private void loadInitialData() throws InitializationException
+  {
+    // Get the version before loading, so that changes made to the source while
+    // we load make the snapshot stale
+    String sourceStamp = getSnapshotSourceStamp();
+
+    if (restoreSnapshot(sourceStamp))
+    {
+      return;
+    }
+
+    loadData();
+
+    saveSnapshot(sourceStamp);
+  }
+
+ /**
+  * Restore the data from the snapshot file if it was made from the current
+  * source data. A snapshot that cannot be read is discarded.
+  *
+  * @param sourceStamp The stamp of the current source data, null if unknown
+  * @return true if the data was restored
+  */
+  private boolean restoreSnapshot(String sourceStamp)
+  {
+    if (snapshot == null || sourceStamp == null)
+    {
+      return false;
+    }
+
+    try
+    {
+      if (snapshot.restore((ICacheSnapshot) this, sourceStamp))
       {
-        // Reload
-        loadDataFromFile();
+        OpenRate.getOpenRateFrameworkLog().info("Restored cache <" + getSymbolicName() + "> from snapshot <" + snapshot.getFile() + ">");
+        return true;
       }
 
-      if (CacheDataSourceType.equalsIgnoreCase("DB"))
+      OpenRate.getOpenRateFrameworkLog().info("Snapshot <" + snapshot.getFile() + "> for cache <" + getSymbolicName() + "> is missing or stale, loading from source");
+    }
+    catch (IOException | RuntimeException ex)
+    {
+      OpenRate.getOpenRateFrameworkLog().warning("Could not restore cache <" + getSymbolicName() + "> from snapshot <" + snapshot.getFile() + ">, loading from source: " + ex.getMessage());
+
+      // throw away anything we got before the failure
+      clearCacheObjects();
+    }
+
+    return false;
+  }
+
+ /**
+  * Write the loaded data to the snapshot file. Failing to write the snapshot
+  * is not fatal, the cache is just loaded from the source next time.
+  *
+  * @param sourceStamp The stamp of the source data that was loaded, null if unknown
+  */
+  private void saveSnapshot(String sourceStamp)
+  {
+    if (snapshot == null || sourceStamp == null)
+    {
+      return;
+    }
+
+    try
+    {
+      snapshot.write((ICacheSnapshot) this, sourceStamp);
+
+      OpenRate.getOpenRateFrameworkLog().info("Wrote snapshot <" + snapshot.getFile() + "> for cache <" + getSymbolicName() + ">");
+    }
+    catch (IOException ex)
+    {
+      OpenRate.getOpenRateFrameworkLog().error("Could not write snapshot <" + snapshot.getFile() + "> for cache <" + getSymbolicName() + ">", ex);
+    }
+  }
+
+ /**
+  * Get the stamp identifying the version of the source data, which is stored
+  * in the snapshot and compared on restoring it. Caches reading other sources
+  * than the standard ones can override this.
+  *
+  * @return The stamp, or null if the source version cannot be determined
+  * @throws InitializationException
+  */
+  protected String getSnapshotSourceStamp() throws InitializationException
+  {
+    if (snapshot == null)
+    {
+      return null;
+    }
+
+    if (CacheDataSourceType.equalsIgnoreCase("File"))
+    {
+      File dataFile = new File(cacheDataFile);
+
+      if (!dataFile.exists())
       {
-        // Reload
-        loadDataFromDB();
+        return null;
       }
 
-      if (CacheDataSourceType.equalsIgnoreCase("Method"))
+      return "File:" + dataFile.getAbsolutePath() + ":" + dataFile.length() + ":" + dataFile.lastModified();
+    }
+
+    if (CacheDataSourceType.equalsIgnoreCase("DB") && snapshotValidationQuery != null)
+    {
+      return "DB:" + cacheDataSourceName + ":" + getSnapshotValidationResult();
+    }
+
+    return null;
+  }
+
+ /**
+  * Run the snapshot validation statement and return its results as a string.
+  *
+  * @return The results of the statement
+  * @throws InitializationException
+  */
+  private String getSnapshotValidationResult() throws InitializationException
+  {
+    Connection tmpConnection = DBUtil.getConnection(cacheDataSourceName);
+    PreparedStatement tmpStatement = null;
+    ResultSet tmpResult = null;
+    StringBuilder tmpStamp = new StringBuilder();
+
+    try
+    {
+      tmpStatement = tmpConnection.prepareStatement(snapshotValidationQuery);
+      tmpResult = tmpStatement.executeQuery();
+
+      int columns = tmpResult.getMetaData().getColumnCount();
+      while (tmpResult.next())
       {
-        // Reload
-        loadDataFromMethod();
+        for (int i = 1 ; i <= columns ; i++)
+        {
+          tmpStamp.append(tmpResult.getString(i)).append(';');
+        }
       }
-
-      // inform the user
-      System.out.println("    Reload Cacheable Class <" + getSymbolicName() + ">");
     }
-    else
+    catch (SQLException ex)
+    {
+      message = "Error performing snapshot validation statement <" + snapshotValidationQuery + "> for cache <" + getSymbolicName() + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+    finally
+    {
+      DBUtil.close(tmpResult);
+      DBUtil.close(tmpStatement);
+      DBUtil.close(tmpConnection);
+    }
+
+    return tmpStamp.toString();
+  }
+
+ /**
+  * Start a shadow reload on a separate thread, unless one is already
+  * running.
+  *
+  * @return true if a reload was started
+  */
+  private boolean startShadowReload()
+  {
+    if (getExcludeFromAutoReload())
     {
-      // log that we skipped it
       OpenRate.getOpenRateFrameworkLog().info("Skipped auto reloading cache <" + getSymbolicName() + "> because it is excluded from AutoReload");
+      return false;
     }
+
+    if (!shadowReloadRunning.compareAndSet(false, true))
+    {
+      return false;
+    }
+
+    Thread reloadThread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          reloadShadowData();
+        }
+        catch (InitializationException ex)
+        {
+          OpenRate.getOpenRateFrameworkLog().fatal("Shadow reload of cache <" + getSymbolicName() + "> failed, keeping the current data", ex);
+        }
+        catch (RuntimeException ex)
+        {
+          OpenRate.getOpenRateFrameworkLog().fatal("Shadow reload of cache <" + getSymbolicName() + "> failed, keeping the current data", ex);
+        }
+        finally
+        {
+          shadowReloadRunning.set(false);
+        }
+      }
+    }, getSymbolicName() + "-Reload");
+
+    reloadThread.setDaemon(true);
+    reloadThread.start();
+
+    return true;
+  }
+
+ /**
+  * Create the instance that a shadow reload loads into. By default this is a
+  * new instance of the same class with the loader settings of this one.
+  *
+  * @return The new instance
+  * @throws InitializationException
+  */
+  protected AbstractSyncLoaderCache createShadowCache() throws InitializationException
+  {
+    AbstractSyncLoaderCache shadowCache;
+
+    try
+    {
+      shadowCache = getClass().newInstance();
+    }
+    catch (InstantiationException | IllegalAccessException ex)
+    {
+      throw new InitializationException("Could not create shadow instance of cache <" +
+                                        getSymbolicName() + ">",ex,getSymbolicName());
+    }
+
+    copyLoaderSettings(shadowCache);
+
+    return shadowCache;
+  }
+
+ /**
+  * Copy the settings needed for loading into the shadow instance. Caches
+  * that have their own loading settings should override this, calling the
+  * super method first.
+  *
+  * @param shadowCache The instance to copy the settings to
+  */
+  protected void copyLoaderSettings(AbstractSyncLoaderCache shadowCache)
+  {
+    shadowCache.setSymbolicName(getSymbolicName());
+    shadowCache.CacheDataSourceType = CacheDataSourceType;
+    shadowCache.cacheDataSourceName = cacheDataSourceName;
+    shadowCache.cacheDataFile = cacheDataFile;
+    shadowCache.CacheDataSelectQuery = CacheDataSelectQuery;
+    shadowCache.CacheMethodName = CacheMethodName;
+    shadowCache.loadingLogNotificationStep = loadingLogNotificationStep;
+    shadowCache.fieldInterpreter.setInputDateFormat(fieldInterpreter.getInputDateFormat());
+  }
+
+ /**
+  * Say if this cache can be reloaded using a shadow instance. Caches that
+  * return true must implement swapCacheObjects().
+  *
+  * @return true if shadow reloading is supported
+  */
+  protected boolean supportsShadowReload()
+  {
+    return false;
+  }
+
+ /**
+  * Take over the data loaded into the shadow instance. The data structures
+  * must be replaced by assigning the references, not by copying the contents,
+  * and the fields holding them must be volatile so that the processing
+  * threads see the new data.
+  *
+  * @param shadowCache The instance holding the loaded data
+  * @throws InitializationException
+  */
+  protected void swapCacheObjects(AbstractSyncLoaderCache shadowCache) throws InitializationException
+  {
+    throw new InitializationException("Cache <" + getSymbolicName() +
+                                      "> does not support shadow reloading",getSymbolicName());
   }
 
  /**
@@ -559,9 +932,17 @@ public abstract class AbstractSyncLoaderCache
     if (newStatus == ISyncPoint.SYNC_STATUS_SYNC_FLAGGED)
     {
       // we are being forced to reload by the cache manager
-      // Add the command to the pending list
-      pendingCommands.add(SERVICE_RELOAD);
-      syncStatus = ISyncPoint.SYNC_STATUS_SYNC_FLAGGED;
+      if (shadowReload)
+      {
+        // we do not need a sync point
+        startShadowReload();
+      }
+      else
+      {
+        // Add the command to the pending list
+        pendingCommands.add(SERVICE_RELOAD);
+        syncStatus = ISyncPoint.SYNC_STATUS_SYNC_FLAGGED;
+      }
     }
     else if (newStatus == ISyncPoint.SYNC_STATUS_SYNC_REQUESTED)
     {
@@ -655,6 +1036,7 @@ public abstract class AbstractSyncLoaderCache
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_DATE_FORMAT, ClientManager.PARAM_SYNC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_LOAD_LOG_STEP, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_NO_AUTORELOAD, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_RELOAD_MODE, ClientManager.PARAM_DYNAMIC);
   }
 
  /**
@@ -677,6 +1059,18 @@ public abstract class AbstractSyncLoaderCache
     {
       if (Parameter.equalsIgnoreCase("true"))
       {
+        if (shadowReload)
+        {
+          if (startShadowReload())
+          {
+            return "Reload started";
+          }
+          else
+          {
+            return "Reload not started";
+          }
+        }
+
         // Add the command to the pending list
         pendingCommands.add(SERVICE_RELOAD);
 
@@ -744,6 +1138,35 @@ public abstract class AbstractSyncLoaderCache
       }
     }
 
+    // Get/Set the reload mode
+    if (Command.equalsIgnoreCase(SERVICE_RELOAD_MODE))
+    {
+      if (Parameter.equals(""))
+      {
+        return shadowReload ? RELOAD_MODE_SHADOW : RELOAD_MODE_IN_PLACE;
+      }
+      else if (Parameter.equalsIgnoreCase(RELOAD_MODE_SHADOW))
+      {
+        if (!supportsShadowReload())
+        {
+          return "Cache does not support reload mode <" + RELOAD_MODE_SHADOW + ">";
+        }
+
+        shadowReload = true;
+        ResultCode = 0;
+      }
+      else if (Parameter.equalsIgnoreCase(RELOAD_MODE_IN_PLACE))
+      {
+        shadowReload = false;
+        ResultCode = 0;
+      }
+      else
+      {
+        return "Reload mode must be <" + RELOAD_MODE_IN_PLACE + "> or <" +
+               RELOAD_MODE_SHADOW + ">, found <" + Parameter + ">";
+      }
+    }
+
     // Get the number of seconds to the next reload
     if (Command.equalsIgnoreCase(SERVICE_NEXT_RELOAD))
     {
@@ -859,6 +1282,43 @@ public abstract class AbstractSyncLoaderCache
 // -------------------- Start of local utility functions -----------------------
 // -----------------------------------------------------------------------------
 
+ /**
+  * Temporary function to gather the information from the properties file. Will
+  * be removed with the introduction of the new configuration model.
+  */
+  private void initSnapshot(String ResourceName, String CacheName) throws InitializationException
+  {
+    String tmpValue;
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SNAPSHOT_FILE,
+                                                       "None");
+
+    if (tmpValue.equals("None"))
+    {
+      return;
+    }
+
+    if (!(this instanceof ICacheSnapshot))
+    {
+      message = "Cache <" + getSymbolicName() + "> does not support snapshots, but <" + SNAPSHOT_FILE + "> is set";
+      throw new InitializationException(message,getSymbolicName());
+    }
+
+    snapshot = new CacheSnapshot(tmpValue);
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SNAPSHOT_VALIDATION,
+                                                       "None");
+
+    if (!tmpValue.equals("None"))
+    {
+      snapshotValidationQuery = tmpValue;
+    }
+  }
+
  /**
   * Temporary function to gather the information from the properties file. Will
   * be removed with the introduction of the new configuration model.
@@ -916,6 +1376,22 @@ public abstract class AbstractSyncLoaderCache
     return tmpLoadStep;
   }
 
+ /**
+  * Temporary function to gather the information from the properties file. Will
+  * be removed with the introduction of the new configuration model.
+  */
+  private String initGetReloadMode(String ResourceName, String CacheName) throws InitializationException
+  {
+    String tmpValue;
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_RELOAD_MODE,
+                                                       RELOAD_MODE_IN_PLACE);
+
+    return tmpValue;
+  }
+
  /**
   * Temporary function to gather the information from the properties file. Will
   * be removed with the introduction of the new configuration model.
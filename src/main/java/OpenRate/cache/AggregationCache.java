@@ -65,9 +65,12 @@ import OpenRate.transaction.ISyncPoint;
 import OpenRate.utils.PropertyUtils;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The aggregation cache is used to produce aggregation results against a set
@@ -83,6 +86,13 @@ import java.util.Set;
  * The results are created for each transaction, and are kept separate from
  * the main results until the end of the transaction, and then at that point
  * they are merged into the main results.
+ *
+ * The aggregation itself can run in many threads at once. The results of a
+ * transaction are split into lock stripes by the hash of the grouping key, so
+ * threads only wait for each other when they update keys in the same stripe.
+ * The grouping key is compared field by field instead of being concatenated
+ * into a string. The main results are only touched on commit, write and purge,
+ * which are synchronized.
  */
 public class AggregationCache
      extends AbstractCache
@@ -108,6 +118,15 @@ public class AggregationCache
   private final HashMap<String, AggScenarioList> keyList;
   private final HashMap<String, AggScenario>     scenarioList;
 
+  // The scenarios in the order of their index
+  private final ArrayList<AggScenario> scenarioOrder;
+
+  // The number of lock stripes per scenario in the transaction results
+  private final static int STRIPES = 16;
+
+  // The results of the transactions in process
+  private final ConcurrentHashMap<Integer, TransactionResults> transactionResults;
+
   // When we merge output results, this is the order we do them in
   private class MergeString
   {
@@ -139,6 +158,9 @@ public class AggregationCache
     // The description of the aggregation
     String description = "";
 
+    // The position of the scenario in the scenario order
+    int index;
+
     // The indexes of the grouping key fields
     ArrayList<Integer> groupingFieldList;
 
@@ -157,9 +179,67 @@ public class AggregationCache
     // The file name of the results
     String fileName = null;
 
-    // These are the results - we hold the transactions in process and the
-    // overall merged transaction result
-    HashMap<String, AggResultList> resultCache;
+    // These are the overall merged transaction results
+    HashMap<AggKey, AggResultList> resultCache;
+  }
+
+  // The grouping key of a result. It is compared field by field, so that we
+  // do not have to build a string for each record.
+  private static final class AggKey
+  {
+    final String[] fields;
+    final int hash;
+
+    AggKey(String[] fields)
+    {
+      this.fields = fields;
+      this.hash = Arrays.hashCode(fields);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (obj instanceof AggKey)
+      {
+        AggKey other = (AggKey) obj;
+        return hash == other.hash && Arrays.equals(fields, other.fields);
+      }
+
+      return false;
+    }
+  }
+
+  // A lock stripe of the results of a transaction
+  private class AggStripe
+  {
+    HashMap<AggKey, AggResult> results = new HashMap<>();
+  }
+
+  // The results of a transaction, in STRIPES stripes for each scenario
+  private class TransactionResults
+  {
+    AggStripe[] stripes;
+
+    TransactionResults()
+    {
+      stripes = new AggStripe[scenarioOrder.size() * STRIPES];
+      for (int idx = 0 ; idx < stripes.length ; idx++)
+      {
+        stripes[idx] = new AggStripe();
+      }
+    }
+
+    AggStripe getStripe(AggScenario scenario, AggKey key)
+    {
+      int spread = key.hash ^ (key.hash >>> 16);
+      return stripes[scenario.index * STRIPES + (spread & (STRIPES - 1))];
+    }
   }
 
   // The aggregation result class holds the results for each individual
@@ -172,18 +252,14 @@ public class AggregationCache
     double min = 0;
   }
 
-  // In order to deal with overlayed transactions, we have to be able to
-  // manage multiple concurrent results being built
+  // The merged result for a grouping key
   private class AggResultList
   {
-    // These hold the in process transactions
-    HashMap<Integer,AggResult> currentTransactionResults;
-
     // This is the accumulated overall result
     AggResult AccumulatedResult;
 
     // The list of the grouping fields in the scenario
-    ArrayList<String> AggFields;
+    String[] AggFields;
   }
 
   // This is used during the write to collect the results
@@ -207,6 +283,8 @@ public class AggregationCache
     keyList      = new HashMap<>(50);
     scenarioList = new HashMap<>(50);
     MergeStrings = new HashMap<>(50);
+    scenarioOrder = new ArrayList<>(50);
+    transactionResults = new ConcurrentHashMap<>(10);
   }
 
  /**
@@ -508,9 +586,11 @@ public class AggregationCache
     tmpAggScenario.groupingFieldList = new ArrayList<>();
     tmpAggScenario.groupingFieldIndex = 0;
     tmpAggScenario.description = description;
+    tmpAggScenario.index = scenarioOrder.size();
 
     // Add the scenario
     scenarioList.put(scenarioName,tmpAggScenario);
+    scenarioOrder.add(tmpAggScenario);
   }
 
  /**
@@ -835,16 +915,30 @@ public class AggregationCache
   public void aggregate(String[] fieldList, ArrayList<String> keysToAggregate, int transactionNumber)
     throws ProcessingException
   {
-    AggScenarioList tmpAggScenarioList;
-    AggScenario     tmpAggScenario;
-    AggResult       tmpAggResult;
-    AggResultList   tmpAggResultList;
-    int         	i;
-    int         	j;
-    String      	tmpKey;
-    int         	k;
-    String      	tmpScenarioKey;
-    double      	currentValue = 0;
+    AggScenarioList    tmpAggScenarioList;
+    AggScenario        tmpAggScenario;
+    AggResult          tmpAggResult;
+    AggStripe          tmpAggStripe;
+    AggKey             tmpKey;
+    String[]           groupingFields;
+    TransactionResults tmpTransResults;
+    int         	     i;
+    int         	     j;
+    int         	     k;
+    String      	     tmpScenarioKey;
+    double      	     currentValue;
+
+    // Get the results of the transaction, or create them on the first record
+    tmpTransResults = transactionResults.get(transactionNumber);
+    if (tmpTransResults == null)
+    {
+      TransactionResults newTransResults = new TransactionResults();
+      tmpTransResults = transactionResults.putIfAbsent(transactionNumber, newTransResults);
+      if (tmpTransResults == null)
+      {
+        tmpTransResults = newTransResults;
+      }
+    }
 
     // Find the aggregations to do for the key list
     for ( i = 0 ; i < keysToAggregate.size() ; i++)
@@ -861,65 +955,17 @@ public class AggregationCache
           tmpAggScenario = scenarioList.get(tmpScenarioKey);
 
           // Build the key
-          tmpKey = "";
+          groupingFields = new String[tmpAggScenario.groupingFieldIndex];
           for ( j = 0 ; j < tmpAggScenario.groupingFieldIndex ; j++)
           {
-            tmpKey += fieldList[tmpAggScenario.groupingFieldList.get(j)-1];
-          }
-
-          // Retrieve the object, or create it
-          if (tmpAggScenario.resultCache.containsKey(tmpKey))
-          {
-            // get the already created scenario object
-            tmpAggResultList = tmpAggScenario.resultCache.get(tmpKey);
-
-            // get the information for the transaction
-            tmpAggResult = tmpAggResultList.currentTransactionResults.get(transactionNumber);
-
-            // if does not exist, create it
-            if (tmpAggResult == null)
-            {
-              tmpAggResult = new AggResult();
-              tmpAggResultList.currentTransactionResults.put(transactionNumber, tmpAggResult);
-            }
-          }
-          else
-          {
-            // Create the results object
-            tmpAggResultList = new AggResultList();
-            tmpAggResultList.currentTransactionResults = new HashMap<>();
-            tmpAggResultList.AccumulatedResult = new AggResult();
-            tmpAggScenario.resultCache.put(tmpKey,tmpAggResultList);
-
-            // Add the aggregation result for the transaction
-            tmpAggResult = new AggResult();
-            tmpAggResultList.currentTransactionResults.put(transactionNumber, tmpAggResult);
-
-            // Set up the agg field structure
-            tmpAggResultList.AggFields = new ArrayList<>();
-
-            // Add the information that we will need for outputting
-            for ( j = 0 ; j < tmpAggScenario.groupingFieldIndex ; j++)
-            {
-              tmpAggResultList.AggFields.add(fieldList[tmpAggScenario.groupingFieldList.get(j)-1]);
-            }
-          }
-
-          // Now perform the aggregation - we always count
-          try
-          {
-            tmpAggResult.count++;
-          }
-          catch (NullPointerException npe)
-          {
-            String ErrorString = "Error accessing the aggregation result cache for scenario <" + tmpAggScenario + "> and transaction <" + transactionNumber + ">";
-            OpenRate.getOpenRateFrameworkLog().error(ErrorString);
-            throw new ProcessingException (ErrorString,getSymbolicName());
+            groupingFields[j] = fieldList[tmpAggScenario.groupingFieldList.get(j)-1];
           }
+          tmpKey = new AggKey(groupingFields);
 
+          // Parse the input value and handle any errors, outside of the lock
+          currentValue = 0;
           if (tmpAggScenario.operation > 1)
           {
-            // Parse the input value and handle any errors
             try
             {
               currentValue = Double.parseDouble(fieldList[tmpAggScenario.inpField-1]);
@@ -931,6 +977,22 @@ public class AggregationCache
                 fieldList[tmpAggScenario.inpField-1] + "> in scenario <" +
                 keysToAggregate.get(i) + " in module <" + getSymbolicName() +">");
             }
+          }
+
+          // Now perform the aggregation in the stripe of the key
+          tmpAggStripe = tmpTransResults.getStripe(tmpAggScenario, tmpKey);
+          synchronized (tmpAggStripe)
+          {
+            // Retrieve the object, or create it
+            tmpAggResult = tmpAggStripe.results.get(tmpKey);
+            if (tmpAggResult == null)
+            {
+              tmpAggResult = new AggResult();
+              tmpAggStripe.results.put(tmpKey, tmpAggResult);
+            }
+
+            // we always count
+            tmpAggResult.count++;
 
             if (tmpAggScenario.operation == 2)
             {
@@ -971,19 +1033,19 @@ public class AggregationCache
   *
   * @return A collection of the aggregation results
   */
-  public ArrayList<String> getResults()
+  public synchronized ArrayList<String> getResults()
   {
     Set<String>      scenarioKeySet;
     Iterator<String> scenarioKeySetIterator;
-    Set<String>  		 resultKeySet;
-    Iterator<String> resKeySetIterator;
+    Set<AggKey>  		 resultKeySet;
+    Iterator<AggKey> resKeySetIterator;
     AggScenario 		 tmpAggScenario;
     AggResultList    tmpAggResultList;
     AggResult   		 tmpAggResult;
     String      		 tmpLine;
     int         		 i;
     String      		 tmpScenario;
-    String 				   resultIterator;
+    AggKey 				   resultIterator;
 
     ArrayList<String>   results = new ArrayList<>();
 
@@ -1008,9 +1070,9 @@ public class AggregationCache
         tmpAggResult = tmpAggResultList.AccumulatedResult;
 
         tmpLine = tmpScenario + ";";
-        for (i = 0 ; i < tmpAggResultList.AggFields.size() ; i++)
+        for (i = 0 ; i < tmpAggResultList.AggFields.length ; i++)
         {
-          tmpLine = tmpLine + tmpAggResultList.AggFields.get(i) + ";";
+          tmpLine = tmpLine + tmpAggResultList.AggFields[i] + ";";
         }
 
         // Output the results
@@ -1063,12 +1125,12 @@ public class AggregationCache
   *
   * @param baseName - the base name of the transaction for which we are writing
   */
-  public void writeResults(String baseName)
+  public synchronized void writeResults(String baseName)
   {
     Set<String>         scenarioKeySet;
     Iterator<String>    scenarioKeySetIterator;
-    Set<String>         resultKeySet;
-    Iterator<String>    resKeySetIterator;
+    Set<AggKey>         resultKeySet;
+    Iterator<AggKey>    resKeySetIterator;
     AggScenario 		tmpAggScenario;
     AggScenario 		tmpMergedScenario;
     AggResult   		tmpAggResult;
@@ -1078,7 +1140,7 @@ public class AggregationCache
     String      		tmpScenario;
     File        		tmpFile;
     BufferedWriter 		writer;
-    String      		resultIterator;
+    AggKey      		resultIterator;
     AggResultList 		tmpAggResultList;
     AggResultList 		tmpMergedResultList;
     ArrayList<MergedAggregation> ResultCache;
@@ -1125,9 +1187,9 @@ public class AggregationCache
           tmpAggResult = tmpAggResultList.AccumulatedResult;
 
           tmpLine = tmpScenario + ";";
-          for (i = 0 ; i < tmpAggResultList.AggFields.size() ; i++)
+          for (i = 0 ; i < tmpAggResultList.AggFields.length ; i++)
           {
-            tmpLine = tmpLine + tmpAggResultList.AggFields.get(i) + ";";
+            tmpLine = tmpLine + tmpAggResultList.AggFields[i] + ";";
           }
 
           // Output the results
@@ -1233,9 +1295,9 @@ public class AggregationCache
             tmpAggResult = tmpAggResultList.AccumulatedResult;
 
             tmpLine = tmpScenario + ";";
-            for (i = 0 ; i < tmpAggResultList.AggFields.size() ; i++)
+            for (i = 0 ; i < tmpAggResultList.AggFields.length ; i++)
             {
-              tmpLine = tmpLine + tmpAggResultList.AggFields.get(i) + ";";
+              tmpLine = tmpLine + tmpAggResultList.AggFields[i] + ";";
             }
 
             // Output the results
@@ -1313,7 +1375,7 @@ public class AggregationCache
   * This purges the results from memory. This works on the aggregated result
   * cache, not the transaction object cache
   */
-  public void purgeResults()
+  public synchronized void purgeResults()
   {
     AggScenario 	tmpAggScenario;
     String      	tmpScenario;
@@ -1339,7 +1401,7 @@ public class AggregationCache
   *
   * @return The number of results cached at present
   */
-  public int countResults()
+  public synchronized int countResults()
   {
     AggScenario tmpAggScenario;
     String      tmpScenario;
@@ -1373,43 +1435,47 @@ public class AggregationCache
   *
   * @param transactionNumber
   */
-  public void commitTransaction(int transactionNumber)
+  public synchronized void commitTransaction(int transactionNumber)
   {
-    Set<String>         scenarioKeySet;
-    Iterator<String>    scenarioKeySetIterator;
-    Set<String>         resultKeySet;
-    Iterator<String>    resKeySetIterator;
-    AggScenario 		tmpAggScenario;
-    AggResult   		tmpAggResult;
-    AggResult   		mergedAggResult;
-    String      		tmpScenario;
-    String      		resultIterator;
-    AggResultList 		tmpAggResultList;
-
-    // get all of the scenarios
-    scenarioKeySet = scenarioList.keySet();
-    scenarioKeySetIterator = scenarioKeySet.iterator();
-
-    // for each of the scenarios
-    while (scenarioKeySetIterator.hasNext())
+    TransactionResults  tmpTransResults;
+    AggStripe           tmpAggStripe;
+    AggScenario         tmpAggScenario;
+    AggResult           tmpAggResult;
+    AggResult           mergedAggResult;
+    AggResultList       tmpAggResultList;
+    int                 idx;
+
+    // take the transaction out, nothing can add to it after this
+    tmpTransResults = transactionResults.remove(transactionNumber);
+
+    if (tmpTransResults == null)
     {
-      tmpScenario = scenarioKeySetIterator.next();
-      tmpAggScenario = scenarioList.get(tmpScenario);
+      // nothing was aggregated in this transaction
+      return;
+    }
 
-      // dump all of the information
-      resultKeySet = tmpAggScenario.resultCache.keySet();
-      resKeySetIterator = resultKeySet.iterator();
+    // merge each of the stripes into the results of its scenario
+    for (idx = 0 ; idx < tmpTransResults.stripes.length ; idx++)
+    {
+      tmpAggStripe = tmpTransResults.stripes[idx];
+      tmpAggScenario = scenarioOrder.get(idx / STRIPES);
 
-      while (resKeySetIterator.hasNext())
+      synchronized (tmpAggStripe)
       {
-        resultIterator = resKeySetIterator.next();
-        tmpAggResultList = tmpAggScenario.resultCache.get(resultIterator);
-
-        // See if we have information for this transaction
-        if (tmpAggResultList.currentTransactionResults.containsKey(transactionNumber))
+        for (Map.Entry<AggKey, AggResult> result : tmpAggStripe.results.entrySet())
         {
-          // yes, so merge the information
-          tmpAggResult = tmpAggResultList.currentTransactionResults.get(transactionNumber);
+          tmpAggResult = result.getValue();
+          tmpAggResultList = tmpAggScenario.resultCache.get(result.getKey());
+
+          if (tmpAggResultList == null)
+          {
+            // Create the results object
+            tmpAggResultList = new AggResultList();
+            tmpAggResultList.AccumulatedResult = new AggResult();
+            tmpAggResultList.AggFields = result.getKey().fields;
+            tmpAggScenario.resultCache.put(result.getKey(), tmpAggResultList);
+          }
+
           mergedAggResult = tmpAggResultList.AccumulatedResult;
 
           // do the merge of the current results into the accumulated object
@@ -1426,9 +1492,6 @@ public class AggregationCache
             mergedAggResult.min = tmpAggResult.min;
           }
         }
-
-        // remove the transaction information
-        tmpAggResultList.currentTransactionResults.remove(transactionNumber);
       }
     }
   }
@@ -1441,42 +1504,8 @@ public class AggregationCache
   */
   public void rollbackTransaction(int transactionNumber)
   {
-    Set<String>         scenarioKeySet;
-    Iterator<String>    scenarioKeySetIterator;
-    Set<String>         resultKeySet;
-    Iterator<String>    resKeySetIterator;
-    AggScenario 		tmpAggScenario;
-    String      		tmpScenario;
-    String      		resultIterator;
-    AggResultList 		tmpAggResultList;
-
-    // get all of the scenarios
-    scenarioKeySet = scenarioList.keySet();
-    scenarioKeySetIterator = scenarioKeySet.iterator();
-
-    // for each of the scenarios
-    while (scenarioKeySetIterator.hasNext())
-    {
-      tmpScenario = scenarioKeySetIterator.next();
-      tmpAggScenario = scenarioList.get(tmpScenario);
-
-      // dump all of the information
-      resultKeySet = tmpAggScenario.resultCache.keySet();
-      resKeySetIterator = resultKeySet.iterator();
-
-      while (resKeySetIterator.hasNext())
-      {
-        resultIterator = resKeySetIterator.next();
-        tmpAggResultList = tmpAggScenario.resultCache.get(resultIterator);
-
-        // See if we have information for this transaction
-        if (tmpAggResultList.currentTransactionResults.containsKey(transactionNumber))
-        {
-          // remove the transaction information
-          tmpAggResultList.currentTransactionResults.remove(transactionNumber);
-        }
-      }
-    }
+    // the results of the transaction are simply discarded
+    transactionResults.remove(transactionNumber);
   }
 
   // -----------------------------------------------------------------------------
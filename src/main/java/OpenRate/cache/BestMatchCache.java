@@ -59,8 +59,11 @@ import OpenRate.OpenRate;
 import OpenRate.configurationmanager.ClientManager;
 import OpenRate.db.DBUtil;
 import OpenRate.exception.InitializationException;
+import OpenRate.lang.CompactDigitTree;
 import OpenRate.lang.DigitTree;
+import OpenRate.lang.IDigitTree;
 import OpenRate.logging.LogUtil;
+import OpenRate.utils.PropertyUtils;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -94,6 +97,18 @@ import java.util.Iterator;
  * This module is intended to be used with the AbstractBestMatch process module,
  * which provides the control for reloading.
  *
+ * The tree implementation can be chosen with the "TreeType" property:
+ * "Standard" (default) uses the object based DigitTree, "Compact" uses the
+ * array backed CompactDigitTree, which uses far less memory for large prefix
+ * sets and does not allocate during lookups.
+ *
+ * Setting the "MemoSize" property to a positive value keeps up to that many
+ * recent results per group in a LookupMemo, so that repeated lookups of the
+ * same prefix do not walk the tree again. The memo is dropped each time the
+ * data is reloaded. The default is 0, which turns the memo off.
+ *
+ * The cache supports the "Shadow" reload mode.
+ *
  * @author i.sparkes
  */
 public class BestMatchCache
@@ -105,12 +120,28 @@ public class BestMatchCache
   * The cost of a search is linear with the number of digits
   * stored in the search tree
   */
-  protected HashMap<String, DigitTree> groupCache;
+  protected volatile HashMap<String, IDigitTree> groupCache;
+
+  // The type of tree we build for each group
+  private boolean compactTree = false;
+
+  // The memo of recent results, null if we are not using one
+  private LookupMemo<String, ArrayList<String>> memo = null;
+  private int memoSize = 0;
 
   // List of Services that this Client supports
   private final static String SERVICE_OBJECT_COUNT = "ObjectCount";
   private final static String SERVICE_GROUP_COUNT = "GroupCount";
   private final static String SERVICE_DUMP_MAP = "DumpMap";
+  private final static String SERVICE_TREE_TYPE = "TreeType";
+  private final static String SERVICE_MEMORY_REPORT = "MemoryReport";
+  private final static String SERVICE_MEMO_SIZE = "MemoSize";
+  private final static String SERVICE_MEMO_STATS = "MemoStats";
+  private final static String SERVICE_MEMO_STATS_RESET = "MemoStatsReset";
+
+  // Tree types
+  private final static String TREE_TYPE_STANDARD = "Standard";
+  private final static String TREE_TYPE_COMPACT = "Compact";
 
   // This is the null result
   private final ArrayList<String> noResult = new ArrayList<>();
@@ -136,6 +167,72 @@ public class BestMatchCache
 // ------------------ Start of inherited Plug In functions ---------------------
 // -----------------------------------------------------------------------------
 
+ /**
+  * Get the tree type before the loading starts.
+  *
+  * @param ResourceName The name of the resource to load for
+  * @param CacheName The name of the cache to load for
+  * @throws InitializationException
+  */
+  @Override
+  public void loadCache(String ResourceName, String CacheName)
+                 throws InitializationException
+  {
+    String tmpValue;
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                     CacheName,
+                                                     SERVICE_TREE_TYPE,
+                                                     TREE_TYPE_STANDARD);
+
+    if (tmpValue.equalsIgnoreCase(TREE_TYPE_COMPACT))
+    {
+      compactTree = true;
+    }
+    else if (tmpValue.equalsIgnoreCase(TREE_TYPE_STANDARD))
+    {
+      compactTree = false;
+    }
+    else
+    {
+      message = "TreeType for cache <" + CacheName + "> must be <" +
+            TREE_TYPE_STANDARD + "> or <" + TREE_TYPE_COMPACT + ">, found <" +
+            tmpValue + ">";
+      throw new InitializationException(message,CacheName);
+    }
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                     CacheName,
+                                                     SERVICE_MEMO_SIZE,
+                                                     "0");
+
+    try
+    {
+      memoSize = Integer.parseInt(tmpValue);
+    }
+    catch (NumberFormatException nfe)
+    {
+      message = "MemoSize for cache <" + CacheName + "> must be numeric, found <" +
+            tmpValue + ">";
+      throw new InitializationException(message,CacheName);
+    }
+
+    if (memoSize < 0)
+    {
+      message = "MemoSize for cache <" + CacheName + "> must not be negative, found <" +
+            tmpValue + ">";
+      throw new InitializationException(message,CacheName);
+    }
+
+    if (memoSize > 0)
+    {
+      memo = new LookupMemo<>(memoSize);
+    }
+
+    // Now perform the base initialisation
+    super.loadCache(ResourceName, CacheName);
+  }
+
  /**
   * Load the data from the defined file
   * @throws InitializationException
@@ -254,6 +351,8 @@ public class BestMatchCache
       }
     }
 
+    trimTrees();
+
     OpenRate.getOpenRateFrameworkLog().info(
           "Best Match Data Loading completed. <" + ZonesLoaded +
           "> configuration lines loaded for <" + getSymbolicName() + " > from <"
@@ -365,6 +464,8 @@ public class BestMatchCache
       throw new InitializationException(message,ex,getSymbolicName());
     }
 
+    trimTrees();
+
     OpenRate.getOpenRateFrameworkLog().info(
           "Best Match Data Loading completed. <" + ZonesLoaded +
           "> configuration lines loaded for <" + getSymbolicName() + "> from <" +
@@ -442,6 +543,8 @@ public class BestMatchCache
       }
     }
 
+    trimTrees();
+
     OpenRate.getOpenRateFrameworkLog().info(
           "Best Match Cache Data Loading completed. " + ZonesLoaded +
           " configuration lines loaded from <" + cacheDataSourceName +
@@ -472,7 +575,16 @@ public class BestMatchCache
     if (!groupCache.containsKey(mapGroup))
     {
       // Create the new Digit Tree
-      DigitTree prefixCache = new DigitTree();
+      IDigitTree prefixCache;
+
+      if (compactTree)
+      {
+        prefixCache = new CompactDigitTree();
+      }
+      else
+      {
+        prefixCache = new DigitTree();
+      }
 
       groupCache.put(mapGroup, prefixCache);
 
@@ -489,7 +601,7 @@ public class BestMatchCache
     else
     {
       // Otherwise just add it to the existing Digit Tree
-      DigitTree prefixCache = groupCache.get(mapGroup);
+      IDigitTree prefixCache = groupCache.get(mapGroup);
       
       try
       {
@@ -517,8 +629,21 @@ public class BestMatchCache
   {
     String Value;
 
+    if (memo != null)
+    {
+      ArrayList<String> Values = getMemoMatch(mapGroup, prefix);
+
+      if (Values == null)
+      {
+        // We don't know the service, so we cannot know the prefix
+        return DigitTree.NO_DIGIT_TREE_MATCH;
+      }
+
+      return Values.get(0);
+    }
+
     // Get the service if we know it
-    DigitTree prefixCache = groupCache.get(mapGroup);
+    IDigitTree prefixCache = groupCache.get(mapGroup);
 
     if (prefixCache != null)
     {
@@ -544,8 +669,15 @@ public class BestMatchCache
   */
   public ArrayList<String> getMatchWithChildData(String mapGroup, String prefix)
   {
+    if (memo != null)
+    {
+      ArrayList<String> Value = getMemoMatch(mapGroup, prefix);
+
+      return (Value == null) ? noResult : Value;
+    }
+
     // Get the service if we know it
-    DigitTree prefixCache = groupCache.get(mapGroup);
+    IDigitTree prefixCache = groupCache.get(mapGroup);
 
     if (prefixCache != null)
     {
@@ -558,6 +690,75 @@ public class BestMatchCache
     }
   }
 
+ /**
+  * Get the results for the prefix through the memo. The memo generation is
+  * taken before the trees are read, so that a result from trees that are
+  * being replaced is not stored after the reload.
+  *
+  * @param mapGroup The group
+  * @param prefix The prefix
+  * @return The results, or null if we do not know the group
+  */
+  private ArrayList<String> getMemoMatch(String mapGroup, String prefix)
+  {
+    Object generation = memo.getGeneration();
+
+    // Get the service if we know it
+    IDigitTree prefixCache = groupCache.get(mapGroup);
+
+    if (prefixCache == null)
+    {
+      return null;
+    }
+
+    // Try the memo first
+    ArrayList<String> Value = memo.get(mapGroup, prefix);
+
+    if (Value == null)
+    {
+      Value = prefixCache.matchWithChildData(prefix);
+      memo.put(mapGroup, prefix, Value, generation);
+    }
+
+    return Value;
+  }
+
+ /**
+  * Release the loading overhead of the compact trees once the loading is done.
+  */
+  private void trimTrees()
+  {
+    for (IDigitTree prefixCache : groupCache.values())
+    {
+      if (prefixCache instanceof CompactDigitTree)
+      {
+        ((CompactDigitTree) prefixCache).trimToSize();
+      }
+    }
+  }
+
+ /**
+  * Get the memory report for the cache, giving the tree type, the number of
+  * groups, the number of nodes and the estimated number of bytes used by the
+  * trees.
+  *
+  * @return The memory report
+  */
+  public String getMemoryReport()
+  {
+    long nodes = 0;
+    long bytes = 0;
+
+    for (IDigitTree prefixCache : groupCache.values())
+    {
+      nodes += prefixCache.size();
+      bytes += prefixCache.getMemoryEstimate();
+    }
+
+    return (compactTree ? TREE_TYPE_COMPACT : TREE_TYPE_STANDARD) + ":" +
+           groupCache.size() + ":" + nodes + ":" + bytes;
+  }
+
  /**
   * Clear down the cache contents in the case that we are ordered to reload
   */
@@ -565,6 +766,68 @@ public class BestMatchCache
   public void clearCacheObjects()
   {
     groupCache.clear();
+
+    if (memo != null)
+    {
+      memo.invalidate();
+    }
+  }
+
+ /**
+  * Reload the data, dropping any results that were memorised while the
+  * reload was running.
+  *
+  * @throws InitializationException
+  */
+  @Override
+  public void ReloadData() throws InitializationException
+  {
+    super.ReloadData();
+
+    if (memo != null)
+    {
+      memo.invalidate();
+    }
+  }
+
+ /**
+  * The digit trees can be built in a shadow instance and swapped in.
+  *
+  * @return true
+  */
+  @Override
+  protected boolean supportsShadowReload()
+  {
+    return true;
+  }
+
+ /**
+  * Copy the tree type to the shadow instance.
+  *
+  * @param shadowCache The instance to copy the settings to
+  */
+  @Override
+  protected void copyLoaderSettings(AbstractSyncLoaderCache shadowCache)
+  {
+    super.copyLoaderSettings(shadowCache);
+
+    ((BestMatchCache) shadowCache).compactTree = compactTree;
+  }
+
+ /**
+  * Take over the digit trees loaded into the shadow instance.
+  *
+  * @param shadowCache The instance holding the loaded data
+  */
+  @Override
+  protected void swapCacheObjects(AbstractSyncLoaderCache shadowCache)
+  {
+    groupCache = ((BestMatchCache) shadowCache).groupCache;
+
+    if (memo != null)
+    {
+      memo.invalidate();
+    }
   }
 
  /**
@@ -620,6 +883,11 @@ public class BestMatchCache
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_GROUP_COUNT, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_OBJECT_COUNT, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_DUMP_MAP, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_TREE_TYPE, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMORY_REPORT, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMO_SIZE, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMO_STATS, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMO_STATS_RESET, ClientManager.PARAM_DYNAMIC);
   }
 
  /**
@@ -636,34 +904,61 @@ public class BestMatchCache
   public String processControlEvent(String Command, boolean Init,
                                     String Parameter)
   {
-    DigitTree   tmpPrefixCache;
-    Collection<String>  tmpGroups;
-    Iterator<String>    GroupIter;
-    String      tmpGroupName;
+    HashMap<String, IDigitTree> tmpGroupCache = groupCache;
     int         Objects = 0;
     int         ResultCode = -1;
 
     // Return the number of objects in the cache
     if (Command.equalsIgnoreCase(SERVICE_GROUP_COUNT))
     {
-      return Integer.toString(groupCache.size());
+      return Integer.toString(tmpGroupCache.size());
     }
 
     if (Command.equalsIgnoreCase(SERVICE_OBJECT_COUNT))
     {
-      tmpGroups = groupCache.keySet();
-      GroupIter = tmpGroups.iterator();
-
-      while (GroupIter.hasNext())
+      for (IDigitTree tmpPrefixCache : tmpGroupCache.values())
       {
-        tmpGroupName = GroupIter.next();
-        tmpPrefixCache = groupCache.get(tmpGroupName);
         Objects += tmpPrefixCache.size();
       }
 
       return Integer.toString(Objects);
     }
 
+    if (Command.equalsIgnoreCase(SERVICE_TREE_TYPE))
+    {
+      return compactTree ? TREE_TYPE_COMPACT : TREE_TYPE_STANDARD;
+    }
+
+    // Return the memory used by the trees
+    if (Command.equalsIgnoreCase(SERVICE_MEMORY_REPORT))
+    {
+      return getMemoryReport();
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_MEMO_SIZE))
+    {
+      return Integer.toString(memoSize);
+    }
+
+    // Return the memo statistics as hits:misses:evictions:size
+    if (Command.equalsIgnoreCase(SERVICE_MEMO_STATS))
+    {
+      return (memo == null) ? "0:0:0:0" : memo.getStats();
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_MEMO_STATS_RESET))
+    {
+      if (Parameter.equalsIgnoreCase("true"))
+      {
+        if (memo != null)
+        {
+          memo.resetStats();
+        }
+      }
+
+      ResultCode = 0;
+    }
+
     // Return the number of objects in the cache
     if (Command.equalsIgnoreCase(SERVICE_DUMP_MAP))
     {
@@ -0,0 +1,193 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bloom filter over the 64 bit record hashes of the duplicate check, used in
+ * front of the database tier. If the filter says that a key is not there, it
+ * is certainly not in the database and we can save the round trip. If it says
+ * that it might be there, we have to ask the database.
+ *
+ * The bit positions are derived from the single 64 bit hash by double hashing,
+ * so the key is only hashed once. Bits are set atomically, so the filter can
+ * be shared by the pipeline threads without locking. Keys cannot be removed,
+ * so the filter fills up over time and is rebuilt on restart.
+ */
+public class BloomFilter
+{
+  // Mixes the second hash so that it is independent of the first
+  private static final long MIX = 0x9E3779B97F4A7C15L;
+
+  // The bits of the filter
+  private final AtomicLongArray bits;
+
+  // The number of bits in the filter
+  private final long bitCount;
+
+  // The number of bits we set per key
+  private final int hashCount;
+
+ /**
+  * Create a filter sized for the given number of keys at the given false
+  * positive rate.
+  *
+  * @param expectedEntries The number of keys we expect to add
+  * @param falsePositiveRate The fraction of absent keys we accept to report as present
+  */
+  public BloomFilter(long expectedEntries, double falsePositiveRate)
+  {
+    if (expectedEntries <= 0)
+    {
+      throw new IllegalArgumentException("Expected entries must be positive");
+    }
+
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+    {
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+    }
+
+    // the optimal size and number of hashes for the rate
+    double ln2 = Math.log(2);
+    long optimalBits = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+    long words = Math.min((optimalBits + 63) / 64, Integer.MAX_VALUE - 8);
+
+    bits = new AtomicLongArray((int) words);
+    bitCount = words * 64;
+    hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedEntries * ln2));
+  }
+
+ /**
+  * Add a key to the filter.
+  *
+  * @param hash The 64 bit hash of the key
+  */
+  public void add(long hash)
+  {
+    long step = secondHash(hash);
+    long combined = hash;
+
+    for (int i = 0; i < hashCount; i++)
+    {
+      long bit = (combined & Long.MAX_VALUE) % bitCount;
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+      long current = bits.get(word);
+
+      while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask))
+      {
+        current = bits.get(word);
+      }
+
+      combined += step;
+    }
+  }
+
+ /**
+  * See if a key might have been added to the filter.
+  *
+  * @param hash The 64 bit hash of the key
+  * @return false if the key was certainly never added
+  */
+  public boolean mightContain(long hash)
+  {
+    long step = secondHash(hash);
+    long combined = hash;
+
+    for (int i = 0; i < hashCount; i++)
+    {
+      long bit = (combined & Long.MAX_VALUE) % bitCount;
+
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+      {
+        return false;
+      }
+
+      combined += step;
+    }
+
+    return true;
+  }
+
+ /**
+  * Get the number of bits in the filter.
+  *
+  * @return The bit count
+  */
+  public long getBitCount()
+  {
+    return bitCount;
+  }
+
+ /**
+  * Get the number of bits set per key.
+  *
+  * @return The hash count
+  */
+  public int getHashCount()
+  {
+    return hashCount;
+  }
+
+ /**
+  * Derive the step of the double hashing from the hash. It must be odd so that
+  * the steps do not repeat early.
+  */
+  private static long secondHash(long hash)
+  {
+    return (Long.rotateLeft(hash, 32) * MIX) | 1;
+  }
+}
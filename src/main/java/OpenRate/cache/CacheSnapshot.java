@@ -0,0 +1,201 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Manages the binary snapshot file of a cache implementing ICacheSnapshot.
+ *
+ * The file starts with a header giving the file format version, the class of
+ * the cache, the snapshot version of the cache and a stamp identifying the
+ * source data the snapshot was made from (for example the size and
+ * modification time of the data file). A snapshot is only restored if all of
+ * these match, otherwise the cache must be loaded from its source as usual.
+ * The data written by the cache follows, and the file is closed with an end
+ * marker so that truncated files are detected.
+ *
+ * The snapshot is written to a temporary file that is renamed over the old
+ * one when complete, so that a crash while writing leaves the old snapshot.
+ */
+public class CacheSnapshot
+{
+  // Marks the start and end of a snapshot file
+  private static final int MAGIC = 0x4F52534E;
+  private static final int END_MARKER = 0x454E4421;
+
+  // The version of the file layout around the cache data
+  private static final int FORMAT_VERSION = 1;
+
+  // The size of the file buffers
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  // The snapshot file
+  private final File snapshotFile;
+
+ /**
+  * Create the handler for a snapshot file.
+  *
+  * @param snapshotFileName The name of the snapshot file
+  */
+  public CacheSnapshot(String snapshotFileName)
+  {
+    snapshotFile = new File(snapshotFileName);
+  }
+
+ /**
+  * Write the data of the cache to the snapshot file.
+  *
+  * @param cache The cache to write
+  * @param sourceStamp The stamp of the source data the cache was loaded from
+  * @throws IOException
+  */
+  public void write(ICacheSnapshot cache, String sourceStamp) throws IOException
+  {
+    File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE)))
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(cache.getClass().getName());
+      out.writeInt(cache.getSnapshotVersion());
+      out.writeUTF(sourceStamp);
+
+      cache.writeSnapshot(out);
+
+      out.writeInt(END_MARKER);
+    }
+
+    Files.move(tmpFile.toPath(), snapshotFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+ /**
+  * Restore the data of the cache from the snapshot file, if the snapshot is
+  * current.
+  *
+  * @param cache The cache to restore
+  * @param sourceStamp The stamp of the current source data
+  * @return true if the data was restored, false if the snapshot is missing or stale
+  * @throws IOException if the snapshot could not be read, in which case the cache may hold partial data
+  */
+  public boolean restore(ICacheSnapshot cache, String sourceStamp) throws IOException
+  {
+    if (!snapshotFile.exists())
+    {
+      return false;
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE)))
+    {
+      if (!readHeader(in, cache, sourceStamp))
+      {
+        return false;
+      }
+
+      cache.readSnapshot(in);
+
+      if (in.readInt() != END_MARKER)
+      {
+        throw new IOException("Snapshot file <" + snapshotFile + "> is corrupt");
+      }
+    }
+
+    return true;
+  }
+
+ /**
+  * Get the snapshot file.
+  *
+  * @return The snapshot file
+  */
+  public File getFile()
+  {
+    return snapshotFile;
+  }
+
+ /**
+  * Read the header and check it against the cache and the source stamp.
+  *
+  * @param in The stream to read
+  * @param cache The cache to check for
+  * @param sourceStamp The stamp of the current source data
+  * @return true if the header matches
+  * @throws IOException
+  */
+  private boolean readHeader(DataInputStream in, ICacheSnapshot cache, String sourceStamp) throws IOException
+  {
+    if (in.readInt() != MAGIC)
+    {
+      throw new IOException("File <" + snapshotFile + "> is not a cache snapshot");
+    }
+
+    return in.readInt() == FORMAT_VERSION &&
+           in.readUTF().equals(cache.getClass().getName()) &&
+           in.readInt() == cache.getSnapshotVersion() &&
+           in.readUTF().equals(sourceStamp);
+  }
+}
@@ -119,7 +119,8 @@ public class CallAssemblyCache
 
  /**
   * Save the object data to a file. Because the objects in the object are
-  * small and non-persistent, we store them in a flat file format.
+  * small and non-persistent, we store them in a flat file format. The last
+  * field is the UTC expiry time in ms of the context, 0 for never.
   */
   @Override
   public void saveCacheObjectsToFile() throws ProcessingException
@@ -160,7 +161,8 @@ public class CallAssemblyCache
                       String.valueOf(tmpInfo.downlink) + ";" +
                       String.valueOf(tmpInfo.state) + ";" +
                       String.valueOf(tmpInfo.StartDate) + ";" +
-                      String.valueOf(tmpInfo.ClosedDate);
+                      String.valueOf(tmpInfo.ClosedDate) + ";" +
+                      String.valueOf(ObjectList.getExpiry(tmpKey));
       try
       {
         outFile.write(tmpFileRecord);
@@ -249,8 +251,15 @@ public class CallAssemblyCache
             // if the call is not too old
             if (tmpInfo.ClosedDate > storeCutoff)
             {
-              // add it to the cache
-              ObjectList.put(ObjectFields[0],tmpInfo);
+              // add it to the cache, keeping the expiry if the file has it
+              if (ObjectFields.length > 8)
+              {
+                ObjectList.putWithExpiry(ObjectFields[0], tmpInfo, Long.parseLong(ObjectFields[8]));
+              }
+              else
+              {
+                putObject(ObjectFields[0],tmpInfo);
+              }
             }
           }
         }
@@ -363,6 +372,50 @@ public class CallAssemblyCache
     }
   }
 
+  /**
+   * Write the assembly context to the journal.
+   *
+   * @param out The stream to write to
+   * @param object The context to write
+   * @throws IOException
+   */
+  @Override
+  protected void writeJournalObject(DataOutputStream out, Object object) throws IOException
+  {
+    AssemblyCtx tmpCtx = (AssemblyCtx) object;
+
+    out.writeDouble(tmpCtx.totalDuration);
+    out.writeDouble(tmpCtx.totalData);
+    out.writeDouble(tmpCtx.uplink);
+    out.writeDouble(tmpCtx.downlink);
+    out.writeInt(tmpCtx.state);
+    out.writeLong(tmpCtx.StartDate);
+    out.writeLong(tmpCtx.ClosedDate);
+  }
+
+  /**
+   * Read an assembly context from the journal.
+   *
+   * @param in The stream to read from
+   * @return The context
+   * @throws IOException
+   */
+  @Override
+  protected Object readJournalObject(DataInputStream in) throws IOException
+  {
+    AssemblyCtx tmpCtx = new AssemblyCtx();
+
+    tmpCtx.totalDuration = in.readDouble();
+    tmpCtx.totalData = in.readDouble();
+    tmpCtx.uplink = in.readDouble();
+    tmpCtx.downlink = in.readDouble();
+    tmpCtx.state = in.readInt();
+    tmpCtx.StartDate = in.readLong();
+    tmpCtx.ClosedDate = in.readLong();
+
+    return tmpCtx;
+  }
+
   /**
    * Format the internal record for dumping
    * 
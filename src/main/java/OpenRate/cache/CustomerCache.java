@@ -58,9 +58,12 @@ package OpenRate.cache;
 import OpenRate.OpenRate;
 import OpenRate.db.DBUtil;
 import OpenRate.exception.InitializationException;
+import OpenRate.lang.ProductHolder;
 import OpenRate.lang.ProductList;
 import OpenRate.utils.PropertyUtils;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -71,6 +74,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -173,61 +177,81 @@ import java.util.concurrent.ConcurrentHashMap;
  * 2) ERA_NAME
  * 3) ERA_VALUE
  *
+ * The cache supports the "Shadow" reload mode, so that the customer data can
+ * be reloaded while rating continues.
+ *
+ * To keep the memory footprint low for large customer bases, aliases point
+ * directly at the account, and the products of an account are held in arrays
+ * of interned service and product IDs, sorted by service and then by the
+ * start of the validity. The products for a service can then be found with a
+ * binary search. Use getProducts() with a ProductHolder to recover them
+ * without creating any objects.
+ *
+ * The cache supports snapshots, so that with "SnapshotFile" configured a
+ * restart can restore the customer data from the snapshot file instead of
+ * loading it again.
+ *
  * @author i.sparkes
  */
 public class CustomerCache
     extends AbstractSyncLoaderCache
+    implements ICacheSnapshot
 {
-  // Used to allow alias maps - takes a alias and maps to a poid.
-  private ConcurrentHashMap<String, String> aliasCache;
+  // Used to allow alias maps - takes a alias and maps to the account.
+  private volatile ConcurrentHashMap<String, CustInfo> aliasCache;
 
   // The CustIDCache holds the aliases for the account
-  private ConcurrentHashMap<String, CustInfo> CustIDCache;
+  private volatile ConcurrentHashMap<String, CustInfo> CustIDCache;
+
+  // The interned services and products. These are shared with the shadow
+  // instances, so that the IDs stay valid across reloads.
+  private SymbolTable services;
+  private SymbolTable products;
 
   /**
    * The alias data select query is used to recover alias information from the
    * database. Aliases are the keys used to locate the customer account to use
    * for rating the traffic
    */
-  protected static String aliasSelectQuery;
+  protected String aliasSelectQuery;
 
   /**
    * prepared statement for the alias query
    */
-  protected static PreparedStatement stmtAliasSelectQuery;
+  protected PreparedStatement stmtAliasSelectQuery;
 
   /**
    * The customer data select query is used to recover customer information
    * from the database
    */
-  protected static String customerSelectQuery;
+  protected String customerSelectQuery;
 
   /**
    * prepared statement for the customer data query
    */
-  protected static PreparedStatement stmtCustomerSelectQuery;
+  protected PreparedStatement stmtCustomerSelectQuery;
 
  /**
   * The product data select query is used to recover the product infromation
   * from the database and associate it to the account
   */
-  protected static String productSelectQuery;
+  protected String productSelectQuery;
 
   /**
    * prepared statement for the product query
    */
-  protected static PreparedStatement stmtProductSelectQuery;
+  protected PreparedStatement stmtProductSelectQuery;
 
  /**
   * The ERA data select query is used to recover the "Extended Rating
   * Attribute" information from the database and associate it to the account
   */
-  protected static String eraSelectQuery;
+  protected String eraSelectQuery;
 
   /**
    * prepared statement for the ERA query
    */
-  protected static PreparedStatement stmtERASelectQuery;
+  protected PreparedStatement stmtERASelectQuery;
 
  /**
   * The internal date format is the format that by default will be used when
@@ -241,28 +265,97 @@ public class CustomerCache
    * including the validity dates, the product list and the balance group
    * reference. Note that we are using the dates as long integers to reduce
    * the total amount of storage that is required.
+   *
+   * The products are held in parallel arrays, sorted by service ID and then
+   * by the start of validity. An account can be created by an alias before
+   * the account itself has been added, in which case it is not yet defined.
    */
   private class CustInfo
   {
+    private     String CustId;
+    private     boolean Defined = false;
     private     long UTCValidFrom;
     private     long UTCValidTo;
-    private     ArrayList<CustProductInfo> CPI = null;
     private     int ProductCount = 0;
+    private     int[] ServiceIds = null;
+    private     int[] ProductIds = null;
+    private     long[] ProductValidFrom = null;
+    private     long[] ProductValidTo = null;
     private     int BalanceGroup = 0;
     private     ConcurrentHashMap<String, String> ERAList = null;
   }
 
   /**
-   * The CustProductInfo structure holds the information about the products the,
-   * customer has, including the validity dates. Note that we are using long integers
-   * for the dates to reduce storage requirements.
+   * The SymbolTable interns strings to integer IDs, so that each distinct
+   * service and product name is held only once. IDs are never removed.
    */
-  private class CustProductInfo
+  private static class SymbolTable
   {
-    private String ProductID=null;
-    private String Service=null;
-    private   long UTCValidFrom;
-    private   long UTCValidTo;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int count = 0;
+
+    /**
+     * Get the ID of a name, adding it if it is new.
+     *
+     * @param name The name to intern
+     * @return The ID
+     */
+    synchronized int intern(String name)
+    {
+      Integer id = ids.get(name);
+
+      if (id == null)
+      {
+        if (count == names.length)
+        {
+          String[] newNames = new String[count * 2];
+          System.arraycopy(names, 0, newNames, 0, count);
+          names = newNames;
+        }
+
+        // the name is published to readers by putting the ID in the map
+        names[count] = name;
+        id = count++;
+        ids.put(name, id);
+      }
+
+      return id;
+    }
+
+    /**
+     * Get the ID of a name without adding it.
+     *
+     * @param name The name to look up
+     * @return The ID, or -1 if the name is not known
+     */
+    int lookup(String name)
+    {
+      Integer id = ids.get(name);
+
+      return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Get the number of names held.
+     *
+     * @return The number of names
+     */
+    synchronized int size()
+    {
+      return count;
+    }
+
+    /**
+     * Get the name for an ID.
+     *
+     * @param id The ID
+     * @return The name
+     */
+    String name(int id)
+    {
+      return names[id];
+    }
   }
 
    /** Constructor
@@ -275,6 +368,47 @@ public class CustomerCache
 
     CustIDCache = new ConcurrentHashMap<>(5000);
     aliasCache = new ConcurrentHashMap<>(5000);
+    services = new SymbolTable();
+    products = new SymbolTable();
+  }
+
+ /**
+  * Get the entry for a customer ID, creating an undefined one if there is
+  * none yet, so that aliases can be added before the account.
+  *
+  * @param CustId The customer identifier
+  * @return The customer entry
+  */
+  private CustInfo getOrCreateCustInfo(String CustId)
+  {
+    CustInfo tmpCustInfo = CustIDCache.get(CustId);
+
+    if (tmpCustInfo == null)
+    {
+      tmpCustInfo = new CustInfo();
+      tmpCustInfo.CustId = CustId;
+      CustIDCache.put(CustId,tmpCustInfo);
+    }
+
+    return tmpCustInfo;
+  }
+
+ /**
+  * Get the defined entry for a customer ID.
+  *
+  * @param CustId The customer identifier
+  * @return The customer entry, or null if the account has not been added
+  */
+  private CustInfo getDefinedCustInfo(String CustId)
+  {
+    CustInfo tmpCustInfo = CustIDCache.get(CustId);
+
+    if (tmpCustInfo == null || !tmpCustInfo.Defined)
+    {
+      return null;
+    }
+
+    return tmpCustInfo;
   }
 
  /**
@@ -289,7 +423,7 @@ public class CustomerCache
     // Update the alias list
     if (!aliasCache.containsKey(alias))
     {
-      aliasCache.put(alias,CustId);
+      aliasCache.put(alias,getOrCreateCustInfo(CustId));
     }
     else
     {
@@ -311,7 +445,7 @@ public class CustomerCache
     CustInfo tmpCustInfo;
 
     // See if we already have ID for this customer
-    if (!CustIDCache.containsKey(CustId))
+    if (getDefinedCustInfo(CustId) == null)
     {
       // Check validity dates
       if (ValidTo <= ValidFrom)
@@ -321,14 +455,18 @@ public class CustomerCache
         return;
       }
 
-      // Create the new entry for the customer ID
-      tmpCustInfo = new CustInfo();
-      tmpCustInfo.CPI = new ArrayList<>();
+      // Fill the entry for the customer ID, which may have been created by
+      // an alias
+      tmpCustInfo = getOrCreateCustInfo(CustId);
+      tmpCustInfo.ServiceIds = new int[2];
+      tmpCustInfo.ProductIds = new int[2];
+      tmpCustInfo.ProductValidFrom = new long[2];
+      tmpCustInfo.ProductValidTo = new long[2];
       tmpCustInfo.ERAList = new ConcurrentHashMap<>(10);
       tmpCustInfo.UTCValidFrom = ValidFrom;
       tmpCustInfo.UTCValidTo   = ValidTo;
       tmpCustInfo.BalanceGroup = BalanceGroup;
-      CustIDCache.put(CustId,tmpCustInfo);
+      tmpCustInfo.Defined = true;
     }
     else
     {
@@ -359,10 +497,12 @@ public class CustomerCache
   public void addCPI(String CustId, String Service, String ProdID, long ValidFrom, long ValidTo)
   {
     CustInfo tmpCustInfo;
-    CustProductInfo tmpCPI;
+    int serviceId;
+    int insertPos;
 
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
+    tmpCustInfo = getDefinedCustInfo(CustId);
+    if (tmpCustInfo != null)
     {
       // Check validity dates
       if (ValidTo <= ValidFrom)
@@ -372,14 +512,46 @@ public class CustomerCache
         return;
       }
 
-      // Create the new entry for the customer ID
-      tmpCustInfo = CustIDCache.get(CustId);
-      tmpCPI = new CustProductInfo();
-      tmpCPI.Service = Service;
-      tmpCPI.ProductID = ProdID;
-      tmpCPI.UTCValidFrom = ValidFrom;
-      tmpCPI.UTCValidTo = ValidTo;
-      tmpCustInfo.CPI.add(tmpCustInfo.ProductCount,tmpCPI);
+      // Make room for the new product
+      if (tmpCustInfo.ProductCount == tmpCustInfo.ServiceIds.length)
+      {
+        int newSize = tmpCustInfo.ProductCount * 2;
+        int[] newServiceIds = new int[newSize];
+        int[] newProductIds = new int[newSize];
+        long[] newValidFrom = new long[newSize];
+        long[] newValidTo = new long[newSize];
+        System.arraycopy(tmpCustInfo.ServiceIds, 0, newServiceIds, 0, tmpCustInfo.ProductCount);
+        System.arraycopy(tmpCustInfo.ProductIds, 0, newProductIds, 0, tmpCustInfo.ProductCount);
+        System.arraycopy(tmpCustInfo.ProductValidFrom, 0, newValidFrom, 0, tmpCustInfo.ProductCount);
+        System.arraycopy(tmpCustInfo.ProductValidTo, 0, newValidTo, 0, tmpCustInfo.ProductCount);
+        tmpCustInfo.ServiceIds = newServiceIds;
+        tmpCustInfo.ProductIds = newProductIds;
+        tmpCustInfo.ProductValidFrom = newValidFrom;
+        tmpCustInfo.ProductValidTo = newValidTo;
+      }
+
+      // Find the sorted position, after any products with the same key so
+      // that the order of adding is kept
+      serviceId = services.intern(Service);
+      insertPos = tmpCustInfo.ProductCount;
+      while (insertPos > 0 &&
+             (tmpCustInfo.ServiceIds[insertPos - 1] > serviceId ||
+              (tmpCustInfo.ServiceIds[insertPos - 1] == serviceId &&
+               tmpCustInfo.ProductValidFrom[insertPos - 1] > ValidFrom)))
+      {
+        insertPos--;
+      }
+
+      // Shift the later products up and insert
+      int moveCount = tmpCustInfo.ProductCount - insertPos;
+      System.arraycopy(tmpCustInfo.ServiceIds, insertPos, tmpCustInfo.ServiceIds, insertPos + 1, moveCount);
+      System.arraycopy(tmpCustInfo.ProductIds, insertPos, tmpCustInfo.ProductIds, insertPos + 1, moveCount);
+      System.arraycopy(tmpCustInfo.ProductValidFrom, insertPos, tmpCustInfo.ProductValidFrom, insertPos + 1, moveCount);
+      System.arraycopy(tmpCustInfo.ProductValidTo, insertPos, tmpCustInfo.ProductValidTo, insertPos + 1, moveCount);
+      tmpCustInfo.ServiceIds[insertPos] = serviceId;
+      tmpCustInfo.ProductIds[insertPos] = products.intern(ProdID);
+      tmpCustInfo.ProductValidFrom[insertPos] = ValidFrom;
+      tmpCustInfo.ProductValidTo[insertPos] = ValidTo;
       tmpCustInfo.ProductCount++;
     }
     else
@@ -403,10 +575,10 @@ public class CustomerCache
     CustInfo tmpCustInfo;
 
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
+    tmpCustInfo = getDefinedCustInfo(CustId);
+    if (tmpCustInfo != null)
     {
       // Create the new entry for the customer ID
-      tmpCustInfo = CustIDCache.get(CustId);
       tmpCustInfo.ERAList.put(ERA_ID,Value);
     }
     else
@@ -424,24 +596,16 @@ public class CustomerCache
   */
   public String getCustId(String alias)
   {
-    String CustPoid;
+    // Get the poid from the alias, null if we do not know it
+    CustInfo tmpCustInfo = aliasCache.get(alias);
 
-    // See if we already have ID for this customer
-    if (aliasCache.containsKey(alias))
-    {
-      // Get the poid from the alias
-      CustPoid = aliasCache.get(alias);
-      return CustPoid;
-    }
-    else
-    {
-      return null;
-    }
+    return (tmpCustInfo == null) ? null : tmpCustInfo.CustId;
   }
 
  /**
   * Get the products that are attached to the customer account, using the
-  * alias to locate the account
+  * alias to locate the account. The products are given in order of the start
+  * of their validity, not in the order they were loaded.
   *
   * @param alias The alias to the customer account
   * @param Service The service
@@ -451,67 +615,151 @@ public class CustomerCache
   public ProductList getProducts(String alias, String Service, long CDRDate)
   {
     ProductList tmpProductList;
-    String CustPoid;
     CustInfo tmpCustInfo;
-    CustProductInfo tmpCPI;
-    boolean FirstProduct = true;
+    int i;
 
-    // Prepare the result
-    tmpProductList = new ProductList();
+    // Get the account from the alias
+    tmpCustInfo = getValidCustInfo(alias, CDRDate);
 
-    // See if we already have ID for this customer
-    if (aliasCache.containsKey(alias))
+    if (tmpCustInfo == null)
     {
-      // Get the poid from the alias
-      CustPoid = aliasCache.get(alias);
-
-      // Get the product information
-      tmpCustInfo = CustIDCache.get(CustPoid);
+      return null;
+    }
 
-      // See if the CDR is within the period of validitysetRawProductList
-      if ( tmpCustInfo.UTCValidFrom <= CDRDate )
+    // We have validity, get back the product list
+    tmpProductList = new ProductList();
+    i = findFirstProduct(tmpCustInfo, Service);
+    if (i >= 0)
+    {
+      int serviceId = tmpCustInfo.ServiceIds[i];
+      for ( ; i < tmpCustInfo.ProductCount && tmpCustInfo.ServiceIds[i] == serviceId &&
+              tmpCustInfo.ProductValidFrom[i] <= CDRDate ; i++ )
       {
-        if (tmpCustInfo.UTCValidTo > CDRDate)
+        if ( tmpCustInfo.ProductValidTo[i] > CDRDate )
         {
-          // We have validity, get back the product list
-          for ( int i = 0 ; i < tmpCustInfo.ProductCount ; i ++ )
-          {
-            tmpCPI = tmpCustInfo.CPI.get(i);
-            if (tmpCPI.Service.equals(Service))
-            {
-              if ( tmpCPI.UTCValidFrom <= CDRDate )
-              {
-                if ( tmpCPI.UTCValidTo > CDRDate )
-                {
-                  if (FirstProduct)
-                  {
-                    tmpProductList.addProduct(0,tmpCPI.ProductID,null,tmpCPI.Service,tmpCPI.UTCValidFrom,tmpCPI.UTCValidTo,1);
-                    FirstProduct = false;
-                  }
-                  else
-                  {
-                    tmpProductList.addProduct(0,tmpCPI.ProductID,null,tmpCPI.Service,tmpCPI.UTCValidFrom,tmpCPI.UTCValidTo,1);
-                  }
-                }
-              }
-            }
-          }
-          tmpProductList.setBalanceGroup(tmpCustInfo.BalanceGroup);
-          return tmpProductList;
+          tmpProductList.addProduct(0,products.name(tmpCustInfo.ProductIds[i]),null,Service,tmpCustInfo.ProductValidFrom[i],tmpCustInfo.ProductValidTo[i],1);
         }
       }
+    }
 
-      return null;
+    tmpProductList.setBalanceGroup(tmpCustInfo.BalanceGroup);
+    return tmpProductList;
+  }
+
+ /**
+  * Get the products that are attached to the customer account, using the
+  * alias to locate the account, filling them into the holder passed. This
+  * does not create any objects. The products are given in order of the start
+  * of their validity, not in the order they were loaded.
+  *
+  * @param alias The alias to the customer account
+  * @param Service The service
+  * @param CDRDate The date to retrieve the products for
+  * @param holder The holder to fill with the products
+  * @return true if the account was found and valid, otherwise false
+  */
+  public boolean getProducts(String alias, String Service, long CDRDate, ProductHolder holder)
+  {
+    CustInfo tmpCustInfo;
+    int i;
+
+    // Get the account from the alias
+    tmpCustInfo = getValidCustInfo(alias, CDRDate);
+
+    if (tmpCustInfo == null)
+    {
+      holder.reset(Service, 0);
+      return false;
     }
-    else
+
+    // We have validity, get back the products
+    holder.reset(Service, tmpCustInfo.BalanceGroup);
+    i = findFirstProduct(tmpCustInfo, Service);
+    if (i >= 0)
+    {
+      int serviceId = tmpCustInfo.ServiceIds[i];
+      for ( ; i < tmpCustInfo.ProductCount && tmpCustInfo.ServiceIds[i] == serviceId &&
+              tmpCustInfo.ProductValidFrom[i] <= CDRDate ; i++ )
+      {
+        if ( tmpCustInfo.ProductValidTo[i] > CDRDate )
+        {
+          holder.addProduct(products.name(tmpCustInfo.ProductIds[i]),tmpCustInfo.ProductValidFrom[i],tmpCustInfo.ProductValidTo[i]);
+        }
+      }
+    }
+
+    return true;
+  }
+
+ /**
+  * Get the account for an alias, if the account is valid at the date given.
+  *
+  * @param alias The alias to the customer account
+  * @param CDRDate The date the account must be valid for
+  * @return The account, or null if it is not found or not valid
+  */
+  private CustInfo getValidCustInfo(String alias, long CDRDate)
+  {
+    CustInfo tmpCustInfo = aliasCache.get(alias);
+
+    if (tmpCustInfo == null)
     {
       // Otherwise write an error and ignore it
       OpenRate.getOpenRateFrameworkLog().error("Alias <" + alias + "> not found. Lookup failed.");
+      return null;
+    }
+
+    // See if the CDR is within the period of validity
+    if (tmpCustInfo.Defined &&
+        tmpCustInfo.UTCValidFrom <= CDRDate &&
+        tmpCustInfo.UTCValidTo > CDRDate)
+    {
+      return tmpCustInfo;
     }
 
     return null;
   }
 
+ /**
+  * Find the index of the first product of the account for the service, using
+  * a binary search on the sorted service IDs.
+  *
+  * @param tmpCustInfo The account
+  * @param Service The service
+  * @return The index of the first product, or -1 if there is none
+  */
+  private int findFirstProduct(CustInfo tmpCustInfo, String Service)
+  {
+    int serviceId = services.lookup(Service);
+
+    if (serviceId < 0)
+    {
+      return -1;
+    }
+
+    int low = 0;
+    int high = tmpCustInfo.ProductCount;
+    while (low < high)
+    {
+      int mid = (low + high) >>> 1;
+      if (tmpCustInfo.ServiceIds[mid] < serviceId)
+      {
+        low = mid + 1;
+      }
+      else
+      {
+        high = mid;
+      }
+    }
+
+    if (low < tmpCustInfo.ProductCount && tmpCustInfo.ServiceIds[low] == serviceId)
+    {
+      return low;
+    }
+
+    return -1;
+  }
+
  /**
   * Return the value of the balance group so that we are able to update
   * it during the logic processing. This is to make sure that we have all
@@ -524,12 +772,12 @@ public class CustomerCache
   {
     CustInfo tmpCustInfo;
 
+    // Get the product information
+    tmpCustInfo = getDefinedCustInfo(CustId);
+
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
+    if (tmpCustInfo != null)
     {
-      // Get the product information
-      tmpCustInfo = CustIDCache.get(CustId);
-
       return tmpCustInfo.BalanceGroup;
     }
     else
@@ -552,11 +800,12 @@ public class CustomerCache
   {
     CustInfo tmpCustInfo;
 
+    // Get the entry for the customer ID
+    tmpCustInfo = getDefinedCustInfo(CustId);
+
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
+    if (tmpCustInfo != null)
     {
-      // Create the new entry for the customer ID
-      tmpCustInfo = CustIDCache.get(CustId);
       return tmpCustInfo.ERAList.get(ERA_ID);
     }
     else
@@ -577,11 +826,12 @@ public class CustomerCache
     CustInfo tmpCustInfo;
     ArrayList<String> keyList = new ArrayList<>();
 
+    // Get the entry for the customer ID
+    tmpCustInfo = getDefinedCustInfo(CustId);
+
     // See if we already have ID for this customer
-    if (CustIDCache.containsKey(CustId))
+    if (tmpCustInfo != null)
     {
-      // Create the new entry for the customer ID
-      tmpCustInfo = CustIDCache.get(CustId);
       keyList.addAll(tmpCustInfo.ERAList.keySet());
 
       return keyList;
@@ -1045,6 +1295,255 @@ public class CustomerCache
     aliasCache.clear();
   }
 
+ /**
+  * The customer data can be loaded in a shadow instance and swapped in.
+  *
+  * @return true
+  */
+  @Override
+  protected boolean supportsShadowReload()
+  {
+    return true;
+  }
+
+ /**
+  * Copy the date format and the select queries to the shadow instance.
+  *
+  * @param shadowCache The instance to copy the settings to
+  */
+  @Override
+  protected void copyLoaderSettings(AbstractSyncLoaderCache shadowCache)
+  {
+    super.copyLoaderSettings(shadowCache);
+
+    ((CustomerCache) shadowCache).internalDateFormat = internalDateFormat;
+
+    // the shadow prepares its own statements from the same queries
+    ((CustomerCache) shadowCache).aliasSelectQuery = aliasSelectQuery;
+    ((CustomerCache) shadowCache).customerSelectQuery = customerSelectQuery;
+    ((CustomerCache) shadowCache).productSelectQuery = productSelectQuery;
+    ((CustomerCache) shadowCache).eraSelectQuery = eraSelectQuery;
+
+    // share the interned IDs, which only ever grow
+    ((CustomerCache) shadowCache).services = services;
+    ((CustomerCache) shadowCache).products = products;
+  }
+
+ /**
+  * Take over the customer data loaded into the shadow instance. The accounts
+  * are swapped before the aliases, so that an alias that has been found can
+  * always be resolved to its account.
+  *
+  * @param shadowCache The instance holding the loaded data
+  */
+  @Override
+  protected void swapCacheObjects(AbstractSyncLoaderCache shadowCache)
+  {
+    CustomerCache tmpShadowCache = (CustomerCache) shadowCache;
+
+    CustIDCache = tmpShadowCache.CustIDCache;
+    aliasCache = tmpShadowCache.aliasCache;
+  }
+
+ /**
+  * Get the version of the snapshot format.
+  *
+  * @return The snapshot format version
+  */
+  @Override
+  public int getSnapshotVersion()
+  {
+    return 1;
+  }
+
+ /**
+  * Write the customer data to the snapshot. The interned services and
+  * products are written first, and the accounts refer to them by ID.
+  *
+  * @param out The stream to write to
+  * @throws IOException
+  */
+  @Override
+  public void writeSnapshot(DataOutputStream out) throws IOException
+  {
+    writeSymbols(out, services);
+    writeSymbols(out, products);
+
+    // The accounts, including the ones only known by an alias
+    out.writeInt(CustIDCache.size());
+    for (CustInfo tmpCustInfo : CustIDCache.values())
+    {
+      out.writeUTF(tmpCustInfo.CustId);
+      out.writeBoolean(tmpCustInfo.Defined);
+
+      if (tmpCustInfo.Defined)
+      {
+        out.writeLong(tmpCustInfo.UTCValidFrom);
+        out.writeLong(tmpCustInfo.UTCValidTo);
+        out.writeInt(tmpCustInfo.BalanceGroup);
+
+        out.writeInt(tmpCustInfo.ProductCount);
+        for (int i = 0 ; i < tmpCustInfo.ProductCount ; i++)
+        {
+          out.writeInt(tmpCustInfo.ServiceIds[i]);
+          out.writeInt(tmpCustInfo.ProductIds[i]);
+          out.writeLong(tmpCustInfo.ProductValidFrom[i]);
+          out.writeLong(tmpCustInfo.ProductValidTo[i]);
+        }
+
+        out.writeInt(tmpCustInfo.ERAList.size());
+        for (Map.Entry<String, String> tmpERA : tmpCustInfo.ERAList.entrySet())
+        {
+          out.writeUTF(tmpERA.getKey());
+          out.writeUTF(tmpERA.getValue());
+        }
+      }
+    }
+
+    // The aliases
+    out.writeInt(aliasCache.size());
+    for (Map.Entry<String, CustInfo> tmpAlias : aliasCache.entrySet())
+    {
+      out.writeUTF(tmpAlias.getKey());
+      out.writeUTF(tmpAlias.getValue().CustId);
+    }
+  }
+
+ /**
+  * Read the customer data from the snapshot. The service and product IDs of
+  * the snapshot are mapped to the IDs of this instance, which may already
+  * hold symbols from an earlier load. The mapped service IDs can be in a
+  * different order, so the products are sorted again.
+  *
+  * @param in The stream to read from
+  * @throws IOException
+  */
+  @Override
+  public void readSnapshot(DataInputStream in) throws IOException
+  {
+    int[] serviceMap = readSymbols(in, services);
+    int[] productMap = readSymbols(in, products);
+
+    int custCount = in.readInt();
+    for (int c = 0 ; c < custCount ; c++)
+    {
+      CustInfo tmpCustInfo = getOrCreateCustInfo(in.readUTF());
+
+      if (in.readBoolean())
+      {
+        tmpCustInfo.UTCValidFrom = in.readLong();
+        tmpCustInfo.UTCValidTo = in.readLong();
+        tmpCustInfo.BalanceGroup = in.readInt();
+
+        int productCount = in.readInt();
+        int arraySize = Math.max(productCount, 2);
+        tmpCustInfo.ServiceIds = new int[arraySize];
+        tmpCustInfo.ProductIds = new int[arraySize];
+        tmpCustInfo.ProductValidFrom = new long[arraySize];
+        tmpCustInfo.ProductValidTo = new long[arraySize];
+        for (int i = 0 ; i < productCount ; i++)
+        {
+          tmpCustInfo.ServiceIds[i] = serviceMap[in.readInt()];
+          tmpCustInfo.ProductIds[i] = productMap[in.readInt()];
+          tmpCustInfo.ProductValidFrom[i] = in.readLong();
+          tmpCustInfo.ProductValidTo[i] = in.readLong();
+        }
+        tmpCustInfo.ProductCount = productCount;
+        sortProducts(tmpCustInfo);
+
+        int eraCount = in.readInt();
+        tmpCustInfo.ERAList = new ConcurrentHashMap<>(Math.max(eraCount, 10));
+        for (int i = 0 ; i < eraCount ; i++)
+        {
+          tmpCustInfo.ERAList.put(in.readUTF(), in.readUTF());
+        }
+
+        tmpCustInfo.Defined = true;
+      }
+    }
+
+    int aliasCount = in.readInt();
+    for (int a = 0 ; a < aliasCount ; a++)
+    {
+      String alias = in.readUTF();
+      aliasCache.put(alias, getOrCreateCustInfo(in.readUTF()));
+    }
+  }
+
+ /**
+  * Sort the products of an account by service and then by the start of the
+  * validity. The sort is stable, so products with the same key keep their
+  * order, and it only makes a single pass if they are already sorted.
+  *
+  * @param tmpCustInfo The account to sort the products of
+  */
+  private void sortProducts(CustInfo tmpCustInfo)
+  {
+    for (int i = 1 ; i < tmpCustInfo.ProductCount ; i++)
+    {
+      int serviceId = tmpCustInfo.ServiceIds[i];
+      int productId = tmpCustInfo.ProductIds[i];
+      long validFrom = tmpCustInfo.ProductValidFrom[i];
+      long validTo = tmpCustInfo.ProductValidTo[i];
+
+      int insertPos = i;
+      while (insertPos > 0 &&
+             (tmpCustInfo.ServiceIds[insertPos - 1] > serviceId ||
+              (tmpCustInfo.ServiceIds[insertPos - 1] == serviceId &&
+               tmpCustInfo.ProductValidFrom[insertPos - 1] > validFrom)))
+      {
+        tmpCustInfo.ServiceIds[insertPos] = tmpCustInfo.ServiceIds[insertPos - 1];
+        tmpCustInfo.ProductIds[insertPos] = tmpCustInfo.ProductIds[insertPos - 1];
+        tmpCustInfo.ProductValidFrom[insertPos] = tmpCustInfo.ProductValidFrom[insertPos - 1];
+        tmpCustInfo.ProductValidTo[insertPos] = tmpCustInfo.ProductValidTo[insertPos - 1];
+        insertPos--;
+      }
+
+      tmpCustInfo.ServiceIds[insertPos] = serviceId;
+      tmpCustInfo.ProductIds[insertPos] = productId;
+      tmpCustInfo.ProductValidFrom[insertPos] = validFrom;
+      tmpCustInfo.ProductValidTo[insertPos] = validTo;
+    }
+  }
+
+ /**
+  * Write the names of a symbol table in ID order.
+  *
+  * @param out The stream to write to
+  * @param symbols The symbol table
+  * @throws IOException
+  */
+  private void writeSymbols(DataOutputStream out, SymbolTable symbols) throws IOException
+  {
+    int count = symbols.size();
+
+    out.writeInt(count);
+    for (int i = 0 ; i < count ; i++)
+    {
+      out.writeUTF(symbols.name(i));
+    }
+  }
+
+ /**
+  * Read the names of a symbol table and intern them.
+  *
+  * @param in The stream to read from
+  * @param symbols The symbol table to intern into
+  * @return The map from the IDs in the snapshot to the IDs in the table
+  * @throws IOException
+  */
+  private int[] readSymbols(DataInputStream in, SymbolTable symbols) throws IOException
+  {
+    int[] idMap = new int[in.readInt()];
+
+    for (int i = 0 ; i < idMap.length ; i++)
+    {
+      idMap[i] = symbols.intern(in.readUTF());
+    }
+
+    return idMap;
+  }
+
   // -----------------------------------------------------------------------------
   // ---------------- Start of data base data layer functions --------------------
   // -----------------------------------------------------------------------------
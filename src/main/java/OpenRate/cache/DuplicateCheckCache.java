@@ -65,10 +65,15 @@ import OpenRate.exception.ProcessingException;
 import OpenRate.logging.LogUtil;
 import OpenRate.utils.PropertyUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
@@ -79,10 +84,28 @@ import java.util.regex.Pattern;
  *
  * The duplicate check itself is very simple: We check to see if a record with
  * the identifier already exists. If not, we add it, if so, we mark it as a duplicate
+ *
+ * By default the records inside the buffer limit are held in a hash map on the
+ * heap, which is loaded from the database on start up. Setting "StoreType" to
+ * "Mapped" holds them in a DuplicateCheckStore instead, which is an off-heap
+ * memory mapped table in the file "StoreFile", sized for "StoreCapacity"
+ * records. The store expires whole days at a time on purge instead of
+ * rebuilding the map, and it is kept across restarts, so the database is only
+ * read if the store file is new, or if a commit was cut short between writing
+ * the database and the store.
+ *
+ * Records older than the buffer limit are checked in the database. Setting
+ * "BloomFilterEntries" puts a BloomFilter over the keys in the database in
+ * front of it, so that keys which are certainly new are not looked up. With a
+ * "ProbeStatement" (for example "select KEY from TABLE where KEY in (?)") the
+ * batch version of DuplicateCheck looks up the old keys of a batch with one
+ * statement for each "DBBatchSize" keys, and all of the new keys are inserted
+ * in batches on commit.
  */
 public class DuplicateCheckCache
      extends AbstractCache
   implements ICacheLoader,
+             ICacheSaver,
              IEventInterface
 {
 	
@@ -102,15 +125,36 @@ public class DuplicateCheckCache
 
   /**
    * This stores all the Record IDs for CDRs which have been processed so far in
-   * the current transaction
+   * the current transaction. The lanes of the partitioned parallel mode check
+   * records of the same transaction at the same time, so the list of each
+   * transaction is concurrent too.
    */
-  protected ConcurrentHashMap<Integer,HashMap<String, Long>> TransRecordList;
+  protected ConcurrentHashMap<Integer,ConcurrentHashMap<String, Long>> TransRecordList;
+
+  /**
+   * This stores the Record IDs for CDRs older than the buffer limit that we
+   * have found to be new in the current transaction, and which we will insert
+   * into the DB on commit
+   */
+  protected ConcurrentHashMap<Integer,ConcurrentHashMap<String, Long>> TransOldRecordList;
 
  /**
   * This stores the DB insert connection per transaction for inserts/speculative inserts
   */
   protected ConcurrentHashMap<Integer, Connection> insertConnection;
 
+ /**
+  * The off-heap store for the buffered records, if we are using the mapped
+  * store type, otherwise null and the records are in recordList
+  */
+  protected DuplicateCheckStore mappedStore = null;
+
+ /**
+  * The bloom filter over the records in the DB which are older than the buffer
+  * limit, if we are using one, otherwise null and we always ask the DB
+  */
+  protected BloomFilter dbFilter = null;
+
   // Purge the internal memory
   private final static String SERVICE_PURGE   = "Purge";
 
@@ -128,6 +172,27 @@ public class DuplicateCheckCache
 
   // Active service 
   private final static String SERVICE_ACTIVE  = CommonConfig.ACTIVE;
+
+  // The store for the buffered records, and the file and size of a mapped store
+  private final static String SERVICE_STORE_TYPE = "StoreType";
+  private final static String SERVICE_STORE_FILE = "StoreFile";
+  private final static String SERVICE_STORE_CAPACITY = "StoreCapacity";
+  private final static String STORE_TYPE_MEMORY = "Memory";
+  private final static String STORE_TYPE_MAPPED = "Mapped";
+  private final static String DEFAULT_STORE_CAPACITY = "1000000";
+
+  // The mapped store expires whole days
+  private final static long STORE_BUCKET_SECONDS = 86400;
+
+  // The bloom filter in front of the DB, sized in records, 0 to switch it off
+  private final static String SERVICE_FILTER_ENTRIES = "BloomFilterEntries";
+  private final static String SERVICE_FILTER_RATE = "BloomFilterFalsePositiveRate";
+  private final static String DEFAULT_FILTER_ENTRIES = "0";
+  private final static String DEFAULT_FILTER_RATE = "0.01";
+
+  // The number of keys we probe for or insert in the DB with one statement
+  private final static String SERVICE_DB_BATCH_SIZE = "DBBatchSize";
+  private final static String DEFAULT_DB_BATCH_SIZE = "500";
   
   // default values for BufferLimit and StoreLimit
   private static final int    DEFAULT_BUFFER_LIMIT_DAYS = 90;
@@ -160,6 +225,15 @@ public class DuplicateCheckCache
    */
   protected String SelectQuery = null;
 
+  /**
+   * The query that probes for a list of keys in the table. The last parameter
+   * marker is expanded to as many markers as there are keys.
+   */
+  protected String ProbeQuery = null;
+
+  // The number of keys we probe for or insert at a time
+  private int dbBatchSize;
+
   /**
    * the statement that will be used to try to purge from the DB
    */
@@ -197,6 +271,9 @@ public class DuplicateCheckCache
     // This is the in-memory duplicate table for the current transaction
     TransRecordList = new ConcurrentHashMap<>(100);
 
+    // This is the list of old records to insert for the current transaction
+    TransOldRecordList = new ConcurrentHashMap<>(100);
+
     // initialise the inser connection array
     insertConnection = new ConcurrentHashMap<>(10);
   }
@@ -315,6 +392,27 @@ public class DuplicateCheckCache
               "Purge Duplicate Check Insert statement Configuration:" +
               PurgeQuery);
       }
+
+      // the probe statement is optional, without it we probe one key at a time
+      ProbeQuery = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                                             CacheName,
+                                                                             "ProbeStatement",
+                                                                             "None");
+
+      if (ProbeQuery.equals("None"))
+      {
+        ProbeQuery = null;
+      }
+      else if (ProbeQuery.indexOf('?') < 0)
+      {
+        message = "Probe statement for cache <" + getSymbolicName() + "> must have a parameter marker for the keys";
+        throw new InitializationException(message,getSymbolicName());
+      }
+      else
+      {
+        OpenRate.getOpenRateFrameworkLog().debug("Found Duplicate Check Probe statement Configuration:" +
+              ProbeQuery);
+      }
     }
     else
     {
@@ -400,6 +498,15 @@ public class DuplicateCheckCache
     // Get the loading step, if one is defined
     loadingLogNotificationStep = initGetLoadingStep(ResourceName, CacheName);
 
+    // open the mapped store if we are using one
+    initMappedStore(ResourceName, CacheName);
+
+    // create the bloom filter for the DB if we are using one
+    initDBFilter(ResourceName, CacheName);
+
+    // Get the number of keys we probe for or insert at a time
+    dbBatchSize = initGetDBBatchSize(ResourceName, CacheName);
+
     // The data source property was added to allow database to database
     // JDBC adapters to work properly using 1 configuration file.
     if(DBUtil.initDataSource(cacheDataSourceName) == null)
@@ -409,8 +516,33 @@ public class DuplicateCheckCache
       throw new InitializationException(message,getSymbolicName());
     }
 
-    // load in the old data from the database
-    retrieveDupChkDataFromDB();
+    // load in the old data from the database, unless we have it in the store
+    if (mappedStore == null || mappedStore.isEmpty())
+    {
+      retrieveDupChkDataFromDB();
+    }
+    else
+    {
+      mappedStore.expire(bufferLimit);
+
+      message = "Duplicate Check Data opened from store for <" + getSymbolicName() + ">. <" +
+            mappedStore.size() + "> records buffered";
+      OpenRate.getOpenRateFrameworkLog().info(message);
+
+      if (mappedStore.hasOpenCommits())
+      {
+        // a commit was cut short after writing to the DB, top up the store
+        message = "Duplicate Check store for <" + getSymbolicName() + "> has an unfinished commit. Reloading from DB";
+        OpenRate.getOpenRateFrameworkLog().warning(message);
+        retrieveDupChkDataFromDB();
+        mappedStore.clearOpenCommits();
+      }
+      else if (dbFilter != null)
+      {
+        // the bloom filter still needs the records that are only in the DB
+        retrieveDupChkDataFromDB();
+      }
+    }
   }
 
   // -----------------------------------------------------------------------------
@@ -438,31 +570,36 @@ public class DuplicateCheckCache
 	    if (TimeStamp > bufferLimit)
 	    {
 	      // look only in the HashMap
-	      if (recordList.containsKey(RecordKey))
+	      if (mainCacheContains(RecordKey))
 	      {
 	        // found in the main cache
 	        return true;
 	      }
 	      else
 	      {
-	        // Check in the current transaction cache
-	        if  (TransRecordList.get(TransactionNumber).containsKey(RecordKey))
-	        {
-	          // found in the transaction cache
-	          return true;
-	        }
-	        else
-	        {
-	          // Add the record to the transaction list
-	          TransRecordList.get(TransactionNumber).put(RecordKey, TimeStamp);
-	          return false;
-	        }
+	        // Check in the current transaction cache, adding the record to the
+	        // transaction list in the same step if it is not there
+	        return (TransRecordList.get(TransactionNumber).putIfAbsent(RecordKey, TimeStamp) != null);
 	      }
 	    }
 	    else if (TimeStamp > storeLimit)
 	    {
+	      ConcurrentHashMap<String, Long> oldRecords = TransOldRecordList.get(TransactionNumber);
+
+	      // Check in the old records of the current transaction
+	      if (oldRecords.containsKey(RecordKey))
+	      {
+	        return true;
+	      }
+
+	      // if the filter has never seen the key, it is not in the database, and
+	      // we insert it on commit
+	      if (dbFilter != null && dbFilter.mightContain(DuplicateCheckStore.hash(RecordKey)) == false)
+	      {
+	        return (oldRecords.putIfAbsent(RecordKey, TimeStamp) != null);
+	      }
+
 	      // the key won't be in the HashMap, we need to check directly in the database
-	
 	      try
 	      {
 	        // Get the connection
@@ -478,6 +615,11 @@ public class DuplicateCheckCache
 	          Timestamp date = new Timestamp(TimeStamp*1000);
 	          tmpInsertStatement.setTimestamp(2, date);
 	          tmpInsertStatement.execute();
+
+	          if (dbFilter != null)
+	          {
+	            dbFilter.add(DuplicateCheckStore.hash(RecordKey));
+	          }
 	        }
 	        catch (SQLException ex)
 	        {
@@ -509,6 +651,354 @@ public class DuplicateCheckCache
     return false;
   }
 
+  /**
+  * Check a batch of records for duplicates. Records inside the buffer limit are
+  * checked in memory in the same way as single records. The older records
+  * which the bloom filter does not rule out are probed for in the database
+  * together, with one statement for each DBBatchSize keys, instead of one
+  * insert for each record. The old records which are not duplicates are
+  * inserted into the database on commit.
+  *
+  * If there is no probe statement, the old records are checked one at a time.
+  *
+  * @param RecordKeys The keys of the records
+  * @param TimeStamps The time stamps of the records
+  * @param TransactionNumber The transaction the records are in
+  * @return The duplicate flag for each of the records
+  * @throws ProcessingException
+  */
+  public boolean[] DuplicateCheck(String[] RecordKeys, long[] TimeStamps, int TransactionNumber) throws ProcessingException
+  {
+    boolean[] duplicates = new boolean[RecordKeys.length];
+
+    if (Active == false)
+    {
+      return duplicates;
+    }
+
+    ConcurrentHashMap<String, Long> oldRecords = TransOldRecordList.get(TransactionNumber);
+
+    // the keys we have to ask the database about, and where they are in the batch
+    LinkedHashMap<String, Integer> probeKeys = new LinkedHashMap<>();
+
+    for (int idx = 0 ; idx < RecordKeys.length ; idx++)
+    {
+      String key = RecordKeys[idx];
+
+      if (ProbeQuery == null || TimeStamps[idx] > bufferLimit || TimeStamps[idx] <= storeLimit)
+      {
+        duplicates[idx] = DuplicateCheck(key, TimeStamps[idx], TransactionNumber);
+      }
+      else if (oldRecords.containsKey(key) || probeKeys.containsKey(key))
+      {
+        // already seen in this transaction
+        duplicates[idx] = true;
+      }
+      else if (dbFilter != null && dbFilter.mightContain(DuplicateCheckStore.hash(key)) == false)
+      {
+        // certainly not in the database, but another lane may just have added it
+        duplicates[idx] = (oldRecords.putIfAbsent(key, TimeStamps[idx]) != null);
+      }
+      else
+      {
+        probeKeys.put(key, idx);
+      }
+    }
+
+    if (probeKeys.size() > 0)
+    {
+      HashSet<String> foundKeys = probeDB(new ArrayList<>(probeKeys.keySet()), TransactionNumber);
+
+      for (Map.Entry<String, Integer> probeKey : probeKeys.entrySet())
+      {
+        int idx = probeKey.getValue();
+
+        if (foundKeys.contains(probeKey.getKey()))
+        {
+          duplicates[idx] = true;
+        }
+        else
+        {
+          duplicates[idx] = (oldRecords.putIfAbsent(probeKey.getKey(), TimeStamps[idx]) != null);
+        }
+      }
+    }
+
+    return duplicates;
+  }
+
+  /**
+  * Look for a list of keys in the database using the probe statement.
+  *
+  * @param Keys The keys to look for
+  * @param TransactionNumber The transaction we are probing for
+  * @return The keys which are in the database
+  * @throws ProcessingException
+  */
+  private HashSet<String> probeDB(ArrayList<String> Keys, int TransactionNumber) throws ProcessingException
+  {
+    HashSet<String> foundKeys = new HashSet<>();
+    Connection tmpConnection = getTransactionInsertConnection(TransactionNumber);
+    PreparedStatement tmpProbeStatement = null;
+    ResultSet probeResult = null;
+    int statementSize = 0;
+
+    try
+    {
+      for (int start = 0 ; start < Keys.size() ; start += dbBatchSize)
+      {
+        int end = Math.min(start + dbBatchSize, Keys.size());
+
+        // all but the last probe can use the same statement
+        if (end - start != statementSize)
+        {
+          DBUtil.close(tmpProbeStatement);
+          statementSize = end - start;
+          tmpProbeStatement = tmpConnection.prepareStatement(expandProbeQuery(statementSize));
+        }
+
+        for (int idx = start ; idx < end ; idx++)
+        {
+          tmpProbeStatement.setString(idx - start + 1, Keys.get(idx));
+        }
+
+        probeResult = tmpProbeStatement.executeQuery();
+        while (probeResult.next())
+        {
+          foundKeys.add(probeResult.getString(1));
+        }
+        DBUtil.close(probeResult);
+        probeResult = null;
+      }
+    }
+    catch (SQLException ex)
+    {
+      message = "Error probing <" + cacheDataSourceName + "> for the duplicate "
+          + "check data. message=<" + ex.getMessage()+">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new ProcessingException(message,ex,getSymbolicName());
+    }
+    finally
+    {
+      DBUtil.close(probeResult);
+      DBUtil.close(tmpProbeStatement);
+    }
+
+    return foundKeys;
+  }
+
+  /**
+  * Expand the parameter marker of the probe statement to the given number of
+  * markers.
+  *
+  * @param KeyCount The number of keys to probe for
+  * @return The SQL of the probe statement
+  */
+  private String expandProbeQuery(int KeyCount)
+  {
+    int marker = ProbeQuery.lastIndexOf('?');
+    StringBuilder probeSQL = new StringBuilder(ProbeQuery.length() + KeyCount * 2);
+
+    probeSQL.append(ProbeQuery, 0, marker);
+    for (int idx = 0 ; idx < KeyCount ; idx++)
+    {
+      if (idx > 0)
+      {
+        probeSQL.append(',');
+      }
+      probeSQL.append('?');
+    }
+    probeSQL.append(ProbeQuery, marker + 1, ProbeQuery.length());
+
+    return probeSQL.toString();
+  }
+
+  /**
+  * Insert the records of a transaction into the database, DBBatchSize records
+  * to a statement. If the batch fails, the records the driver did not insert
+  * are inserted one at a time so that we can see which are duplicates.
+  *
+  * @param TrxRecordList The records to insert
+  * @param InsertConnection The connection to use
+  * @param TransactionNumber The transaction number
+  * @return The number of records inserted
+  */
+  private int insertRecords(Map<String, Long> TrxRecordList, Connection InsertConnection, int TransactionNumber)
+  {
+    int recordsInserted = 0;
+    ArrayList<String> keys = new ArrayList<>(TrxRecordList.keySet());
+    PreparedStatement tmpInsertStatement = getInsertStatement(InsertConnection);
+
+    try
+    {
+      for (int start = 0 ; start < keys.size() ; start += dbBatchSize)
+      {
+        int end = Math.min(start + dbBatchSize, keys.size());
+
+        try
+        {
+          for (int idx = start ; idx < end ; idx++)
+          {
+            tmpInsertStatement.setString(1, keys.get(idx));
+            tmpInsertStatement.setTimestamp(2, new Timestamp(TrxRecordList.get(keys.get(idx))*1000));
+            tmpInsertStatement.addBatch();
+          }
+          tmpInsertStatement.executeBatch();
+
+          recordsInserted += end - start;
+        }
+        catch (BatchUpdateException ex)
+        {
+          // some drivers stop at the first failure, others carry on
+          int[] updateCounts = ex.getUpdateCounts();
+          int processed = (updateCounts == null) ? 0 : updateCounts.length;
+
+          for (int idx = start ; idx < end ; idx++)
+          {
+            if (idx - start < processed && updateCounts[idx - start] != Statement.EXECUTE_FAILED)
+            {
+              recordsInserted++;
+            }
+            else if (insertRecord(tmpInsertStatement, keys.get(idx), TrxRecordList.get(keys.get(idx)), TransactionNumber))
+            {
+              recordsInserted++;
+            }
+          }
+        }
+        catch (SQLException ex)
+        {
+          // other SQL exception
+          message = "Error inserting into <" + cacheDataSourceName + "> for the duplicate "
+              + "check data on transaction commit. message=<" + ex.getMessage()+"> in transaction <" + TransactionNumber + ">";
+          OpenRate.getOpenRateFrameworkLog().error(message);
+        }
+        finally
+        {
+          // don't let a failed batch go into the next one
+          clearBatch(tmpInsertStatement, TransactionNumber);
+        }
+      }
+    }
+    finally
+    {
+      // Close the statement
+      DBUtil.close(tmpInsertStatement);
+    }
+
+    return recordsInserted;
+  }
+
+  /**
+  * Clear the batch of the insert statement.
+  *
+  * @param InsertStatement The statement to clear
+  * @param TransactionNumber The transaction number
+  */
+  private void clearBatch(PreparedStatement InsertStatement, int TransactionNumber)
+  {
+    try
+    {
+      InsertStatement.clearBatch();
+    }
+    catch (SQLException ex)
+    {
+      message = "Error clearing the insert batch of <" + cacheDataSourceName + "> for the duplicate "
+          + "check data on transaction commit. message=<" + ex.getMessage()+"> in transaction <" + TransactionNumber + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+    }
+  }
+
+  /**
+  * Insert a single record of a transaction into the database.
+  *
+  * @return true if the record was inserted
+  */
+  private boolean insertRecord(PreparedStatement InsertStatement, String key, long TimeStamp, int TransactionNumber)
+  {
+    try
+    {
+      InsertStatement.clearBatch();
+      InsertStatement.setString(1, key);
+      InsertStatement.setTimestamp(2, new Timestamp(TimeStamp*1000));
+      InsertStatement.execute();
+
+      return true;
+    }
+    catch (SQLException ex)
+    {
+      message=ex.getMessage();
+      if (message != null && duplicateCheckPattern.matcher(message).matches())
+      {
+        message = "Duplicate Error inserting into <" + cacheDataSourceName + "> for the duplicate "
+            + "check data on transaction commit for key <" + key+"> in transaction <" + TransactionNumber + ">";
+        OpenRate.getOpenRateFrameworkLog().warning(message);
+      }
+      else
+      {
+        // other SQL exception
+        message = "Error inserting into <" + cacheDataSourceName + "> for the duplicate "
+            + "check data on transaction commit. message=<" + ex.getMessage()+"> in transaction <" + TransactionNumber + ">";
+        OpenRate.getOpenRateFrameworkLog().error(message);
+      }
+
+      return false;
+    }
+  }
+
+  /**
+  * Check if a key is in the main cache, which is either the map or the mapped
+  * store.
+  *
+  * @param RecordKey The key to look for
+  * @return true if it is in the cache
+  */
+  private boolean mainCacheContains(String RecordKey)
+  {
+    if (mappedStore == null)
+    {
+      return recordList.containsKey(RecordKey);
+    }
+    else
+    {
+      return mappedStore.contains(RecordKey);
+    }
+  }
+
+  /**
+  * Move the committed records of a transaction into the main cache. The mapped
+  * store is written to disk so that it matches the database.
+  *
+  * @param TrxRecordList The records of the transaction
+  * @param TransactionNumber The transaction number
+  * @throws ProcessingException if the records could not be stored
+  */
+  private void storeRecords(Map<String, Long> TrxRecordList, int TransactionNumber)
+    throws ProcessingException
+  {
+    if (mappedStore == null)
+    {
+      recordList.putAll(TrxRecordList);
+    }
+    else
+    {
+      try
+      {
+        for (String key : TrxRecordList.keySet())
+        {
+          mappedStore.put(key, TrxRecordList.get(key));
+        }
+        mappedStore.force();
+      }
+      catch (IOException ex)
+      {
+        message = "Error storing duplicate check data for transaction <" + TransactionNumber +
+                  "> in module <" + getSymbolicName() + ">. message <" + ex.getMessage() + ">";
+        OpenRate.getOpenRateFrameworkLog().error(message);
+        throw new ProcessingException(message, ex, getSymbolicName());
+      }
+    }
+  }
+
   // -----------------------------------------------------------------------------
   // ------------------ Start of transaction layer functions ---------------------
   // -----------------------------------------------------------------------------
@@ -522,7 +1012,8 @@ public class DuplicateCheckCache
   */
   public void CreateTransaction(int TransactionNumber)
   {
-    TransRecordList.put(TransactionNumber, new HashMap<String,Long>(5000));
+    TransRecordList.put(TransactionNumber, new ConcurrentHashMap<String,Long>(5000));
+    TransOldRecordList.put(TransactionNumber, new ConcurrentHashMap<String,Long>());
   }
 
  /**
@@ -530,13 +1021,15 @@ public class DuplicateCheckCache
   * deletes the transaction object. We also update the DB at this point.
   *
   * @param TransactionNumber
+  * @throws ProcessingException if the records could not be stored
   */
   public void CommitTransaction(int TransactionNumber)
+    throws ProcessingException
   {
 	if (Active)  
 	{ 
 	    // insert into the DB the items in TransRecordList as well
-	    HashMap<String, Long> ThisTrxRecordList = TransRecordList.get(TransactionNumber);
+	    ConcurrentHashMap<String, Long> ThisTrxRecordList = TransRecordList.get(TransactionNumber);
 	
 	    if (ThisTrxRecordList == null)
 	    {
@@ -546,7 +1039,14 @@ public class DuplicateCheckCache
 	    }
 	    else
 	    {
-	      int recordCount = ThisTrxRecordList.size();
+	      // the old records we found to be new, which only go into the DB
+	      ConcurrentHashMap<String, Long> ThisTrxOldRecordList = TransOldRecordList.remove(TransactionNumber);
+	      if (ThisTrxOldRecordList == null)
+	      {
+	        ThisTrxOldRecordList = new ConcurrentHashMap<>();
+	      }
+
+	      int recordCount = ThisTrxRecordList.size() + ThisTrxOldRecordList.size();
 	      int recordsInserted = 0;
 	
 	      message = "Inserting <" + recordCount + "> records into duplicate check table" +
@@ -554,61 +1054,48 @@ public class DuplicateCheckCache
 	      
 	      if (recordCount > 0)
 	      {
-	        // we are going to insert something, get the connection and statement
+	        // we are going to insert something, get the connection
 	        Connection tmpInsertConnection = getTransactionInsertConnection(TransactionNumber);
-	        PreparedStatement tmpInsertStatement = getInsertStatement(tmpInsertConnection);
-	
+
+	        // the DB commits each batch, so mark the store until it has caught
+	        // up, and reload it on start up if we don't get that far
+	        if (mappedStore != null)
+	        {
+	          mappedStore.startCommit();
+	        }
+
 	        try
 	        {
-	          // Get the keys to insert
-	          Set<String> keys = ThisTrxRecordList.keySet();
-	          for (String key : keys)
+	          recordsInserted = insertRecords(ThisTrxRecordList, tmpInsertConnection, TransactionNumber);
+	          storeRecords(ThisTrxRecordList, TransactionNumber);
+	          if (mappedStore != null)
 	          {
-	            try
-	            {
-	              tmpInsertStatement.setString(1, key);
-	              Timestamp date = new Timestamp(ThisTrxRecordList.get(key)*1000);
-	              tmpInsertStatement.setTimestamp(2, date);
-	              tmpInsertStatement.execute();
-	              
-	              // Update the count of what we have inserted
-	              recordsInserted++;
-	            }
-	            catch (SQLException ex)
+	            mappedStore.endCommit();
+	          }
+
+	          recordsInserted += insertRecords(ThisTrxOldRecordList, tmpInsertConnection, TransactionNumber);
+	          if (dbFilter != null)
+	          {
+	            for (String key : ThisTrxOldRecordList.keySet())
 	            {
-	              message=ex.getMessage();
-	              if (duplicateCheckPattern.matcher(message).matches())
-	              {
-	                // other SQL exception
-	                message = "Duplicate Error inserting into <" + cacheDataSourceName + "> for the duplicate "
-	                    + "check data on transaction commit for key <" + key+"> in transaction <" + TransactionNumber + ">";
-	                OpenRate.getOpenRateFrameworkLog().warning(message);
-	              }
-	              else
-	              {
-	                // other SQL exception
-	                message = "Error inserting into <" + cacheDataSourceName + "> for the duplicate "
-	                    + "check data on transaction commit. message=<" + ex.getMessage()+"> in transaction <" + TransactionNumber + ">";
-	                OpenRate.getOpenRateFrameworkLog().error(message);
-	              }
+	              dbFilter.add(DuplicateCheckStore.hash(key));
 	            }
 	          }
 	        }
 	        finally
 	        {
-	          // Close the statement
-	          DBUtil.close(tmpInsertStatement);
+	          // and close the connection now that we have finished with it
+	          closeTransactionInsertConnection(TransactionNumber);
+
+	          // remove the transaction
+	          TransRecordList.remove(TransactionNumber);
 	        }
-	
-	        recordList.putAll(TransRecordList.get(TransactionNumber));
 	      }
-	
-	
-	      // and close the connection now that we have finished with it
-	      closeTransactionInsertConnection(TransactionNumber);
-	
-	      // remove the transaction
-	      TransRecordList.remove(TransactionNumber);
+	      else
+	      {
+	        // remove the transaction
+	        TransRecordList.remove(TransactionNumber);
+	      }
 	
 	      // Log what we did
 	      message = "Inserted <" + recordsInserted + "> records into duplicate check table" +
@@ -632,6 +1119,7 @@ public class DuplicateCheckCache
   {
     // We just discard the keys from the transaction
     TransRecordList.remove(TransactionNumber);
+    TransOldRecordList.remove(TransactionNumber);
   }
 
   // -----------------------------------------------------------------------------
@@ -690,7 +1178,14 @@ public class DuplicateCheckCache
     else if (Command.equalsIgnoreCase(SERVICE_OBJECT_COUNT))
     {
       // Return the number of objects in the duplicate cache
-      return Integer.toString(recordList.size());
+      if (mappedStore == null)
+      {
+        return Integer.toString(recordList.size());
+      }
+      else
+      {
+        return Integer.toString(mappedStore.size());
+      }
     }
     else if (Command.equalsIgnoreCase(SERVICE_BUFFER))
     {
@@ -816,11 +1311,23 @@ public class DuplicateCheckCache
 
         if (CDRDate > bufferLimit)
         {
-          recordList.put(CDRKey, CDRDate);
+          if (mappedStore == null)
+          {
+            recordList.put(CDRKey, CDRDate);
+          }
+          else
+          {
+            mappedStore.put(CDRKey, CDRDate);
+          }
           recordsLoaded++;
         }
         else
         {
+          // only in the DB, but we remember that it is there
+          if (dbFilter != null)
+          {
+            dbFilter.add(DuplicateCheckStore.hash(CDRKey));
+          }
           recordsDiscarded++;
         }
 
@@ -840,6 +1347,17 @@ public class DuplicateCheckCache
       OpenRate.getOpenRateFrameworkLog().fatal(message);
       throw new InitializationException(message,ex,getSymbolicName());
     }
+    catch (IOException ex)
+    {
+      message = "Error storing Data for <" + getSymbolicName() + ">";
+      OpenRate.getOpenRateFrameworkLog().fatal(message);
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+
+    if (mappedStore != null)
+    {
+      mappedStore.force();
+    }
 
     // Close down stuff
     DBUtil.close(mrs);
@@ -885,31 +1403,52 @@ public class DuplicateCheckCache
     try
     {
       // **** Clean up the memory ****
-      // Create a new HashMap that will replace the current one. We cannot simply
-      // remove the items from the current one due to the ConcurrentModificationException
-      ConcurrentHashMap<String, Long> NewRecordList = new ConcurrentHashMap<>(50000);
-
-      // Dump the contents of the current hashmap
-      Set<String> keySet = recordList.keySet();
-
-      // loop through the keys and add to the new hashmap only the ones newer than cutoff
-      for (String dupKey : keySet)
+      if (mappedStore != null)
       {
-        recordDate = recordList.get(dupKey);
-
-        if (recordDate < bufferLimit)
+        // the records leaving the store are now only in the DB
+        if (dbFilter != null)
         {
-          // this will not be stored in the new hashmap
-          recordsPurgedMemory++;
+          for (long hash : mappedStore.expiringHashes(bufferLimit))
+          {
+            dbFilter.add(hash);
+          }
         }
-        else
+
+        // the store expires whole buckets without rebuilding
+        recordsPurgedMemory = mappedStore.expire(bufferLimit);
+      }
+      else
+      {
+        // Create a new HashMap that will replace the current one. We cannot simply
+        // remove the items from the current one due to the ConcurrentModificationException
+        ConcurrentHashMap<String, Long> NewRecordList = new ConcurrentHashMap<>(50000);
+
+        // Dump the contents of the current hashmap
+        Set<String> keySet = recordList.keySet();
+
+        // loop through the keys and add to the new hashmap only the ones newer than cutoff
+        for (String dupKey : keySet)
         {
-          NewRecordList.put(dupKey,recordDate);
+          recordDate = recordList.get(dupKey);
+
+          if (recordDate < bufferLimit)
+          {
+            // this will not be stored in the new hashmap, but is still in the DB
+            if (dbFilter != null && recordDate > storeLimit)
+            {
+              dbFilter.add(DuplicateCheckStore.hash(dupKey));
+            }
+            recordsPurgedMemory++;
+          }
+          else
+          {
+            NewRecordList.put(dupKey,recordDate);
+          }
         }
-      }
 
-      // Swap the existing and new record list over
-      recordList = NewRecordList;
+        // Swap the existing and new record list over
+        recordList = NewRecordList;
+      }
 
       // log that we have moved onto the DB part
       OpenRate.getOpenRateFrameworkLog().info("Duplicate check DB purge started.");
@@ -1026,6 +1565,202 @@ public class DuplicateCheckCache
     }
   }
 
+  // -----------------------------------------------------------------------------
+  // ------------------ Start of inherited ICacheSaver functions -----------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * Write the mapped store to disk and close it on shutdown. The map store has
+  * nothing to save, because the records are already in the database.
+  *
+  * @throws ProcessingException
+  */
+  @Override
+  public void saveCache() throws ProcessingException
+  {
+    if (mappedStore != null)
+    {
+      try
+      {
+        mappedStore.close();
+      }
+      catch (IOException ex)
+      {
+        message = "Error closing duplicate check store in module <" + getSymbolicName() + ">";
+        throw new ProcessingException(message,ex,getSymbolicName());
+      }
+    }
+  }
+
+  /**
+  * Open the mapped store if the store type asks for one.
+  *
+  * @param ResourceName The resource name we are loading for
+  * @param CacheName The cache name we are loading for
+  * @throws InitializationException
+  */
+  private void initMappedStore(String ResourceName, String CacheName) throws InitializationException
+  {
+    String storeType;
+    String storeFile;
+    String tmpValue;
+    int    storeCapacity;
+
+    storeType = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_STORE_TYPE,
+                                                       STORE_TYPE_MEMORY);
+
+    if (storeType.equalsIgnoreCase(STORE_TYPE_MEMORY))
+    {
+      return;
+    }
+    else if (storeType.equalsIgnoreCase(STORE_TYPE_MAPPED) == false)
+    {
+      message = "Value provided for property <" + SERVICE_STORE_TYPE + "> must be <" + STORE_TYPE_MEMORY +
+                "> or <" + STORE_TYPE_MAPPED + ">. Received value <" + storeType + ">.";
+      throw new InitializationException(message,getSymbolicName());
+    }
+
+    storeFile = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_STORE_FILE,
+                                                       "None");
+
+    if (storeFile.equals("None"))
+    {
+      message = "Property <" + SERVICE_STORE_FILE + "> not found for cache <" + getSymbolicName() + ">";
+      throw new InitializationException(message,getSymbolicName());
+    }
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_STORE_CAPACITY,
+                                                       DEFAULT_STORE_CAPACITY);
+
+    try
+    {
+      storeCapacity = Integer.parseInt(tmpValue);
+    }
+    catch (NumberFormatException ex)
+    {
+      message = "Value provided for property <" + SERVICE_STORE_CAPACITY +
+                "> was not numeric. Received value <" + tmpValue + ">.";
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+
+    try
+    {
+      mappedStore = new DuplicateCheckStore(new File(storeFile), storeCapacity, STORE_BUCKET_SECONDS);
+    }
+    catch (IOException ex)
+    {
+      message = "Could not open duplicate check store <" + storeFile + "> for cache <" + getSymbolicName() + ">";
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+
+    OpenRate.getOpenRateFrameworkLog().info("Using duplicate check store <" + storeFile + "> for <" + getSymbolicName() + ">");
+  }
+
+  /**
+  * Create the bloom filter in front of the DB if it is configured.
+  *
+  * @param ResourceName The resource name we are loading for
+  * @param CacheName The cache name we are loading for
+  * @throws InitializationException
+  */
+  private void initDBFilter(String ResourceName, String CacheName) throws InitializationException
+  {
+    String tmpValue;
+    long   filterEntries;
+    double filterRate;
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_FILTER_ENTRIES,
+                                                       DEFAULT_FILTER_ENTRIES);
+
+    try
+    {
+      filterEntries = Long.parseLong(tmpValue);
+    }
+    catch (NumberFormatException ex)
+    {
+      message = "Value provided for property <" + SERVICE_FILTER_ENTRIES +
+                "> was not numeric. Received value <" + tmpValue + ">.";
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+
+    if (filterEntries <= 0)
+    {
+      return;
+    }
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_FILTER_RATE,
+                                                       DEFAULT_FILTER_RATE);
+
+    try
+    {
+      filterRate = Double.parseDouble(tmpValue);
+    }
+    catch (NumberFormatException ex)
+    {
+      message = "Value provided for property <" + SERVICE_FILTER_RATE +
+                "> was not numeric. Received value <" + tmpValue + ">.";
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+
+    if (filterRate <= 0 || filterRate >= 1)
+    {
+      message = "Value provided for property <" + SERVICE_FILTER_RATE +
+                "> must be between 0 and 1. Received value <" + tmpValue + ">.";
+      throw new InitializationException(message,getSymbolicName());
+    }
+
+    dbFilter = new BloomFilter(filterEntries, filterRate);
+
+    OpenRate.getOpenRateFrameworkLog().info("Using bloom filter of <" + dbFilter.getBitCount() +
+            "> bits for duplicate check DB records in <" + getSymbolicName() + ">");
+  }
+
+  /**
+  * Temporary function to gather the information from the properties file. Will
+  * be removed with the introduction of the new configuration model.
+  */
+  private int initGetDBBatchSize(String ResourceName, String CacheName) throws InitializationException
+  {
+    String tmpValue;
+    int    tmpBatchSize;
+
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                       CacheName,
+                                                       SERVICE_DB_BATCH_SIZE,
+                                                       DEFAULT_DB_BATCH_SIZE);
+
+    // try to convert it
+    try
+    {
+      tmpBatchSize = Integer.parseInt(tmpValue);
+    }
+    catch (NumberFormatException ex)
+    {
+      message = "Value provided for property <" + SERVICE_DB_BATCH_SIZE +
+                "> was not numeric. Received value <" + tmpValue + ">.";
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+
+    if (tmpBatchSize < 1)
+    {
+      message = "Value provided for property <" + SERVICE_DB_BATCH_SIZE +
+                "> must be at least <1>. Received value <" + tmpValue + ">.";
+      throw new InitializationException(message,getSymbolicName());
+    }
+
+    return tmpBatchSize;
+  }
+
   /**
   * Temporary function to gather the information from the properties file. Will
   * be removed with the introduction of the new configuration model.
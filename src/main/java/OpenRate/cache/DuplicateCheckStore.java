@@ -0,0 +1,705 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An off-heap store for duplicate check keys, held in a memory mapped file so
+ * that it survives a restart without having to be reloaded from the database.
+ *
+ * The store is an open addressing hash table of 16 byte slots, each holding
+ * the 64 bit hash of the key and the time stamp of the record. Only the hash
+ * is kept, so two different keys with the same 64 bit hash are taken as
+ * duplicates of each other, which is very unlikely at the sizes we use.
+ *
+ * The records are counted in time buckets of a fixed number of seconds. Expiry
+ * moves the cutoff forward to a bucket boundary, which expires all of the
+ * records of the older buckets at once without touching the table: slots with
+ * a time stamp before the cutoff are treated as free and are reused by later
+ * inserts. When too many of the slots are in use (including expired ones) the
+ * table is compacted into a new file, and doubled in size if it is more than
+ * half full of live records.
+ *
+ * The store counts the commits which are writing to the database and the
+ * store at the moment in its header. A count left over when the store is
+ * opened means that a commit was cut short, and that the database may have
+ * records which never got into the store.
+ *
+ * The methods are synchronized, so the store can be shared by the pipeline
+ * threads.
+ */
+public class DuplicateCheckStore
+{
+  // Identifies a store file
+  private static final long MAGIC = 0x4F52445550535431L;
+
+  // The file layout version
+  private static final int VERSION = 1;
+
+  // The size of the file header and of a slot in bytes
+  private static final int HEADER_SIZE = 64;
+  private static final int SLOT_SIZE = 16;
+
+  // The positions of the header fields
+  private static final int HDR_MAGIC = 0;
+  private static final int HDR_VERSION = 8;
+  private static final int HDR_CAPACITY = 12;
+  private static final int HDR_BUCKET_SECONDS = 16;
+  private static final int HDR_CUTOFF = 24;
+  private static final int HDR_USED = 32;
+  private static final int HDR_OPEN_COMMITS = 36;
+
+  // The largest table a single mapping can hold
+  private static final int MAX_CAPACITY = 1 << 26;
+
+  // We compact when more than this fraction of the slots are used
+  private static final double MAX_LOAD = 0.75;
+
+  // The file we are stored in
+  private final File storeFile;
+
+  // The open file and its mapping
+  private RandomAccessFile storeAccess;
+  private MappedByteBuffer table;
+
+  // The number of slots, always a power of 2
+  private int capacity;
+
+  // The number of slots which are not empty, including expired ones
+  private int usedSlots;
+
+  // Records with a time stamp before this have expired
+  private long cutoff;
+
+  // The number of commits which have not finished
+  private int openCommits;
+
+  // The width of the time buckets in seconds
+  private final long bucketSeconds;
+
+  // The number of live records in each bucket
+  private final TreeMap<Long, int[]> bucketCounts = new TreeMap<>();
+
+  // The number of live records
+  private int liveCount = 0;
+
+ /**
+  * Opens the store in the given file, creating it if it does not exist. An
+  * existing file keeps the capacity and bucket width it was created with.
+  *
+  * @param storeFile The file to keep the store in
+  * @param initialCapacity The number of records we expect to store
+  * @param bucketSeconds The width of the time buckets for the expiry
+  * @throws IOException if the file cannot be created, mapped or is not a store
+  */
+  public DuplicateCheckStore(File storeFile, int initialCapacity, long bucketSeconds) throws IOException
+  {
+    this.storeFile = storeFile;
+
+    if (storeFile.exists() && storeFile.length() > 0)
+    {
+      openTable(storeFile);
+      this.bucketSeconds = table.getLong(HDR_BUCKET_SECONDS);
+      recountBuckets();
+    }
+    else
+    {
+      if (bucketSeconds <= 0)
+      {
+        throw new IllegalArgumentException("Bucket width must be positive");
+      }
+
+      this.bucketSeconds = bucketSeconds;
+      createTable(storeFile, tableSizeFor(initialCapacity), 0);
+    }
+  }
+
+ /**
+  * See if the store has never had any records, for example because it has
+  * just been created and still needs to be loaded.
+  *
+  * @return true if the store has no records
+  */
+  public synchronized boolean isEmpty()
+  {
+    return (usedSlots == 0);
+  }
+
+ /**
+  * Mark the start of a commit, before its records are written to the
+  * database. The mark is written to the disk before we return.
+  */
+  public synchronized void startCommit()
+  {
+    openCommits++;
+    table.putInt(HDR_OPEN_COMMITS, openCommits);
+    table.force();
+  }
+
+ /**
+  * Mark the end of a commit, after its records have been written to the
+  * database and to the store.
+  */
+  public synchronized void endCommit()
+  {
+    if (openCommits > 0)
+    {
+      openCommits--;
+      table.putInt(HDR_OPEN_COMMITS, openCommits);
+      table.force();
+    }
+  }
+
+ /**
+  * See if a commit was started and never finished, so that the store may be
+  * missing records which are in the database.
+  *
+  * @return true if a commit is open
+  */
+  public synchronized boolean hasOpenCommits()
+  {
+    return (openCommits > 0);
+  }
+
+ /**
+  * Forget the open commits, once the store has been brought up to date with
+  * the database.
+  */
+  public synchronized void clearOpenCommits()
+  {
+    openCommits = 0;
+    table.putInt(HDR_OPEN_COMMITS, openCommits);
+    table.force();
+  }
+
+ /**
+  * Check if a key is in the store and has not expired.
+  *
+  * @param key The record key
+  * @return true if the key is present
+  */
+  public synchronized boolean contains(String key)
+  {
+    long hash = hash(key);
+    int mask = capacity - 1;
+    int slot = (int) hash & mask;
+
+    while (true)
+    {
+      long slotHash = table.getLong(slotOffset(slot));
+
+      if (slotHash == 0)
+      {
+        return false;
+      }
+
+      if (slotHash == hash && table.getLong(slotOffset(slot) + 8) >= cutoff)
+      {
+        return true;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+ /**
+  * Add a key to the store, unless it is already present. Records older than
+  * the cutoff are not stored.
+  *
+  * @param key The record key
+  * @param timeStamp The time stamp of the record in seconds
+  * @return true if the key was added, false if it was present or too old
+  * @throws IOException if the table had to be compacted and that failed
+  */
+  public synchronized boolean put(String key, long timeStamp) throws IOException
+  {
+    if (timeStamp < cutoff)
+    {
+      return false;
+    }
+
+    long hash = hash(key);
+    int mask = capacity - 1;
+    int slot = (int) hash & mask;
+    int freeSlot = -1;
+
+    while (true)
+    {
+      long slotHash = table.getLong(slotOffset(slot));
+
+      if (slotHash == 0)
+      {
+        break;
+      }
+
+      if (table.getLong(slotOffset(slot) + 8) < cutoff)
+      {
+        // expired, we can reuse it, but the key might still be further on
+        if (freeSlot < 0)
+        {
+          freeSlot = slot;
+        }
+      }
+      else if (slotHash == hash)
+      {
+        return false;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    if (freeSlot < 0)
+    {
+      freeSlot = slot;
+      usedSlots++;
+      table.putInt(HDR_USED, usedSlots);
+    }
+
+    table.putLong(slotOffset(freeSlot) + 8, timeStamp);
+    table.putLong(slotOffset(freeSlot), hash);
+    countRecord(timeStamp);
+
+    if (usedSlots > capacity * MAX_LOAD)
+    {
+      compact();
+    }
+
+    return true;
+  }
+
+ /**
+  * Expire all of the records older than the given time. The cutoff is
+  * rounded down to the start of its bucket, so that whole buckets expire. This
+  * does not touch the table.
+  *
+  * @param expiryTime The time stamp in seconds before which records expire
+  * @return The number of records expired
+  */
+  public synchronized int expire(long expiryTime)
+  {
+    long newCutoff = bucketOf(expiryTime) * bucketSeconds;
+    int expired = 0;
+
+    if (newCutoff > cutoff)
+    {
+      cutoff = newCutoff;
+      table.putLong(HDR_CUTOFF, cutoff);
+
+      // drop the counts of the buckets before the cutoff
+      Iterator<Map.Entry<Long, int[]>> bucketIter = bucketCounts.headMap(cutoff / bucketSeconds).entrySet().iterator();
+      while (bucketIter.hasNext())
+      {
+        expired += bucketIter.next().getValue()[0];
+        bucketIter.remove();
+      }
+
+      liveCount -= expired;
+    }
+
+    return expired;
+  }
+
+ /**
+  * Get the hashes of the live records that the next call to expire with the
+  * same time will expire. This scans the whole table, so it is only meant for
+  * handing the records over to another tier before a purge.
+  *
+  * @param expiryTime The time stamp in seconds before which records expire
+  * @return The hashes of the records that would expire
+  */
+  public synchronized long[] expiringHashes(long expiryTime)
+  {
+    long newCutoff = bucketOf(expiryTime) * bucketSeconds;
+    int expiring = 0;
+
+    if (newCutoff <= cutoff)
+    {
+      return new long[0];
+    }
+
+    // we know how many there are from the buckets
+    for (int[] count : bucketCounts.headMap(newCutoff / bucketSeconds).values())
+    {
+      expiring += count[0];
+    }
+
+    long[] hashes = new long[expiring];
+    int found = 0;
+    for (int i = 0 ; i < capacity && found < expiring ; i++)
+    {
+      long slotHash = table.getLong(slotOffset(i));
+      long timeStamp = table.getLong(slotOffset(i) + 8);
+
+      if (slotHash != 0 && timeStamp >= cutoff && timeStamp < newCutoff)
+      {
+        hashes[found++] = slotHash;
+      }
+    }
+
+    return hashes;
+  }
+
+ /**
+  * Get the number of records which have not expired.
+  *
+  * @return The live record count
+  */
+  public synchronized int size()
+  {
+    return liveCount;
+  }
+
+ /**
+  * Get the number of slots in the table.
+  *
+  * @return The table capacity
+  */
+  public synchronized int getCapacity()
+  {
+    return capacity;
+  }
+
+ /**
+  * Write the table to the disk.
+  */
+  public synchronized void force()
+  {
+    table.force();
+  }
+
+ /**
+  * Write the table to the disk and close the file.
+  *
+  * @throws IOException
+  */
+  public synchronized void close() throws IOException
+  {
+    if (storeAccess != null)
+    {
+      table.force();
+      unmap(table);
+      table = null;
+      storeAccess.close();
+      storeAccess = null;
+    }
+  }
+
+  // -----------------------------------------------------------------------------
+  // ------------------------- Start of table functions --------------------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * Copy the live records into a new table, dropping the expired ones, and
+  * replace the file with it.
+  */
+  private void compact() throws IOException
+  {
+    int newCapacity = capacity;
+    if (liveCount > capacity / 2)
+    {
+      if (capacity >= MAX_CAPACITY)
+      {
+        throw new IOException("Duplicate check store <" + storeFile + "> is full at <" + capacity + "> slots");
+      }
+      newCapacity = capacity * 2;
+    }
+
+    MappedByteBuffer oldTable = table;
+    int oldCapacity = capacity;
+    RandomAccessFile oldAccess = storeAccess;
+
+    File tmpFile = new File(storeFile.getPath() + ".tmp");
+    createTable(tmpFile, newCapacity, cutoff);
+
+    int mask = newCapacity - 1;
+    for (int i = 0 ; i < oldCapacity ; i++)
+    {
+      long slotHash = oldTable.getLong(slotOffset(i));
+      long timeStamp = oldTable.getLong(slotOffset(i) + 8);
+
+      if (slotHash != 0 && timeStamp >= cutoff)
+      {
+        int slot = (int) slotHash & mask;
+        while (table.getLong(slotOffset(slot)) != 0)
+        {
+          slot = (slot + 1) & mask;
+        }
+        table.putLong(slotOffset(slot) + 8, timeStamp);
+        table.putLong(slotOffset(slot), slotHash);
+        usedSlots++;
+      }
+    }
+    table.putInt(HDR_USED, usedSlots);
+    table.force();
+
+    // release both files, a mapped file cannot be replaced on all platforms
+    unmap(oldTable);
+    oldAccess.close();
+    unmap(table);
+    table = null;
+    storeAccess.close();
+
+    // replace the old file with the new one in one step, so that a crash
+    // leaves either the old or the new store
+    Files.move(tmpFile.toPath(), storeFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    openTable(storeFile);
+  }
+
+ /**
+  * Create a new empty table file and map it.
+  */
+  private void createTable(File file, int newCapacity, long newCutoff) throws IOException
+  {
+    if (file.exists() && file.delete() == false)
+    {
+      throw new IOException("Could not replace file <" + file + ">");
+    }
+
+    storeAccess = new RandomAccessFile(file, "rw");
+    long fileSize = HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+    storeAccess.setLength(fileSize);
+    table = storeAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+    capacity = newCapacity;
+    cutoff = newCutoff;
+    usedSlots = 0;
+
+    table.putLong(HDR_MAGIC, MAGIC);
+    table.putInt(HDR_VERSION, VERSION);
+    table.putInt(HDR_CAPACITY, capacity);
+    table.putLong(HDR_BUCKET_SECONDS, bucketSeconds);
+    table.putLong(HDR_CUTOFF, cutoff);
+    table.putInt(HDR_USED, usedSlots);
+    table.putInt(HDR_OPEN_COMMITS, openCommits);
+  }
+
+ /**
+  * Map an existing table file and read its header.
+  */
+  private void openTable(File file) throws IOException
+  {
+    storeAccess = new RandomAccessFile(file, "rw");
+
+    try
+    {
+      if (storeAccess.length() < HEADER_SIZE)
+      {
+        throw new IOException("File <" + file + "> is not a duplicate check store");
+      }
+
+      table = storeAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, storeAccess.length());
+
+      if (table.getLong(HDR_MAGIC) != MAGIC || table.getInt(HDR_VERSION) != VERSION)
+      {
+        throw new IOException("File <" + file + "> is not a duplicate check store");
+      }
+
+      capacity = table.getInt(HDR_CAPACITY);
+      cutoff = table.getLong(HDR_CUTOFF);
+      usedSlots = table.getInt(HDR_USED);
+      openCommits = table.getInt(HDR_OPEN_COMMITS);
+
+      if (storeAccess.length() != HEADER_SIZE + (long) capacity * SLOT_SIZE)
+      {
+        throw new IOException("Duplicate check store <" + file + "> is truncated");
+      }
+    }
+    catch (IOException ex)
+    {
+      storeAccess.close();
+      throw ex;
+    }
+  }
+
+ /**
+  * Rebuild the bucket counts from the table after opening it.
+  */
+  private void recountBuckets()
+  {
+    for (int i = 0 ; i < capacity ; i++)
+    {
+      long timeStamp = table.getLong(slotOffset(i) + 8);
+
+      if (table.getLong(slotOffset(i)) != 0 && timeStamp >= cutoff)
+      {
+        countRecord(timeStamp);
+      }
+    }
+  }
+
+  private void countRecord(long timeStamp)
+  {
+    Long bucket = bucketOf(timeStamp);
+    int[] count = bucketCounts.get(bucket);
+    if (count == null)
+    {
+      count = new int[1];
+      bucketCounts.put(bucket, count);
+    }
+    count[0]++;
+    liveCount++;
+  }
+
+  private long bucketOf(long timeStamp)
+  {
+    // round down, also for time stamps before the epoch
+    if (timeStamp >= 0)
+    {
+      return timeStamp / bucketSeconds;
+    }
+    else
+    {
+      return -((bucketSeconds - 1 - timeStamp) / bucketSeconds);
+    }
+  }
+
+  /**
+  * Release the memory mapping of a table now, rather than when the buffer is
+  * garbage collected. The buffer must not be used afterwards. If the JVM does
+  * not let us do this, the mapping is released by the garbage collector.
+  */
+  private static void unmap(MappedByteBuffer buffer)
+  {
+    try
+    {
+      // Java 9 and later
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+    }
+    catch (NoSuchMethodException ex)
+    {
+      // Java 8 and earlier
+      try
+      {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null)
+        {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+      catch (ReflectiveOperationException | RuntimeException ex2)
+      {
+        // left to the garbage collector
+      }
+    }
+    catch (ReflectiveOperationException | RuntimeException ex)
+    {
+      // left to the garbage collector
+    }
+  }
+
+  private static int slotOffset(int slot)
+  {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+ /**
+  * Get the smallest power of 2 table size which holds the given number of
+  * records at half load.
+  */
+  private static int tableSizeFor(int records)
+  {
+    int size = 16;
+    while (size < records * 2L && size < MAX_CAPACITY)
+    {
+      size <<= 1;
+    }
+    return size;
+  }
+
+ /**
+  * A 64 bit FNV-1a hash of the key with a final mix, never 0 because 0 marks
+  * an empty slot.
+  *
+  * @param key The key to hash
+  * @return The hash
+  */
+  static long hash(String key)
+  {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0 ; i < key.length() ; i++)
+    {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+
+    // spread the bits, so that the low bits are good for the slot number
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+
+    return (h == 0) ? 1 : h;
+  }
+}
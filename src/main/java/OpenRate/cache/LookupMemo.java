@@ -0,0 +1,322 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded memo of lookup results, used by the matching caches to avoid
+ * repeating the full search for keys that they have seen recently. Each group
+ * has its own set of least recently used maps, striped by key hash so that
+ * concurrent lookups rarely contend.
+ *
+ * The memo holds results computed from the cache data, so it must be
+ * invalidated whenever the data changes. Invalidation swaps in an empty memo
+ * in one step. A lookup takes the generation of the memo before it reads the
+ * cache data, and stores its result against that generation, so a result
+ * computed from the old data is dropped with the old memo instead of being
+ * served after the reload.
+ *
+ * @param <K> The lookup key type
+ * @param <V> The result type. Null results cannot be stored, so callers must
+ * use a marker value for "no match".
+ */
+public class LookupMemo<K, V>
+{
+  // The number of stripes per group
+  private static final int STRIPES = 16;
+
+  // The maximum number of entries in each stripe
+  private final int stripeCapacity;
+
+  // The memo for each group
+  private volatile ConcurrentHashMap<String, List<MemoStripe<K, V>>> groups = new ConcurrentHashMap<>();
+
+  // Statistics
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+ /**
+  * A single LRU stripe.
+  */
+  private static class MemoStripe<K, V> extends LinkedHashMap<K, V>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+    private final AtomicLong evictions;
+
+    MemoStripe(int capacity, AtomicLong evictions)
+    {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+      this.evictions = evictions;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+    {
+      if (size() > capacity)
+      {
+        evictions.incrementAndGet();
+        return true;
+      }
+
+      return false;
+    }
+  }
+
+ /**
+  * Key made up of an array of strings, for caches that match on several
+  * fields. The array is not copied, so a key that is going to be stored
+  * must be created with a copy of the caller's array.
+  */
+  public static final class ArrayKey
+  {
+    private final String[] fields;
+    private final int hash;
+
+   /**
+    * Create a key over the fields.
+    *
+    * @param fields The fields of the key
+    */
+    public ArrayKey(String[] fields)
+    {
+      this.fields = fields;
+      this.hash = Arrays.hashCode(fields);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+      return (other instanceof ArrayKey) &&
+             (((ArrayKey) other).hash == hash) &&
+             Arrays.equals(((ArrayKey) other).fields, fields);
+    }
+  }
+
+ /**
+  * Create a memo holding up to the given number of results per group.
+  *
+  * @param groupCapacity The maximum number of results per group
+  */
+  public LookupMemo(int groupCapacity)
+  {
+    stripeCapacity = Math.max(1, (groupCapacity + STRIPES - 1) / STRIPES);
+  }
+
+ /**
+  * Get the stripe for the key in the group, creating the group if needed.
+  */
+  private MemoStripe<K, V> getStripe(ConcurrentHashMap<String, List<MemoStripe<K, V>>> tmpGroups, String group, K key)
+  {
+    List<MemoStripe<K, V>> stripes = tmpGroups.get(group);
+
+    if (stripes == null)
+    {
+      stripes = new ArrayList<>(STRIPES);
+      for (int i = 0 ; i < STRIPES ; i++)
+      {
+        stripes.add(new MemoStripe<K, V>(stripeCapacity, evictions));
+      }
+
+      List<MemoStripe<K, V>> existing = tmpGroups.putIfAbsent(group, stripes);
+      if (existing != null)
+      {
+        stripes = existing;
+      }
+    }
+
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return stripes.get(hash & (STRIPES - 1));
+  }
+
+ /**
+  * Get the memorised result for the key in the group.
+  *
+  * @param group The group
+  * @param key The key
+  * @return The result, or null if we do not have one
+  */
+  public V get(String group, K key)
+  {
+    MemoStripe<K, V> stripe = getStripe(groups, group, key);
+    V value;
+
+    synchronized (stripe)
+    {
+      value = stripe.get(key);
+    }
+
+    if (value == null)
+    {
+      misses.incrementAndGet();
+    }
+    else
+    {
+      hits.incrementAndGet();
+    }
+
+    return value;
+  }
+
+ /**
+  * Get the current generation of the memo. This must be taken before the
+  * cache data is read for a lookup, and passed to put with the result.
+  *
+  * @return The generation
+  */
+  public Object getGeneration()
+  {
+    return groups;
+  }
+
+ /**
+  * Store the result for the key in the group. The result is dropped if the
+  * memo has been invalidated since the generation was taken.
+  *
+  * @param group The group
+  * @param key The key
+  * @param value The result
+  * @param generation The generation taken before the lookup started
+  */
+  public void put(String group, K key, V value, Object generation)
+  {
+    ConcurrentHashMap<String, List<MemoStripe<K, V>>> tmpGroups = groups;
+
+    if (generation != tmpGroups)
+    {
+      // computed from data that has been replaced since
+      return;
+    }
+
+    // if we are invalidated now, the result goes with the old memo
+    MemoStripe<K, V> stripe = getStripe(tmpGroups, group, key);
+
+    synchronized (stripe)
+    {
+      stripe.put(key, value);
+    }
+  }
+
+ /**
+  * Drop all of the memorised results, for example because the cache data has
+  * been reloaded.
+  */
+  public void invalidate()
+  {
+    groups = new ConcurrentHashMap<>();
+  }
+
+ /**
+  * Get the number of results held.
+  *
+  * @return The number of results
+  */
+  public long size()
+  {
+    long size = 0;
+
+    for (List<MemoStripe<K, V>> stripes : groups.values())
+    {
+      for (MemoStripe<K, V> stripe : stripes)
+      {
+        synchronized (stripe)
+        {
+          size += stripe.size();
+        }
+      }
+    }
+
+    return size;
+  }
+
+ /**
+  * Get the statistics of the memo, as hits:misses:evictions:size.
+  *
+  * @return The statistics
+  */
+  public String getStats()
+  {
+    return hits.get() + ":" + misses.get() + ":" + evictions.get() + ":" + size();
+  }
+
+ /**
+  * Reset the statistics of the memo.
+  */
+  public void resetStats()
+  {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+  }
+}
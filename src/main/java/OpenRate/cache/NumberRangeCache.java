@@ -69,6 +69,8 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -88,8 +90,13 @@ import java.util.Iterator;
  *  [- Result field 2] - more results (optional)
  *  [- Result field n] - more results (optional)
  *
- * "Range From" must always be less than or equal to "Range To". Overlapping
- * ranges in a group are not allowed.
+ * "Range From" must always be less than or equal to "Range To". The same
+ * range may be defined more than once for different validity periods, but
+ * not for overlapping ones. Where ranges overlap, the valid range with the
+ * lowest "Range From" is returned.
+ *
+ * The ranges are indexed when the loading is complete, so a lookup takes
+ * O(log n) for a group of n (non overlapping) ranges.
  *
  * Loading from a file:
  * --------------------
@@ -107,28 +114,184 @@ import java.util.Iterator;
 public class NumberRangeCache
      extends AbstractSyncLoaderCache
 {
-  // This is the management structure which allows us to order the ranges
-  private class RangeItem
+  // This is the management structure which holds a single range
+  private static class RangeItem
   {
     long RangeFrom;
     long RangeTo;
     long ValidityFrom;
     long ValidityTo;
-    RangeItem nextRange;
     ArrayList<String> Results;
   }
 
+ /**
+  * The ranges of a group. During loading the ranges are simply collected, and
+  * the index is built in one go when the loading is complete (or on the first
+  * lookup after a change). The index is a set of arrays sorted by "RangeFrom",
+  * read as an implicit balanced binary tree in which each node also holds the
+  * highest "RangeTo" of its subtree, so that a search only descends into the
+  * parts of the tree that can contain the number.
+  */
+  private class RangeGroup
+  {
+    // The ranges as loaded
+    ArrayList<RangeItem> items = new ArrayList<>();
+
+    // Set when the index is up to date with the items
+    volatile boolean indexed = false;
+
+    // The index arrays, in "RangeFrom" order
+    long[] rangeFrom;
+    long[] rangeTo;
+    long[] maxRangeTo;
+    long[] validityFrom;
+    long[] validityTo;
+    ArrayList<ArrayList<String>> results;
+
+   /**
+    * Build the index from the loaded items.
+    *
+    * @param Group The name of the group, for error messages
+    * @throws InitializationException If two entries overlap completely
+    */
+    synchronized void buildIndex(String Group) throws InitializationException
+    {
+      if (indexed)
+      {
+        return;
+      }
+
+      ArrayList<RangeItem> sorted = new ArrayList<>(items);
+
+      // stable, so entries with the same start keep their loading order
+      Collections.sort(sorted, new Comparator<RangeItem>()
+      {
+        @Override
+        public int compare(RangeItem a, RangeItem b)
+        {
+          return Long.compare(a.RangeFrom, b.RangeFrom);
+        }
+      });
+
+      int size = sorted.size();
+      long[] newRangeFrom = new long[size];
+      long[] newRangeTo = new long[size];
+      long[] newValidityFrom = new long[size];
+      long[] newValidityTo = new long[size];
+      ArrayList<ArrayList<String>> newResults = new ArrayList<>(size);
+
+      for (int i = 0 ; i < size ; i++)
+      {
+        RangeItem item = sorted.get(i);
+        newRangeFrom[i] = item.RangeFrom;
+        newRangeTo[i] = item.RangeTo;
+        newValidityFrom[i] = item.ValidityFrom;
+        newValidityTo[i] = item.ValidityTo;
+        newResults.add(item.Results);
+
+        // the same range may only be repeated for different validity periods
+        for (int j = i - 1 ; (j >= 0) && (newRangeFrom[j] == item.RangeFrom) ; j--)
+        {
+          if ((newRangeTo[j] == item.RangeTo) &&
+              (newValidityFrom[j] < item.ValidityTo) &&
+              (item.ValidityFrom < newValidityTo[j]))
+          {
+            message = "Range From <" + item.RangeFrom +
+                    "> to <" + item.RangeTo + "> overlaps with another range in group <" +
+                    Group + ">";
+            throw new InitializationException(message,getSymbolicName());
+          }
+        }
+      }
+
+      rangeFrom = newRangeFrom;
+      rangeTo = newRangeTo;
+      validityFrom = newValidityFrom;
+      validityTo = newValidityTo;
+      results = newResults;
+      maxRangeTo = new long[size];
+      buildMax(0, size);
+      indexed = true;
+    }
+
+   /**
+    * Fill in the highest "RangeTo" of the subtree [lo, hi), held at its
+    * middle node.
+    *
+    * @return The highest "RangeTo" of the subtree
+    */
+    private long buildMax(int lo, int hi)
+    {
+      if (lo >= hi)
+      {
+        return Long.MIN_VALUE;
+      }
+
+      int mid = (lo + hi) >>> 1;
+      long max = Math.max(rangeTo[mid], Math.max(buildMax(lo, mid), buildMax(mid + 1, hi)));
+      maxRangeTo[mid] = max;
+
+      return max;
+    }
+
+   /**
+    * Find the first entry (in "RangeFrom" order) in the subtree [lo, hi) that
+    * contains the value and is valid at the date.
+    *
+    * @return The index of the entry, or -1 if there is none
+    */
+    int find(int lo, int hi, long value, long UTCDate)
+    {
+      if (lo >= hi)
+      {
+        return -1;
+      }
+
+      int mid = (lo + hi) >>> 1;
+
+      // nothing in this subtree reaches up to the value
+      if (maxRangeTo[mid] < value)
+      {
+        return -1;
+      }
+
+      int found = find(lo, mid, value, UTCDate);
+      if (found >= 0)
+      {
+        return found;
+      }
+
+      // everything from here on starts after the value
+      if (rangeFrom[mid] > value)
+      {
+        return -1;
+      }
+
+      if ((rangeTo[mid] >= value) &&
+          (validityFrom[mid] <= UTCDate) && (validityTo[mid] > UTCDate))
+      {
+        return mid;
+      }
+
+      return find(mid + 1, hi, value, UTCDate);
+    }
+  }
+
   /**
    * This stores the index to all the groups. Groups are used to subdivide the
    * entries in the cache in order that we do not need to search through all
    * the global possibilities to find ours. We only have to search through the
    * group of similar entries.
    */
-  private HashMap<String, RangeItem> GroupCache;
+  private HashMap<String, RangeGroup> GroupCache;
+
+  // The time taken to build the indexes in the last load, in ms
+  private long indexBuildTime = 0;
 
   // List of Services that this Client supports
   private final static String SERVICE_OBJECT_COUNT = "ObjectCount";
   private final static String SERVICE_GROUP_COUNT = "GroupCount";
+  private final static String SERVICE_BUILD_TIME = "IndexBuildTime";
 
   /**
    * The default return when there is no match
@@ -152,8 +315,10 @@ public class NumberRangeCache
 // -----------------------------------------------------------------------------
 
  /**
-  * Add an object into the Object Cache, creating a chain of values to search,
-  * ordered by "RangeFrom".
+  * Add an object into the Object Cache. The entries are collected and indexed
+  * by "RangeFrom" when the loading is complete, so adding is a constant time
+  * operation.
+  *
   * @param Group The group to add the entry to
   * @param ValidityFrom The start of the validity of the range
   * @param ValidityTo The end of the validity of the range
@@ -165,9 +330,8 @@ public class NumberRangeCache
   public void addEntry(String Group, long RangeFrom, long RangeTo, long ValidityFrom, long ValidityTo, ArrayList<String> Results)
           throws InitializationException
   {
-    RangeItem tmpRangeItem;
+    RangeGroup tmpRangeGroup;
     RangeItem newRangeItem;
-    RangeItem tmpRangeNextNode;
 
     // these hold the modified values
     long tmpRF = RangeFrom;
@@ -214,106 +378,105 @@ public class NumberRangeCache
     }
 
     // Get/Create the group cache
-    if (GroupCache.containsKey(Group))
+    tmpRangeGroup = GroupCache.get(Group);
+
+    if (tmpRangeGroup == null)
     {
-      tmpRangeItem = GroupCache.get(Group);
+      tmpRangeGroup = new RangeGroup();
+      GroupCache.put(Group, tmpRangeGroup);
+    }
 
-      // now run down the ranges until we find the right position
-      while (tmpRangeItem != null)
-      {
-        tmpRangeNextNode = tmpRangeItem.nextRange;
+    newRangeItem = new RangeItem();
+    newRangeItem.RangeFrom = tmpRF;
+    newRangeItem.RangeTo = tmpRT;
+    newRangeItem.ValidityFrom = tmpVF;
+    newRangeItem.ValidityTo = tmpVT;
+    newRangeItem.Results = Results;
 
-        if ((tmpRF > tmpRangeItem.RangeFrom) &
-            (tmpRangeNextNode == null))
-        {
-          // insert at the tail of the list if we are able
-          newRangeItem = new RangeItem();
-          newRangeItem.RangeFrom = tmpRF;
-          newRangeItem.RangeTo = tmpRT;
-          newRangeItem.ValidityFrom = tmpVF;
-          newRangeItem.ValidityTo = tmpVT;
-          newRangeItem.Results = Results;
-
-          // Link to the previous range
-          tmpRangeItem.nextRange = newRangeItem;
-
-          // done
-          return;
-        }
-        else if (tmpRF < tmpRangeItem.RangeFrom)
-        {
-          // insert at the head/middle of the list
-          newRangeItem = new RangeItem();
-          newRangeItem.RangeFrom = tmpRF;
-          newRangeItem.RangeTo = tmpRT;
-          newRangeItem.ValidityFrom = tmpVF;
-          newRangeItem.ValidityTo = tmpVT;
-          newRangeItem.Results = Results;
-          newRangeItem.nextRange = tmpRangeItem.nextRange;
-          tmpRangeItem.nextRange = newRangeItem;
-
-          // done
-          return;
-        }
+    synchronized (tmpRangeGroup)
+    {
+      tmpRangeGroup.items.add(newRangeItem);
+      tmpRangeGroup.indexed = false;
+    }
+  }
 
-        // Move down the map
-        tmpRangeItem = tmpRangeItem.nextRange;
-      }
+ /**
+  * Build the indexes for all the groups. This is called at the end of the
+  * loading, and reports overlapping entries as an error.
+  *
+  * @throws InitializationException
+  */
+  public void buildIndexes() throws InitializationException
+  {
+    long startTime = System.currentTimeMillis();
 
-      // If we get here, we could not insert the period
-      message = "Range From <" + RangeFrom +
-              "> to <" + RangeTo + "> overlaps with another range in group <" +
-              Group + ">";
-      throw new InitializationException(message,getSymbolicName());
-    }
-    else
+    for (String tmpGroup : GroupCache.keySet())
     {
-      // create the new group and initialise
-      tmpRangeItem = new RangeItem();
-      tmpRangeItem.RangeFrom = tmpRF;
-      tmpRangeItem.RangeTo = tmpRT;
-      tmpRangeItem.ValidityFrom = tmpVF;
-      tmpRangeItem.ValidityTo = tmpVT;
-      tmpRangeItem.Results = Results;
-      GroupCache.put(Group, tmpRangeItem);
+      GroupCache.get(tmpGroup).buildIndex(tmpGroup);
     }
+
+    indexBuildTime = System.currentTimeMillis() - startTime;
+
+    OpenRate.getOpenRateFrameworkLog().info(
+          "Number Range indexes built for <" + getSymbolicName() + "> in <" +
+          indexBuildTime + "> ms");
   }
 
  /**
-  * Get an object from the Cache, using the number and the date
+  * Find the entry for the number and the date in the group.
   *
   * @param Group The group to search
   * @param rangeSearchValue The value to search for
   * @param UTCDate The date to search for
-  * @return The return results
+  * @return The results of the entry, or null if there was none
   */
-  public ArrayList<String> getEntryWithChildData(String Group, long rangeSearchValue, long UTCDate)
+  private ArrayList<String> findEntry(String Group, long rangeSearchValue, long UTCDate)
   {
-    RangeItem tmpRangeItem;
-    ArrayList<String> Value = null;
+    RangeGroup tmpRangeGroup;
 
     // Get the Group
-    tmpRangeItem  = GroupCache.get(Group);
+    tmpRangeGroup  = GroupCache.get(Group);
+
+    if (tmpRangeGroup == null)
+    {
+      return null;
+    }
 
-    // search for the right object
-    while (tmpRangeItem != null)
+    // entries were added after the loading, so catch up with the index
+    if (tmpRangeGroup.indexed == false)
     {
-      if ((tmpRangeItem.RangeFrom <= rangeSearchValue) &
-          (tmpRangeItem.RangeTo >= rangeSearchValue))
+      try
       {
-        // we have found a candidate - see if it is valid at the date
-        if ((tmpRangeItem.ValidityFrom <= UTCDate) && (tmpRangeItem.ValidityTo > UTCDate))
-        {
-          // found it!
-          return tmpRangeItem.Results;
-        }
+        tmpRangeGroup.buildIndex(Group);
+      }
+      catch (InitializationException ie)
+      {
+        OpenRate.getOpenRateFrameworkLog().error(ie.getMessage());
+        return null;
       }
+    }
+
+    int found = tmpRangeGroup.find(0, tmpRangeGroup.rangeFrom.length, rangeSearchValue, UTCDate);
 
-      // Move down the map
-      tmpRangeItem = tmpRangeItem.nextRange;
+    if (found < 0)
+    {
+      return null;
     }
 
-    return Value;
+    return tmpRangeGroup.results.get(found);
+  }
+
+ /**
+  * Get an object from the Cache, using the number and the date
+  *
+  * @param Group The group to search
+  * @param rangeSearchValue The value to search for
+  * @param UTCDate The date to search for
+  * @return The return results
+  */
+  public ArrayList<String> getEntryWithChildData(String Group, long rangeSearchValue, long UTCDate)
+  {
+    return findEntry(Group, rangeSearchValue, UTCDate);
   }
 
  /**
@@ -326,30 +489,14 @@ public class NumberRangeCache
   */
   public String getEntry(String Group, long rangeSearchValue, long UTCDate)
   {
-    RangeItem tmpRangeItem;
+    ArrayList<String> Value = findEntry(Group, rangeSearchValue, UTCDate);
 
-    // Get the Group
-    tmpRangeItem  = GroupCache.get(Group);
-
-    // search for the right object
-    while (tmpRangeItem != null)
+    if (Value == null)
     {
-      if ((tmpRangeItem.RangeFrom <= rangeSearchValue) &
-          (tmpRangeItem.RangeTo >= rangeSearchValue))
-      {
-        // we have found a candidate - see if it is valid at the date
-        if ((tmpRangeItem.ValidityFrom <= UTCDate) && (tmpRangeItem.ValidityTo > UTCDate))
-        {
-          // found it!
-          return tmpRangeItem.Results.get(0);
-        }
-      }
-
-      // Move down the map
-      tmpRangeItem = tmpRangeItem.nextRange;
+      return NO_RANGE_MATCH;
     }
 
-    return NO_RANGE_MATCH;
+    return Value.get(0);
   }
 
  /**
@@ -483,6 +630,9 @@ public class NumberRangeCache
       }
     }
 
+    // index what we have loaded
+    buildIndexes();
+
     OpenRate.getOpenRateFrameworkLog().info(
           "Number Range Data Loading completed. <" + ObjectLinesLoaded +
           "> configuration lines loaded from <" +
@@ -583,6 +733,9 @@ public class NumberRangeCache
       throw new InitializationException(message,ex,getSymbolicName());
     }
 
+    // index what we have loaded
+    buildIndexes();
+
     OpenRate.getOpenRateFrameworkLog().info(
           "Number Range Data Loading completed. <" + ObjectLinesLoaded +
           "> configuration lines loaded from <" +
@@ -621,6 +774,7 @@ public class NumberRangeCache
     //Register services for this Client
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_OBJECT_COUNT, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_GROUP_COUNT, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_BUILD_TIME, ClientManager.PARAM_DYNAMIC);
   }
 
  /**
@@ -642,7 +796,6 @@ public class NumberRangeCache
     Iterator<String>    GroupIter;
     String      tmpGroupName;
     int         Objects = 0;
-    RangeItem   tmpRangeItem;
 
     // Return the number of objects in the cache
     if (Command.equalsIgnoreCase(SERVICE_GROUP_COUNT))
@@ -661,17 +814,18 @@ public class NumberRangeCache
         tmpGroupName = GroupIter.next();
 
         // Count the elements in the group
-        tmpRangeItem = GroupCache.get(tmpGroupName);
-        while (tmpRangeItem != null)
-        {
-          Objects++;
-          tmpRangeItem = tmpRangeItem.nextRange;
-        }
+        Objects += GroupCache.get(tmpGroupName).items.size();
       }
 
       return Integer.toString(Objects);
     }
 
+    // Return the time taken to build the indexes in the last load
+    if (Command.equalsIgnoreCase(SERVICE_BUILD_TIME))
+    {
+      return Long.toString(indexBuildTime);
+    }
+
     if (ResultCode == 0)
     {
       OpenRate.getOpenRateFrameworkLog().debug(LogUtil.LogECICacheCommand(getSymbolicName(), Command, Parameter));
@@ -64,14 +64,51 @@ import OpenRate.logging.LogUtil;
 import OpenRate.transaction.ISyncPoint;
 import OpenRate.utils.PropertyUtils;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is a cache implementing a persistent in-memory hash table, which must
  * be saved on shutdown or periodically.
+ *
+ * By default ("PersistenceMode" = "Snapshot") the whole table is written to
+ * the data file on shutdown. With "PersistenceMode" = "Journal" the keys
+ * changed are remembered, and their current values are appended to a journal
+ * file ("DataFile" with ".journal" added). The keys changed with
+ * putTransObject(), updateTransObject() and deleteTransObject() are written
+ * when commitTransaction() is called for their transaction, and forgotten by
+ * rollbackTransaction(). Other changes are written with the next commit, or
+ * by commitJournal(). The cost of a commit is therefore proportional to the
+ * changes, not to the size of the table. When the journal grows beyond
+ * "JournalCompactSize" bytes, it is compacted into a new snapshot of the table
+ * on a background thread. On start up the snapshot is loaded and the journal
+ * replayed on top of it. Each commit is closed by a marker, and a commit that
+ * was not completely written is ignored on replay.
+ *
+ * In journal mode the objects are written with writeJournalObject(), which
+ * uses Java serialization. Caches holding objects that are not serializable
+ * must override writeJournalObject() and readJournalObject().
+ *
+ * The objects are held in a ShardedObjectStore with "Shards" shards (default
+ * 16), so the cache can be used by multi-threaded plug-ins. Objects can be
+ * given a time to live, by default "ObjectTimeToLive" seconds (0, the default,
+ * means forever), counted from the last put. Every "SweepInterval" seconds a
+ * background thread removes the objects that have expired and queues them.
+ * The processing collects them with pollExpiredObject() so that they can be
+ * handled, for example to close abandoned call assembly contexts. The expiry
+ * time of each object is saved with it, so it survives a restart. Objects
+ * which are changed in place should be changed with updateObject().
  */
 public class PersistentIndexedObject
   extends AbstractCache
@@ -87,12 +124,12 @@ public class PersistentIndexedObject
   protected String CachePersistenceName = null;
 
  /**
-  * This stores all the cacheable data. The DigitTree class is
-  * a way of storing numeric values for a best match search.
-  * The cost of a search is linear with the number of digits
-  * stored in the search tree
+  * This stores all the cacheable data, split into shards that are locked
+  * separately. This was a HashMap, and has the same get, put, remove,
+  * containsKey, keySet, size and clear methods. Code that needs a Map should
+  * use getObjectMap().
   */
-  protected HashMap<String, Object> ObjectList;
+  protected ShardedObjectStore ObjectList;
 
   // List of Services that this Client supports
   private final static String SERVICE_PERSIST = "Persist";
@@ -101,6 +138,28 @@ public class PersistentIndexedObject
   private final static String SERVICE_DUMP_OBJECTS = "DumpObjects";
   private final static String SERVICE_INITIAL_HASH_SIZE = "InitialHashSize";
   private final static String DEFAULT_INITIAL_HASH_SIZE = "50000";
+  private final static String SERVICE_PERSISTENCE_MODE = "PersistenceMode";
+  private final static String SERVICE_JOURNAL_COMPACT_SIZE = "JournalCompactSize";
+  private final static String DEFAULT_JOURNAL_COMPACT_SIZE = "67108864";
+  private final static String SERVICE_SHARDS = "Shards";
+  private final static String DEFAULT_SHARDS = "16";
+  private final static String SERVICE_TIME_TO_LIVE = "ObjectTimeToLive";
+  private final static String SERVICE_SWEEP_INTERVAL = "SweepInterval";
+  private final static String DEFAULT_SWEEP_INTERVAL = "60";
+  private final static String SERVICE_EXPIRED_COUNT = "ExpiredCount";
+
+  // The persistence modes
+  private final static String PERSISTENCE_MODE_SNAPSHOT = "Snapshot";
+  private final static String PERSISTENCE_MODE_JOURNAL = "Journal";
+
+  // The journal record types
+  private final static byte JOURNAL_PUT = 1;
+  private final static byte JOURNAL_DELETE = 2;
+  private final static byte JOURNAL_CLEAR = 3;
+  private final static byte JOURNAL_COMMIT = 4;
+
+  // Marks the start of a snapshot written in journal mode
+  private final static int JOURNAL_SNAPSHOT_MAGIC = 0x4F524A53;
 
   // Variables for managing the sync points
   private int SyncStatus = 0;
@@ -108,6 +167,51 @@ public class PersistentIndexedObject
   // Variable holding the initial hash size
   private int initialHashSize;
 
+  // If we are persisting with the journal
+  private boolean journalMode = false;
+
+  // The size of the journal at which we compact it
+  private long journalCompactSize;
+
+  // The keys changed outside of a transaction since the last journal commit
+  private final Set<String> dirtyKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // The keys changed by each open transaction
+  private final ConcurrentHashMap<Integer, Set<String>> transDirtyKeys = new ConcurrentHashMap<>();
+
+  // Set if the table was purged since the last journal commit
+  private volatile boolean pendingClear = false;
+
+  // The open journal
+  private FileOutputStream journalFile = null;
+  private DataOutputStream journalOut = null;
+
+  // Serialises the journal writing and the compaction
+  private final Object journalLock = new Object();
+  private final Object compactionLock = new Object();
+
+  // Set while a background compaction is running
+  private final AtomicBoolean compactionRunning = new AtomicBoolean(false);
+
+  // The number of shards of the store
+  private int shardCount;
+
+  // The seconds between sweeps for expired objects
+  private long sweepInterval;
+
+  // Set once the sweeper has been started
+  private final AtomicBoolean sweeperStarted = new AtomicBoolean(false);
+
+  // The background threads, stopped when the cache is saved on shutdown
+  private volatile Thread sweeperThread = null;
+  private volatile Thread compactionThread = null;
+
+  // The objects removed by the sweeper, waiting to be collected
+  private final ConcurrentLinkedQueue<Map.Entry<String, Object>> expiredObjects = new ConcurrentLinkedQueue<>();
+
+  // The number of objects that have expired since start up
+  private final AtomicLong expiredCount = new AtomicLong(0);
+
 // -----------------------------------------------------------------------------
 // ------------------ Start of inherited Plug In functions ---------------------
 // -----------------------------------------------------------------------------
@@ -200,11 +304,102 @@ public class PersistentIndexedObject
       throw new InitializationException(message,getSymbolicName());
     }
     
+    // Get the persistence mode
+    String tmpMode = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                                     CacheName,
+                                                                     SERVICE_PERSISTENCE_MODE,
+                                                                     PERSISTENCE_MODE_SNAPSHOT);
+
+    if (tmpMode.equalsIgnoreCase(PERSISTENCE_MODE_JOURNAL))
+    {
+      journalMode = true;
+    }
+    else if (!tmpMode.equalsIgnoreCase(PERSISTENCE_MODE_SNAPSHOT))
+    {
+      message = "<" + SERVICE_PERSISTENCE_MODE + "> for cache <" + getSymbolicName() +
+                "> must be <" + PERSISTENCE_MODE_SNAPSHOT + "> or <" + PERSISTENCE_MODE_JOURNAL +
+                ">, found <" + tmpMode + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message,getSymbolicName());
+    }
+
+    String tmpCompactSize = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                                     CacheName,
+                                                                     SERVICE_JOURNAL_COMPACT_SIZE,
+                                                                     DEFAULT_JOURNAL_COMPACT_SIZE);
+
+    try
+    {
+      journalCompactSize = Long.parseLong(tmpCompactSize);
+    }
+    catch (NumberFormatException ex)
+    {
+      message = "Expected a numeric value for <"+SERVICE_JOURNAL_COMPACT_SIZE+"> in cache <" + getSymbolicName() + ">, but got <" + tmpCompactSize +">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message,getSymbolicName());
+    }
+
+    shardCount = getIntegerProperty(ResourceName, CacheName, SERVICE_SHARDS, DEFAULT_SHARDS);
+    long timeToLive = getIntegerProperty(ResourceName, CacheName, SERVICE_TIME_TO_LIVE, "0");
+    sweepInterval = getIntegerProperty(ResourceName, CacheName, SERVICE_SWEEP_INTERVAL, DEFAULT_SWEEP_INTERVAL);
+
+    if (shardCount < 1 || timeToLive < 0 || sweepInterval < 1)
+    {
+      message = "<" + SERVICE_SHARDS + "> and <" + SERVICE_SWEEP_INTERVAL + "> must be positive and <" +
+                SERVICE_TIME_TO_LIVE + "> must not be negative in cache <" + getSymbolicName() + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message,getSymbolicName());
+    }
+
     // Initialise the object cache
-    ObjectList = new HashMap<>(initialHashSize);
+    ObjectList = new ShardedObjectStore(shardCount, initialHashSize);
+    ObjectList.setDefaultTimeToLive(timeToLive * 1000);
 
     // perform the actual loading
-    loadCacheObjectsFromFile();
+    if (journalMode)
+    {
+      recoverFromJournal();
+    }
+    else
+    {
+      loadCacheObjectsFromFile();
+    }
+
+    // objects restored with their own time to live need sweeping as well
+    if (timeToLive > 0 || ObjectList.hasExpiringEntries())
+    {
+      startSweeper();
+    }
+  }
+
+ /**
+  * Get a numeric property of the cache.
+  *
+  * @param ResourceName The resource name we are loading for
+  * @param CacheName The cache name we are loading for
+  * @param propertyName The name of the property
+  * @param defaultValue The value if the property is not set
+  * @return The value
+  * @throws InitializationException
+  */
+  private int getIntegerProperty(String ResourceName, String CacheName, String propertyName, String defaultValue)
+          throws InitializationException
+  {
+    String tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+                                                                     CacheName,
+                                                                     propertyName,
+                                                                     defaultValue);
+
+    try
+    {
+      return Integer.parseInt(tmpValue);
+    }
+    catch (NumberFormatException ex)
+    {
+      message = "Expected a numeric value for <" + propertyName + "> in cache <" + getSymbolicName() + ">, but got <" + tmpValue +">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message,getSymbolicName());
+    }
   }
 
  /**
@@ -217,27 +412,163 @@ public class PersistentIndexedObject
   public void putObject(String RecordKey, Object ObjectToCache)
   {
     ObjectList.put(RecordKey, ObjectToCache);
+
+    if (journalMode)
+    {
+      dirtyKeys.add(RecordKey);
+    }
   }
 
  /**
-  * getObject retrieves the given object from the cache, as defined by the
-  * key
+  * putObject inserts the given object into the cache with its own time to
+  * live, overwriting any previous version.
   *
   * @param RecordKey the hash key to use
-  * @return Object the object stored in the hash, otherwise null if none found
+  * @param ObjectToCache the object to store in the hash
+  * @param timeToLive the seconds after which the object expires, 0 for never
   */
-  public Object getObject(String RecordKey)
+  public void putObject(String RecordKey, Object ObjectToCache, long timeToLive)
   {
-    if (ObjectList.containsKey(RecordKey))
+    ObjectList.put(RecordKey, ObjectToCache, timeToLive * 1000);
+
+    if (journalMode)
     {
-      return ObjectList.get(RecordKey);
+      dirtyKeys.add(RecordKey);
     }
-    else
+
+    if (timeToLive > 0)
+    {
+      startSweeper();
+    }
+  }
+
+ /**
+  * updateObject changes the object of a key atomically, so that two threads
+  * updating the same object, or the expiry of the object, cannot come in
+  * between each other. The object gets the default time to live again.
+  *
+  * @param RecordKey the hash key to use
+  * @param updater works out the new object from the current one, which is
+  * null if there is none. Returning null removes the key.
+  * @return the new object, or null if the key was removed
+  */
+  public Object updateObject(String RecordKey, ShardedObjectStore.Updater updater)
+  {
+    Object newObject = ObjectList.update(RecordKey, updater);
+
+    if (journalMode)
+    {
+      dirtyKeys.add(RecordKey);
+    }
+
+    return newObject;
+  }
+
+ /**
+  * Get the cacheable data as a map, backed by the store, for the derived
+  * classes written when the data was held in a HashMap. As with ObjectList,
+  * changes made through the map are not written to the journal.
+  *
+  * @return The map view of the data
+  */
+  protected Map<String, Object> getObjectMap()
+  {
+    return ObjectList.asMap();
+  }
+
+ /**
+  * putTransObject inserts the given object into the cache as a change of a
+  * transaction. In journal mode it is written on the commit of the
+  * transaction.
+  *
+  * @param RecordKey the hash key to use
+  * @param ObjectToCache the object to store in the hash
+  * @param transactionNumber the transaction making the change
+  */
+  public void putTransObject(String RecordKey, Object ObjectToCache, int transactionNumber)
+  {
+    ObjectList.put(RecordKey, ObjectToCache);
+    markTransKey(RecordKey, transactionNumber);
+  }
+
+ /**
+  * updateTransObject changes the object of a key atomically, as updateObject()
+  * does, as a change of a transaction.
+  *
+  * @param RecordKey the hash key to use
+  * @param updater works out the new object from the current one
+  * @param transactionNumber the transaction making the change
+  * @return the new object, or null if the key was removed
+  */
+  public Object updateTransObject(String RecordKey, ShardedObjectStore.Updater updater, int transactionNumber)
+  {
+    Object newObject = ObjectList.update(RecordKey, updater);
+    markTransKey(RecordKey, transactionNumber);
+
+    return newObject;
+  }
+
+ /**
+  * deleteTransObject removes the given object from the cache as a change of a
+  * transaction.
+  *
+  * @param RecordKey the hash key to remove
+  * @param transactionNumber the transaction making the change
+  */
+  public void deleteTransObject(String RecordKey, int transactionNumber)
+  {
+    if (ObjectList.remove(RecordKey) != null)
+    {
+      markTransKey(RecordKey, transactionNumber);
+    }
+  }
+
+ /**
+  * Remember that a transaction changed a key, so that it is journaled when
+  * the transaction commits. Transaction 0 means that no transaction is open,
+  * and the key is written with the next commit.
+  *
+  * @param RecordKey the key that was changed
+  * @param transactionNumber the transaction that changed it
+  */
+  private void markTransKey(String RecordKey, int transactionNumber)
+  {
+    if (journalMode)
     {
-      return null;
+      if (transactionNumber == 0)
+      {
+        dirtyKeys.add(RecordKey);
+        return;
+      }
+
+      Set<String> tmpKeys = transDirtyKeys.get(transactionNumber);
+
+      if (tmpKeys == null)
+      {
+        Set<String> newKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        tmpKeys = transDirtyKeys.putIfAbsent(transactionNumber, newKeys);
+        if (tmpKeys == null)
+        {
+          tmpKeys = newKeys;
+        }
+      }
+
+      tmpKeys.add(RecordKey);
     }
   }
 
+ /**
+  * getObject retrieves the given object from the cache, as defined by the
+  * key
+  *
+  * @param RecordKey the hash key to use
+  * @return Object the object stored in the hash, otherwise null if none found
+  */
+  public Object getObject(String RecordKey)
+  {
+    return ObjectList.get(RecordKey);
+  }
+
  /**
   * deleteObject removes the given object from the cache, as defined by the
   * key
@@ -246,9 +577,9 @@ public class PersistentIndexedObject
   */
   public void deleteObject(String RecordKey)
   {
-    if (ObjectList.containsKey(RecordKey))
+    if (ObjectList.remove(RecordKey) != null && journalMode)
     {
-      ObjectList.remove(RecordKey);
+      dirtyKeys.add(RecordKey);
     }
   }
 
@@ -264,7 +595,8 @@ public class PersistentIndexedObject
   }
 
  /**
-  * Get the key set for the cache, used for iterating over it
+  * Get the key set for the cache, used for iterating over it. This is a copy,
+  * so later changes to the cache are not reflected in it.
   *
   * @returns the object key set
   */
@@ -320,7 +652,56 @@ public class PersistentIndexedObject
   @Override
   public void saveCache() throws ProcessingException
   {
-    saveCacheObjectsToFile();
+    // nothing may expire while we save
+    stopThread(sweeperThread, true);
+    sweeperThread = null;
+    sweeperStarted.set(false);
+
+    if (journalMode)
+    {
+      // write what is pending, let a running compaction finish, then compact
+      // so we start from a clean snapshot
+      commitJournal();
+      stopThread(compactionThread, false);
+      compactionThread = null;
+      compactJournal();
+      closeJournal();
+    }
+    else
+    {
+      saveCacheObjectsToFile();
+    }
+  }
+
+ /**
+  * Stop a background thread and wait for it to end.
+  *
+  * @param thread The thread, or null if it was not started
+  * @param interrupt true to interrupt the thread, false to let it finish
+  * @throws ProcessingException
+  */
+  private void stopThread(Thread thread, boolean interrupt) throws ProcessingException
+  {
+    if (thread == null)
+    {
+      return;
+    }
+
+    if (interrupt)
+    {
+      thread.interrupt();
+    }
+
+    try
+    {
+      thread.join();
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      message = "Interrupted waiting for thread <" + thread.getName() + "> of cache <" + getSymbolicName() + ">";
+      throw new ProcessingException(message,ex,getSymbolicName());
+    }
   }
 
   // -----------------------------------------------------------------------------
@@ -347,6 +728,8 @@ public class PersistentIndexedObject
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_OBJECT_COUNT, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_INITIAL_HASH_SIZE, ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_DUMP_OBJECTS, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_EXPIRED_COUNT, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_TIME_TO_LIVE, ClientManager.PARAM_DYNAMIC);
   }
 
  /**
@@ -372,6 +755,11 @@ public class PersistentIndexedObject
         // Clear the persistence object
         ObjectList.clear();
 
+        if (journalMode)
+        {
+          pendingClear = true;
+        }
+
         ResultCode = 0;
       }
       else if (Parameter.isEmpty())
@@ -390,6 +778,44 @@ public class PersistentIndexedObject
       return Integer.toString(ObjectList.size());
     }
 
+    // Return the number of objects that have expired
+    if (Command.equalsIgnoreCase(SERVICE_EXPIRED_COUNT))
+    {
+      return Long.toString(expiredCount.get());
+    }
+
+    // Get/Set the default time to live
+    if (Command.equalsIgnoreCase(SERVICE_TIME_TO_LIVE))
+    {
+      if (Parameter.isEmpty())
+      {
+        return Long.toString(ObjectList.getDefaultTimeToLive() / 1000);
+      }
+
+      try
+      {
+        long tmpTimeToLive = Long.parseLong(Parameter);
+
+        if (tmpTimeToLive < 0)
+        {
+          return "Time to live must not be negative";
+        }
+
+        ObjectList.setDefaultTimeToLive(tmpTimeToLive * 1000);
+
+        if (tmpTimeToLive > 0)
+        {
+          startSweeper();
+        }
+
+        ResultCode = 0;
+      }
+      catch (NumberFormatException ex)
+      {
+        return "Could not interpret <" + Parameter + "> as a number of seconds";
+      }
+    }
+
     // Return the number initial size of the hash
     if (Command.equalsIgnoreCase(SERVICE_INITIAL_HASH_SIZE))
     {
@@ -471,11 +897,15 @@ public class PersistentIndexedObject
       try
       {
         objOutStream = new ObjectOutputStream(outStream);
-        if (ObjectList instanceof Serializable)
+        HashMap<String, Object> tmpObjects = new HashMap<>();
+        HashMap<String, Long> tmpExpiries = new HashMap<>();
+        ObjectList.copyTo(tmpObjects, tmpExpiries);
+        if (tmpObjects instanceof Serializable)
         {
-          objOutStream.writeObject(ObjectList);
+          objOutStream.writeObject(tmpObjects);
           objOutStream.flush();
           objOutStream.close();
+          saveExpiriesToFile(tmpExpiries);
         }
         else
         {
@@ -529,7 +959,8 @@ public class PersistentIndexedObject
 
     try
     {
-      ObjectList = (HashMap<String, Object>)objStream.readObject();
+      ObjectList.putAll((HashMap<String, Object>)objStream.readObject());
+      loadExpiriesFromFile();
     }
     catch (IOException ex)
     {
@@ -544,6 +975,715 @@ public class PersistentIndexedObject
     }
  }
 
+ /**
+  * Save the expiry times of the objects that have them next to the data file,
+  * so that the format of the data file stays the same. The file is removed
+  * if no object expires.
+  *
+  * @param expiries The keys and UTC expiry times in ms
+  * @throws IOException
+  */
+  private void saveExpiriesToFile(HashMap<String, Long> expiries) throws IOException
+  {
+    File expiryFile = new File(CachePersistenceName + ".expiry");
+
+    if (expiries.isEmpty())
+    {
+      Files.deleteIfExists(expiryFile.toPath());
+      return;
+    }
+
+    try (ObjectOutputStream objOutStream = new ObjectOutputStream(new FileOutputStream(expiryFile)))
+    {
+      objOutStream.writeObject(expiries);
+    }
+  }
+
+ /**
+  * Give the loaded objects the expiry times saved by saveExpiriesToFile().
+  *
+  * @throws IOException
+  * @throws ClassNotFoundException
+  */
+  @SuppressWarnings("unchecked")
+  private void loadExpiriesFromFile() throws IOException, ClassNotFoundException
+  {
+    File expiryFile = new File(CachePersistenceName + ".expiry");
+
+    if (!expiryFile.exists())
+    {
+      return;
+    }
+
+    try (ObjectInputStream objStream = new ObjectInputStream(new FileInputStream(expiryFile)))
+    {
+      HashMap<String, Long> expiries = (HashMap<String, Long>) objStream.readObject();
+
+      for (Map.Entry<String, Long> tmpExpiry : expiries.entrySet())
+      {
+        Object tmpObject = ObjectList.get(tmpExpiry.getKey());
+
+        if (tmpObject != null)
+        {
+          ObjectList.putWithExpiry(tmpExpiry.getKey(), tmpObject, tmpExpiry.getValue());
+        }
+      }
+    }
+  }
+
+ // -----------------------------------------------------------------------------
+ // ------------------------ Start of expiry functions --------------------------
+ // -----------------------------------------------------------------------------
+
+ /**
+  * Get the next object that has expired, removing it from the queue of
+  * expired objects. Each expired object is returned once.
+  *
+  * @return The key and the object, or null if there are none waiting
+  */
+  public Map.Entry<String, Object> pollExpiredObject()
+  {
+    return expiredObjects.poll();
+  }
+
+ /**
+  * Get the number of objects that have expired since start up.
+  *
+  * @return The number of expired objects
+  */
+  public long getExpiredCount()
+  {
+    return expiredCount.get();
+  }
+
+ /**
+  * Remove the objects that have passed their time to live and queue them for
+  * collection. In journal mode the removal is journaled on the next commit.
+  *
+  * @return The number of objects removed
+  */
+  public int sweepExpiredObjects()
+  {
+    ArrayList<Map.Entry<String, Object>> tmpExpired = new ArrayList<>();
+    int count = ObjectList.removeExpired(System.currentTimeMillis(), tmpExpired);
+
+    for (Map.Entry<String, Object> tmpEntry : tmpExpired)
+    {
+      if (journalMode)
+      {
+        dirtyKeys.add(tmpEntry.getKey());
+      }
+
+      expiredObjects.add(tmpEntry);
+    }
+
+    expiredCount.addAndGet(count);
+
+    return count;
+  }
+
+ /**
+  * Start the background thread that sweeps for expired objects, unless it is
+  * already running.
+  */
+  private void startSweeper()
+  {
+    if (!sweeperStarted.compareAndSet(false, true))
+    {
+      return;
+    }
+
+    Thread tmpThread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        while (true)
+        {
+          try
+          {
+            Thread.sleep(sweepInterval * 1000);
+          }
+          catch (InterruptedException ex)
+          {
+            return;
+          }
+
+          int count = sweepExpiredObjects();
+
+          if (count > 0)
+          {
+            OpenRate.getOpenRateFrameworkLog().debug("Expired <" + count + "> objects in cache <" + getSymbolicName() + ">");
+          }
+        }
+      }
+    }, getSymbolicName() + "-Sweeper");
+
+    tmpThread.setDaemon(true);
+    sweeperThread = tmpThread;
+    tmpThread.start();
+  }
+
+ // -----------------------------------------------------------------------------
+ // ------------------------ Start of journal functions -------------------------
+ // -----------------------------------------------------------------------------
+
+ /**
+  * Append the changes made outside of a transaction since the last commit to
+  * the journal. Does nothing if we are not in journal mode.
+  *
+  * @throws ProcessingException
+  */
+  public void commitJournal() throws ProcessingException
+  {
+    writeJournalCommit(null);
+  }
+
+ /**
+  * Append the changes made by a transaction to the journal, together with the
+  * changes made outside of a transaction, such as expiries. Called when the
+  * transaction commits. Does nothing if we are not in journal mode.
+  *
+  * @param transactionNumber The transaction to commit
+  * @throws ProcessingException
+  */
+  public void commitTransaction(int transactionNumber) throws ProcessingException
+  {
+    writeJournalCommit(transDirtyKeys.remove(transactionNumber));
+  }
+
+ /**
+  * Forget the changes made by a transaction, so that they are not journaled.
+  * The objects in the cache are not put back, so the plug-in rolling back
+  * must undo its own changes if it needs to.
+  *
+  * @param transactionNumber The transaction to roll back
+  */
+  public void rollbackTransaction(int transactionNumber)
+  {
+    transDirtyKeys.remove(transactionNumber);
+  }
+
+ /**
+  * Write a commit to the journal. Only the current value of each changed key
+  * is written, so a key changed many times is written once. The cost is
+  * therefore proportional to the changes, not to the size of the table.
+  *
+  * @param transKeys The keys changed by the transaction, or null
+  * @throws ProcessingException
+  */
+  private void writeJournalCommit(Set<String> transKeys) throws ProcessingException
+  {
+    if (!journalMode)
+    {
+      return;
+    }
+
+    boolean compact;
+
+    synchronized (journalLock)
+    {
+      if (!pendingClear && dirtyKeys.isEmpty() && (transKeys == null || transKeys.isEmpty()))
+      {
+        return;
+      }
+
+      if (journalOut == null)
+      {
+        message = "Journal of cache <" + getSymbolicName() + "> is closed";
+        throw new ProcessingException(message,getSymbolicName());
+      }
+
+      try
+      {
+        if (pendingClear)
+        {
+          pendingClear = false;
+          journalOut.writeByte(JOURNAL_CLEAR);
+        }
+
+        if (transKeys != null)
+        {
+          writeJournalKeys(transKeys);
+        }
+        writeJournalKeys(dirtyKeys);
+
+        journalOut.writeByte(JOURNAL_COMMIT);
+        journalOut.flush();
+        journalFile.getFD().sync();
+
+        compact = (journalFile.getChannel().position() >= journalCompactSize);
+      }
+      catch (IOException ex)
+      {
+        message = "Error writing journal for cache <" + getSymbolicName() + ">";
+        throw new ProcessingException(message,ex,getSymbolicName());
+      }
+    }
+
+    if (compact)
+    {
+      startCompaction();
+    }
+  }
+
+ /**
+  * Write the current values of a set of keys to the journal, emptying the set.
+  *
+  * @param keys The keys to write
+  * @throws IOException
+  */
+  private void writeJournalKeys(Set<String> keys) throws IOException
+  {
+    Iterator<String> keyIter = keys.iterator();
+
+    while (keyIter.hasNext())
+    {
+      String tmpKey = keyIter.next();
+      keyIter.remove();
+
+      Object tmpObject = ObjectList.get(tmpKey);
+      if (tmpObject == null)
+      {
+        journalOut.writeByte(JOURNAL_DELETE);
+        journalOut.writeUTF(tmpKey);
+      }
+      else
+      {
+        // a put between the two reads marks the key dirty again, so the
+        // next commit writes it again
+        journalOut.writeByte(JOURNAL_PUT);
+        journalOut.writeUTF(tmpKey);
+        journalOut.writeLong(ObjectList.getExpiry(tmpKey));
+        writeJournalObject(journalOut, tmpObject);
+      }
+    }
+  }
+
+ /**
+  * Close the journal, without writing the changes that have not been
+  * committed. Does nothing if we are not in journal mode or the journal is
+  * already closed. Changes cannot be committed after this.
+  *
+  * @throws ProcessingException
+  */
+  public void closeJournal() throws ProcessingException
+  {
+    synchronized (journalLock)
+    {
+      if (journalOut == null)
+      {
+        return;
+      }
+
+      try
+      {
+        journalOut.close();
+      }
+      catch (IOException ex)
+      {
+        message = "Error closing journal for cache <" + getSymbolicName() + ">";
+        throw new ProcessingException(message,ex,getSymbolicName());
+      }
+      finally
+      {
+        journalOut = null;
+        journalFile = null;
+      }
+    }
+  }
+
+ /**
+  * Write an object to the journal or the journal snapshot. By default this
+  * uses Java serialization. Override this together with readJournalObject()
+  * for objects that are not serializable or can be written more compactly.
+  *
+  * @param out The stream to write to
+  * @param object The object to write
+  * @throws IOException
+  */
+  protected void writeJournalObject(DataOutputStream out, Object object) throws IOException
+  {
+    ByteArrayOutputStream tmpBytes = new ByteArrayOutputStream();
+
+    try (ObjectOutputStream objOut = new ObjectOutputStream(tmpBytes))
+    {
+      objOut.writeObject(object);
+    }
+
+    out.writeInt(tmpBytes.size());
+    tmpBytes.writeTo(out);
+  }
+
+ /**
+  * Read an object written by writeJournalObject().
+  *
+  * @param in The stream to read from
+  * @return The object
+  * @throws IOException
+  */
+  protected Object readJournalObject(DataInputStream in) throws IOException
+  {
+    byte[] tmpBytes = new byte[in.readInt()];
+    in.readFully(tmpBytes);
+
+    try (ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(tmpBytes)))
+    {
+      return objIn.readObject();
+    }
+    catch (ClassNotFoundException ex)
+    {
+      throw new IOException("Class not found reading journal object", ex);
+    }
+  }
+
+ /**
+  * Load the snapshot and replay the journals on top of it. A journal left
+  * over from a compaction that did not complete is replayed first. The
+  * recovered table is then written as a new snapshot, and we start with an
+  * empty journal.
+  *
+  * @throws InitializationException
+  */
+  private void recoverFromJournal() throws InitializationException
+  {
+    File snapshotFile = new File(CachePersistenceName);
+    File oldJournal = getJournalFile(".old");
+    File journal = getJournalFile("");
+
+    try
+    {
+      if (snapshotFile.exists())
+      {
+        readJournalSnapshot(snapshotFile);
+      }
+
+      int commits = replayJournal(oldJournal) + replayJournal(journal);
+
+      OpenRate.getOpenRateFrameworkLog().info("Recovered <" + ObjectList.size() +
+            "> objects for cache <" + getSymbolicName() + ">, replaying <" + commits + "> journal commits");
+
+      // start again from a clean snapshot
+      HashMap<String, Object> tmpObjects = new HashMap<>();
+      HashMap<String, Long> tmpExpiries = new HashMap<>();
+      ObjectList.copyTo(tmpObjects, tmpExpiries);
+      writeJournalSnapshot(tmpObjects, tmpExpiries);
+      Files.deleteIfExists(oldJournal.toPath());
+      Files.deleteIfExists(journal.toPath());
+
+      openJournal();
+    }
+    catch (IOException ex)
+    {
+      message = "Error recovering persistent objects for cache <" + getSymbolicName() + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message,ex,getSymbolicName());
+    }
+  }
+
+ /**
+  * Replay the complete commits of a journal into the table.
+  *
+  * @param journal The journal file
+  * @return The number of commits replayed
+  * @throws IOException
+  */
+  private int replayJournal(File journal) throws IOException
+  {
+    if (!journal.exists())
+    {
+      return 0;
+    }
+
+    int commits = 0;
+    ArrayList<String> batchKeys = new ArrayList<>();
+    ArrayList<Object> batchObjects = new ArrayList<>();
+    ArrayList<Long> batchExpiries = new ArrayList<>();
+    boolean batchClear = false;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal))))
+    {
+      while (true)
+      {
+        byte recordType;
+
+        try
+        {
+          recordType = in.readByte();
+        }
+        catch (EOFException ex)
+        {
+          break;
+        }
+
+        if (recordType == JOURNAL_PUT)
+        {
+          batchKeys.add(in.readUTF());
+          batchExpiries.add(in.readLong());
+          batchObjects.add(readJournalObject(in));
+        }
+        else if (recordType == JOURNAL_DELETE)
+        {
+          batchKeys.add(in.readUTF());
+          batchExpiries.add(0L);
+          batchObjects.add(null);
+        }
+        else if (recordType == JOURNAL_CLEAR)
+        {
+          batchKeys.clear();
+          batchObjects.clear();
+          batchExpiries.clear();
+          batchClear = true;
+        }
+        else if (recordType == JOURNAL_COMMIT)
+        {
+          // the commit is complete, apply it
+          if (batchClear)
+          {
+            ObjectList.clear();
+          }
+
+          for (int i = 0 ; i < batchKeys.size() ; i++)
+          {
+            if (batchObjects.get(i) == null)
+            {
+              ObjectList.remove(batchKeys.get(i));
+            }
+            else
+            {
+              ObjectList.putWithExpiry(batchKeys.get(i), batchObjects.get(i), batchExpiries.get(i));
+            }
+          }
+
+          batchKeys.clear();
+          batchObjects.clear();
+          batchExpiries.clear();
+          batchClear = false;
+          commits++;
+        }
+        else
+        {
+          throw new IOException("Unknown record type <" + recordType + "> in journal <" + journal + ">");
+        }
+      }
+    }
+    catch (EOFException ex)
+    {
+      // the last commit was not completely written, ignore it
+      OpenRate.getOpenRateFrameworkLog().warning("Ignoring incomplete commit at the end of journal <" + journal + ">");
+    }
+
+    return commits;
+  }
+
+ /**
+  * Start a compaction on a separate thread, unless one is running. The
+  * current journal is moved aside and a new one opened, and the snapshot is
+  * written from a copy of the table, so that processing can continue.
+  */
+  private void startCompaction()
+  {
+    if (!compactionRunning.compareAndSet(false, true))
+    {
+      return;
+    }
+
+    final HashMap<String, Object> tmpCopy = new HashMap<>();
+    final HashMap<String, Long> tmpExpiries = new HashMap<>();
+
+    try
+    {
+      synchronized (journalLock)
+      {
+        if (!rotateJournal())
+        {
+          compactionRunning.set(false);
+          return;
+        }
+
+        ObjectList.copyTo(tmpCopy, tmpExpiries);
+      }
+    }
+    catch (IOException ex)
+    {
+      OpenRate.getOpenRateFrameworkLog().error("Could not rotate journal of cache <" + getSymbolicName() + ">", ex);
+      compactionRunning.set(false);
+      return;
+    }
+
+    Thread tmpThread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          synchronized (compactionLock)
+          {
+            writeJournalSnapshot(tmpCopy, tmpExpiries);
+            Files.deleteIfExists(getJournalFile(".old").toPath());
+          }
+        }
+        catch (IOException ex)
+        {
+          OpenRate.getOpenRateFrameworkLog().error("Compaction of the journal of cache <" + getSymbolicName() + "> failed", ex);
+        }
+        finally
+        {
+          compactionRunning.set(false);
+        }
+      }
+    }, getSymbolicName() + "-Compaction");
+
+    tmpThread.setDaemon(true);
+    compactionThread = tmpThread;
+    tmpThread.start();
+  }
+
+ /**
+  * Compact the journal into the snapshot in this thread, waiting for any
+  * running compaction to finish first.
+  *
+  * @throws ProcessingException
+  */
+  private void compactJournal() throws ProcessingException
+  {
+    synchronized (compactionLock)
+    {
+      try
+      {
+        HashMap<String, Object> tmpCopy = new HashMap<>();
+        HashMap<String, Long> tmpExpiries = new HashMap<>();
+
+        synchronized (journalLock)
+        {
+          ObjectList.copyTo(tmpCopy, tmpExpiries);
+          writeJournalSnapshot(tmpCopy, tmpExpiries);
+
+          // everything is in the snapshot now
+          if (journalOut != null)
+          {
+            journalOut.close();
+          }
+          Files.deleteIfExists(getJournalFile(".old").toPath());
+          Files.deleteIfExists(getJournalFile("").toPath());
+          openJournal();
+        }
+      }
+      catch (IOException ex)
+      {
+        message = "Error compacting journal for cache <" + getSymbolicName() + ">";
+        throw new ProcessingException(message,ex,getSymbolicName());
+      }
+    }
+  }
+
+ /**
+  * Move the current journal aside for compaction and open a new one. This is
+  * not done if an older journal is still waiting to be compacted, because it
+  * would be overwritten.
+  *
+  * @return true if the journal was moved
+  * @throws IOException
+  */
+  private boolean rotateJournal() throws IOException
+  {
+    File oldJournal = getJournalFile(".old");
+
+    if (oldJournal.exists())
+    {
+      return false;
+    }
+
+    journalOut.close();
+    Files.move(getJournalFile("").toPath(), oldJournal.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    openJournal();
+
+    return true;
+  }
+
+ /**
+  * Open the journal for appending.
+  *
+  * @throws IOException
+  */
+  private void openJournal() throws IOException
+  {
+    journalFile = new FileOutputStream(getJournalFile(""), true);
+    journalOut = new DataOutputStream(new BufferedOutputStream(journalFile, 65536));
+  }
+
+ /**
+  * Get a journal file.
+  *
+  * @param suffix The suffix added to the journal name
+  * @return The file
+  */
+  private File getJournalFile(String suffix)
+  {
+    return new File(CachePersistenceName + ".journal" + suffix);
+  }
+
+ /**
+  * Write the snapshot used in journal mode. It is written to a temporary file
+  * which then replaces the old snapshot.
+  *
+  * @param objects The objects to write
+  * @param expiries The expiry times of the objects which expire
+  * @throws IOException
+  */
+  private void writeJournalSnapshot(Map<String, Object> objects, Map<String, Long> expiries) throws IOException
+  {
+    File tmpFile = new File(CachePersistenceName + ".tmp");
+
+    try (FileOutputStream tmpFileStream = new FileOutputStream(tmpFile))
+    {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpFileStream, 65536));
+
+      out.writeInt(JOURNAL_SNAPSHOT_MAGIC);
+      out.writeInt(objects.size());
+      for (Map.Entry<String, Object> tmpEntry : objects.entrySet())
+      {
+        Long tmpExpiry = expiries.get(tmpEntry.getKey());
+
+        out.writeUTF(tmpEntry.getKey());
+        out.writeLong((tmpExpiry == null) ? 0 : tmpExpiry);
+        writeJournalObject(out, tmpEntry.getValue());
+      }
+
+      out.flush();
+      tmpFileStream.getFD().sync();
+    }
+
+    Files.move(tmpFile.toPath(), new File(CachePersistenceName).toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+ /**
+  * Read the snapshot used in journal mode into the table.
+  *
+  * @param snapshotFile The snapshot file
+  * @throws IOException
+  */
+  private void readJournalSnapshot(File snapshotFile) throws IOException
+  {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 65536)))
+    {
+      if (in.readInt() != JOURNAL_SNAPSHOT_MAGIC)
+      {
+        throw new IOException("File <" + snapshotFile + "> is not a journal snapshot");
+      }
+
+      int count = in.readInt();
+      for (int i = 0 ; i < count ; i++)
+      {
+        String tmpKey = in.readUTF();
+        long tmpExpiry = in.readLong();
+        ObjectList.putWithExpiry(tmpKey, readJournalObject(in), tmpExpiry);
+      }
+    }
+  }
+
  /**
   * Dump the internal objects. The implementation class is responsible for
   * formatting the objects.
@@ -96,6 +96,9 @@ import java.util.Iterator;
  * from the query you give under "PriceModelStatement". The RUM Map will be read
  * from the query that you give under "RUMMapStatement".
  *
+ * The cache supports the "Shadow" reload mode, so that the rate plans can be
+ * reloaded while rating continues.
+ *
  * In either case, the data that is read is:
  *
  * Price Model Map ---------------
@@ -172,34 +175,34 @@ public class RUMRateCache
    * This stores all the cacheable data necessary for the definition of the rate
    * plans.
    */
-  protected HashMap<String, ArrayList<RateMapEntry>> PriceModelCache;
+  protected volatile HashMap<String, ArrayList<RateMapEntry>> PriceModelCache;
 
   /**
    * This holds the RUM map
    */
-  protected HashMap<String, ArrayList<RUMMapEntry>> RUMMapCache;
+  protected volatile HashMap<String, ArrayList<RUMMapEntry>> RUMMapCache;
 
   /**
    * these are the statements that we have to prepare to be able to get records
    * once and only once
    */
-  protected static String PriceModelDataSelectQuery;
+  protected String PriceModelDataSelectQuery;
 
   /**
    * these are the prepared statements
    */
-  protected static PreparedStatement StmtPriceModelDataSelectQuery;
+  protected PreparedStatement StmtPriceModelDataSelectQuery;
 
   /**
    * these are the statements that we have to prepare to be able to get records
    * once and only once
    */
-  protected static String RUMMapDataSelectQuery;
+  protected String RUMMapDataSelectQuery;
 
   /**
    * these are the prepared statements
    */
-  protected static PreparedStatement StmtRUMMapDataSelectQuery;
+  protected PreparedStatement StmtRUMMapDataSelectQuery;
 
   /**
    * this is the name of the file that holds the RUM Map
@@ -890,6 +893,51 @@ public class RUMRateCache
     RUMMapCache.clear();
   }
 
+  /**
+   * The price models and RUM map can be loaded in a shadow instance and
+   * swapped in.
+   *
+   * @return true
+   */
+  @Override
+  protected boolean supportsShadowReload() {
+    return true;
+  }
+
+  /**
+   * Create the maps in the shadow instance and copy the select queries to it,
+   * as it is not initialised through loadCache().
+   *
+   * @param shadowCache The instance to copy the settings to
+   */
+  @Override
+  protected void copyLoaderSettings(AbstractSyncLoaderCache shadowCache) {
+    super.copyLoaderSettings(shadowCache);
+
+    RUMRateCache tmpShadowCache = (RUMRateCache) shadowCache;
+    tmpShadowCache.PriceModelCache = new HashMap<>(Math.max(16, PriceModelCache.size()));
+    tmpShadowCache.RUMMapCache = new HashMap<>(Math.max(16, RUMMapCache.size()));
+
+    // the shadow prepares its own statements from the same queries
+    tmpShadowCache.PriceModelDataSelectQuery = PriceModelDataSelectQuery;
+    tmpShadowCache.RUMMapDataSelectQuery = RUMMapDataSelectQuery;
+  }
+
+  /**
+   * Take over the price models and RUM map loaded into the shadow instance.
+   * The price models are swapped first, so that anyone who sees the new RUM
+   * map also sees the price models it refers to.
+   *
+   * @param shadowCache The instance holding the loaded data
+   */
+  @Override
+  protected void swapCacheObjects(AbstractSyncLoaderCache shadowCache) {
+    RUMRateCache tmpShadowCache = (RUMRateCache) shadowCache;
+
+    PriceModelCache = tmpShadowCache.PriceModelCache;
+    RUMMapCache = tmpShadowCache.RUMMapCache;
+  }
+
   // -----------------------------------------------------------------------------
   // ---------------- Start of data base data layer functions --------------------
   // -----------------------------------------------------------------------------
@@ -67,9 +67,13 @@ import java.io.IOException;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -82,6 +86,19 @@ import java.util.regex.PatternSyntaxException;
  * pattern will be read from the first row of the data that is read from the
  * input source. Thereafter, all rows must have the same form, which will be
  * defined as the form factor of the data.
+ *
+ * The maps in each group are evaluated in the order they were defined, and
+ * the first match wins. To avoid evaluating every map, each group is indexed
+ * on the key field that best separates the maps: literal patterns (without
+ * any regex special characters) are looked up by hash, and numerical
+ * comparisons (=, &lt;, &gt;, &lt;=, &gt;=) by the position of the value among
+ * the comparison values. Only the maps that can match on that field are then
+ * evaluated, still in definition order.
+ *
+ * Setting the "MemoSize" property to a positive value keeps up to that many
+ * recent results per group in a LookupMemo, so that repeated lookups with the
+ * same fields do not evaluate the maps again. The memo is dropped each time
+ * the data is reloaded. The default is 0, which turns the memo off.
  */
 public class RegexMatchCache
         extends AbstractSyncLoaderCache {
@@ -98,6 +115,16 @@ public class RegexMatchCache
   private final static String SERVICE_OBJECT_COUNT = "ObjectCount";
   private final static String SERVICE_GROUP_COUNT = "GroupCount";
   private final static String SERVICE_DUMP_MAP = "DumpMap";
+  private final static String SERVICE_MEMO_SIZE = "MemoSize";
+  private final static String SERVICE_MEMO_STATS = "MemoStats";
+  private final static String SERVICE_MEMO_STATS_RESET = "MemoStatsReset";
+
+  // The memo of recent results, null if we are not using one
+  private LookupMemo<LookupMemo.ArrayKey, SearchMap> memo = null;
+  private int memoSize = 0;
+
+  // Marks a memorised "no match" result
+  private static final SearchMap NO_MATCH_MEMO = new SearchMap();
 
   /* The SearchMap is the regular map that we will have to search through. This 
    * is a single entry that is grouped into a search group. The match value is
@@ -105,7 +132,7 @@ public class RegexMatchCache
    * 
    * The 
    */
-  private class SearchMap {
+  private static class SearchMap {
 
     // Depending on the type, we do a real regex, or a comparison
     // 0 = regex
@@ -134,6 +161,523 @@ public class RegexMatchCache
   private class SearchGroup {
 
     ArrayList<SearchMap> SearchGroup;
+
+    // The decision index, or null if the group is scanned
+    volatile SearchIndex index;
+
+    // Set when the index is up to date with the maps
+    volatile boolean indexed = false;
+  }
+
+  /* The SearchIndex narrows the search maps of a group down to the candidates
+   * that can match a given input, using one key field of the group. Literal
+   * regular expressions on that field are indexed by hash, and numerical
+   * comparisons by the slot of the value between the sorted comparison
+   * values. Maps that cannot be indexed on the field are candidates for every
+   * input. The candidates are given in the order of the maps in the group, so
+   * the first candidate that matches is the same map that a full scan would
+   * find.
+   *
+   * Each map is stored only a few times, so the index stays close to linear
+   * in the size of the group: the lists are merged at lookup time.
+   */
+  private static class SearchIndex {
+
+    // The field that the index is on
+    int field;
+
+    // Literal index: the maps for each literal value, and the maps that are
+    // candidates for any value
+    HashMap<String, int[]> literalCandidates;
+    int[] otherCandidates;
+
+    // Numerical index: the sorted comparison values, and a segment tree over
+    // the slots. Slot 2k+1 is the value bounds[k], slot 2k is the values
+    // between bounds[k-1] and bounds[k]. Each map matches a range of slots,
+    // which is stored in the tree nodes that cover it, and the candidates for
+    // a slot are the maps in the nodes on the path from its leaf to the root.
+    double[] bounds;
+    int slotCount;
+    int[][] slotTree;
+
+    // The total number of slots matched by the maps, for the index cost
+    long slotCost;
+
+    /**
+     * Get the candidates for the input, or null if the input cannot be
+     * looked up in the index.
+     *
+     * @param Parameters The input fields
+     * @return The candidate map indexes in group order, or null
+     */
+    int[] getCandidates(String[] Parameters) {
+      String value = Parameters[field];
+
+      if (literalCandidates != null) {
+        int[] candidates = literalCandidates.get(value);
+
+        if (candidates == null) {
+          return otherCandidates;
+        }
+
+        return mergeCandidates(new int[][]{candidates, otherCandidates}, 2);
+      }
+
+      double numValue;
+      try {
+        numValue = Double.parseDouble(value);
+      } catch (NumberFormatException ex) {
+        // let the full scan deal with it
+        return null;
+      }
+
+      if (Double.isNaN(numValue)) {
+        return null;
+      }
+
+      int position = Arrays.binarySearch(bounds, normalise(numValue));
+      int slot;
+
+      if (position >= 0) {
+        slot = (2 * position) + 1;
+      } else {
+        slot = 2 * (-position - 1);
+      }
+
+      // collect the lists on the path from the leaf to the root
+      int[][] lists = new int[32][];
+      int listCount = 0;
+      for (int node = slot + slotCount; node > 0; node >>= 1) {
+        if (slotTree[node] != null) {
+          lists[listCount++] = slotTree[node];
+        }
+      }
+
+      return mergeCandidates(lists, listCount);
+    }
+  }
+
+  /**
+   * Merge lists of map indexes, each in group order, into one list in group
+   * order.
+   *
+   * @param lists The lists to merge
+   * @param listCount The number of lists used
+   * @return The merged list
+   */
+  private static int[] mergeCandidates(int[][] lists, int listCount) {
+    int total = 0;
+    int[] single = null;
+    int used = 0;
+
+    for (int l = 0; l < listCount; l++) {
+      if (lists[l].length > 0) {
+        total += lists[l].length;
+        single = lists[l];
+        used++;
+      }
+    }
+
+    if (used == 0) {
+      return new int[0];
+    } else if (used == 1) {
+      return single;
+    }
+
+    // a map is only in one of the lists, so we can take the lowest each time
+    int[] merged = new int[total];
+    int[] next = new int[listCount];
+
+    for (int m = 0; m < total; m++) {
+      int lowest = -1;
+
+      for (int l = 0; l < listCount; l++) {
+        if ((next[l] < lists[l].length) &&
+            ((lowest < 0) || (lists[l][next[l]] < lists[lowest][next[lowest]]))) {
+          lowest = l;
+        }
+      }
+
+      merged[m] = lists[lowest][next[lowest]++];
+    }
+
+    return merged;
+  }
+
+  // The characters that make a pattern more than a literal string
+  private static final String REGEX_META_CHARS = "\\[](){}.*+?^$|";
+
+  // Groups smaller than this are always scanned
+  private static final int MIN_INDEX_GROUP_SIZE = 4;
+
+  /**
+   * Build the search index for a group, choosing the field that narrows the
+   * candidates down the most. If no field helps, the group is scanned.
+   *
+   * @param tmpSearchGroup The group to index
+   */
+  private void buildSearchIndex(SearchGroup tmpSearchGroup) {
+    synchronized (tmpSearchGroup) {
+      if (tmpSearchGroup.indexed) {
+        return;
+      }
+
+      ArrayList<SearchMap> maps = new ArrayList<>(tmpSearchGroup.SearchGroup);
+      SearchIndex bestIndex = null;
+      double bestCost = maps.size() / 2.0;
+
+      if (maps.size() >= MIN_INDEX_GROUP_SIZE) {
+        int fieldCount = Integer.MAX_VALUE;
+        for (SearchMap tmpSearchMap : maps) {
+          fieldCount = Math.min(fieldCount, tmpSearchMap.matchType.length);
+        }
+
+        for (int field = 0; field < fieldCount; field++) {
+          SearchIndex candidate = buildLiteralIndex(maps, field);
+          if ((candidate != null) && (indexCost(candidate) < bestCost)) {
+            bestIndex = candidate;
+            bestCost = indexCost(candidate);
+          }
+
+          candidate = buildNumericIndex(maps, field);
+          if ((candidate != null) && (indexCost(candidate) < bestCost)) {
+            bestIndex = candidate;
+            bestCost = indexCost(candidate);
+          }
+        }
+      }
+
+      tmpSearchGroup.index = bestIndex;
+      tmpSearchGroup.indexed = true;
+    }
+  }
+
+  /**
+   * Build a hash index over the literal patterns of a field.
+   *
+   * @param maps The maps of the group
+   * @param field The field to index
+   * @return The index, or null if the field has no literal patterns
+   */
+  private SearchIndex buildLiteralIndex(ArrayList<SearchMap> maps, int field) {
+    HashMap<String, ArrayList<Integer>> literals = new HashMap<>();
+    ArrayList<Integer> others = new ArrayList<>();
+
+    for (int idx = 0; idx < maps.size(); idx++) {
+      SearchMap tmpSearchMap = maps.get(idx);
+      String literal = getLiteral(tmpSearchMap, field);
+
+      if (literal == null) {
+        others.add(idx);
+      } else {
+        ArrayList<Integer> mapList = literals.get(literal);
+        if (mapList == null) {
+          mapList = new ArrayList<>();
+          literals.put(literal, mapList);
+        }
+        mapList.add(idx);
+      }
+    }
+
+    if (literals.isEmpty()) {
+      return null;
+    }
+
+    SearchIndex newIndex = new SearchIndex();
+    newIndex.field = field;
+    newIndex.otherCandidates = toArray(others);
+    newIndex.literalCandidates = new HashMap<>(literals.size() * 2);
+
+    // the maps that match anything are merged in at lookup time
+    for (String literal : literals.keySet()) {
+      newIndex.literalCandidates.put(literal, toArray(literals.get(literal)));
+    }
+
+    return newIndex;
+  }
+
+  /**
+   * Build a slot index over the numerical comparisons of a field.
+   *
+   * @param maps The maps of the group
+   * @param field The field to index
+   * @return The index, or null if the field has no numerical comparisons
+   */
+  private SearchIndex buildNumericIndex(ArrayList<SearchMap> maps, int field) {
+    TreeSet<Double> boundSet = new TreeSet<>();
+
+    for (SearchMap tmpSearchMap : maps) {
+      int type = tmpSearchMap.matchType[field];
+      if ((type >= 1) && (type <= 5)) {
+        if (Double.isNaN(tmpSearchMap.matchValue[field])) {
+          // cannot be ordered
+          return null;
+        }
+        boundSet.add(normalise(tmpSearchMap.matchValue[field]));
+      }
+    }
+
+    if (boundSet.isEmpty()) {
+      return null;
+    }
+
+    SearchIndex newIndex = new SearchIndex();
+    newIndex.field = field;
+    newIndex.bounds = new double[boundSet.size()];
+    int b = 0;
+    for (Double bound : boundSet) {
+      newIndex.bounds[b++] = bound;
+    }
+
+    int slots = (2 * newIndex.bounds.length) + 1;
+    newIndex.slotCount = slots;
+
+    // add the slot range of each map to the tree nodes that cover it. As we
+    // go through the maps in order, each node list is in group order.
+    List<ArrayList<Integer>> nodeLists = new ArrayList<>(Collections.nCopies(2 * slots, (ArrayList<Integer>) null));
+
+    for (int idx = 0; idx < maps.size(); idx++) {
+      SearchMap tmpSearchMap = maps.get(idx);
+      int type = tmpSearchMap.matchType[field];
+      int first = 0;
+      int last = slots - 1;
+
+      if ((type >= 1) && (type <= 5)) {
+        int valueSlot = (2 * Arrays.binarySearch(newIndex.bounds, normalise(tmpSearchMap.matchValue[field]))) + 1;
+
+        switch (type) {
+          case 1:
+            first = valueSlot;
+            last = valueSlot;
+            break;
+          case 2:
+            first = valueSlot + 1;
+            break;
+          case 3:
+            last = valueSlot - 1;
+            break;
+          case 4:
+            first = valueSlot;
+            break;
+          case 5:
+            last = valueSlot;
+            break;
+        }
+      }
+
+      if (last >= first) {
+        newIndex.slotCost += last - first + 1;
+      }
+
+      for (int lo = first + slots, hi = last + slots + 1; lo < hi; lo >>= 1, hi >>= 1) {
+        if ((lo & 1) == 1) {
+          addToNode(nodeLists, lo++, idx);
+        }
+        if ((hi & 1) == 1) {
+          addToNode(nodeLists, --hi, idx);
+        }
+      }
+    }
+
+    newIndex.slotTree = new int[2 * slots][];
+    for (int node = 1; node < nodeLists.size(); node++) {
+      if (nodeLists.get(node) != null) {
+        newIndex.slotTree[node] = toArray(nodeLists.get(node));
+      }
+    }
+
+    return newIndex;
+  }
+
+  /**
+   * Add a map to a node of the slot tree being built.
+   *
+   * @param nodeLists The node lists
+   * @param node The node
+   * @param idx The map index
+   */
+  private static void addToNode(List<ArrayList<Integer>> nodeLists, int node, int idx) {
+    if (nodeLists.get(node) == null) {
+      nodeLists.set(node, new ArrayList<Integer>());
+    }
+
+    nodeLists.get(node).add(idx);
+  }
+
+  /**
+   * Evaluate a numerical comparison of the given type.
+   *
+   * @param type The comparison type (1-5)
+   * @param value The input value
+   * @param matchValue The value to compare against
+   * @return true if the comparison holds
+   */
+  private static boolean compareValue(int type, double value, double matchValue) {
+    switch (type) {
+      case 1:
+        return value == matchValue;
+      case 2:
+        return value > matchValue;
+      case 3:
+        return value < matchValue;
+      case 4:
+        return value >= matchValue;
+      case 5:
+        return value <= matchValue;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Fold -0.0 into 0.0, as they are equal for the comparisons but are sorted
+   * differently.
+   *
+   * @param value The value
+   * @return The normalised value
+   */
+  private static double normalise(double value) {
+    return (value == 0.0) ? 0.0 : value;
+  }
+
+  /**
+   * Get the literal string that a map matches on a field, if the field is a
+   * regular expression without any special characters.
+   *
+   * @param tmpSearchMap The map
+   * @param field The field
+   * @return The literal, or null if the field is not a literal
+   */
+  private static String getLiteral(SearchMap tmpSearchMap, int field) {
+    if (tmpSearchMap.matchType[field] != 0) {
+      return null;
+    }
+
+    String pattern = tmpSearchMap.matchPattern[field].pattern();
+
+    for (int i = 0; i < pattern.length(); i++) {
+      if (REGEX_META_CHARS.indexOf(pattern.charAt(i)) >= 0) {
+        return null;
+      }
+    }
+
+    return pattern;
+  }
+
+  /**
+   * Get the average number of candidates the index gives.
+   *
+   * @param tmpIndex The index
+   * @return The average number of candidates
+   */
+  private static double indexCost(SearchIndex tmpIndex) {
+    long total = 0;
+    int lists;
+
+    if (tmpIndex.literalCandidates != null) {
+      // each literal also gets the maps that match anything
+      for (int[] candidates : tmpIndex.literalCandidates.values()) {
+        total += candidates.length + tmpIndex.otherCandidates.length;
+      }
+      total += tmpIndex.otherCandidates.length;
+      lists = tmpIndex.literalCandidates.size() + 1;
+    } else {
+      total = tmpIndex.slotCost;
+      lists = tmpIndex.slotCount;
+    }
+
+    return (double) total / lists;
+  }
+
+  /**
+   * Convert a list of map indexes to an array.
+   *
+   * @param mapList The list
+   * @return The array
+   */
+  private static int[] toArray(ArrayList<Integer> mapList) {
+    int[] result = new int[mapList.size()];
+
+    for (int i = 0; i < result.length; i++) {
+      result[i] = mapList.get(i);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the index to use for a lookup in a group, building it if the group
+   * has changed. Returns null if the lookup has to scan the group, because the
+   * group is not indexed or the input has values the index does not handle.
+   *
+   * @param tmpSearchGroup The group to search
+   * @param Parameters The input fields
+   * @return The index, or null
+   */
+  private SearchIndex getUsableIndex(SearchGroup tmpSearchGroup, String[] Parameters) {
+    if (tmpSearchGroup.indexed == false) {
+      buildSearchIndex(tmpSearchGroup);
+    }
+
+    SearchIndex tmpIndex = tmpSearchGroup.index;
+
+    if ((tmpIndex == null) || (Parameters.length <= tmpIndex.field)) {
+      return null;
+    }
+
+    // the scan has its own handling of null values
+    for (String parameter : Parameters) {
+      if (parameter == null) {
+        return null;
+      }
+    }
+
+    return tmpIndex;
+  }
+
+  /**
+   * Check if the input holds a null value, which no map can match, and warn
+   * if it does.
+   *
+   * @param Parameters The input fields
+   * @return true if one of the fields is null
+   */
+  private boolean hasNullParameter(String[] Parameters) {
+    for (int i = 0; i < Parameters.length; i++) {
+      if (Parameters[i] == null) {
+        OpenRate.getOpenRateFrameworkLog().warning("Null value found in regex match on parameter <" + i + "> in module <" + getSymbolicName() + ">");
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Check if a map matches the input. The input must not hold null values.
+   *
+   * @param tmpSearchMap The map to check
+   * @param Parameters The input fields
+   * @return true if the map matches
+   */
+  private static boolean matchesSearchMap(SearchMap tmpSearchMap, String[] Parameters) {
+    for (int i = 0; i < Parameters.length; i++) {
+      int type = tmpSearchMap.matchType[i];
+
+      if (type == 0) {
+        if (!tmpSearchMap.matchPattern[i].matcher(Parameters[i]).matches()) {
+          return false;
+        }
+      } else if (type == 6) {
+        if (tmpSearchMap.matchPattern[i].matcher(Parameters[i]).matches()) {
+          return false;
+        }
+      } else if (!compareValue(type, Double.parseDouble(Parameters[i]), tmpSearchMap.matchValue[i])) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
   /**
@@ -220,8 +764,35 @@ public class RegexMatchCache
       }
     }
 
+    tmpValue = PropertyUtils.getPropertyUtils().getDataCachePropertyValueDef(ResourceName,
+            CacheName,
+            SERVICE_MEMO_SIZE,
+            "0");
+    try {
+      memoSize = Integer.parseInt(tmpValue);
+    } catch (NumberFormatException nfe) {
+      message = "MemoSize entry for cache <" + getSymbolicName()
+              + "> not numeric. Found value <" + tmpValue + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message, getSymbolicName());
+    }
+
+    if (memoSize < 0) {
+      message = "MemoSize entry for cache <" + getSymbolicName()
+              + "> must not be negative. Found value <" + tmpValue + ">";
+      OpenRate.getOpenRateFrameworkLog().error(message);
+      throw new InitializationException(message, getSymbolicName());
+    } else if (memoSize > 0) {
+      memo = new LookupMemo<>(memoSize);
+    }
+
     // Now perform the base initialisation
     super.loadCache(ResourceName, CacheName);
+
+    // Index the groups now, rather than on the first lookup
+    for (SearchGroup tmpSearchGroup : GroupCache.values()) {
+      buildSearchIndex(tmpSearchGroup);
+    }
   }
 
   /**
@@ -367,7 +938,11 @@ public class RegexMatchCache
     }
 
     tmpSearchMap.Results = checkedResultList;
-    tmpSearchGroup.SearchGroup.add(tmpSearchMap);
+
+    synchronized (tmpSearchGroup) {
+      tmpSearchGroup.SearchGroup.add(tmpSearchMap);
+      tmpSearchGroup.indexed = false;
+    }
   }
 
   /**
@@ -434,12 +1009,43 @@ public class RegexMatchCache
    * @return Result The result of the search as a SearchMap object
    */
   private SearchMap getMatchingSearchResult(String Group, String[] Parameters) {
-    int i;
+    if (memo == null) {
+      return findMatchingSearchResult(Group, Parameters);
+    }
+
+    // null fields cannot be part of a key
+    for (String Parameter : Parameters) {
+      if (Parameter == null) {
+        return findMatchingSearchResult(Group, Parameters);
+      }
+    }
+
+    Object generation = memo.getGeneration();
+    SearchMap tmpSearchMap = memo.get(Group, new LookupMemo.ArrayKey(Parameters));
+
+    if (tmpSearchMap == null) {
+      tmpSearchMap = findMatchingSearchResult(Group, Parameters);
+
+      // The caller may reuse the array, so the stored key takes a copy
+      memo.put(Group, new LookupMemo.ArrayKey(Parameters.clone()),
+              (tmpSearchMap == null) ? NO_MATCH_MEMO : tmpSearchMap, generation);
+    } else if (tmpSearchMap == NO_MATCH_MEMO) {
+      tmpSearchMap = null;
+    }
+
+    return tmpSearchMap;
+  }
+
+  /**
+   * Evaluate an input against the search group, without using the memo.
+   *
+   * @param Group The Regular expression group to search
+   * @param Parameters The list of fields to search
+   * @return Result The result of the search as a SearchMap object
+   */
+  private SearchMap findMatchingSearchResult(String Group, String[] Parameters) {
     SearchGroup tmpSearchGroup;
     SearchMap tmpSearchMap;
-    Pattern tmpPattern;
-    boolean Found;
-    double tmpParamValue;
 
     // recover the object
     tmpSearchGroup = GroupCache.get(Group);
@@ -447,111 +1053,45 @@ public class RegexMatchCache
     if (tmpSearchGroup == null) {
       // Return a default value
       return null;
-    } else {
-      // Iterate thorough the entries in the group
-      Iterator<SearchMap> GroupIter = tmpSearchGroup.SearchGroup.listIterator();
-
-      while (GroupIter.hasNext()) {
-        tmpSearchMap = GroupIter.next();
-
-        // Initialise the found flag and the counter
-        Found = true;
-        i = 0;
-
-        // Now check the elements of the map
-        while ((i < Parameters.length) & Found) {
-          switch (tmpSearchMap.matchType[i]) {
-            // Regex inclusion case
-            case 0: {
-              tmpPattern = tmpSearchMap.matchPattern[i];
-
-              if (Parameters[i] == null) {
-                // we cannot match on null values - warn once and out...
-                OpenRate.getOpenRateFrameworkLog().warning("Null value found in regex match on parameter <" + i + "> in module <" + getSymbolicName() + ">");
-                return null;
-              }
-
-              if (!tmpPattern.matcher(Parameters[i]).matches()) {
-                // We did not get a match, move on
-                Found = false;
-              }
-              break;
-            }
-
-            // Regex exclusion case
-            case 6: {
-              tmpPattern = tmpSearchMap.matchPattern[i];
-
-              if (tmpPattern.matcher(Parameters[i]).matches()) {
-                // We did not get a match, move on
-                Found = false;
-              }
-              break;
-            }
-
-            // "=" case
-            case 1: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpSearchMap.matchValue[i] != tmpParamValue) {
-                // We did not get a match, move on
-                Found = false;
-              }
-              break;
-            }
+    }
 
-            // ">" case
-            case 2: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue <= tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                Found = false;
-              }
-              break;
-            }
+    // Evaluate only the candidates if we can use the index
+    SearchIndex tmpIndex = getUsableIndex(tmpSearchGroup, Parameters);
 
-            // "<" case
-            case 3: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue >= tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                Found = false;
-              }
-              break;
-            }
+    if (tmpIndex != null) {
+      int[] candidates = tmpIndex.getCandidates(Parameters);
 
-            // ">=" case
-            case 4: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue < tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                Found = false;
-              }
-              break;
-            }
+      if (candidates != null) {
+        for (int candidate : candidates) {
+          tmpSearchMap = tmpSearchGroup.SearchGroup.get(candidate);
 
-            // "<=" case
-            case 5: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue > tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                Found = false;
-              }
-              break;
-            }
+          if (matchesSearchMap(tmpSearchMap, Parameters)) {
+            return tmpSearchMap;
           }
-
-          // Increment the loop counter
-          i++;
         }
 
-        if (Found) {
-          return tmpSearchMap;
-        }
+        return null;
       }
+    }
 
-      // Return a default value - we found nothing
+    // we cannot match on null values - warn once and out...
+    if (hasNullParameter(Parameters)) {
       return null;
     }
+
+    // Iterate thorough the entries in the group
+    Iterator<SearchMap> GroupIter = tmpSearchGroup.SearchGroup.listIterator();
+
+    while (GroupIter.hasNext()) {
+      tmpSearchMap = GroupIter.next();
+
+      if (matchesSearchMap(tmpSearchMap, Parameters)) {
+        return tmpSearchMap;
+      }
+    }
+
+    // Return a default value - we found nothing
+    return null;
   }
 
   /**
@@ -567,12 +1107,8 @@ public class RegexMatchCache
    * @return List of all matches
    */
   public ArrayList<String> getAllEntries(String Group, String[] Parameters) {
-    int i;
     SearchGroup tmpSearchGroup;
     SearchMap tmpSearchMap;
-    Pattern tmpPattern;
-    boolean found;
-    double tmpParamValue;
     ArrayList<String> matches;
 
     matches = new ArrayList<>();
@@ -583,104 +1119,44 @@ public class RegexMatchCache
     if (tmpSearchGroup == null) {
       // Return a default value, we did not find the group
       return matches;
-    } else {
-      // Iterate thorough the entries in the group
-      Iterator<SearchMap> GroupIter = tmpSearchGroup.SearchGroup.listIterator();
-
-      while (GroupIter.hasNext()) {
-        tmpSearchMap = GroupIter.next();
-
-        // Initialise the found flag and the counter
-        found = true;
-        i = 0;
-
-        // Now check the elements of the map
-        while ((i < Parameters.length) & found) {
-          switch (tmpSearchMap.matchType[i]) {
-            // Regex inclusion case
-            case 0: {
-              tmpPattern = tmpSearchMap.matchPattern[i];
-
-              if (!tmpPattern.matcher(Parameters[i]).matches()) {
-                // We did not get a match, move on
-                found = false;
-              }
-              break;
-            }
-
-            // Regex exclusion case
-            case 6: {
-              tmpPattern = tmpSearchMap.matchPattern[i];
-
-              if (tmpPattern.matcher(Parameters[i]).matches()) {
-                // We did not get a match, move on
-                found = false;
-              }
-              break;
-            }
-
-            // "=" case
-            case 1: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpSearchMap.matchValue[i] != tmpParamValue) {
-                // We did not get a match, move on
-                found = false;
-              }
-              break;
-            }
+    }
 
-            // ">" case
-            case 2: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue <= tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                found = false;
-              }
-              break;
-            }
+    // Evaluate only the candidates if we can use the index
+    SearchIndex tmpIndex = getUsableIndex(tmpSearchGroup, Parameters);
 
-            // "<" case
-            case 3: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue >= tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                found = false;
-              }
-              break;
-            }
+    if (tmpIndex != null) {
+      int[] candidates = tmpIndex.getCandidates(Parameters);
 
-            // ">=" case
-            case 4: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue < tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                found = false;
-              }
-              break;
-            }
+      if (candidates != null) {
+        for (int candidate : candidates) {
+          tmpSearchMap = tmpSearchGroup.SearchGroup.get(candidate);
 
-            // "<=" case
-            case 5: {
-              tmpParamValue = Double.parseDouble(Parameters[i]);
-              if (tmpParamValue > tmpSearchMap.matchValue[i]) {
-                // We did not get a match, move on
-                found = false;
-              }
-              break;
-            }
+          if (matchesSearchMap(tmpSearchMap, Parameters)) {
+            matches.add(tmpSearchMap.Results.get(0));
           }
-
-          // Increment the loop counter
-          i++;
         }
 
-        if (found) {
-          matches.add(tmpSearchMap.Results.get(0));
-        }
+        return matches;
       }
+    }
 
+    // we cannot match on null values - warn once and out...
+    if (hasNullParameter(Parameters)) {
       return matches;
     }
+
+    // Iterate thorough the entries in the group
+    Iterator<SearchMap> GroupIter = tmpSearchGroup.SearchGroup.listIterator();
+
+    while (GroupIter.hasNext()) {
+      tmpSearchMap = GroupIter.next();
+
+      if (matchesSearchMap(tmpSearchMap, Parameters)) {
+        matches.add(tmpSearchMap.Results.get(0));
+      }
+    }
+
+    return matches;
   }
 
   /**
@@ -1159,6 +1635,25 @@ public class RegexMatchCache
   @Override
   public void clearCacheObjects() {
     GroupCache.clear();
+
+    if (memo != null) {
+      memo.invalidate();
+    }
+  }
+
+  /**
+   * Reload the data, dropping any results that were memorised while the
+   * reload was running.
+   *
+   * @throws InitializationException
+   */
+  @Override
+  public void ReloadData() throws InitializationException {
+    super.ReloadData();
+
+    if (memo != null) {
+      memo.invalidate();
+    }
   }
 
   // -----------------------------------------------------------------------------
@@ -1185,6 +1680,9 @@ public class RegexMatchCache
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_GROUP_COUNT, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_OBJECT_COUNT, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_DUMP_MAP, ClientManager.PARAM_DYNAMIC);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMO_SIZE, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMO_STATS, ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_MEMO_STATS_RESET, ClientManager.PARAM_DYNAMIC);
   }
 
   /**
@@ -1225,6 +1723,23 @@ public class RegexMatchCache
       return Integer.toString(Objects);
     }
 
+    if (Command.equalsIgnoreCase(SERVICE_MEMO_SIZE)) {
+      return Integer.toString(memoSize);
+    }
+
+    // Return the memo statistics as hits:misses:evictions:size
+    if (Command.equalsIgnoreCase(SERVICE_MEMO_STATS)) {
+      return (memo == null) ? "0:0:0:0" : memo.getStats();
+    }
+
+    if (Command.equalsIgnoreCase(SERVICE_MEMO_STATS_RESET)) {
+      if (Parameter.equalsIgnoreCase("true") && (memo != null)) {
+        memo.resetStats();
+      }
+
+      ResultCode = 0;
+    }
+
     // Return the number of objects in the cache
     if (Command.equalsIgnoreCase(SERVICE_DUMP_MAP)) {
       // onl< dump on a positive command
@@ -0,0 +1,680 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hash table of objects split into shards by the hash of the key, each with
+ * its own lock, so that threads only wait for each other when they work on
+ * keys in the same shard.
+ *
+ * Each entry can have a time to live. The time is counted from the last put
+ * of the key, and an entry that has passed it is removed by removeExpired(),
+ * which is called periodically by the owner of the store. Until then the
+ * entry can still be read, so that an entry that is being updated is not
+ * lost.
+ *
+ * An object that is changed in place should be changed with update(), which
+ * reads, changes and stores it holding the lock of the shard. A get followed
+ * by a put is not atomic: another thread, or removeExpired(), can work on the
+ * key in between.
+ */
+public class ShardedObjectStore
+{
+ /**
+  * Works out the new object of a key for update().
+  */
+  public interface Updater
+  {
+   /**
+    * Work out the new object for a key. This is called holding the lock of
+    * the shard, so it must be quick and must not use the store.
+    *
+    * @param key The key
+    * @param value The current object, or null if there is none
+    * @return The new object, which may be the current one changed in place,
+    * or null to remove the key
+    */
+    Object update(String key, Object value);
+  }
+
+  // An entry of the store
+  private static class StoreEntry
+  {
+    Object value;
+
+    // The UTC time in ms after which the entry expires, 0 for never
+    long expiry;
+  }
+
+  // The shards, each of which is locked on its own
+  private final List<HashMap<String, StoreEntry>> shards;
+
+  // Selects the shard from the hash
+  private final int shardMask;
+
+  // The time to live in ms used by put(key, value), 0 for never
+  private volatile long defaultTimeToLive = 0;
+
+ /**
+  * Create a new store.
+  *
+  * @param shardCount The number of shards, rounded up to a power of two
+  * @param initialSize The number of entries we expect in total
+  */
+  public ShardedObjectStore(int shardCount, int initialSize)
+  {
+    int count = 1;
+    while (count < shardCount)
+    {
+      count <<= 1;
+    }
+
+    shards = new ArrayList<>(count);
+    shardMask = count - 1;
+
+    for (int idx = 0 ; idx < count ; idx++)
+    {
+      shards.add(new HashMap<String, StoreEntry>(Math.max(16, initialSize / count)));
+    }
+  }
+
+ /**
+  * Get the shard holding a key.
+  *
+  * @param key The key
+  * @return The shard
+  */
+  private HashMap<String, StoreEntry> getShard(String key)
+  {
+    int hash = key.hashCode();
+
+    // spread the high bits, as the hash map does
+    return shards.get((hash ^ (hash >>> 16)) & shardMask);
+  }
+
+ /**
+  * Work out the expiry time for a time to live.
+  *
+  * @param timeToLive The time to live in ms, 0 for never
+  * @return The expiry time, 0 for never
+  */
+  private static long getExpiry(long timeToLive)
+  {
+    return (timeToLive > 0) ? System.currentTimeMillis() + timeToLive : 0;
+  }
+
+ /**
+  * Set the time to live used by put(key, value).
+  *
+  * @param timeToLive The time to live in ms, 0 for never
+  */
+  public void setDefaultTimeToLive(long timeToLive)
+  {
+    defaultTimeToLive = timeToLive;
+  }
+
+ /**
+  * Get the time to live used by put(key, value).
+  *
+  * @return The time to live in ms, 0 for never
+  */
+  public long getDefaultTimeToLive()
+  {
+    return defaultTimeToLive;
+  }
+
+ /**
+  * Put an object with the default time to live.
+  *
+  * @param key The key
+  * @param value The object
+  */
+  public void put(String key, Object value)
+  {
+    put(key, value, defaultTimeToLive);
+  }
+
+ /**
+  * Put an object with the given time to live. Any previous entry for the key
+  * is replaced.
+  *
+  * @param key The key
+  * @param value The object
+  * @param timeToLive The time to live in ms, 0 for never
+  */
+  public void put(String key, Object value, long timeToLive)
+  {
+    HashMap<String, StoreEntry> shard = getShard(key);
+
+    synchronized (shard)
+    {
+      StoreEntry tmpEntry = shard.get(key);
+
+      if (tmpEntry == null)
+      {
+        tmpEntry = new StoreEntry();
+        shard.put(key, tmpEntry);
+      }
+
+      tmpEntry.value = value;
+      tmpEntry.expiry = getExpiry(timeToLive);
+    }
+  }
+
+ /**
+  * Put an object which expires at the given time, for example when it is
+  * restored after a restart. Any previous entry for the key is replaced.
+  *
+  * @param key The key
+  * @param value The object
+  * @param expiry The UTC time in ms at which the object expires, 0 for never
+  */
+  public void putWithExpiry(String key, Object value, long expiry)
+  {
+    HashMap<String, StoreEntry> shard = getShard(key);
+
+    synchronized (shard)
+    {
+      StoreEntry tmpEntry = shard.get(key);
+
+      if (tmpEntry == null)
+      {
+        tmpEntry = new StoreEntry();
+        shard.put(key, tmpEntry);
+      }
+
+      tmpEntry.value = value;
+      tmpEntry.expiry = expiry;
+    }
+  }
+
+ /**
+  * Update the object of a key with the default time to live.
+  *
+  * @param key The key
+  * @param updater Works out the new object from the current one
+  * @return The new object, or null if the key was removed
+  */
+  public Object update(String key, Updater updater)
+  {
+    return update(key, updater, defaultTimeToLive);
+  }
+
+ /**
+  * Update the object of a key atomically. The updater is given the current
+  * object and its result is stored, all holding the lock of the shard, so no
+  * other update, put or expiry of the key can come in between. If the
+  * updater gives an object, its time to live starts again, as with put().
+  * If it gives null, the key is removed.
+  *
+  * @param key The key
+  * @param updater Works out the new object from the current one
+  * @param timeToLive The time to live in ms, 0 for never
+  * @return The new object, or null if the key was removed
+  */
+  public Object update(String key, Updater updater, long timeToLive)
+  {
+    HashMap<String, StoreEntry> shard = getShard(key);
+
+    synchronized (shard)
+    {
+      StoreEntry tmpEntry = shard.get(key);
+      Object newValue = updater.update(key, (tmpEntry == null) ? null : tmpEntry.value);
+
+      if (newValue == null)
+      {
+        if (tmpEntry != null)
+        {
+          shard.remove(key);
+        }
+      }
+      else
+      {
+        if (tmpEntry == null)
+        {
+          tmpEntry = new StoreEntry();
+          shard.put(key, tmpEntry);
+        }
+
+        tmpEntry.value = newValue;
+        tmpEntry.expiry = getExpiry(timeToLive);
+      }
+
+      return newValue;
+    }
+  }
+
+ /**
+  * Get an object.
+  *
+  * @param key The key
+  * @return The object, or null if there is none
+  */
+  public Object get(String key)
+  {
+    HashMap<String, StoreEntry> shard = getShard(key);
+
+    synchronized (shard)
+    {
+      StoreEntry tmpEntry = shard.get(key);
+
+      return (tmpEntry == null) ? null : tmpEntry.value;
+    }
+  }
+
+ /**
+  * Get the time at which the object of a key expires.
+  *
+  * @param key The key
+  * @return The UTC time in ms, 0 if it never expires or there is no object
+  */
+  public long getExpiry(String key)
+  {
+    HashMap<String, StoreEntry> shard = getShard(key);
+
+    synchronized (shard)
+    {
+      StoreEntry tmpEntry = shard.get(key);
+
+      return (tmpEntry == null) ? 0 : tmpEntry.expiry;
+    }
+  }
+
+ /**
+  * Remove an object.
+  *
+  * @param key The key
+  * @return The object removed, or null if there was none
+  */
+  public Object remove(String key)
+  {
+    HashMap<String, StoreEntry> shard = getShard(key);
+
+    synchronized (shard)
+    {
+      StoreEntry tmpEntry = shard.remove(key);
+
+      return (tmpEntry == null) ? null : tmpEntry.value;
+    }
+  }
+
+ /**
+  * See if there is an object for a key.
+  *
+  * @param key The key
+  * @return true if there is an object
+  */
+  public boolean containsKey(String key)
+  {
+    HashMap<String, StoreEntry> shard = getShard(key);
+
+    synchronized (shard)
+    {
+      return shard.containsKey(key);
+    }
+  }
+
+ /**
+  * Get the number of objects held.
+  *
+  * @return The number of objects
+  */
+  public int size()
+  {
+    int count = 0;
+
+    for (HashMap<String, StoreEntry> shard : shards)
+    {
+      synchronized (shard)
+      {
+        count += shard.size();
+      }
+    }
+
+    return count;
+  }
+
+ /**
+  * Remove all objects.
+  */
+  public void clear()
+  {
+    for (HashMap<String, StoreEntry> shard : shards)
+    {
+      synchronized (shard)
+      {
+        shard.clear();
+      }
+    }
+  }
+
+ /**
+  * Get a copy of the keys. Changes to the store after the call are not
+  * reflected in the set.
+  *
+  * @return The keys
+  */
+  public Set<String> keySet()
+  {
+    HashSet<String> keys = new HashSet<>();
+
+    for (HashMap<String, StoreEntry> shard : shards)
+    {
+      synchronized (shard)
+      {
+        keys.addAll(shard.keySet());
+      }
+    }
+
+    return keys;
+  }
+
+ /**
+  * Get a copy of the keys and objects. Each shard is copied under its lock,
+  * so the copy is consistent per shard but not across shards.
+  *
+  * @return The keys and objects
+  */
+  public HashMap<String, Object> toMap()
+  {
+    HashMap<String, Object> copy = new HashMap<>();
+
+    for (HashMap<String, StoreEntry> shard : shards)
+    {
+      synchronized (shard)
+      {
+        for (Map.Entry<String, StoreEntry> tmpEntry : shard.entrySet())
+        {
+          copy.put(tmpEntry.getKey(), tmpEntry.getValue().value);
+        }
+      }
+    }
+
+    return copy;
+  }
+
+ /**
+  * Get a map view of the store, for code written against a map of the keys
+  * and objects. Reads and writes go to the store, and a put is done with the
+  * default time to live. The entry set iterates over a copy made by toMap(),
+  * but removing through the iterator or setting the value of an entry changes
+  * the store.
+  *
+  * @return The map view
+  */
+  public Map<String, Object> asMap()
+  {
+    return new AbstractMap<String, Object>()
+    {
+      @Override
+      public Object get(Object key)
+      {
+        return (key instanceof String) ? ShardedObjectStore.this.get((String) key) : null;
+      }
+
+      @Override
+      public Object put(String key, final Object value)
+      {
+        final Object[] oldValue = new Object[1];
+
+        update(key, new Updater()
+        {
+          @Override
+          public Object update(String key, Object current)
+          {
+            oldValue[0] = current;
+            return value;
+          }
+        });
+
+        return oldValue[0];
+      }
+
+      @Override
+      public Object remove(Object key)
+      {
+        return (key instanceof String) ? ShardedObjectStore.this.remove((String) key) : null;
+      }
+
+      @Override
+      public boolean containsKey(Object key)
+      {
+        return (key instanceof String) && ShardedObjectStore.this.containsKey((String) key);
+      }
+
+      @Override
+      public int size()
+      {
+        return ShardedObjectStore.this.size();
+      }
+
+      @Override
+      public void clear()
+      {
+        ShardedObjectStore.this.clear();
+      }
+
+      @Override
+      public Set<Map.Entry<String, Object>> entrySet()
+      {
+        return new AbstractSet<Map.Entry<String, Object>>()
+        {
+          @Override
+          public int size()
+          {
+            return ShardedObjectStore.this.size();
+          }
+
+          @Override
+          public Iterator<Map.Entry<String, Object>> iterator()
+          {
+            final Iterator<Map.Entry<String, Object>> copyIter = toMap().entrySet().iterator();
+
+            return new Iterator<Map.Entry<String, Object>>()
+            {
+              private Map.Entry<String, Object> current = null;
+
+              @Override
+              public boolean hasNext()
+              {
+                return copyIter.hasNext();
+              }
+
+              @Override
+              public Map.Entry<String, Object> next()
+              {
+                current = copyIter.next();
+
+                return new AbstractMap.SimpleEntry<String, Object>(current)
+                {
+                  @Override
+                  public Object setValue(Object value)
+                  {
+                    ShardedObjectStore.this.put(getKey(), value);
+                    return super.setValue(value);
+                  }
+                };
+              }
+
+              @Override
+              public void remove()
+              {
+                if (current == null)
+                {
+                  throw new IllegalStateException();
+                }
+
+                ShardedObjectStore.this.remove(current.getKey());
+                current = null;
+              }
+            };
+          }
+        };
+      }
+    };
+  }
+
+ /**
+  * Copy the keys and objects, and the expiry times of the objects which
+  * expire. Each shard is copied under its lock, so the copy is consistent per
+  * shard but not across shards.
+  *
+  * @param objects The map the keys and objects are added to
+  * @param expiries The map the keys and UTC expiry times in ms are added to
+  */
+  public void copyTo(Map<String, Object> objects, Map<String, Long> expiries)
+  {
+    for (HashMap<String, StoreEntry> shard : shards)
+    {
+      synchronized (shard)
+      {
+        for (Map.Entry<String, StoreEntry> tmpEntry : shard.entrySet())
+        {
+          objects.put(tmpEntry.getKey(), tmpEntry.getValue().value);
+
+          if (tmpEntry.getValue().expiry > 0)
+          {
+            expiries.put(tmpEntry.getKey(), tmpEntry.getValue().expiry);
+          }
+        }
+      }
+    }
+  }
+
+ /**
+  * See if any of the objects has an expiry time.
+  *
+  * @return true if at least one object expires
+  */
+  public boolean hasExpiringEntries()
+  {
+    for (HashMap<String, StoreEntry> shard : shards)
+    {
+      synchronized (shard)
+      {
+        for (StoreEntry tmpEntry : shard.values())
+        {
+          if (tmpEntry.expiry > 0)
+          {
+            return true;
+          }
+        }
+      }
+    }
+
+    return false;
+  }
+
+ /**
+  * Put all of the objects of a map with the default time to live.
+  *
+  * @param objects The objects to put
+  */
+  public void putAll(Map<String, Object> objects)
+  {
+    for (Map.Entry<String, Object> tmpEntry : objects.entrySet())
+    {
+      put(tmpEntry.getKey(), tmpEntry.getValue());
+    }
+  }
+
+ /**
+  * Remove the entries that have passed their time to live. The expiry of each
+  * entry is checked holding the lock of its shard, so an entry that update()
+  * has just refreshed is kept, and an entry is never removed while update()
+  * is working on it.
+  *
+  * @param now The current UTC time in ms
+  * @param expired The list the removed keys and objects are added to
+  * @return The number of entries removed
+  */
+  public int removeExpired(long now, List<Map.Entry<String, Object>> expired)
+  {
+    int count = 0;
+
+    for (HashMap<String, StoreEntry> shard : shards)
+    {
+      synchronized (shard)
+      {
+        Iterator<Map.Entry<String, StoreEntry>> entryIter = shard.entrySet().iterator();
+
+        while (entryIter.hasNext())
+        {
+          Map.Entry<String, StoreEntry> tmpEntry = entryIter.next();
+          long expiry = tmpEntry.getValue().expiry;
+
+          if (expiry > 0 && expiry <= now)
+          {
+            entryIter.remove();
+            expired.add(new AbstractMap.SimpleImmutableEntry<>(tmpEntry.getKey(), tmpEntry.getValue().value));
+            count++;
+          }
+        }
+      }
+    }
+
+    return count;
+  }
+}
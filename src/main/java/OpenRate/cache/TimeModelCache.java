@@ -60,6 +60,7 @@ import OpenRate.db.DBUtil;
 import OpenRate.exception.InitializationException;
 import OpenRate.logging.LogUtil;
 import OpenRate.record.TimePacket;
+import OpenRate.utils.LocalTimeConverter;
 import OpenRate.utils.PropertyUtils;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
@@ -90,6 +91,13 @@ import java.util.*;
  * NOTE: that the end times should be defined EXCLUSIVE so that the last minute
  * of the day is 23:59 NOT 00:00
  *
+ * After loading, each model is compiled into a table with an entry for each
+ * minute of the week, holding the zone of the interval the minute is in and the
+ * minute that interval ends. Lookups and the splitting of a call into time
+ * packets then read the table instead of searching the intervals, and the
+ * local time of the call is worked out with a LocalTimeConverter instead of a
+ * Calendar.
+ *
  * @author i.sparkes
  */
 public class TimeModelCache
@@ -153,8 +161,39 @@ public class TimeModelCache
 
     // The vectors for the individual days
     TimeIntervalNode[] Intervals;
+
+    // The compiled lookup table, null if the intervals have changed since
+    volatile ZoneTable table = null;
   }
 
+  // The number of minutes in a day and in a week
+  private static final int MINUTES_PER_DAY = 24 * 60;
+  private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+
+  /**
+   * The minute of week table of a time model. For each minute we hold the
+   * index of the zone result of the interval the minute is in (-1 for none)
+   * and the last minute of that interval, so that we can split a call at the
+   * interval boundaries exactly as the interval search did.
+   */
+  private static class ZoneTable {
+
+    // The zone results, indexed by the zone index
+    String[] zones;
+
+    // The zone index for each minute of the week
+    short[] zoneIndex;
+
+    // The last minute of the day of the interval for each minute of the week
+    short[] intervalEnd;
+
+    // If the day has any intervals at all
+    boolean[] dayDefined;
+  }
+
+  // The converter for the time zone of the last split, replaced if it changes
+  private volatile LocalTimeConverter localTime = null;
+
   /**
    * This holds all of the configurations that make up a time model.
    */
@@ -265,6 +304,9 @@ public class TimeModelCache
       tmpTimeMap = TimeModelCache.get(Model);
     }
 
+    // the table must be compiled again
+    tmpTimeMap.table = null;
+
     // Now add the node
     tmpDay = Integer.parseInt(Day);
     tmpIntervalNode = tmpTimeMap.Intervals[tmpDay];
@@ -319,11 +361,10 @@ public class TimeModelCache
    * @return The return value
    */
   public String getEntry(String Plan, int Day, int Time) {
-    TimeIntervalNode tmpIntervalNode;
     String Model;
-    int CDRMinute;
     TimeMap tmpTimeMap;
-    boolean finished;
+    ZoneTable tmpTable;
+    int zone;
 
     // Find the correct Time Model for the plan
     Model = ModelCache.get(Plan);
@@ -346,34 +387,102 @@ public class TimeModelCache
       return NO_TIME_MATCH;
     }
 
-    tmpIntervalNode = tmpTimeMap.Intervals[Day];
+    tmpTable = getZoneTable(tmpTimeMap);
+
+    if (tmpTable.dayDefined[Day] == false) {
+      OpenRate.getOpenRateFrameworkLog().warning("TimeMap for model <" + Plan + "> and day <" + Day + "> is empty in <" + getSymbolicName() + ">");
+      return NO_TIME_MATCH;
+    }
+
+    if (Time < 0 | Time >= MINUTES_PER_DAY) {
+      return NO_TIME_MATCH;
+    }
 
-    // Search through the Day Segments
-    CDRMinute = (Time);
-    finished = false;
+    zone = tmpTable.zoneIndex[Day * MINUTES_PER_DAY + Time];
 
-    // search the nodes
-    while (!finished) {
-      if (tmpIntervalNode == null) {
-        OpenRate.getOpenRateFrameworkLog().warning("TimeMap for model <" + Plan + "> and day <" + Day + "> is empty in <" + getSymbolicName() + ">");
-        return NO_TIME_MATCH;
-      }
+    if (zone < 0) {
+      return NO_TIME_MATCH;
+    }
+
+    return tmpTable.zones[zone];
+  }
+
+  /**
+   * Get the compiled table of a time map, compiling it if the intervals have
+   * changed since the last time.
+   *
+   * @param tmpTimeMap The time map
+   * @return The compiled table
+   */
+  private ZoneTable getZoneTable(TimeMap tmpTimeMap) {
+    ZoneTable tmpTable = tmpTimeMap.table;
 
-      if (CDRMinute >= tmpIntervalNode.TimeFrom) {
-        if (CDRMinute <= tmpIntervalNode.TimeTo) {
-          return tmpIntervalNode.Result;
+    if (tmpTable == null) {
+      tmpTable = compileZoneTable(tmpTimeMap);
+      tmpTimeMap.table = tmpTable;
+    }
+
+    return tmpTable;
+  }
+
+  /**
+   * Compile the intervals of a time map into a minute of week table. Where
+   * intervals overlap, the first one defined wins, as it did in the interval
+   * search.
+   *
+   * @param tmpTimeMap The time map to compile
+   * @return The compiled table
+   */
+  private ZoneTable compileZoneTable(TimeMap tmpTimeMap) {
+    ZoneTable tmpTable = new ZoneTable();
+    ArrayList<String> zones = new ArrayList<>();
+    HashMap<String, Integer> zoneIndexes = new HashMap<>();
+    TimeIntervalNode tmpIntervalNode;
+    int day;
+    int minute;
+
+    tmpTable.zoneIndex = new short[MINUTES_PER_WEEK];
+    tmpTable.intervalEnd = new short[MINUTES_PER_WEEK];
+    tmpTable.dayDefined = new boolean[7];
+    Arrays.fill(tmpTable.zoneIndex, (short) -1);
+
+    for (day = 0; day < 7; day++) {
+      tmpTable.dayDefined[day] = (tmpTimeMap.Intervals[day] != null);
+
+      for (minute = 0; minute < MINUTES_PER_DAY; minute++) {
+        // find the first interval covering the minute
+        tmpIntervalNode = tmpTimeMap.Intervals[day];
+        while (tmpIntervalNode != null
+                && (minute < tmpIntervalNode.TimeFrom || minute > tmpIntervalNode.TimeTo)) {
+          tmpIntervalNode = tmpIntervalNode.child;
         }
-      }
 
-      if (tmpIntervalNode.child != null) {
-        tmpIntervalNode = tmpIntervalNode.child;
-      } else {
-        // run out of segments
-        finished = true;
+        if (tmpIntervalNode != null) {
+          Integer zone = zoneIndexes.get(tmpIntervalNode.Result);
+          if (zone == null) {
+            zone = zones.size();
+            zones.add(tmpIntervalNode.Result);
+            zoneIndexes.put(tmpIntervalNode.Result, zone);
+          }
+
+          tmpTable.zoneIndex[day * MINUTES_PER_DAY + minute] = zone.shortValue();
+          tmpTable.intervalEnd[day * MINUTES_PER_DAY + minute] = (short) tmpIntervalNode.TimeTo;
+        }
       }
     }
 
-    return NO_TIME_MATCH;
+    tmpTable.zones = zones.toArray(new String[zones.size()]);
+
+    return tmpTable;
+  }
+
+  /**
+   * Compile the tables of all of the time models after loading.
+   */
+  private void compileTimeModels() {
+    for (TimeMap tmpTimeMap : TimeModelCache.values()) {
+      getZoneTable(tmpTimeMap);
+    }
   }
 
   /**
@@ -395,6 +504,11 @@ public class TimeModelCache
     int TMStartSecond;
     int TMEndSecond;
     int TotalDuration;
+    long localTimeValue;
+    String Model;
+    TimeMap tmpTimeMap;
+    ZoneTable tmpTable;
+    LocalTimeConverter converter;
 
     // get the total duration, used for calculating the splitting factor
     TotalDuration = (int) (CDREndDate - CDRStartDate);
@@ -410,14 +524,32 @@ public class TimeModelCache
     long tmpStartDateCounter = CDRStartDate;
     long tmpEndDateCounter;
     ArrayList<TimePacket> packets = new ArrayList<>(1);
-    ArrayList<TimePacket> dayPackets;
+
+    // Find the time model table, without one there are no packets
+    Model = ModelCache.get(TimeModel);
+
+    if (Model == null) {
+      return packets;
+    }
+
+    tmpTimeMap = TimeModelCache.get(Model);
+
+    if (tmpTimeMap == null) {
+      OpenRate.getOpenRateFrameworkLog().warning("TimeMap for model <" + TimeModel + "> is empty in <" + getSymbolicName() + ">");
+      return packets;
+    }
+
+    tmpTable = getZoneTable(tmpTimeMap);
+
+    // get the converter for the time zone of the calendar
+    converter = localTime;
+    if (converter == null || !converter.getZone().getID().equals(gCal.getTimeZone().getID())) {
+      converter = new LocalTimeConverter(gCal.getTimeZone());
+      localTime = converter;
+    }
 
     // get the first start of day period
-    gCal.setTimeInMillis(CDRStartDate * 1000);
-    gCal.set(Calendar.HOUR_OF_DAY, 0);
-    gCal.set(Calendar.MINUTE, 0);
-    gCal.set(Calendar.SECOND, 0);
-    tmpEndDateCounter = gCal.getTimeInMillis() / 1000;
+    tmpEndDateCounter = converter.getStartOfDay(CDRStartDate);
 
     // loop until we have covered the whole period
     while (tmpStartDateCounter < CDREndDate) {
@@ -430,10 +562,9 @@ public class TimeModelCache
         tmpEndDateCounter = CDREndDate;
 
         // Get the prepared end date
-        gCal.setTimeInMillis(tmpEndDateCounter * 1000);
-        TMEndTime = gCal.get(Calendar.HOUR_OF_DAY) * 60;
-        TMEndTime += gCal.get(Calendar.MINUTE);
-        TMEndSecond = gCal.get(Calendar.SECOND);
+        localTimeValue = converter.toLocal(tmpEndDateCounter);
+        TMEndTime = LocalTimeConverter.getMinuteOfDay(localTimeValue);
+        TMEndSecond = LocalTimeConverter.getSecondOfMinute(localTimeValue);
       } else {
         // Get the default end of day prepared information
         TMEndTime = 24 * 60 - 1;
@@ -441,18 +572,13 @@ public class TimeModelCache
       }
 
       // prepare the information for zoning
-      gCal.setTimeInMillis(tmpStartDateCounter * 1000);
-      TMStartDayOfWeek = gCal.get(Calendar.DAY_OF_WEEK) - 1;
-      TMStartTime = gCal.get(Calendar.HOUR_OF_DAY) * 60;
-      TMStartTime += gCal.get(Calendar.MINUTE);
-      TMStartSecond = gCal.get(Calendar.SECOND);
+      localTimeValue = converter.toLocal(tmpStartDateCounter);
+      TMStartDayOfWeek = LocalTimeConverter.getDayOfWeek(localTimeValue);
+      TMStartTime = LocalTimeConverter.getMinuteOfDay(localTimeValue);
+      TMStartSecond = LocalTimeConverter.getSecondOfMinute(localTimeValue);
 
       // Calculate the day based on the parameters
-      dayPackets = getDayEntry(TimeModel, TMStartDayOfWeek, TMStartTime, TMStartSecond, TMEndTime, TMEndSecond, TotalDuration);
-
-      // add to the current list
-      packets.addAll(dayPackets);
-      dayPackets.clear();
+      getDayEntry(packets, tmpTable, TimeModel, TMStartDayOfWeek, TMStartTime, TMStartSecond, TMEndTime, TMEndSecond, TotalDuration);
 
       // move on
       tmpStartDateCounter = tmpEndDateCounter;
@@ -463,8 +589,11 @@ public class TimeModelCache
   }
 
   /**
-   * Get the time packets for the given day
+   * Get the time packets for the given day, splitting at the ends of the
+   * intervals.
    *
+   * @param packets The list to add the time packets to
+   * @param tmpTable The compiled table of the time model
    * @param TimeModel The time model to evaluate for
    * @param DayofWeek The day of the week we are working on
    * @param StartTime The start time to evaluate for
@@ -472,58 +601,46 @@ public class TimeModelCache
    * @param EndTime The end time to evaluate for
    * @param EndSecond The end second to evaluate for
    * @param TotalDuration The original duration of the call
-   * @return The time packets in the the given day
    */
-  private ArrayList<TimePacket> getDayEntry(String TimeModel, int DayofWeek, int StartTime, int StartSecond, int EndTime, int EndSecond, int TotalDuration) {
-    TimeIntervalNode tmpNode;
-    ArrayList<TimePacket> packets = new ArrayList<>(1);
+  private void getDayEntry(ArrayList<TimePacket> packets, ZoneTable tmpTable, String TimeModel, int DayofWeek, int StartTime, int StartSecond, int EndTime, int EndSecond, int TotalDuration) {
     int tmpStartTime;
     int tmpEndTime;
     int tmpStartSecond;
+    int zone;
+    int intervalEnd;
+
+    if (tmpTable.dayDefined[DayofWeek] == false) {
+      OpenRate.getOpenRateFrameworkLog().warning("TimeMap for model <" + TimeModel + "> and day <" + DayofWeek + "> is empty in <" + getSymbolicName() + ">");
+      return;
+    }
 
     tmpStartTime = StartTime;
     tmpStartSecond = StartSecond;
     tmpEndTime = EndTime;
 
-    do {
-      tmpNode = getEntryWithNode(TimeModel, DayofWeek, tmpStartTime);
-
-      if (tmpNode != null) {
-        if (tmpNode.TimeTo == 24 * 60 - 1) {
-          if (EndTime <= tmpNode.TimeTo) {
-            // last packet for the day - create and we have finished
-            tmpEndTime = EndTime;
-            CreateTimePacket(packets, DayofWeek, tmpStartTime, tmpStartSecond, tmpEndTime, EndSecond, TimeModel, tmpNode.Result, TotalDuration);
-            break;
-          } else {
-            // normal packet
-            tmpEndTime = tmpNode.TimeTo;
-            CreateTimePacket(packets, DayofWeek, tmpStartTime, tmpStartSecond, tmpEndTime, EndSecond, TimeModel, tmpNode.Result, TotalDuration);
-
-            // update the temp variables
-            tmpStartTime = tmpNode.TimeTo;
-            tmpEndTime = EndTime;
-            tmpStartSecond = 0;
-          }
-        } else {
-          if (tmpEndTime <= tmpNode.TimeTo) {
-            // this covers the remaining time
-            CreateTimePacket(packets, DayofWeek, tmpStartTime, tmpStartSecond, tmpEndTime, EndSecond, TimeModel, tmpNode.Result, TotalDuration);
-            break;
-          } else {
-            // normal packet, and there is more to do
-            CreateTimePacket(packets, DayofWeek, tmpStartTime, tmpStartSecond, tmpNode.TimeTo, 60, TimeModel, tmpNode.Result, TotalDuration);
-
-            // Update the variables
-            tmpStartTime = tmpNode.TimeTo + 1;
-            tmpEndTime = EndTime;
-            tmpStartSecond = 0;
-          }
-        }
+    while (true) {
+      zone = tmpTable.zoneIndex[DayofWeek * MINUTES_PER_DAY + tmpStartTime];
+
+      if (zone < 0) {
+        // not covered by any interval
+        break;
       }
-    } while (tmpNode != null);
 
-    return packets;
+      intervalEnd = tmpTable.intervalEnd[DayofWeek * MINUTES_PER_DAY + tmpStartTime];
+
+      if (intervalEnd == 24 * 60 - 1 || tmpEndTime <= intervalEnd) {
+        // this covers the remaining time
+        CreateTimePacket(packets, DayofWeek, tmpStartTime, tmpStartSecond, tmpEndTime, EndSecond, TimeModel, tmpTable.zones[zone], TotalDuration);
+        break;
+      } else {
+        // normal packet, and there is more to do
+        CreateTimePacket(packets, DayofWeek, tmpStartTime, tmpStartSecond, intervalEnd, 60, TimeModel, tmpTable.zones[zone], TotalDuration);
+
+        // Update the variables
+        tmpStartTime = intervalEnd + 1;
+        tmpStartSecond = 0;
+      }
+    }
   }
 
   /**
@@ -566,67 +683,6 @@ public class TimeModelCache
     packetList.add(tmpPacket);
   }
 
-  /**
-   * Get a value from the TimeModelCache
-   */
-  private TimeIntervalNode getEntryWithNode(String Plan, int Day, int Time) {
-    TimeIntervalNode tmpIntervalNode;
-    String Model;
-    int CDRMinute;
-    TimeMap tmpTimeMap;
-    boolean finished;
-
-    // Find the correct Time Model for the plan
-    Model = ModelCache.get(Plan);
-
-    if (Model == null) {
-      return null;
-    }
-
-    // Get the interval
-    tmpTimeMap = TimeModelCache.get(Model);
-
-    if (tmpTimeMap == null) {
-      OpenRate.getOpenRateFrameworkLog().warning("TimeMap for model <" + Plan + "> and day <" + Day + "> is empty in <" + getSymbolicName() + ">");
-      return null;
-    }
-
-    // Get the root node for the day
-    if (Day < 0 | Day > 6) {
-      OpenRate.getOpenRateFrameworkLog().warning("Day <" + Day + "> is outside of the valid range of 0 (Sunday) to 6 (Saturday)");
-      return null;
-    }
-
-    tmpIntervalNode = tmpTimeMap.Intervals[Day];
-
-    // Search through the Day Segments
-    CDRMinute = (Time);
-    finished = false;
-
-    // search the nodes
-    while (!finished) {
-      if (tmpIntervalNode == null) {
-        OpenRate.getOpenRateFrameworkLog().warning("TimeMap for model <" + Plan + "> and day <" + Day + "> is empty in <" + getSymbolicName() + ">");
-        return null;
-      }
-
-      if (CDRMinute >= tmpIntervalNode.TimeFrom) {
-        if (CDRMinute <= tmpIntervalNode.TimeTo) {
-          return tmpIntervalNode;
-        }
-      }
-
-      if (tmpIntervalNode.child != null) {
-        tmpIntervalNode = tmpIntervalNode.child;
-      } else {
-        // run out of segments
-        finished = true;
-      }
-    }
-
-    return null;
-  }
-
 // -----------------------------------------------------------------------------
 // ------------------ Start of inherited Plug In functions ---------------------
 // -----------------------------------------------------------------------------
@@ -704,6 +760,9 @@ public class TimeModelCache
       }
     }
 
+    // build the lookup tables
+    compileTimeModels();
+
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + IntervalsLoaded + "> Model intervals Loaded");
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + ModelsLoaded + "> Mappings Loaded");
     OpenRate.getOpenRateFrameworkLog().info(
@@ -870,6 +929,9 @@ public class TimeModelCache
     // check that we have complete coverage of the time models
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + IntervalsLoaded + "> Checking Model intervals");
 
+    // build the lookup tables
+    compileTimeModels();
+
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + IntervalsLoaded + "> Model intervals Loaded");
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + ModelsLoaded + "> Mappings Loaded");
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + DaysLoaded + "> Days Loaded");
@@ -978,6 +1040,9 @@ public class TimeModelCache
       }
     }
 
+    // build the lookup tables
+    compileTimeModels();
+
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + IntervalsLoaded + "> Model intervals Loaded");
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + ModelsLoaded + "> Mappings Loaded");
     OpenRate.getOpenRateFrameworkLog().info("Time Model Cache: <" + DaysLoaded + "> Days Loaded");
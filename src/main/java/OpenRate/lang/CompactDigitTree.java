@@ -0,0 +1,349 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Array backed digit tree for best match searches. This gives the same
+ * results as the DigitTree, but stores the nodes in flat int arrays instead of
+ * as objects, which makes large trees (millions of prefixes) far smaller and
+ * avoids the pointer chasing of the object tree. Lookups walk the number with
+ * charAt() and do not allocate anything.
+ *
+ * Result lists are interned during loading, so prefixes that share the same
+ * results also share the same list object. The lists returned from the
+ * matches must therefore be treated as read only.
+ *
+ * A lookup stops at the first character that is not a digit, and returns the
+ * best match found up to that point.
+ */
+public class CompactDigitTree
+  implements IDigitTree
+{
+  // The initial number of nodes we allocate space for
+  private static final int INITIAL_NODES = 1024;
+
+  // Number of children per node
+  private static final int RADIX = 10;
+
+  // The child node index for each node and digit, at node * RADIX + digit.
+  // Node 0 is the root, which is never a child, so 0 means "no child".
+  private int[] children;
+
+  // The result list index + 1 for each node, 0 meaning no result.
+  private int[] results;
+
+  // The number of nodes in use, including the root
+  private int nodeCount = 1;
+
+  // The interned result lists
+  private final ArrayList<ArrayList<String>> resultLists = new ArrayList<>();
+  private HashMap<ArrayList<String>, Integer> resultIndex = new HashMap<>();
+
+  // The result we give back when there is no match
+  private final ArrayList<String> nullResultList;
+
+ /**
+  * Default constructor - sets up the root node
+  */
+  public CompactDigitTree()
+  {
+    children = new int[INITIAL_NODES * RADIX];
+    results = new int[INITIAL_NODES];
+
+    // Set up the null node return result
+    nullResultList = new ArrayList<>();
+    nullResultList.add(DigitTree.NO_DIGIT_TREE_MATCH);
+  }
+
+ /**
+  * Add a prefix to the digit tree.
+  *
+  * @param prefix The prefix to add to the digit tree
+  * @param resultList The results to return for this tag, or null to give no
+  *                   result for it, as in the DigitTree
+  */
+  @Override
+  public void addPrefix(String prefix, ArrayList<String> resultList)
+  {
+    int node = 0;
+
+    for (int i = 0; i < prefix.length(); i++)
+    {
+      int number = prefix.charAt(i) - '0';
+
+      if ((number < 0) || (number >= RADIX))
+      {
+        throw new ArrayIndexOutOfBoundsException("Invalid digit in prefix <" + prefix + ">");
+      }
+
+      int child = children[node * RADIX + number];
+
+      if (child == 0)
+      {
+        child = newNode();
+        children[node * RADIX + number] = child;
+      }
+
+      node = child;
+    }
+
+    // a null result list does not make the node a result
+    if (resultList == null)
+    {
+      results[node] = 0;
+    }
+    else
+    {
+      results[node] = internResult(resultList) + 1;
+    }
+  }
+
+ /**
+  * Work down the digit tree to find the best match. We remember the previous
+  * best result as we go.
+  *
+  * @param prefix The prefix to match
+  * @return The short result to return in the case of a match
+  */
+  @Override
+  public String match(String prefix)
+  {
+    int bestResult = findBestResult(prefix);
+
+    // return the best match we got - sometimes this is no match at all
+    if (bestResult == 0)
+    {
+      return DigitTree.NO_DIGIT_TREE_MATCH;
+    }
+    else
+    {
+      return resultLists.get(bestResult - 1).get(0);
+    }
+  }
+
+ /**
+  * Work down the digit tree to find the best match. We remember the previous
+  * best result as we go.
+  *
+  * @param prefix The prefix to match
+  * @return The results list to return in the case of a match
+  */
+  @Override
+  public ArrayList<String> matchWithChildData(String prefix)
+  {
+    int bestResult = findBestResult(prefix);
+
+    // return the best match we got - sometimes this is no match at all
+    if (bestResult == 0)
+    {
+      return nullResultList;
+    }
+    else
+    {
+      return resultLists.get(bestResult - 1);
+    }
+  }
+
+ /**
+  * Walk the tree for the number, and return the result index + 1 of the
+  * deepest node that has a result, or 0 if there was none.
+  *
+  * @param prefix The number to match
+  * @return The result index + 1, or 0 for no match
+  */
+  private int findBestResult(String prefix)
+  {
+    int node = 0;
+    int bestResult = results[0];
+    int length = prefix.length();
+
+    for (int i = 0; i < length; i++)
+    {
+      int number = prefix.charAt(i) - '0';
+
+      if ((number < 0) || (number >= RADIX))
+      {
+        // Not a digit - return what we have got so far
+        break;
+      }
+
+      node = children[node * RADIX + number];
+
+      if (node == 0)
+      {
+        // No more children - return what we have got so far
+        break;
+      }
+
+      if (results[node] != 0)
+      {
+        bestResult = results[node];
+      }
+    }
+
+    return bestResult;
+  }
+
+ /**
+  * Allocate a new node, growing the arrays if we have to.
+  *
+  * @return The index of the new node
+  */
+  private int newNode()
+  {
+    if (nodeCount == results.length)
+    {
+      int newCapacity = Math.max(INITIAL_NODES, results.length + (results.length >> 1));
+      results = Arrays.copyOf(results, newCapacity);
+      children = Arrays.copyOf(children, newCapacity * RADIX);
+    }
+
+    return nodeCount++;
+  }
+
+ /**
+  * Get the index of the interned copy of the result list, adding it if we
+  * have not seen it before.
+  *
+  * @param resultList The result list to intern
+  * @return The index of the interned list
+  */
+  private int internResult(ArrayList<String> resultList)
+  {
+    if (resultIndex == null)
+    {
+      // we have been trimmed, so go back to loading mode
+      rebuildResultIndex();
+    }
+
+    Integer index = resultIndex.get(resultList);
+
+    if (index == null)
+    {
+      index = resultLists.size();
+      resultLists.add(resultList);
+      resultIndex.put(resultList, index);
+    }
+
+    return index;
+  }
+
+ /**
+  * Rebuild the interning index from the result lists.
+  */
+  private void rebuildResultIndex()
+  {
+    resultIndex = new HashMap<>(resultLists.size() * 2);
+
+    for (int i = 0; i < resultLists.size(); i++)
+    {
+      resultIndex.put(resultLists.get(i), i);
+    }
+  }
+
+ /**
+  * Release the spare capacity and the loading structures once loading is
+  * complete. The tree can still be added to afterwards, at the cost of
+  * regrowing.
+  */
+  public void trimToSize()
+  {
+    results = Arrays.copyOf(results, nodeCount);
+    children = Arrays.copyOf(children, nodeCount * RADIX);
+    resultLists.trimToSize();
+    resultIndex = null;
+  }
+
+  /**
+   * Get the number of elements in the cache
+   *
+   * @return The number of elements
+   */
+  @Override
+  public int size()
+  {
+    // the root is not counted, as in the DigitTree
+    return nodeCount - 1;
+  }
+
+  /**
+   * Get the number of distinct result lists held in the tree
+   *
+   * @return The number of distinct result lists
+   */
+  public int getResultCount()
+  {
+    return resultLists.size();
+  }
+
+  /**
+   * Get an estimate of the heap used by the node arrays and the interned list
+   * references.
+   *
+   * @return The estimated number of bytes used
+   */
+  @Override
+  public long getMemoryEstimate()
+  {
+    return 16L + ((long) children.length * 4) +
+           16L + ((long) results.length * 4) +
+           16L + ((long) resultLists.size() * 4);
+  }
+}
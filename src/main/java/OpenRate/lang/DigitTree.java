@@ -61,6 +61,7 @@ import java.util.ArrayList;
  * Class to build and search a tree list, for example in best match searches
  */
 public class DigitTree
+  implements IDigitTree
 {
   /**
    * The default return when there is no digit tree match
@@ -90,6 +91,7 @@ public class DigitTree
   * @param prefix The prefix to add to the digit tree
   * @param resultList The results to return for this tag
   */
+  @Override
   public void addPrefix(String prefix, ArrayList<String> resultList)
   {
    char[] numberChars = prefix.toCharArray();
@@ -119,6 +121,7 @@ public class DigitTree
   * @param prefix The prefix to match
   * @return The short result to return in the case of a match
   */
+  @Override
   public String match(String prefix)
   {
     char[] numberChars = prefix.toCharArray();
@@ -161,6 +164,7 @@ public class DigitTree
   * @param prefix The prefix to match
   * @return The results list to return in the case of a match
   */
+  @Override
   public ArrayList<String> matchWithChildData(String prefix)
   {
     char[] numberChars = prefix.toCharArray();
@@ -211,8 +215,22 @@ public class DigitTree
    *
    * @return The number of elements
    */
+  @Override
   public int size()
   {
     return nodeCount;
   }
+
+  /**
+   * Get an estimate of the heap used by the nodes of the tree. Each node is an
+   * object holding a result reference and a child array of 10 references.
+   *
+   * @return The estimated number of bytes used
+   */
+  @Override
+  public long getMemoryEstimate()
+  {
+    // node object (header + 2 refs) + child array (header + 10 refs)
+    return (long) (nodeCount + 1) * (24 + 56);
+  }
 }
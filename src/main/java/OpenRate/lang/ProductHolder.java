@@ -0,0 +1,190 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.lang;
+
+/**
+ * Product holder is a reusable container for the products found for an
+ * account. Unlike the ProductList, it is created once by the caller and filled
+ * by each lookup, so that finding the products of a record does not create
+ * any objects. The arrays grow as needed and are kept between lookups.
+ */
+public class ProductHolder
+{
+  private int      productCount = 0;
+  private int      balanceGroup = 0;
+  private String   service = null;
+  private String[] productIds;
+  private long[]   validFrom;
+  private long[]   validTo;
+
+ /** Creates a new instance of ProductHolder */
+  public ProductHolder()
+  {
+    productIds = new String[8];
+    validFrom = new long[8];
+    validTo = new long[8];
+  }
+
+ /**
+  * Empty the holder ready for the next lookup.
+  *
+  * @param newService The service the lookup is for
+  * @param newBalanceGroup The balance group of the account
+  */
+  public void reset(String newService, int newBalanceGroup)
+  {
+    // drop the references to the products of the last lookup
+    for (int i = 0 ; i < productCount ; i++)
+    {
+      productIds[i] = null;
+    }
+
+    productCount = 0;
+    service = newService;
+    balanceGroup = newBalanceGroup;
+  }
+
+ /**
+  * Add a product to the holder.
+  *
+  * @param productId The ID (name) of the product
+  * @param newValidFrom The start of the validity of the product
+  * @param newValidTo The end of the validity of the product
+  */
+  public void addProduct(String productId, long newValidFrom, long newValidTo)
+  {
+    if (productCount == productIds.length)
+    {
+      int newSize = productCount * 2;
+      String[] newProductIds = new String[newSize];
+      long[] newValidFroms = new long[newSize];
+      long[] newValidTos = new long[newSize];
+      System.arraycopy(productIds, 0, newProductIds, 0, productCount);
+      System.arraycopy(validFrom, 0, newValidFroms, 0, productCount);
+      System.arraycopy(validTo, 0, newValidTos, 0, productCount);
+      productIds = newProductIds;
+      validFrom = newValidFroms;
+      validTo = newValidTos;
+    }
+
+    productIds[productCount] = productId;
+    validFrom[productCount] = newValidFrom;
+    validTo[productCount] = newValidTo;
+    productCount++;
+  }
+
+ /**
+  * Get the count of the products found
+  *
+  * @return The product count
+  */
+  public int getProductCount()
+  {
+    return productCount;
+  }
+
+ /**
+  * Get the balance group of the account
+  *
+  * @return The balance group ID
+  */
+  public int getBalanceGroup()
+  {
+    return balanceGroup;
+  }
+
+ /**
+  * Get the service the products were found for
+  *
+  * @return The service
+  */
+  public String getService()
+  {
+    return service;
+  }
+
+ /**
+  * Get the ID of a product
+  *
+  * @param index The index of the product
+  * @return The product ID
+  */
+  public String getProductID(int index)
+  {
+    return productIds[index];
+  }
+
+ /**
+  * Get the start of the validity of a product
+  *
+  * @param index The index of the product
+  * @return The UTC start of the validity
+  */
+  public long getUTCValidFrom(int index)
+  {
+    return validFrom[index];
+  }
+
+ /**
+  * Get the end of the validity of a product
+  *
+  * @param index The index of the product
+  * @return The UTC end of the validity
+  */
+  public long getUTCValidTo(int index)
+  {
+    return validTo[index];
+  }
+}
@@ -0,0 +1,481 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.parser;
+
+import OpenRate.exception.ASN1Exception;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental ASN.1 decoder working directly on a ByteBuffer, which may be a
+ * heap buffer or a mapped file. In contrast to the ASN1Parser, nothing is
+ * copied out of the buffer: each element is described by an Asn1Element that
+ * the caller passes in and reuses, and the decode methods read the value
+ * straight from the buffer.
+ *
+ * The decoder reads from the current position of the buffer and moves the
+ * position on past each element that it reads. If the buffer does not hold
+ * the whole of the next element, readNextElement() returns false and leaves
+ * the position unchanged, so the caller can provide more data and try again.
+ * This fits the streaming mode of the BinaryFileInputAdapter.
+ *
+ * The decoder is not thread safe.
+ */
+public class ASN1BufferDecoder
+{
+  // The buffer we are decoding
+  private ByteBuffer buffer;
+
+  // Reused for building the decoded strings
+  private final StringBuilder work = new StringBuilder(64);
+
+ /**
+  * Set the buffer to decode, starting at its current position.
+  *
+  * @param newBuffer The buffer to decode
+  */
+  public void setBuffer(ByteBuffer newBuffer)
+  {
+    buffer = newBuffer;
+  }
+
+ /**
+  * Get the buffer we are decoding.
+  *
+  * @return The buffer
+  */
+  public ByteBuffer getBuffer()
+  {
+    return buffer;
+  }
+
+ /**
+  * Find out whether there are more bytes to decode.
+  *
+  * @return true if there are bytes left, otherwise false
+  */
+  public boolean ready()
+  {
+    return buffer.hasRemaining();
+  }
+
+ /**
+  * Read the header of the next element into the element view. For a
+  * primitive element the position is moved past the value as well, for a
+  * constructed element it is left at the start of the contents, so that the
+  * contained elements are read next. Use skipValue() to pass over the
+  * contents instead.
+  *
+  * @param element The element view to fill
+  * @return true if an element was read, false if the buffer does not hold
+  * the whole element, in which case the contents of the view are undefined
+  * @throws ASN1Exception If the tag or length cannot be decoded
+  */
+  public boolean readNextElement(Asn1Element element) throws ASN1Exception
+  {
+    int start = buffer.position();
+    int limit = buffer.limit();
+    int pos = start;
+
+    if (pos >= limit)
+    {
+      return false;
+    }
+
+    int first = buffer.get(pos++) & 0xFF;
+
+    // if this is a filler byte skip it - this is used as packing in some
+    // formats e.g. Ericsson to get to the end of a block boundary
+    if (first == 0x00)
+    {
+      element.setNullTag(start);
+      buffer.position(pos);
+      return true;
+    }
+
+    int identifier = first & 0xE0;
+    int tag = first & 0x1F;
+    long rawTag = first;
+    int rawTagLength = 1;
+
+    if (tag == 0x1F)
+    {
+      // Long tag encoded as sequence of 7-bit values
+      int value;
+      tag = 0;
+
+      do
+      {
+        if (pos >= limit)
+        {
+          return false;
+        }
+
+        value = buffer.get(pos++) & 0xFF;
+        rawTag = (rawTag << 8) | value;
+        rawTagLength++;
+        tag = (tag << 7) | (value & 0x7F);
+      } while (((value & 0x80) != 0) && (rawTagLength < 6));
+
+      if (rawTagLength == 6)
+      {
+        throw new ASN1Exception("Tag at offset <" + start + "> has illegal length");
+      }
+    }
+
+    // Parse the length out of the stream
+    if (pos >= limit)
+    {
+      return false;
+    }
+
+    int length = buffer.get(pos++) & 0xFF;
+    boolean indefinite = false;
+
+    if (length > 0x7F)
+    {
+      // This is a multibyte length, or the indefinite form if there are none
+      int numLengthBytes = length & 0x7F;
+      length = 0;
+
+      if (numLengthBytes == 0)
+      {
+        indefinite = true;
+      }
+      else if (numLengthBytes > 4)
+      {
+        throw new ASN1Exception("Length at offset <" + start + "> cannot be represented as a Java int");
+      }
+      else
+      {
+        if (pos + numLengthBytes > limit)
+        {
+          return false;
+        }
+
+        for (int idx = 0 ; idx < numLengthBytes ; idx++)
+        {
+          length = (length << 8) | (buffer.get(pos++) & 0xFF);
+        }
+
+        if (length < 0)
+        {
+          throw new ASN1Exception("Length at offset <" + start + "> cannot be represented as a Java int");
+        }
+      }
+    }
+
+    element.setHeader(identifier, tag, rawTag, rawTagLength, start);
+    element.setValue(pos, length, indefinite);
+
+    if (!element.isConstructed())
+    {
+      if (length > limit - pos)
+      {
+        return false;
+      }
+
+      pos += length;
+    }
+
+    buffer.position(pos);
+
+    return true;
+  }
+
+ /**
+  * Move the position past the contents of a constructed element.
+  *
+  * @param element The element to skip
+  * @return false if the buffer does not hold all of the contents
+  */
+  public boolean skipValue(Asn1Element element)
+  {
+    int end = element.getValueOffset() + element.getLength();
+
+    if (end > buffer.limit())
+    {
+      return false;
+    }
+
+    buffer.position(Math.max(buffer.position(), end));
+
+    return true;
+  }
+
+ /**
+  * Decode the value of the element according to the type, in the same way as
+  * ASN1Parser.parseASN1(). Constructed elements have no value and give an
+  * empty string.
+  *
+  * @param tagType The type of the value
+  * @param element The element to decode
+  * @return The decoded value
+  * @throws ASN1Exception
+  */
+  public String decode(int tagType, Asn1Element element) throws ASN1Exception
+  {
+    if (element.isConstructed())
+    {
+      return "";
+    }
+
+    switch (tagType)
+    {
+      case ASN1Parser.INTEGER:         return Long.toString(decodeInteger(element));
+      case ASN1Parser.PRINTABLESTRING: return decodePrintableString(element);
+      case ASN1Parser.OCTETSTRING:     return decodePrintableString(element);
+      case ASN1Parser.IA5STRING:       return decodeIA5String(element);
+      case ASN1Parser.BCDString:       return decodeBCDString(element);
+      case ASN1Parser.BCDStringLE:     return decodeBCDStringLE(element);
+      default:                         return decodeBytes(element);
+    }
+  }
+
+ /**
+  * Append the value as a BCD string, dropping the padding nibbles.
+  *
+  * @param element The element to decode
+  * @param target The builder to append to
+  */
+  public void appendBCDString(Asn1Element element, StringBuilder target)
+  {
+    int end = element.getValueOffset() + element.getLength();
+
+    for (int idx = element.getValueOffset() ; idx < end ; idx++)
+    {
+      int value = buffer.get(idx);
+      int hiNibble = (value & 0xf0) >> 4;
+      int loNibble = value & 0x0f;
+
+      if (hiNibble != 0x0f)
+      {
+        target.append((char) (hiNibble + '0'));
+      }
+
+      if (loNibble != 0x0f)
+      {
+        target.append((char) (loNibble + '0'));
+      }
+    }
+  }
+
+ /**
+  * Decode the value as a BCD string, dropping the padding nibbles.
+  *
+  * @param element The element to decode
+  * @return The decoded string
+  */
+  public String decodeBCDString(Asn1Element element)
+  {
+    work.setLength(0);
+    appendBCDString(element, work);
+
+    return work.toString();
+  }
+
+ /**
+  * Append the value as a BCD string with the nibbles of each byte reversed,
+  * dropping the padding nibbles.
+  *
+  * @param element The element to decode
+  * @param target The builder to append to
+  */
+  public void appendBCDStringLE(Asn1Element element, StringBuilder target)
+  {
+    int end = element.getValueOffset() + element.getLength();
+
+    for (int idx = element.getValueOffset() ; idx < end ; idx++)
+    {
+      int value = buffer.get(idx);
+      int loNibble = (value & 0xf0) >> 4;
+      int hiNibble = value & 0x0f;
+
+      if (hiNibble != 0x0f)
+      {
+        target.append((char) (hiNibble + '0'));
+      }
+
+      if (loNibble != 0x0f)
+      {
+        target.append((char) (loNibble + '0'));
+      }
+    }
+  }
+
+ /**
+  * Decode the value as a BCD string with the nibbles of each byte reversed,
+  * dropping the padding nibbles.
+  *
+  * @param element The element to decode
+  * @return The decoded string
+  */
+  public String decodeBCDStringLE(Asn1Element element)
+  {
+    work.setLength(0);
+    appendBCDStringLE(element, work);
+
+    return work.toString();
+  }
+
+ /**
+  * Decode the value as a two's complement integer.
+  *
+  * @param element The element to decode
+  * @return The value
+  * @throws ASN1Exception If the value is longer than 8 bytes
+  */
+  public long decodeInteger(Asn1Element element) throws ASN1Exception
+  {
+    int length = element.getLength();
+
+    if (length == 0)
+    {
+      return 0;
+    }
+
+    if (length > 8)
+    {
+      throw new ASN1Exception("Integer at offset <" + element.getHeaderOffset() + "> is too long");
+    }
+
+    int idx = element.getValueOffset();
+
+    // the first byte carries the sign
+    long value = buffer.get(idx);
+
+    for (int end = idx + length, next = idx + 1 ; next < end ; next++)
+    {
+      value = (value << 8) | (buffer.get(next) & 0xFF);
+    }
+
+    return value;
+  }
+
+ /**
+  * Decode the value as an IA5 (ASCII) string. If the value holds characters
+  * outside the ASCII range, an empty string is returned, as the ASN1Parser
+  * does.
+  *
+  * @param element The element to decode
+  * @return The decoded string
+  */
+  public String decodeIA5String(Asn1Element element)
+  {
+    int end = element.getValueOffset() + element.getLength();
+
+    work.setLength(0);
+
+    for (int idx = element.getValueOffset() ; idx < end ; idx++)
+    {
+      int value = buffer.get(idx) & 0xFF;
+
+      if (value > 127)
+      {
+        return "";
+      }
+
+      work.append((char) value);
+    }
+
+    return work.toString();
+  }
+
+ /**
+  * Decode the value as a printable string, one character per byte.
+  *
+  * @param element The element to decode
+  * @return The decoded string
+  */
+  public String decodePrintableString(Asn1Element element)
+  {
+    int end = element.getValueOffset() + element.getLength();
+
+    work.setLength(0);
+
+    for (int idx = element.getValueOffset() ; idx < end ; idx++)
+    {
+      work.append((char) buffer.get(idx));
+    }
+
+    return work.toString();
+  }
+
+ /**
+  * Decode the value as a lower case hex string.
+  *
+  * @param element The element to decode
+  * @return The decoded string
+  */
+  public String decodeBytes(Asn1Element element)
+  {
+    int end = element.getValueOffset() + element.getLength();
+
+    work.setLength(0);
+
+    for (int idx = element.getValueOffset() ; idx < end ; idx++)
+    {
+      int value = buffer.get(idx) & 0xFF;
+      work.append(Character.forDigit(value >> 4, 16));
+      work.append(Character.forDigit(value & 0x0F, 16));
+    }
+
+    return work.toString();
+  }
+}
@@ -0,0 +1,228 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.parser;
+
+/**
+ * Reusable view of an ASN.1 element in a buffer, filled in by the
+ * ASN1BufferDecoder. The element does not copy the value, it only holds the
+ * position of the value in the buffer, so that one instance can be used for
+ * every element that is read.
+ *
+ * The view is only valid until the buffer is changed.
+ */
+public class Asn1Element
+{
+  private boolean nullTag;
+  private int identifier;
+  private int tag;
+  private long rawTag;
+  private int rawTagLength;
+  private int headerOffset;
+  private int valueOffset;
+  private int length;
+  private boolean indefiniteLength;
+
+ /**
+  * Set the header information. Called by the decoder.
+  */
+  void setHeader(int newIdentifier, int newTag, long newRawTag, int newRawTagLength, int newHeaderOffset)
+  {
+    nullTag = false;
+    identifier = newIdentifier;
+    tag = newTag;
+    rawTag = newRawTag;
+    rawTagLength = newRawTagLength;
+    headerOffset = newHeaderOffset;
+  }
+
+ /**
+  * Set the value information. Called by the decoder.
+  */
+  void setValue(int newValueOffset, int newLength, boolean newIndefiniteLength)
+  {
+    valueOffset = newValueOffset;
+    length = newLength;
+    indefiniteLength = newIndefiniteLength;
+  }
+
+ /**
+  * Mark the element as a filler byte. Called by the decoder.
+  */
+  void setNullTag(int offset)
+  {
+    setHeader(0, 0, 0, 1, offset);
+    setValue(offset + 1, 0, false);
+    nullTag = true;
+  }
+
+ /**
+  * Tells us if the element was a filler byte (0x00), which some formats use
+  * to pad to a block boundary.
+  *
+  * @return true if the element is a filler byte
+  */
+  public boolean isNullTag()
+  {
+    return nullTag;
+  }
+
+ /**
+  * Tells us if the element is the header of a constructed element. The
+  * contents follow the header as further elements.
+  *
+  * @return true if the element is constructed
+  */
+  public boolean isConstructed()
+  {
+    return (identifier & 0x20) == 0x20;
+  }
+
+ /**
+  * Get the class and form bits of the first tag byte.
+  *
+  * @return The class and form bits
+  */
+  public int getIdentifier()
+  {
+    return identifier;
+  }
+
+ /**
+  * Get the tag number.
+  *
+  * @return The tag number
+  */
+  public int getTag()
+  {
+    return tag;
+  }
+
+ /**
+  * Get the tag bytes packed into a long, the first byte being the most
+  * significant. This identifies the tag the same way as getRawTag() does, but
+  * without creating a string.
+  *
+  * @return The packed tag bytes
+  */
+  public long getRawTagValue()
+  {
+    return rawTag;
+  }
+
+ /**
+  * Get the raw tag bytes as a hex string, the same way as the ASN1Parser
+  * does.
+  *
+  * @return The raw tag as hex
+  */
+  public String getRawTag()
+  {
+    StringBuilder buf = new StringBuilder(rawTagLength * 2);
+
+    for (int idx = rawTagLength - 1 ; idx >= 0 ; idx--)
+    {
+      int tagByte = (int) (rawTag >>> (idx * 8)) & 0xFF;
+      buf.append(Character.forDigit(tagByte >> 4, 16));
+      buf.append(Character.forDigit(tagByte & 0x0F, 16));
+    }
+
+    return buf.toString();
+  }
+
+ /**
+  * Get the offset of the first byte of the element in the buffer.
+  *
+  * @return The offset of the header
+  */
+  public int getHeaderOffset()
+  {
+    return headerOffset;
+  }
+
+ /**
+  * Get the offset of the first byte of the value in the buffer.
+  *
+  * @return The offset of the value
+  */
+  public int getValueOffset()
+  {
+    return valueOffset;
+  }
+
+ /**
+  * Get the length of the value. Indefinite lengths are returned as 0.
+  *
+  * @return The length of the value
+  */
+  public int getLength()
+  {
+    return length;
+  }
+
+ /**
+  * Tells us if the element uses the indefinite length form.
+  *
+  * @return true if the length is indefinite
+  */
+  public boolean isIndefiniteLength()
+  {
+    return indefiniteLength;
+  }
+}
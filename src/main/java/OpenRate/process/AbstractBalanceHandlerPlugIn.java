@@ -63,6 +63,7 @@ import OpenRate.lang.Counter;
 import OpenRate.lang.DiscountInformation;
 import OpenRate.record.BalanceImpact;
 import OpenRate.record.IRatingRecord;
+import OpenRate.record.IRecord;
 import OpenRate.resource.CacheFactory;
 import OpenRate.utils.PropertyUtils;
 
@@ -174,6 +175,46 @@ public abstract class AbstractBalanceHandlerPlugIn extends AbstractTransactional
     }
   }
 
+ /**
+  * Keep all the records of a balance group on the same lane in the
+  * partitioned parallel mode, so that the counters of a balance group are
+  * only updated by one thread.
+  *
+  * @param r The record we are working on
+  * @return The balance group of the record
+  */
+  @Override
+  public Object getPartitionKey(IRecord r)
+  {
+    return getBalanceGroupKey(r);
+  }
+
+ /**
+  * Get the ID of the balance group that the record impacts, without changing
+  * the record. This must be implemented to run the balance handling in the
+  * partitioned parallel mode.
+  *
+  * @param r The record we are working on
+  * @return The balance group ID, or null if the record impacts no balance
+  */
+  protected Long getBalanceGroupKey(IRecord r)
+  {
+    return null;
+  }
+
+ /**
+  * Balance handling is only safe in the partitioned parallel mode when
+  * getBalanceGroupKey() is implemented. Override this to return true in the
+  * plug-in that implements it.
+  *
+  * @return false, as the balance group is not known here
+  */
+  @Override
+  protected boolean supportsPartitioning()
+  {
+    return false;
+  }
+
   // -----------------------------------------------------------------------------
   // --------------- Start of transactional layer functions ----------------------
   // -----------------------------------------------------------------------------
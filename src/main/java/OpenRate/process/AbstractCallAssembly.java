@@ -57,17 +57,21 @@ package OpenRate.process;
 
 import OpenRate.cache.CallAssemblyCache;
 import OpenRate.cache.ICacheManager;
+import OpenRate.cache.ShardedObjectStore;
 import OpenRate.exception.InitializationException;
+import OpenRate.exception.ProcessingException;
 import OpenRate.lang.AssemblyCtx;
+import OpenRate.record.IRecord;
 import OpenRate.resource.CacheFactory;
 import OpenRate.utils.PropertyUtils;
+import java.util.Map;
 
 /**
  * This class provides the infrastructure for performing call assembly, which is
  * the process of collecting and aggregating partial records of long calls or
  * contexts.
  */
-public abstract class AbstractCallAssembly extends AbstractStubPlugIn
+public abstract class AbstractCallAssembly extends AbstractTransactionalPlugIn
 {
   // This is the object will be using the find the cache manager
   private ICacheManager CMP = null;
@@ -121,10 +125,162 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
     }
   }
 
+ /**
+  * Keep all the partials of a call on the same lane in the partitioned
+  * parallel mode, so that a call context is only updated by one thread.
+  *
+  * @param r The record we are working on
+  * @return The call ID of the record
+  */
+  @Override
+  public Object getPartitionKey(IRecord r)
+  {
+    return getCallID(r);
+  }
+
+ /**
+  * Get the call ID of a record without changing the record. This must be
+  * implemented to run the call assembly in the partitioned parallel mode.
+  *
+  * @param r The record we are working on
+  * @return The call ID, or null if the record is not part of a call
+  */
+  protected String getCallID(IRecord r)
+  {
+    return null;
+  }
+
+ /**
+  * The partials of a call only stay on one lane if getCallID() is
+  * implemented. A call assembly that implements it must override this to
+  * return true before it can run in the partitioned parallel mode.
+  *
+  * @return false, as the call ID is not known here
+  */
+  @Override
+  protected boolean supportsPartitioning()
+  {
+    return false;
+  }
+
+ /**
+  * Emit the records for the call assembly contexts that have expired from the
+  * cache in front of the trailer. Override this only if you call the super
+  * method.
+  *
+  * @param r The trailer record
+  * @return The unmodified trailer record
+  */
+  @Override
+  public IRecord procTrailer(IRecord r)
+  {
+    Map.Entry<String, Object> expired;
+
+    // the expired records go in front of the trailer
+    while ((expired = AssemblyDB.pollExpiredObject()) != null)
+    {
+      IRecord tmpRecord = procExpiredAssembly(expired.getKey(), (AssemblyCtx) expired.getValue());
+
+      if (tmpRecord != null)
+      {
+        emitRecord(tmpRecord);
+      }
+    }
+
+    // mark the transaction as flushed
+    return super.procTrailer(r);
+  }
+
+  // -----------------------------------------------------------------------------
+  // ------------------ Start of transaction layer functions ---------------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * See if we can start the transaction
+  *
+  * @param transactionNumber The number of the transaction
+  * @return 0 if the transaction can start
+  */
+  @Override
+  public int startTransaction(int transactionNumber)
+  {
+    return 0;
+  }
+
+ /**
+  * See if the transaction was flushed correctly
+  *
+  * @param transactionNumber The number of the transaction
+  * @return 0 if the transaction was flushed OK
+  */
+  @Override
+  public int flushTransaction(int transactionNumber)
+  {
+    return 0;
+  }
+
+ /**
+  * Write the contexts changed in the transaction to the journal of the cache,
+  * if it is persisted with a journal.
+  *
+  * @param transactionNumber The number of the transaction
+  */
+  @Override
+  public void commitTransaction(int transactionNumber)
+  {
+    try
+    {
+      AssemblyDB.commitTransaction(transactionNumber);
+    }
+    catch (ProcessingException pe)
+    {
+      getPipeLog().error("Could not commit journal in Plug In <" + getSymbolicName() + ">: " + pe.getMessage());
+      getExceptionHandler().reportException(pe);
+    }
+  }
+
+ /**
+  * Forget the contexts changed in the transaction, so that they are not
+  * written to the journal.
+  *
+  * @param transactionNumber The number of the transaction
+  */
+  @Override
+  public void rollbackTransaction(int transactionNumber)
+  {
+    AssemblyDB.rollbackTransaction(transactionNumber);
+  }
+
+ /**
+  * Nothing to clean up
+  *
+  * @param transactionNumber The number of the transaction
+  */
+  @Override
+  public void closeTransaction(int transactionNumber)
+  {
+    // Nothing
+  }
+
   // -----------------------------------------------------------------------------
   // ------------------- Start of custom Plug In functions -----------------------
   // -----------------------------------------------------------------------------
 
+ /**
+  * Handle a call assembly context that has expired from the cache because it
+  * passed its time to live. The default does nothing. Override this to return
+  * a record that is emitted into the stream before the next trailer, for
+  * example to close the call downstream.
+  *
+  * @param CallID The key of the expired call assembly context
+  * @param AssemblyContext The expired call assembly context
+  * @return The record to emit, or null for none
+  */
+  protected IRecord procExpiredAssembly(String CallID, AssemblyCtx AssemblyContext)
+  {
+    return null;
+  }
+
  /**
   * Start the call assembly of an object by opening the Context and setting
   * the state to the initialised state.
@@ -137,32 +293,36 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
   * @param startDate The UTC start date of this partial
   * @return true if ok, otherwise false
   */
-  protected boolean startAssembly(String CallID, double Duration, double Volume, double uplink, double downlink, long startDate)
+  protected boolean startAssembly(String CallID, final double Duration, final double Volume, final double uplink, final double downlink, final long startDate)
   {
-    AssemblyCtx newCtx;
-
-    // see if we already have the context
-    newCtx = (AssemblyCtx) AssemblyDB.getObject(CallID);
+    final boolean[] started = new boolean[1];
 
-    if (newCtx == null)
-    {
-      newCtx = new AssemblyCtx();
-      newCtx.totalDuration = Duration;
-      newCtx.totalData = Volume;
-      newCtx.uplink = uplink;
-      newCtx.downlink = downlink;
-      newCtx.StartDate = startDate;
-      newCtx.state = 1;
-
-      // store
-      AssemblyDB.putObject(CallID, newCtx);
-
-      return true;
-    }
-    else
+    // open the context, unless we already have it
+    AssemblyDB.updateTransObject(CallID, new ShardedObjectStore.Updater()
     {
-      return false;
-    }
+      @Override
+      public Object update(String key, Object value)
+      {
+        if (value != null)
+        {
+          return value;
+        }
+
+        AssemblyCtx newCtx = new AssemblyCtx();
+        newCtx.totalDuration = Duration;
+        newCtx.totalData = Volume;
+        newCtx.uplink = uplink;
+        newCtx.downlink = downlink;
+        newCtx.StartDate = startDate;
+        newCtx.state = 1;
+
+        started[0] = true;
+
+        return newCtx;
+      }
+    }, getTransactionNumber());
+
+    return started[0];
   }
 
  /**
@@ -177,28 +337,24 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
   * @param startDate The UTC start date of this partial
   * @return true if ok, otherwise false
   */
-  protected boolean continueAssembly(String CallID, double Duration, double Volume, double uplink, double downlink, long startDate)
+  protected boolean continueAssembly(String CallID, final double Duration, final double Volume, final double uplink, final double downlink, final long startDate)
   {
-    AssemblyCtx newCtx;
-
-    // get the existing context
-    newCtx = (AssemblyCtx) AssemblyDB.getObject(CallID);
+    final boolean[] updated = new boolean[1];
 
     // Update the existing context
-    if (newCtx == null)
-    {
-      return false;
-    }
-    else
+    AssemblyDB.updateTransObject(CallID, new ShardedObjectStore.Updater()
     {
-      // see if the state is right
-      if (newCtx.state == 3)
-      {
-        //already closed
-        return false;
-      }
-      else
+      @Override
+      public Object update(String key, Object value)
       {
+        AssemblyCtx newCtx = (AssemblyCtx) value;
+
+        // see if the state is right, and leave it alone if it is already closed
+        if (newCtx == null || newCtx.state == 3)
+        {
+          return newCtx;
+        }
+
         newCtx.totalDuration += Duration;
         newCtx.totalData += Volume;
         newCtx.uplink += uplink;
@@ -210,13 +366,14 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
         {
           newCtx.StartDate = startDate;
         }
-      }
-    }
 
-    // store
-    AssemblyDB.putObject(CallID, newCtx);
+        updated[0] = true;
 
-    return true;
+        return newCtx;
+      }
+    }, getTransactionNumber());
+
+    return updated[0];
   }
 
  /**
@@ -231,41 +388,38 @@ public abstract class AbstractCallAssembly extends AbstractStubPlugIn
   * @param startDate The UTC start date of this partial
   * @return true if ok, otherwise false
   */
-  protected boolean endAssembly(String CallID, double Duration, double Volume, double uplink, double downlink, long startDate)
+  protected boolean endAssembly(String CallID, final double Duration, final double Volume, final double uplink, final double downlink, final long startDate)
   {
-    AssemblyCtx newCtx;
-
-    // get the existing context
-    newCtx = (AssemblyCtx) AssemblyDB.getObject(CallID);
+    final boolean[] updated = new boolean[1];
 
     // Update the existing context
-    if (newCtx == null)
-    {
-      return false;
-    }
-    else
+    AssemblyDB.updateTransObject(CallID, new ShardedObjectStore.Updater()
     {
-      // see if the state is right
-      if (newCtx.state == 3)
-      {
-        //already closed
-        return false;
-      }
-      else
+      @Override
+      public Object update(String key, Object value)
       {
+        AssemblyCtx newCtx = (AssemblyCtx) value;
+
+        // see if the state is right, and leave it alone if it is already closed
+        if (newCtx == null || newCtx.state == 3)
+        {
+          return newCtx;
+        }
+
         newCtx.totalDuration += Duration;
         newCtx.totalData += Volume;
         newCtx.uplink += uplink;
         newCtx.downlink += downlink;
         newCtx.state = 3;
         newCtx.ClosedDate = startDate;
-      }
-    }
 
-    // store
-    AssemblyDB.putObject(CallID, newCtx);
+        updated[0] = true;
+
+        return newCtx;
+      }
+    }, getTransactionNumber());
 
-    return true;
+    return updated[0];
   }
 
   /**
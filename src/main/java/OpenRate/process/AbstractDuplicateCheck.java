@@ -65,7 +65,6 @@ import OpenRate.record.IRecord;
 import OpenRate.resource.CacheFactory;
 import OpenRate.utils.PropertyUtils;
 import java.util.Date;
-import java.util.GregorianCalendar;
 
 /**
  * This class provides the abstract base for an duplicate check
@@ -84,9 +83,6 @@ public abstract class AbstractDuplicateCheck
    */
   private DuplicateCheckCache DupCache = null;
 
-  // calendar object
-  private GregorianCalendar newCal;
-
   // Shows whether the check is active or not
   private boolean Active = true;
 
@@ -136,9 +132,46 @@ public abstract class AbstractDuplicateCheck
 
     // Get the reference to the Auth List
     DupCache = (DuplicateCheckCache)CMDupCache.get(CacheObjectName);
+  }
+
+ /**
+  * Keep all the records with the same duplicate key on the same lane in the
+  * partitioned parallel mode, so that a duplicate is always checked against
+  * the record that it duplicates by the same thread.
+  *
+  * @param r The record we are working on
+  * @return The duplicate key of the record
+  */
+  @Override
+  public Object getPartitionKey(IRecord r)
+  {
+    return getDuplicateKey(r);
+  }
+
+ /**
+  * Get the key that the record is checked for duplicates with (the IDData
+  * passed to CheckDuplicate()) without changing the record. This must be
+  * implemented to run the duplicate check in the partitioned parallel mode.
+  *
+  * @param r The record we are working on
+  * @return The duplicate key, or null if the record is not checked
+  */
+  protected String getDuplicateKey(IRecord r)
+  {
+    return null;
+  }
 
-    // Init the calendar object
-    newCal = new GregorianCalendar();
+ /**
+  * The duplicate check can only be partitioned when getDuplicateKey() is
+  * implemented, so a plug-in that implements it overrides this to return
+  * true.
+  *
+  * @return false, as the duplicate key is not known here
+  */
+  @Override
+  protected boolean supportsPartitioning()
+  {
+    return false;
   }
 
  /**
@@ -183,9 +216,9 @@ public abstract class AbstractDuplicateCheck
 
     if (Active)
     {
-      // Get the UTC time of the record
-      newCal.setTime(CDRDate);
-      UTCDate = newCal.getTimeInMillis()/1000;
+      // Get the UTC time of the record, without a shared calendar because the
+      // lanes of the partitioned mode check at the same time
+      UTCDate = CDRDate.getTime()/1000;
 
       return DupCache.DuplicateCheck(IDData,UTCDate,getTransactionNumber());
     }
@@ -258,7 +291,15 @@ public abstract class AbstractDuplicateCheck
   public void commitTransaction(int transactionNumber)
   {
     // Store the transaction results
-    DupCache.CommitTransaction(transactionNumber);
+    try
+    {
+      DupCache.CommitTransaction(transactionNumber);
+    }
+    catch (ProcessingException pe)
+    {
+      getPipeLog().error("Could not commit duplicate check data in Plug In <" + getSymbolicName() + ">: " + pe.getMessage());
+      getExceptionHandler().reportException(pe);
+    }
   }
 
  /**
@@ -58,9 +58,11 @@ package OpenRate.process;
 import OpenRate.cache.ICacheManager;
 import OpenRate.cache.PersistentIndexedObject;
 import OpenRate.exception.InitializationException;
+import OpenRate.exception.ProcessingException;
 import OpenRate.record.IRecord;
 import OpenRate.resource.CacheFactory;
 import OpenRate.utils.PropertyUtils;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -68,7 +70,7 @@ import java.util.Set;
  * and selection in one go. It uses information from three cache objects
  * to evaluate the logic candidate to use for the rating
  */
-public abstract class AbstractPersistentObjectProcess extends AbstractStubPlugIn
+public abstract class AbstractPersistentObjectProcess extends AbstractTransactionalPlugIn
 {
   // This is the object will be using the find the cache manager
   private ICacheManager CMP = null;
@@ -141,10 +143,123 @@ public abstract class AbstractPersistentObjectProcess extends AbstractStubPlugIn
   @Override
   public abstract IRecord procErrorRecord(IRecord r);
 
+ /**
+  * Emit the records for the objects that have expired from the cache in front
+  * of the trailer. Override this only if you call the super method.
+  *
+  * @param r The trailer record
+  * @return The unmodified trailer record
+  */
+  @Override
+  public IRecord procTrailer(IRecord r)
+  {
+    Map.Entry<String, Object> expired;
+
+    // the expired records go in front of the trailer
+    while ((expired = ObjectDB.pollExpiredObject()) != null)
+    {
+      IRecord tmpRecord = procExpiredObject(expired.getKey(), expired.getValue());
+
+      if (tmpRecord != null)
+      {
+        emitRecord(tmpRecord);
+      }
+    }
+
+    // mark the transaction as flushed
+    return super.procTrailer(r);
+  }
+
+  // -----------------------------------------------------------------------------
+  // ------------------ Start of transaction layer functions ---------------------
+  // -----------------------------------------------------------------------------
+
+ /**
+  * See if we can start the transaction
+  *
+  * @param transactionNumber The number of the transaction
+  * @return 0 if the transaction can start
+  */
+  @Override
+  public int startTransaction(int transactionNumber)
+  {
+    return 0;
+  }
+
+ /**
+  * See if the transaction was flushed correctly
+  *
+  * @param transactionNumber The number of the transaction
+  * @return 0 if the transaction was flushed OK
+  */
+  @Override
+  public int flushTransaction(int transactionNumber)
+  {
+    return 0;
+  }
+
+ /**
+  * Write the objects changed in the transaction to the journal of the cache,
+  * if it is persisted with a journal.
+  *
+  * @param transactionNumber The number of the transaction
+  */
+  @Override
+  public void commitTransaction(int transactionNumber)
+  {
+    try
+    {
+      ObjectDB.commitTransaction(transactionNumber);
+    }
+    catch (ProcessingException pe)
+    {
+      getPipeLog().error("Could not commit journal in Plug In <" + getSymbolicName() + ">: " + pe.getMessage());
+      getExceptionHandler().reportException(pe);
+    }
+  }
+
+ /**
+  * Forget the objects changed in the transaction, so that they are not
+  * written to the journal.
+  *
+  * @param transactionNumber The number of the transaction
+  */
+  @Override
+  public void rollbackTransaction(int transactionNumber)
+  {
+    ObjectDB.rollbackTransaction(transactionNumber);
+  }
+
+ /**
+  * Nothing to clean up
+  *
+  * @param transactionNumber The number of the transaction
+  */
+  @Override
+  public void closeTransaction(int transactionNumber)
+  {
+    // Nothing
+  }
+
   // -----------------------------------------------------------------------------
   // -------------------- Start of custom Plug In functions ----------------------
   // -----------------------------------------------------------------------------
 
+ /**
+  * Handle an object that has expired from the cache because it passed its
+  * time to live. The default does nothing. Override this to return a record
+  * that is emitted into the stream before the next trailer, so that the
+  * expiry can be handled downstream.
+  *
+  * @param ObjectKey The key of the expired object
+  * @param ObjectToExpire The expired object
+  * @return The record to emit, or null for none
+  */
+  protected IRecord procExpiredObject(String ObjectKey, Object ObjectToExpire)
+  {
+    return null;
+  }
+
  /**
   * Get an object from the cache
   *
@@ -163,7 +278,7 @@ public abstract class AbstractPersistentObjectProcess extends AbstractStubPlugIn
   */
   public void deleteObject(String ObjectKey)
   {
-    ObjectDB.deleteObject(ObjectKey);
+    ObjectDB.deleteTransObject(ObjectKey, getTransactionNumber());
   }
 
  /**
@@ -174,7 +289,7 @@ public abstract class AbstractPersistentObjectProcess extends AbstractStubPlugIn
   */
   public void putObject(String ObjectKey, Object objectToPut)
   {
-    ObjectDB.putObject(ObjectKey, objectToPut);
+    ObjectDB.putTransObject(ObjectKey, objectToPut, getTransactionNumber());
   }
 
  /**
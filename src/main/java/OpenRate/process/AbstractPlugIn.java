@@ -73,9 +73,12 @@ import OpenRate.record.HeaderRecord;
 import OpenRate.record.IRecord;
 import OpenRate.record.TrailerRecord;
 import OpenRate.utils.PropertyUtils;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The AbstractPlugIn provides a partially implemented PlugIn allowing simpler
@@ -103,11 +106,53 @@ public abstract class AbstractPlugIn
   private int     batchSize;
   
   private int     bufferSize;
+  private int     bufferLowWaterMark;
   private int     numThreads = 1;
 
+  // Parallel mode: if set, batches are re-sequenced on the way out
+  private boolean orderPreserving = false;
+
+  // Sequencing for the ordered parallel mode. Batches are numbered as they are
+  // pulled and may only be pushed when it is their turn. Batches holding a
+  // header or trailer are processed alone, after everything before them.
+  private final Object sequenceLock = new Object();
+  private long nextPullSequence = 0;
+  private long nextPushSequence = 0;
+  private boolean barrierInFlight = false;
+
+  // Partitioned mode: records are spread over single threaded lanes by key.
+  // Each lane thread registers itself while it is running.
+  private boolean partitioned = false;
+  private final AtomicInteger nextLane = new AtomicInteger(0);
+  private final ArrayList<Integer> liveLanes = new ArrayList<>();
+
+  // The lane the current thread works, and the state kept for each lane
+  private final ThreadLocal<Integer> currentLane = new ThreadLocal<>();
+  private final HashMap<Integer, Object> partitionStates = new HashMap<>();
+
+  // The batch the lanes are working on in the partitioned mode. The batch is
+  // worked in segments, split at the headers and trailers, and all lanes
+  // must finish a segment before the next one is opened.
+  private boolean batchInFlight = false;
+  private Collection<IRecord> partitionBatch;
+  private IRecord[] partitionRecords;
+  private int[] partitionLanes;
+  private int segmentStart;
+  private int segmentEnd;
+  private long segmentNumber = 0;
+  private int lanesPending = 0;
+  private int[] partitionLaneIds;
+  private long partitionBatchStart;
+
   // to make getting ad hoc configurations easier
   private HashMap<String,String> configurationParameters = new HashMap<>(10);
 
+  // The record each thread is processing, used to anchor emitted records
+  private final ThreadLocal<IRecord> currentRecord = new ThreadLocal<>();
+
+  // Records emitted by the processing, keyed by the record they go before
+  private final IdentityHashMap<IRecord, ArrayList<IRecord>> emittedRecords = new IdentityHashMap<>();
+
  /**
   * the shutdown flag needs to be volatile to ensure that each thread accesses
   * the correct value. The flag is used to trigger a thread exit.
@@ -121,12 +166,19 @@ public abstract class AbstractPlugIn
   private final static String SERVICE_BATCHSIZE  = CommonConfig.BATCH_SIZE;
   private final static String SERVICE_BUFFERSIZE = CommonConfig.BUFFER_SIZE;
   private final static String SERVICE_NUMTHREAD  = CommonConfig.NUM_PROCESSING_THREADS;
+  private final static String SERVICE_PARALLEL   = CommonConfig.PARALLEL_MODE;
   private final static String SERVICE_STATS      = CommonConfig.STATS;
   private final static String SERVICE_STATSRESET = CommonConfig.STATS_RESET;
   private final static String SERVICE_ACTIVE     = CommonConfig.ACTIVE;
   private final static String DEFAULT_BATCHSIZE  = CommonConfig.DEFAULT_BATCH_SIZE;
   private final static String DEFAULT_BUFFERSIZE = CommonConfig.DEFAULT_BUFFER_SIZE;
   private final static String DEFAULT_NUMTHREAD  = CommonConfig.NUM_PROCESSING_THREADS_DEFAULT;
+  private final static String DEFAULT_PARALLEL   = CommonConfig.PARALLEL_MODE_DEFAULT;
+
+  // Parallel mode values
+  private final static String PARALLEL_UNORDERED = "Unordered";
+  private final static String PARALLEL_ORDERED   = "Ordered";
+  private final static String PARALLEL_PARTITION = "Partitioned";
   private final static String DEFAULT_ACTIVE     = CommonConfig.DEFAULT_ACTIVE;
 
   //performance counters
@@ -179,6 +231,20 @@ public abstract class AbstractPlugIn
     processControlEvent(SERVICE_BUFFERSIZE, true, ConfigHelper);
     ConfigHelper = initGetNumThread();
     processControlEvent(SERVICE_NUMTHREAD, true, ConfigHelper);
+    ConfigHelper = initGetParallelMode();
+    if (ConfigHelper.equalsIgnoreCase(PARALLEL_PARTITION) && supportsPartitioning() == false)
+    {
+      message = "Plug in <" + getSymbolicName() + "> does not supply a partition key, so it " +
+                "cannot run in the <" + PARALLEL_PARTITION + "> parallel mode";
+      throw new InitializationException(message,getSymbolicName());
+    }
+    if (processControlEvent(SERVICE_PARALLEL, true, ConfigHelper).equals("OK") == false)
+    {
+      message = "Invalid parallel mode <" + ConfigHelper + "> in plugin <" +
+                getSymbolicName() + ">. Should be <" + PARALLEL_UNORDERED +
+                ">, <" + PARALLEL_ORDERED + "> or <" + PARALLEL_PARTITION + ">";
+      throw new InitializationException(message,getSymbolicName());
+    }
     ConfigHelper = initGetActive();
     processControlEvent(SERVICE_ACTIVE, true, ConfigHelper);
 
@@ -219,6 +285,18 @@ public abstract class AbstractPlugIn
   * processed in precedence to the batch events. This is achieved by processing
   * all real time events through the pipeline between each batch event. This
   * creates a very high priority path through the pipe for real time events.
+  *
+  * In the ordered parallel mode, the threads of the plugin number the batches
+  * as they pull them, and push them on strictly in that order. A batch that
+  * contains a header or trailer record is a barrier: it is processed only once
+  * all the batches before it have been pushed, and no later batch is pulled
+  * until it has been pushed itself. Note that this keeps the stream intact,
+  * but does not serialise the processing of the detail records, so the
+  * processing methods must still be thread safe.
+  *
+  * In the partitioned mode, each thread is a lane, and the records are
+  * distributed over the lanes according to their partition key. See
+  * processPartitioned().
   */
   @Override
   public void process()
@@ -227,6 +305,8 @@ public abstract class AbstractPlugIn
     long startTime;
     long endTime;
     long BatchTime;
+    long batchSequence;
+    boolean barrier;
 
     // processing list for batch events
     Collection<IRecord> in;
@@ -246,6 +326,12 @@ public abstract class AbstractPlugIn
       getExceptionHandler().reportException(new ProcessingException(message,getSymbolicName()));
     }
 
+    if (partitioned)
+    {
+      processPartitioned();
+      return;
+    }
+
     // main thread loop. This will not be exited until the thread is
     // ordered to shut down.
     while (true)
@@ -255,12 +341,48 @@ public abstract class AbstractPlugIn
       startTime = System.currentTimeMillis();
 
       // get the batch records to process
-      in = getBatchInbound().pull(getBatchSize());
+      batchSequence = -1;
+      barrier = false;
+      if (orderPreserving)
+      {
+        synchronized (sequenceLock)
+        {
+          // wait for any stream boundary to pass
+          while (barrierInFlight)
+          {
+            waitForSequence();
+          }
+
+          in = getBatchInbound().pull(getBatchSize());
+
+          if (in.size() > 0)
+          {
+            batchSequence = nextPullSequence++;
+            barrier = containsBarrier(in);
+
+            if (barrier)
+            {
+              // hold back later batches and let the earlier ones finish
+              barrierInFlight = true;
+              while (nextPushSequence != batchSequence)
+              {
+                waitForSequence();
+              }
+            }
+          }
+        }
+      }
+      else
+      {
+        in = getBatchInbound().pull(getBatchSize());
+      }
 
       int ThisBatchRecordCount = in.size();
 
       if (ThisBatchRecordCount > 0)
       {
+        try
+        {
         // If the active flag is set, we do the processing for real
         // if it is not set, we only manage the transaction
         if (    isActive())
@@ -272,81 +394,8 @@ public abstract class AbstractPlugIn
           // functions for each type (header, trailer, valid and error)
           while (iter.hasNext())
           {
-            try
-            {
-              // Get the formatted information from the record
-              IRecord r = iter.next();
-
-              // Trigger the correct user level functions according to the state of
-              // the record
-              if (r.isValid())
-              {
-                procValidRecord(r);
-              }
-              else
-              {
-                if (r.isErrored())
-                {
-                  procErrorRecord(r);
-                }
-                else
-                {
-                  if (r instanceof HeaderRecord)
-                  {
-                    r = procHeader(r);
-                    streamsProcessed++;
-                  }
-
-                  if (r instanceof TrailerRecord)
-                  {
-                    procTrailer(r);
-                  }
-                }
-              }
-            } // try
-            catch (ProcessingException pe)
-            {
-              getPipeLog().error("Processing exception caught in Plug In <" +
-                          getSymbolicName() + ">. See Error Log for the Stack Trace.");
-
-              getExceptionHandler().reportException(pe);
-            }
-            catch (ClassCastException cce)
-            {
-              getPipeLog().error("Record Class Cast exception caught in Plug In <" +
-                          getSymbolicName() + ">. See Error Log for the Stack Trace.");
-
-              getExceptionHandler().reportException(new ProcessingException(cce,getSymbolicName()));
-            }
-            catch (NullPointerException npe)
-            {
-              getPipeLog().error("Null pointer exception caught in Plug In <" +
-                          getSymbolicName() + ">. See Error Log for the Stack Trace.");
-
-              getExceptionHandler().reportException(new ProcessingException(npe,getSymbolicName()));
-            }
-            catch (ArrayIndexOutOfBoundsException aiob)
-            {
-              getPipeLog().error("Array Index Out of Bounds exception caught in Plug In <" +
-                          getSymbolicName() + ">. See Error Log for the Stack Trace.");
-
-              getExceptionHandler().reportException(new ProcessingException(aiob,getSymbolicName()));
-            }
-            catch (Exception ge)
-            {
-                getPipeLog().fatal("General exception caught in Plug In <" +
-                          getSymbolicName() + ">. See Error Log for the Stack Trace.");
-
-                getExceptionHandler().reportException(new ProcessingException(ge,getSymbolicName()));
-            }
-            catch (Throwable t)
-            {
-              getPipeLog().fatal("Unexpected exception caught in Plug In <" +
-                        getSymbolicName() + ">. See Error Log for the Stack Trace.");
-
-              getExceptionHandler().reportException(new ProcessingException(t,getSymbolicName()));
-              }
-            }
+            processRecord(iter.next());
+          }
           }
           else
           {
@@ -364,6 +413,7 @@ public abstract class AbstractPlugIn
                 {
                   // Get the formatted information from the record
                   IRecord r = iter.next();
+                  currentRecord.set(r);
 
                   // Trigger the correct user level functions according to the state of
                   // the record
@@ -420,33 +470,61 @@ public abstract class AbstractPlugIn
 
                 getExceptionHandler().reportException(new ProcessingException(t,getSymbolicName()));
                 }
+              finally
+              {
+                currentRecord.remove();
+              }
               } // while
             }
           }
 
-          getBatchOutbound().push(in);
-          OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> pushed <" + String.valueOf(ThisBatchRecordCount) + "> batch records to buffer <" + getBatchOutbound().toString() + ">");
-
-          outBufferCapacity = getBatchOutbound().getEventCount();
-
           endTime = System.currentTimeMillis();
           BatchTime = (endTime - startTime);
                 setProcessingTime(getProcessingTime() + BatchTime);
 
-          while (outBufferCapacity > getBufferSize())
+          // in the ordered mode, wait for our turn to push
+          if (batchSequence >= 0)
           {
-                    setBufferHits(getBufferHits() + 1);
-            OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> buffer high water mark! Buffer max = <" + getBufferSize() + "> current count = <" + outBufferCapacity + ">");
-            try
+            synchronized (sequenceLock)
             {
-              Thread.sleep(100);
+              while (nextPushSequence != batchSequence)
+              {
+                waitForSequence();
+              }
             }
-            catch (InterruptedException ex)
+          }
+
+          // add any records emitted by the processing
+          in = mergeEmittedRecords(in);
+
+          // push the records on, waiting for the downstream to catch up if
+          // we have gone over the high water mark
+          if (getBatchOutbound().push(in, getBufferSize(), getBufferLowWaterMark()))
+          {
+            setBufferHits(getBufferHits() + 1);
+            OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> buffer high water mark! Buffer max = <" + getBufferSize() + "> resumed at = <" + getBufferLowWaterMark() + ">");
+          }
+        }
+        finally
+        {
+          // hand the turn on to the next batch, even if we failed
+          if (batchSequence >= 0)
+          {
+            synchronized (sequenceLock)
             {
-              // Nothing
+              nextPushSequence++;
+              if (barrier)
+              {
+                barrierInFlight = false;
+              }
+              sequenceLock.notifyAll();
             }
-            outBufferCapacity = getBatchOutbound().getEventCount();
           }
+        }
+
+          OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> pushed <" + String.valueOf(ThisBatchRecordCount) + "> batch records to buffer <" + getBatchOutbound().toString() + ">");
+
+          outBufferCapacity = getBatchOutbound().getEventCount();
 
           OpenRate.getOpenRateStatsLog().info(
             "Plugin <" + Thread.currentThread().getName() + "> processed <" +
@@ -509,6 +587,11 @@ public abstract class AbstractPlugIn
     {
       notifyAll();
     }
+
+    synchronized (sequenceLock)
+    {
+      sequenceLock.notifyAll();
+    }
   }
 
   /**
@@ -521,6 +604,483 @@ public abstract class AbstractPlugIn
   {
     //log.debug("reset called on PlugIn <" + getSymbolicName() + ">");
     this.shutdownFlag = false;
+    nextLane.set(0);
+  }
+
+ /**
+  * Processing loop for the partitioned mode. Each thread of the plug-in takes
+  * a lane, and each record is processed by the lane that its partition key
+  * hashes to, so that all the records for a key are processed by the same
+  * thread, in order. Headers and trailers are processed on their own, after
+  * all of the records before them and before any of the records after them.
+  *
+  * The lanes work on one batch at a time: whichever lane finds no batch in
+  * progress pulls the next one, and the lane that finishes last pushes it on,
+  * so the batch leaves the plug-in in the order that it arrived. A batch is
+  * only spread over the lanes that are running when it is pulled, so a lane
+  * that starts later joins with the next batch, and a lane that has exited
+  * does not hold the batch up.
+  */
+  private void processPartitioned()
+  {
+    int lane = nextLane.getAndIncrement();
+    long laneSegment = -1;
+    IRecord[] records;
+    int[] lanes;
+    int start;
+    int end;
+
+    synchronized (sequenceLock)
+    {
+      liveLanes.add(lane);
+    }
+    currentLane.set(lane);
+
+    OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() +
+                   "> processing lane <" + lane + ">");
+
+    try
+    {
+      while (true)
+      {
+        synchronized (sequenceLock)
+        {
+          // wait for a segment we have not worked yet, or pull the next batch
+          while (true)
+          {
+            if (batchInFlight)
+            {
+              if ((segmentNumber != laneSegment) && isPartitionLane(lane))
+              {
+                break;
+              }
+            }
+            else
+            {
+              Collection<IRecord> in = getBatchInbound().pull(getBatchSize());
+
+              if (in.size() > 0)
+              {
+                startPartitionedBatch(in);
+                break;
+              }
+
+              if (shutdownFlag)
+              {
+                OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> shut down. Exiting.");
+                return;
+              }
+            }
+
+            waitForSequence();
+          }
+
+          laneSegment = segmentNumber;
+          records = partitionRecords;
+          lanes = partitionLanes;
+          start = segmentStart;
+          end = segmentEnd;
+        }
+
+        // work our share of the segment
+        for (int idx = start ; idx < end ; idx++)
+        {
+          if (lanes[idx] == lane)
+          {
+            IRecord r = records[idx];
+
+            if (isActive())
+            {
+              processRecord(r);
+            }
+            else if ((this instanceof AbstractTransactionalPlugIn) &&
+                     ((r instanceof HeaderRecord) || (r instanceof TrailerRecord)))
+            {
+              // inactive transactional modules still manage the transaction
+              processRecord(r);
+            }
+          }
+        }
+
+        finishSegment();
+      }
+    }
+    finally
+    {
+      synchronized (sequenceLock)
+      {
+        liveLanes.remove(Integer.valueOf(lane));
+      }
+      currentLane.remove();
+    }
+  }
+
+ /**
+  * Tell us if a lane takes part in the batch in flight. Must be called holding
+  * the sequence lock.
+  *
+  * @param lane The lane
+  * @return true if the lane works the batch
+  */
+  private boolean isPartitionLane(int lane)
+  {
+    for (int laneId : partitionLaneIds)
+    {
+      if (laneId == lane)
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+ /**
+  * Set up a newly pulled batch for the lanes, and open its first segment. Must
+  * be called holding the sequence lock.
+  *
+  * @param in The batch to work
+  */
+  private void startPartitionedBatch(Collection<IRecord> in)
+  {
+    partitionBatchStart = System.currentTimeMillis();
+
+    // spread the batch over the lanes that are running now
+    partitionLaneIds = new int[liveLanes.size()];
+    for (int idx = 0 ; idx < partitionLaneIds.length ; idx++)
+    {
+      partitionLaneIds[idx] = liveLanes.get(idx);
+    }
+    int laneCount = partitionLaneIds.length;
+
+    partitionBatch = in;
+    partitionRecords = in.toArray(new IRecord[in.size()]);
+    partitionLanes = new int[partitionRecords.length];
+
+    for (int idx = 0 ; idx < partitionRecords.length ; idx++)
+    {
+      IRecord r = partitionRecords[idx];
+
+      if ((r instanceof HeaderRecord) || (r instanceof TrailerRecord))
+      {
+        // stream boundaries are always processed by the first lane
+        partitionLanes[idx] = partitionLaneIds[0];
+      }
+      else
+      {
+        Object key = getPartitionKey(r);
+
+        if (key == null)
+        {
+          partitionLanes[idx] = partitionLaneIds[idx % laneCount];
+        }
+        else
+        {
+          partitionLanes[idx] = partitionLaneIds[(key.hashCode() & Integer.MAX_VALUE) % laneCount];
+        }
+      }
+    }
+
+    batchInFlight = true;
+    openSegment(0);
+  }
+
+ /**
+  * Open the segment of the current batch that starts at the given index. A
+  * header or trailer is a segment of its own, otherwise the segment runs up
+  * to the next header or trailer. Must be called holding the sequence lock.
+  *
+  * @param start The index of the first record of the segment
+  */
+  private void openSegment(int start)
+  {
+    segmentStart = start;
+    segmentEnd = start + 1;
+
+    IRecord r = partitionRecords[start];
+    if (((r instanceof HeaderRecord) || (r instanceof TrailerRecord)) == false)
+    {
+      while ((segmentEnd < partitionRecords.length) &&
+             ((partitionRecords[segmentEnd] instanceof HeaderRecord) == false) &&
+             ((partitionRecords[segmentEnd] instanceof TrailerRecord) == false))
+      {
+        segmentEnd++;
+      }
+    }
+
+    lanesPending = partitionLaneIds.length;
+    segmentNumber++;
+    sequenceLock.notifyAll();
+  }
+
+ /**
+  * Mark the current segment as done for this lane. The last lane to finish
+  * opens the next segment, or pushes the batch on if it was the last one.
+  */
+  private void finishSegment()
+  {
+    Collection<IRecord> out;
+    long startTime;
+
+    synchronized (sequenceLock)
+    {
+      lanesPending--;
+
+      if (lanesPending > 0)
+      {
+        return;
+      }
+
+      if (segmentEnd < partitionRecords.length)
+      {
+        openSegment(segmentEnd);
+        return;
+      }
+
+      out = mergeEmittedRecords(partitionBatch);
+      startTime = partitionBatchStart;
+    }
+
+    // the batch is complete, so push it on in its original order
+    try
+    {
+      long BatchTime = System.currentTimeMillis() - startTime;
+      setProcessingTime(getProcessingTime() + BatchTime);
+
+      if (getBatchOutbound().push(out, getBufferSize(), getBufferLowWaterMark()))
+      {
+        setBufferHits(getBufferHits() + 1);
+        OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> buffer high water mark! Buffer max = <" + getBufferSize() + "> resumed at = <" + getBufferLowWaterMark() + ">");
+      }
+
+      outBufferCapacity = getBatchOutbound().getEventCount();
+
+      OpenRate.getOpenRateStatsLog().info(
+        "Plugin <" + Thread.currentThread().getName() + "> processed <" +
+        String.valueOf(out.size()) + "> events in <" + BatchTime + "> ms" );
+
+      setBatchRecordsProcessed(getBatchRecordsProcessed() + out.size());
+    }
+    finally
+    {
+      synchronized (sequenceLock)
+      {
+        batchInFlight = false;
+        partitionBatch = null;
+        partitionRecords = null;
+        partitionLanes = null;
+        sequenceLock.notifyAll();
+      }
+    }
+  }
+
+ /**
+  * Process a single record, triggering the processing function for its type
+  * (header, trailer, valid or error). Any exception is reported to the
+  * exception handler of the pipeline.
+  *
+  * @param r The record to process
+  */
+  private void processRecord(IRecord r)
+  {
+    currentRecord.set(r);
+
+    try
+    {
+      // Trigger the correct user level functions according to the state of
+      // the record
+      if (r.isValid())
+      {
+        procValidRecord(r);
+      }
+      else
+      {
+        if (r.isErrored())
+        {
+          procErrorRecord(r);
+        }
+        else
+        {
+          if (r instanceof HeaderRecord)
+          {
+            r = procHeader(r);
+            streamsProcessed++;
+          }
+
+          if (r instanceof TrailerRecord)
+          {
+            procTrailer(r);
+          }
+        }
+      }
+    } // try
+    catch (ProcessingException pe)
+    {
+      getPipeLog().error("Processing exception caught in Plug In <" +
+                  getSymbolicName() + ">. See Error Log for the Stack Trace.");
+
+      getExceptionHandler().reportException(pe);
+    }
+    catch (ClassCastException cce)
+    {
+      getPipeLog().error("Record Class Cast exception caught in Plug In <" +
+                  getSymbolicName() + ">. See Error Log for the Stack Trace.");
+
+      getExceptionHandler().reportException(new ProcessingException(cce,getSymbolicName()));
+    }
+    catch (NullPointerException npe)
+    {
+      getPipeLog().error("Null pointer exception caught in Plug In <" +
+                  getSymbolicName() + ">. See Error Log for the Stack Trace.");
+
+      getExceptionHandler().reportException(new ProcessingException(npe,getSymbolicName()));
+    }
+    catch (ArrayIndexOutOfBoundsException aiob)
+    {
+      getPipeLog().error("Array Index Out of Bounds exception caught in Plug In <" +
+                  getSymbolicName() + ">. See Error Log for the Stack Trace.");
+
+      getExceptionHandler().reportException(new ProcessingException(aiob,getSymbolicName()));
+    }
+    catch (Exception ge)
+    {
+        getPipeLog().fatal("General exception caught in Plug In <" +
+                  getSymbolicName() + ">. See Error Log for the Stack Trace.");
+
+        getExceptionHandler().reportException(new ProcessingException(ge,getSymbolicName()));
+    }
+    catch (Throwable t)
+    {
+      getPipeLog().fatal("Unexpected exception caught in Plug In <" +
+                getSymbolicName() + ">. See Error Log for the Stack Trace.");
+
+      getExceptionHandler().reportException(new ProcessingException(t,getSymbolicName()));
+    }
+    finally
+    {
+      currentRecord.remove();
+    }
+  }
+
+ /**
+  * Emit a new record into the stream. The record is placed immediately before
+  * the record being processed, so a record emitted while processing a trailer
+  * is still part of the transaction. The emitted record is not processed by
+  * this plug in, only by the ones downstream of it.
+  *
+  * This can only be called from the record processing functions
+  * (procValidRecord, procErrorRecord, procHeader, procTrailer).
+  *
+  * @param newRecord The record to emit
+  */
+  protected void emitRecord(IRecord newRecord)
+  {
+    IRecord anchor = currentRecord.get();
+
+    if (anchor == null)
+    {
+      throw new IllegalStateException("Plug In <" + getSymbolicName() +
+                                      "> can only emit records while processing a record");
+    }
+
+    synchronized (emittedRecords)
+    {
+      ArrayList<IRecord> tmpList = emittedRecords.get(anchor);
+
+      if (tmpList == null)
+      {
+        tmpList = new ArrayList<>();
+        emittedRecords.put(anchor, tmpList);
+      }
+
+      tmpList.add(newRecord);
+    }
+  }
+
+ /**
+  * Put the records emitted while processing a batch into the batch, each in
+  * front of the record that was being processed when it was emitted.
+  *
+  * @param batch The processed batch
+  * @return The batch with the emitted records
+  */
+  private Collection<IRecord> mergeEmittedRecords(Collection<IRecord> batch)
+  {
+    synchronized (emittedRecords)
+    {
+      if (emittedRecords.isEmpty())
+      {
+        return batch;
+      }
+
+      ArrayList<IRecord> merged = null;
+
+      for (IRecord r : batch)
+      {
+        ArrayList<IRecord> tmpList = emittedRecords.remove(r);
+
+        if (tmpList != null && merged == null)
+        {
+          // copy the records we have already passed
+          merged = new ArrayList<>(batch.size() + tmpList.size());
+          for (IRecord earlier : batch)
+          {
+            if (earlier == r)
+            {
+              break;
+            }
+            merged.add(earlier);
+          }
+        }
+
+        if (merged != null)
+        {
+          if (tmpList != null)
+          {
+            merged.addAll(tmpList);
+          }
+          merged.add(r);
+        }
+      }
+
+      return (merged == null) ? batch : merged;
+    }
+  }
+
+ /**
+  * Wait for the sequence state of the ordered parallel mode to change. Must be
+  * called holding the sequence lock.
+  */
+  private void waitForSequence()
+  {
+    try
+    {
+      sequenceLock.wait();
+    }
+    catch (InterruptedException e)
+    {
+      // ignore interrupt exceptions
+    }
+  }
+
+ /**
+  * Check if a batch contains a stream boundary (header or trailer record),
+  * which must not be overtaken in the ordered parallel mode.
+  *
+  * @param in The batch to check
+  * @return true if the batch contains a header or trailer
+  */
+  private boolean containsBarrier(Collection<IRecord> in)
+  {
+    for (IRecord r : in)
+    {
+      if ((r instanceof HeaderRecord) || (r instanceof TrailerRecord))
+      {
+        return true;
+      }
+    }
+
+    return false;
   }
 
 // -----------------------------------------------------------------------------
@@ -563,6 +1123,18 @@ public abstract class AbstractPlugIn
     return tmpValue;
   }
 
+ /**
+  * Temporary function to gather the information from the properties file. Will
+  * be removed with the introduction of the new configuration model.
+  */
+  private String initGetParallelMode() throws InitializationException
+  {
+    String tmpValue;
+
+    tmpValue = PropertyUtils.getPropertyUtils().getPluginPropertyValueDef(getPipeName(),symbolicName,SERVICE_PARALLEL, DEFAULT_PARALLEL);
+    return tmpValue;
+  }
+
  /**
   * Temporary function to gather the information from the properties file. Will
   * be removed with the introduction of the new configuration model.
@@ -629,6 +1201,15 @@ public abstract class AbstractPlugIn
     {
       notifyAll();
     }
+
+    // lanes in the partitioned mode wait on the sequence lock
+    if (partitioned)
+    {
+      synchronized (sequenceLock)
+      {
+        sequenceLock.notifyAll();
+      }
+    }
   }
 
 // -----------------------------------------------------------------------------
@@ -676,6 +1257,97 @@ public abstract class AbstractPlugIn
   */
   public abstract IRecord procTrailer(IRecord r);
 
+ /**
+  * This is called in the partitioned parallel mode to find the lane that a
+  * record must be processed in. All records of a batch with the same key are
+  * processed by the same thread, in the order that they arrived, and the
+  * batches are processed one after the other, so stateful modules
+  * should return the key of their state here (e.g. the call ID for call
+  * assembly, the balance group for balance handling). Records for which null
+  * is returned do not touch any keyed state, and are spread over the lanes.
+  *
+  * The method is called for the whole batch before the lanes start, so it
+  * must not change the record or any state.
+  *
+  * @param r The record we are working on
+  * @return The partition key, or null if the record can go to any lane
+  */
+  public Object getPartitionKey(IRecord r)
+  {
+    return null;
+  }
+
+ /**
+  * Create the state of a lane in the partitioned parallel mode. Override this
+  * to keep state that is only touched by the records of one lane, and so
+  * needs no locking. The state is created the first time that the lane asks
+  * for it with getPartitionState().
+  *
+  * @return The new state
+  */
+  protected Object createPartitionState()
+  {
+    return null;
+  }
+
+ /**
+  * Get the state of the lane processing the current record. Outside of the
+  * partitioned mode there is a single state, shared by all threads.
+  *
+  * @return The state of the lane
+  */
+  protected Object getPartitionState()
+  {
+    Integer lane = currentLane.get();
+
+    if (lane == null)
+    {
+      lane = -1;
+    }
+
+    synchronized (partitionStates)
+    {
+      Object state = partitionStates.get(lane);
+
+      if (state == null)
+      {
+        state = createPartitionState();
+        partitionStates.put(lane, state);
+      }
+
+      return state;
+    }
+  }
+
+ /**
+  * Get the states of all the lanes, for example to write them out when a
+  * trailer is processed. As headers and trailers are processed while all
+  * other lanes are idle, the states can be used safely there.
+  *
+  * @return The states of the lanes
+  */
+  protected Collection<Object> getPartitionStates()
+  {
+    synchronized (partitionStates)
+    {
+      return new ArrayList<>(partitionStates.values());
+    }
+  }
+
+ /**
+  * Say if the plug-in can run in the partitioned parallel mode. Stateful
+  * plug-ins must return the key of their state from getPartitionKey() to run
+  * in it, otherwise the records for the same key would be processed by
+  * different lanes at the same time. The keyed base classes return false
+  * until the concrete plug-in supplies the key and overrides this.
+  *
+  * @return true if the plug-in can run in the partitioned mode
+  */
+  protected boolean supportsPartitioning()
+  {
+    return true;
+  }
+
  /**
   * This is called when a RT data record is encountered. You should do any normal
   * processing here. For most purposes this is steered to the normal (batch)
@@ -824,6 +1496,7 @@ public abstract class AbstractPlugIn
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_BATCHSIZE,  ClientManager.PARAM_MANDATORY);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_BUFFERSIZE, ClientManager.PARAM_MANDATORY);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_NUMTHREAD,  ClientManager.PARAM_NONE);
+    ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_PARALLEL,   ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_STATS,      ClientManager.PARAM_NONE);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_STATSRESET, ClientManager.PARAM_DYNAMIC);
     ClientManager.getClientManager().registerClientService(getSymbolicName(), SERVICE_ACTIVE,     ClientManager.PARAM_DYNAMIC);
@@ -867,18 +1540,42 @@ public abstract class AbstractPlugIn
       }
     }
 
-    // Set the batch size
+    // Set the buffer size. This is either the high water mark on its own, or
+    // the high and the low water mark in the form "high:low"
     if (Command.equalsIgnoreCase(SERVICE_BUFFERSIZE))
     {
       if (Parameter.equals(""))
       {
-        return Integer.toString(getBufferSize());
+        if (getBufferLowWaterMark() == getBufferSize())
+        {
+          return Integer.toString(getBufferSize());
+        }
+        else
+        {
+          return Integer.toString(getBufferSize()) + ":" + Integer.toString(getBufferLowWaterMark());
+        }
       }
       else
       {
         try
         {
-                    setBufferSize(Integer.parseInt(Parameter));
+          String[] waterMarks = Parameter.split(":");
+          int highWaterMark = Integer.parseInt(waterMarks[0].trim());
+          int lowWaterMark = highWaterMark;
+
+          if (waterMarks.length > 1)
+          {
+            lowWaterMark = Integer.parseInt(waterMarks[1].trim());
+          }
+
+          if (lowWaterMark > highWaterMark)
+          {
+            getPipeLog().error("Buffer low water mark <" + lowWaterMark + "> is above the high water mark <" + highWaterMark + ">. Using the high water mark.");
+            lowWaterMark = highWaterMark;
+          }
+
+          setBufferSize(highWaterMark);
+          setBufferLowWaterMark(lowWaterMark);
         }
         catch (NumberFormatException nfe)
         {
@@ -947,6 +1644,41 @@ public abstract class AbstractPlugIn
       }
     }
 
+    if (Command.equalsIgnoreCase(SERVICE_PARALLEL))
+    {
+      if (Parameter.equals(""))
+      {
+        if (partitioned)
+        {
+          return PARALLEL_PARTITION;
+        }
+
+        return orderPreserving ? PARALLEL_ORDERED : PARALLEL_UNORDERED;
+      }
+      else if (Init == false)
+      {
+        return CommonConfig.NON_DYNAMIC_PARAM;
+      }
+      else if (Parameter.equalsIgnoreCase(PARALLEL_ORDERED))
+      {
+        orderPreserving = true;
+        partitioned = false;
+        ResultCode = 0;
+      }
+      else if (Parameter.equalsIgnoreCase(PARALLEL_PARTITION) && supportsPartitioning())
+      {
+        orderPreserving = false;
+        partitioned = true;
+        ResultCode = 0;
+      }
+      else if (Parameter.equalsIgnoreCase(PARALLEL_UNORDERED))
+      {
+        orderPreserving = false;
+        partitioned = false;
+        ResultCode = 0;
+      }
+    }
+
     // Reset the Statistics
     if (Command.equalsIgnoreCase(SERVICE_ACTIVE))
     {
@@ -1075,6 +1807,20 @@ public abstract class AbstractPlugIn
         this.bufferSize = bufferSize;
     }
 
+    /**
+     * @return the buffer low water mark, at which a blocked push continues
+     */
+    public int getBufferLowWaterMark() {
+        return bufferLowWaterMark;
+    }
+
+    /**
+     * @param bufferLowWaterMark the buffer low water mark to set
+     */
+    public void setBufferLowWaterMark(int bufferLowWaterMark) {
+        this.bufferLowWaterMark = bufferLowWaterMark;
+    }
+
     /**
      * @return the batchRecordsProcessed
      */
@@ -1205,6 +1951,49 @@ public abstract class AbstractPlugIn
     return this.numThreads;
   }
 
+  /**
+   * Set whether the threads of this plug-in must preserve the order of the
+   * batches (ordered parallel mode).
+   *
+   * @param orderPreserving true to re-sequence the output of the threads
+   */
+  public void setOrderPreserving(boolean orderPreserving)
+  {
+    this.orderPreserving = orderPreserving;
+  }
+
+  /**
+   * Return whether the threads of this plug-in preserve the order of the
+   * batches.
+   *
+   * @return true if the ordered parallel mode is in use
+   */
+  public boolean isOrderPreserving()
+  {
+    return orderPreserving;
+  }
+
+  /**
+   * Set whether the threads of this plug-in work as lanes, with the records
+   * distributed over them by partition key (partitioned parallel mode).
+   *
+   * @param partitioned true to use the partitioned mode
+   */
+  public void setPartitioned(boolean partitioned)
+  {
+    this.partitioned = partitioned;
+  }
+
+  /**
+   * Return whether the threads of this plug-in work as partitioned lanes.
+   *
+   * @return true if the partitioned parallel mode is in use
+   */
+  public boolean isPartitioned()
+  {
+    return partitioned;
+  }
+
  /**
   * Return whether we have been asked to shutdown.
   *
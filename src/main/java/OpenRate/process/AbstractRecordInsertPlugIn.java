@@ -192,32 +192,20 @@ public abstract class AbstractRecordInsertPlugIn extends AbstractPlugIn
           }
         }
 
-        // Push the list we constructed, not the original batch
-        getBatchOutbound().push(outTemp);
-
-        OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> pushed <" + String.valueOf(ThisBatchRecordCount) + "> batch records to buffer <" + getBatchOutbound().toString() + ">");
-
-        int outBufferCapacity = getBatchOutbound().getEventCount();
-
         endTime = System.currentTimeMillis();
         BatchTime = (endTime - startTime);
         updateProcessingTime(BatchTime);
 
-        while (outBufferCapacity > getBufferSize())
+        // Push the list we constructed, not the original batch, waiting for
+        // the downstream to catch up if we have gone over the high water mark
+        if (getBatchOutbound().push(outTemp, getBufferSize(), getBufferLowWaterMark()))
         {
           incBufferHits();
-          OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> buffer high water mark! Buffer max = <" + getBufferSize() + "> current count = <" + outBufferCapacity + ">");
-          try
-          {
-            Thread.sleep(100);
-          }
-          catch (InterruptedException ex)
-          {
-            // Nothing
-          }
-          outBufferCapacity = getBatchOutbound().getEventCount();
+          OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> buffer high water mark! Buffer max = <" + getBufferSize() + "> resumed at = <" + getBufferLowWaterMark() + ">");
         }
 
+        OpenRate.getOpenRateStatsLog().debug("PlugIn <" + Thread.currentThread().getName() + "> pushed <" + String.valueOf(ThisBatchRecordCount) + "> batch records to buffer <" + getBatchOutbound().toString() + ">");
+
         OpenRate.getOpenRateStatsLog().info(
           "Plugin <" + Thread.currentThread().getName() + "> processed <" +
           String.valueOf(ThisBatchRecordCount) + "> events in <" + BatchTime + "> ms" );
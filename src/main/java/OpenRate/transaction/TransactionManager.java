@@ -276,6 +276,9 @@ public class TransactionManager implements ITransactionManager, IEventInterface
 
     // Maintain the count
     activeTransactionCount--;
+
+    // A transaction slot has become free, so the pipe can start new work
+    getPipeline().signalWorkAvailable();
  }
 
  /**
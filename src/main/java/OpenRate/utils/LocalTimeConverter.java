@@ -0,0 +1,291 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.utils;
+
+import java.util.TimeZone;
+
+/**
+ * Converts UTC times in seconds to the local wall clock time of a time zone
+ * without using a Calendar for each conversion.
+ *
+ * The offset of the zone is cached together with the range of time over which
+ * it is valid. The range is at most the UTC day around the time that needed
+ * it: we look at the offset at the start and end of that day, and if it
+ * changes inside the day we find the change to the second by bisection. Calls
+ * inside the cached range only cost a compare and an add, and leaving it
+ * costs three time zone lookups, or about twenty on a change day. Two
+ * changes in a single day are not supported.
+ *
+ * Each thread keeps its own cached range, so a converter can be shared by
+ * many threads working on records of different days without them replacing
+ * each other's range.
+ */
+public class LocalTimeConverter
+{
+  // The number of seconds in a day
+  private static final long SECONDS_PER_DAY = 86400;
+
+  // 1 January 1970 was a Thursday
+  private static final int EPOCH_DAY_OF_WEEK = 4;
+
+  // The zone we convert to
+  private final TimeZone zone;
+
+  // An offset and the range of UTC seconds [from, to) it is valid for
+  private static final class OffsetRange
+  {
+    final long from;
+    final long to;
+    final int offset;
+
+    OffsetRange(long from, long to, int offset)
+    {
+      this.from = from;
+      this.to = to;
+      this.offset = offset;
+    }
+  }
+
+  // The last range each thread found
+  private final ThreadLocal<OffsetRange> cachedRange = new ThreadLocal<OffsetRange>()
+  {
+    @Override
+    protected OffsetRange initialValue()
+    {
+      return new OffsetRange(0, 0, 0);
+    }
+  };
+
+ /**
+  * Create a converter for the given time zone.
+  *
+  * @param zone The time zone of the local times
+  */
+  public LocalTimeConverter(TimeZone zone)
+  {
+    this.zone = (TimeZone) zone.clone();
+  }
+
+ /**
+  * Get the time zone we convert to.
+  *
+  * @return The time zone
+  */
+  public TimeZone getZone()
+  {
+    return zone;
+  }
+
+ /**
+  * Get the offset of local time from UTC at a given time.
+  *
+  * @param utcSeconds The UTC time in seconds
+  * @return The offset in seconds
+  */
+  public int getOffset(long utcSeconds)
+  {
+    OffsetRange range = cachedRange.get();
+
+    if (utcSeconds < range.from || utcSeconds >= range.to)
+    {
+      range = findRange(utcSeconds);
+      cachedRange.set(range);
+    }
+
+    return range.offset;
+  }
+
+ /**
+  * Convert a UTC time to local wall clock time, counted in seconds from
+  * 1 January 1970 00:00 local time.
+  *
+  * @param utcSeconds The UTC time in seconds
+  * @return The local time in seconds
+  */
+  public long toLocal(long utcSeconds)
+  {
+    return utcSeconds + getOffset(utcSeconds);
+  }
+
+ /**
+  * Get the UTC time of the local midnight that starts the local day of the
+  * given time.
+  *
+  * @param utcSeconds The UTC time in seconds
+  * @return The UTC time of the start of the local day
+  */
+  public long getStartOfDay(long utcSeconds)
+  {
+    long localMidnight = toLocal(utcSeconds);
+    localMidnight -= floorMod(localMidnight, SECONDS_PER_DAY);
+
+    // use the offset in force at midnight, which can differ on change days
+    long utcMidnight = localMidnight - getOffset(utcSeconds);
+    return localMidnight - getOffset(utcMidnight);
+  }
+
+ /**
+  * Get the day of the week of a local time, 0 (Sunday) to 6 (Saturday).
+  *
+  * @param localSeconds The local time in seconds
+  * @return The day of the week
+  */
+  public static int getDayOfWeek(long localSeconds)
+  {
+    long day = floorDiv(localSeconds, SECONDS_PER_DAY);
+    return (int) floorMod(day + EPOCH_DAY_OF_WEEK, 7);
+  }
+
+ /**
+  * Get the minute of the day of a local time, 0 to 1439.
+  *
+  * @param localSeconds The local time in seconds
+  * @return The minute of the day
+  */
+  public static int getMinuteOfDay(long localSeconds)
+  {
+    return (int) (floorMod(localSeconds, SECONDS_PER_DAY) / 60);
+  }
+
+ /**
+  * Get the second of the minute of a local time, 0 to 59.
+  *
+  * @param localSeconds The local time in seconds
+  * @return The second of the minute
+  */
+  public static int getSecondOfMinute(long localSeconds)
+  {
+    return (int) floorMod(localSeconds, 60);
+  }
+
+ /**
+  * Work out the range of time around the given time with the same offset,
+  * within the UTC day of the time.
+  */
+  private OffsetRange findRange(long utcSeconds)
+  {
+    int offset = offsetAt(utcSeconds);
+    long dayStart = utcSeconds - floorMod(utcSeconds, SECONDS_PER_DAY);
+    long dayEnd = dayStart + SECONDS_PER_DAY;
+    long from = dayStart;
+    long to = dayEnd;
+
+    if (offsetAt(dayStart) != offset)
+    {
+      from = findChange(dayStart, utcSeconds);
+    }
+
+    if (offsetAt(dayEnd - 1) != offset)
+    {
+      to = findChange(utcSeconds, dayEnd - 1);
+    }
+
+    return new OffsetRange(from, to, offset);
+  }
+
+ /**
+  * Find the first second after low at which the offset is the one at high,
+  * given that it is different at low.
+  */
+  private long findChange(long low, long high)
+  {
+    int highOffset = offsetAt(high);
+
+    while (high - low > 1)
+    {
+      long mid = low + (high - low) / 2;
+
+      if (offsetAt(mid) == highOffset)
+      {
+        high = mid;
+      }
+      else
+      {
+        low = mid;
+      }
+    }
+
+    return high;
+  }
+
+  private int offsetAt(long utcSeconds)
+  {
+    return zone.getOffset(utcSeconds * 1000) / 1000;
+  }
+
+  private static long floorDiv(long value, long divisor)
+  {
+    long result = value / divisor;
+
+    if ((value % divisor) < 0)
+    {
+      result--;
+    }
+
+    return result;
+  }
+
+  private static long floorMod(long value, long divisor)
+  {
+    long result = value % divisor;
+
+    if (result < 0)
+    {
+      result += divisor;
+    }
+
+    return result;
+  }
+}
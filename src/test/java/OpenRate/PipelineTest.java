@@ -0,0 +1,170 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate;
+
+import org.junit.*;
+
+/**
+ * Tests the idle handling of the pipeline scheduler.
+ */
+public class PipelineTest {
+
+  public PipelineTest() {
+  }
+
+  /**
+   * Signal the pipe from another thread after the given delay.
+   */
+  private Thread signalLater(final Pipeline instance, final long delay) {
+    Thread signaller = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ex) {
+          // ignore
+        }
+        instance.signalWorkAvailable();
+      }
+    };
+    signaller.start();
+    return signaller;
+  }
+
+  /**
+   * Test that in the event driven schedule a signal wakes the waiting pipe
+   * long before the timeout, of class Pipeline.
+   */
+  @Test
+  public void testEventWakeup() throws InterruptedException {
+    System.out.println("eventWakeup");
+
+    Pipeline instance = new Pipeline();
+    instance.setEventScheduler(true);
+
+    long start = System.currentTimeMillis();
+    Thread signaller = signalLater(instance, 100);
+    Assert.assertTrue(instance.waitForWork(30000));
+    signaller.join();
+
+    Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+
+    // with no signal we wait for the timeout
+    Assert.assertFalse(instance.waitForWork(50));
+  }
+
+  /**
+   * Test that a signal given before the pipe starts waiting is not lost, of
+   * class Pipeline.
+   */
+  @Test
+  public void testSignalBeforeWait() {
+    System.out.println("signalBeforeWait");
+
+    Pipeline instance = new Pipeline();
+    instance.setEventScheduler(true);
+
+    instance.signalWorkAvailable();
+
+    long start = System.currentTimeMillis();
+    Assert.assertTrue(instance.waitForWork(30000));
+    Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+  }
+
+  /**
+   * Test that the wakeups are counted in the scheduler statistics, of class
+   * Pipeline.
+   */
+  @Test
+  public void testSchedulerStats() {
+    System.out.println("schedulerStats");
+
+    Pipeline instance = new Pipeline();
+    instance.setEventScheduler(true);
+
+    instance.waitForWork(20);
+    instance.waitForWork(20);
+    instance.signalWorkAvailable();
+    instance.waitForWork(20);
+
+    // busy time:idle time:signal wakeups:timeout wakeups
+    String[] stats = instance.processControlEvent("SchedulerStats", false, "").split(":");
+    Assert.assertEquals(4, stats.length);
+    Assert.assertTrue(Long.parseLong(stats[1]) >= 40);
+    Assert.assertEquals("1", stats[2]);
+    Assert.assertEquals("2", stats[3]);
+  }
+
+  /**
+   * Test that a signal only wakes the pipe and does not put it into the high
+   * speed schedule, of class Pipeline.
+   */
+  @Test
+  public void testSignalKeepsSchedule() {
+    System.out.println("signalKeepsSchedule");
+
+    Pipeline instance = new Pipeline();
+
+    instance.signalWorkAvailable();
+    Assert.assertFalse(instance.getSchedulerHigh());
+
+    // in the polling schedule we just sleep
+    Assert.assertFalse(instance.waitForWork(50));
+
+    instance.setEventScheduler(true);
+    instance.signalWorkAvailable();
+    Assert.assertFalse(instance.getSchedulerHigh());
+  }
+}
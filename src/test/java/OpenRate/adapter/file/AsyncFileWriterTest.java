@@ -0,0 +1,187 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.adapter.file;
+
+import java.io.BufferedWriter;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the double buffered asynchronous file writer.
+ */
+public class AsyncFileWriterTest
+{
+  public AsyncFileWriterTest()
+  {
+  }
+
+  /**
+   * Test that the file contains exactly what we wrote, when we write much more
+   * than the buffers hold, including multi byte characters and surrogate pairs
+   * split between writes.
+   */
+  @Test
+  public void testWrite() throws IOException
+  {
+    System.out.println("testWrite");
+
+    Charset utf8 = Charset.forName("UTF-8");
+    File testFile = File.createTempFile("AsyncFileWriterTest", ".txt");
+    StringBuilder expected = new StringBuilder();
+
+    // small buffers so that we swap them all the time
+    AsyncFileWriter instance = new AsyncFileWriter(testFile, utf8, 64, true, "AsyncFileWriterTest");
+    for (int i = 0 ; i < 1000 ; i++)
+    {
+      String line = "record;" + i + ";\u00e9\u20ac\ud83d\ude00;";
+      expected.append(line).append("\n");
+
+      // split the surrogate pair between two writes
+      int split = line.indexOf('\ude00');
+      instance.write(line.substring(0, split));
+      instance.write(line.substring(split));
+      instance.write("\n");
+    }
+    instance.close();
+
+    Assert.assertEquals(expected.toString(), new String(Files.readAllBytes(testFile.toPath()), utf8));
+
+    testFile.delete();
+  }
+
+  /**
+   * Test the writer used through a BufferedWriter, as the output adapter does,
+   * and that it cannot be used after closing.
+   */
+  @Test
+  public void testBufferedWriter() throws IOException
+  {
+    System.out.println("testBufferedWriter");
+
+    Charset utf8 = Charset.forName("UTF-8");
+    File testFile = File.createTempFile("AsyncFileWriterTest", ".txt");
+
+    BufferedWriter instance = new BufferedWriter(new AsyncFileWriter(testFile, utf8, 1024, false, "AsyncFileWriterTest"), 100);
+    for (int i = 0 ; i < 100 ; i++)
+    {
+      instance.write("line " + i);
+      instance.newLine();
+    }
+    instance.close();
+
+    // the file is complete as soon as close returns
+    Assert.assertEquals(100, Files.readAllLines(testFile.toPath(), utf8).size());
+    Assert.assertEquals("line 99", Files.readAllLines(testFile.toPath(), utf8).get(99));
+
+    // an empty file stays empty
+    AsyncFileWriter emptyWriter = new AsyncFileWriter(testFile, utf8, 1024, false, "AsyncFileWriterTest");
+    emptyWriter.close();
+    Assert.assertEquals(0, testFile.length());
+
+    try
+    {
+      emptyWriter.write("too late");
+      Assert.fail("Expected an exception writing to a closed writer");
+    }
+    catch (IOException ex)
+    {
+      Assert.assertEquals("Writer closed", ex.getMessage());
+    }
+
+    testFile.delete();
+  }
+
+  /**
+   * Test that a gzip file written by the I/O thread reads back correctly.
+   */
+  @Test
+  public void testGzip() throws IOException
+  {
+    System.out.println("testGzip");
+
+    Charset utf8 = Charset.forName("UTF-8");
+    File testFile = File.createTempFile("AsyncFileWriterTest", ".txt.gz");
+
+    BufferedWriter instance = new BufferedWriter(new AsyncFileWriter(testFile, utf8, 128, false, true, "AsyncFileWriterTest"), 100);
+    for (int i = 0 ; i < 1000 ; i++)
+    {
+      instance.write("line " + i);
+      instance.newLine();
+    }
+    instance.close();
+
+    int lineCount = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(testFile)), utf8)))
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        Assert.assertEquals("line " + lineCount, line);
+        lineCount++;
+      }
+    }
+    Assert.assertEquals(1000, lineCount);
+
+    testFile.delete();
+  }
+}
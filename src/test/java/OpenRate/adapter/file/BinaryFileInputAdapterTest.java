@@ -0,0 +1,340 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.adapter.file;
+
+import OpenRate.OpenRate;
+import OpenRate.exception.ProcessingException;
+import OpenRate.record.FlatRecord;
+import OpenRate.record.HeaderRecord;
+import OpenRate.record.IRecord;
+import OpenRate.record.TrailerRecord;
+import TestUtils.FrameworkUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the streaming read mode of the binary file input adapter, with a map
+ * window much smaller than the file.
+ */
+public class BinaryFileInputAdapterTest
+{
+  // The directory the test files are put in
+  private static final File TEST_DIR = new File("target/FileAdapterTest");
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private TestAdapter instance;
+
+  public BinaryFileInputAdapterTest()
+  {
+  }
+
+  /**
+   * Adapter that parses records of a length byte followed by the data, without
+   * a transaction manager deciding when files can be opened.
+   */
+  public static class TestAdapter extends BinaryFileInputAdapter
+  {
+    private int transactionCounter = 0;
+
+    @Override
+    public ArrayList<IRecord> parseBinaryFileContents(byte[] fileContents)
+    {
+      ArrayList<IRecord> records = new ArrayList<>();
+      ByteBuffer fileBuffer = ByteBuffer.wrap(fileContents);
+      IRecord record;
+
+      while ((record = parseNextRecord(fileBuffer)) != null)
+      {
+        records.add(record);
+      }
+
+      return records;
+    }
+
+    @Override
+    public IRecord parseNextRecord(ByteBuffer fileBuffer)
+    {
+      if (fileBuffer.remaining() < 1)
+      {
+        return null;
+      }
+
+      int length = fileBuffer.get(fileBuffer.position()) & 0xFF;
+      if (fileBuffer.remaining() < length + 1)
+      {
+        return null;
+      }
+
+      byte[] data = new byte[length];
+      fileBuffer.get();
+      fileBuffer.get(data);
+
+      return new FlatRecord(new String(data, UTF8));
+    }
+
+    @Override
+    public HeaderRecord procHeader(HeaderRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procValidRecord(IRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procErrorRecord(IRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public TrailerRecord procTrailer(TrailerRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    protected boolean canStartNewTransaction()
+    {
+      return true;
+    }
+
+    @Override
+    protected int createNewTransaction()
+    {
+      return ++transactionCounter;
+    }
+
+    @Override
+    protected boolean transactionAbortRequest(int transactionNumber)
+    {
+      return false;
+    }
+
+    @Override
+    protected void setTransactionProcessing(int transactionNumber)
+    {
+    }
+
+    @Override
+    protected void setTransactionFlushed(int transactionNumber)
+    {
+    }
+
+    @Override
+    protected void updateRecordCount(int transactionNumber, int newCount)
+    {
+    }
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestFileAdapters.properties.xml"));
+    FrameworkUtils.startupLoggers();
+    FrameworkUtils.startupTransactionManager();
+  }
+
+  @AfterClass
+  public static void tearDownClass()
+  {
+    OpenRate.getApplicationInstance().cleanup();
+  }
+
+  @Before
+  public void setUp()
+  {
+    TEST_DIR.mkdirs();
+    clearTestDir();
+  }
+
+  @After
+  public void tearDown()
+  {
+    if (instance != null)
+    {
+      instance.cleanup();
+      instance = null;
+    }
+
+    clearTestDir();
+  }
+
+  /**
+   * Test that the records come out in order and none are lost or repeated when
+   * they run over the end of the map window.
+   */
+  @Test
+  public void testStreamingRecords() throws Exception
+  {
+    System.out.println("testStreamingRecords");
+
+    List<String> expected = new ArrayList<>();
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (int i = 0 ; i < 300 ; i++)
+    {
+      StringBuilder data = new StringBuilder(Integer.toString(i));
+      int padding = (i * 7) % 60;
+      for (int j = 0 ; j < padding ; j++)
+      {
+        data.append((char) ('a' + (j % 26)));
+      }
+
+      // the window is 64 bytes, so the records must fit in it
+      String record = data.substring(0, Math.min(data.length(), 63));
+      expected.add(record);
+      content.write(record.length());
+      content.write(record.getBytes(UTF8));
+    }
+    writeFile("BIN_001.in", content.toByteArray());
+
+    instance = new TestAdapter();
+    instance.init("DBTestPipe", "StreamingAdapter");
+    Assert.assertEquals("Streaming", instance.processControlEvent("ReadMode", false, ""));
+
+    List<IRecord> records = readFile();
+
+    Assert.assertTrue(records.get(0) instanceof HeaderRecord);
+    Assert.assertEquals("001", ((HeaderRecord) records.get(0)).getStreamName());
+    for (int i = 0 ; i < expected.size() ; i++)
+    {
+      Assert.assertEquals(expected.get(i), ((FlatRecord) records.get(i + 1)).getData());
+    }
+    Assert.assertTrue(records.get(expected.size() + 1) instanceof TrailerRecord);
+    Assert.assertEquals(expected.size() + 2, records.size());
+  }
+
+  /**
+   * Test that a record that cannot fit in the map window is reported, instead
+   * of the stream silently ending.
+   */
+  @Test
+  public void testRecordLargerThanWindow() throws Exception
+  {
+    System.out.println("testRecordLargerThanWindow");
+
+    byte[] content = new byte[1 + 100];
+    content[0] = 100;
+    writeFile("BIN_002.in", content);
+
+    instance = new TestAdapter();
+    instance.init("DBTestPipe", "StreamingAdapter");
+
+    try
+    {
+      readFile();
+      Assert.fail("Expected the record to be reported");
+    }
+    catch (ProcessingException ex)
+    {
+      Assert.assertTrue(ex.getMessage().contains("larger than the map window size"));
+    }
+  }
+
+  /**
+   * Call loadBatch until we have the trailer of the file.
+   */
+  private List<IRecord> readFile() throws ProcessingException
+  {
+    List<IRecord> result = new ArrayList<>();
+    int calls = 0;
+
+    while ((result.isEmpty()) || ((result.get(result.size() - 1) instanceof TrailerRecord) == false))
+    {
+      result.addAll(instance.loadBatch());
+      Assert.assertTrue("File not finished", ++calls < 10000);
+    }
+
+    return result;
+  }
+
+  private static void writeFile(String fileName, byte[] content) throws IOException
+  {
+    try (FileOutputStream out = new FileOutputStream(new File(TEST_DIR, fileName)))
+    {
+      out.write(content);
+    }
+  }
+
+  private static void clearTestDir()
+  {
+    File[] files = TEST_DIR.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+  }
+}
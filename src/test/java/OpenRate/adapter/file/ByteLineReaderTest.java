@@ -0,0 +1,192 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.adapter.file;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the byte level line splitter against a BufferedReader.
+ */
+public class ByteLineReaderTest
+{
+  public ByteLineReaderTest()
+  {
+  }
+
+  /**
+   * Test that the lines are the same as readLine() gives us, including lines
+   * longer than the read buffer, CRLF endings and a last line without newline.
+   */
+  @Test
+  public void testReadLines() throws IOException
+  {
+    System.out.println("testReadLines");
+
+    StringBuilder content = new StringBuilder();
+    for (int i = 0 ; i < 200 ; i++)
+    {
+      content.append("record;").append(i).append(";");
+      for (int j = 0 ; j < (i % 13) * 7 ; j++)
+      {
+        content.append((char) ('a' + (j % 26)));
+      }
+      content.append((i % 3 == 0) ? "\r\n" : "\n");
+      if (i % 50 == 0)
+      {
+        content.append("\n");
+      }
+    }
+    content.append("last line");
+
+    Charset utf8 = Charset.forName("UTF-8");
+    File testFile = writeFile(content.toString(), utf8);
+
+    // a small buffer so that we have to grow and refill it
+    ByteLineReader instance = new ByteLineReader(utf8, 16);
+    instance.open(testFile.getPath());
+    List<String> result = new ArrayList<>();
+    while (instance.hasNext())
+    {
+      result.add(instance.next().toString());
+    }
+    instance.close();
+
+    Assert.assertEquals(readLines(testFile, utf8), result);
+    Assert.assertEquals("last line", result.get(result.size() - 1));
+
+    // the reader can be used again for the next file
+    instance.open(testFile.getPath());
+    Assert.assertTrue(instance.hasNext());
+    Assert.assertEquals("record;0;", instance.next().toString());
+    instance.close();
+    Assert.assertFalse(instance.hasNext());
+
+    testFile.delete();
+  }
+
+  /**
+   * Test that multi byte characters are decoded with the configured charset.
+   */
+  @Test
+  public void testCharset() throws IOException
+  {
+    System.out.println("testCharset");
+
+    String content = "Z\u00fcrich;\u20ac10\nM\u00fcnchen;\u20ac20\n";
+    Charset utf8 = Charset.forName("UTF-8");
+    File testFile = writeFile(content, utf8);
+
+    ByteLineReader instance = new ByteLineReader(utf8, 4);
+    instance.open(testFile.getPath());
+    Assert.assertTrue(instance.hasNext());
+    CharSequence line = instance.next();
+    Assert.assertEquals(10, line.length());
+    Assert.assertEquals('\u00fc', line.charAt(1));
+    Assert.assertEquals("Z\u00fcrich;\u20ac10", line.toString());
+    Assert.assertTrue(instance.hasNext());
+    Assert.assertEquals("M\u00fcnchen;\u20ac20", instance.next().toString());
+    Assert.assertFalse(instance.hasNext());
+    instance.close();
+
+    testFile.delete();
+  }
+
+  /**
+   * Test which charsets can be split on bytes.
+   */
+  @Test
+  public void testIsSupported()
+  {
+    System.out.println("testIsSupported");
+
+    Assert.assertTrue(ByteLineReader.isSupported(Charset.forName("UTF-8")));
+    Assert.assertTrue(ByteLineReader.isSupported(Charset.forName("ISO-8859-1")));
+    Assert.assertFalse(ByteLineReader.isSupported(Charset.forName("UTF-16")));
+  }
+
+  private File writeFile(String content, Charset charset) throws IOException
+  {
+    File testFile = File.createTempFile("ByteLineReaderTest", ".txt");
+    try (FileOutputStream out = new FileOutputStream(testFile))
+    {
+      out.write(content.getBytes(charset));
+    }
+    return testFile;
+  }
+
+  private List<String> readLines(File testFile, Charset charset) throws IOException
+  {
+    List<String> lines = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(testFile), charset)))
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+}
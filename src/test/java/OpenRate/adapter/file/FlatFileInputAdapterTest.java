@@ -0,0 +1,351 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.adapter.file;
+
+import OpenRate.OpenRate;
+import OpenRate.exception.ProcessingException;
+import OpenRate.record.FlatRecord;
+import OpenRate.record.HeaderRecord;
+import OpenRate.record.IRecord;
+import OpenRate.record.TrailerRecord;
+import TestUtils.FrameworkUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the read ahead and chunked reading modes of the flat file input
+ * adapter, checking that the records come out in file order, with each file
+ * between its own header and trailer.
+ */
+public class FlatFileInputAdapterTest
+{
+  // The directory the test files are put in
+  private static final File TEST_DIR = new File("target/FileAdapterTest");
+
+  private TestAdapter instance;
+
+  public FlatFileInputAdapterTest()
+  {
+  }
+
+  /**
+   * Adapter that passes the lines through, taking the files in name order
+   * without a transaction manager deciding when files can be opened.
+   */
+  public static class TestAdapter extends FlatFileInputAdapter
+  {
+    private int transactionCounter = 0;
+
+    @Override
+    public String[] getOrderedFileListForProcessing(File dir, FilenameFilter filter)
+    {
+      String[] fileNames = dir.list(filter);
+      Arrays.sort(fileNames);
+      return fileNames;
+    }
+
+    @Override
+    public HeaderRecord procHeader(HeaderRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procValidRecord(FlatRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procErrorRecord(FlatRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public TrailerRecord procTrailer(TrailerRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    protected boolean canStartNewTransaction()
+    {
+      return true;
+    }
+
+    @Override
+    protected int createNewTransaction()
+    {
+      return ++transactionCounter;
+    }
+
+    @Override
+    protected boolean transactionAbortRequest(int transactionNumber)
+    {
+      return false;
+    }
+
+    @Override
+    protected void setTransactionProcessing(int transactionNumber)
+    {
+    }
+
+    @Override
+    protected void setTransactionFlushed(int transactionNumber)
+    {
+    }
+
+    @Override
+    protected void updateRecordCount(int transactionNumber, int newCount)
+    {
+    }
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestFileAdapters.properties.xml"));
+    FrameworkUtils.startupLoggers();
+    FrameworkUtils.startupTransactionManager();
+  }
+
+  @AfterClass
+  public static void tearDownClass()
+  {
+    OpenRate.getApplicationInstance().cleanup();
+  }
+
+  @Before
+  public void setUp()
+  {
+    TEST_DIR.mkdirs();
+    clearTestDir();
+  }
+
+  @After
+  public void tearDown()
+  {
+    if (instance != null)
+    {
+      instance.cleanup();
+      instance = null;
+    }
+
+    clearTestDir();
+  }
+
+  /**
+   * Test that files read ahead in parallel are handed over in order, with all
+   * of the lines of each file between its header and trailer. The read ahead
+   * queues are smaller than the files, so the readers have to wait for the
+   * adapter to take the lines.
+   */
+  @Test
+  public void testReadAheadFiles() throws Exception
+  {
+    System.out.println("testReadAheadFiles");
+
+    List<List<String>> expected = new ArrayList<>();
+    expected.add(writeLinesFile("READ_001.in", "A", 37, ""));
+    expected.add(writeLinesFile("READ_002.in", "B", 1, ""));
+    expected.add(writeLinesFile("READ_003.in", "C", 250, ""));
+    expected.add(writeLinesFile("READ_004.in", "D", 0, ""));
+    expected.add(writeLinesFile("READ_005.in", "E", 23, ""));
+
+    instance = new TestAdapter();
+    instance.init("DBTestPipe", "ReadAheadAdapter");
+
+    checkFiles(readAll(expected.size()), expected, new String[]{"001", "002", "003", "004", "005"});
+  }
+
+  /**
+   * Test that a file split into chunks much smaller than the file gives the
+   * same lines as reading it line by line, including lines that cross chunk
+   * boundaries, a line longer than the mapped tail, CRLF endings and blank
+   * lines.
+   */
+  @Test
+  public void testChunkedParsing() throws Exception
+  {
+    System.out.println("testChunkedParsing");
+
+    List<List<String>> expected = new ArrayList<>();
+    expected.add(writeLinesFile("CHUNK_001.in", "A", 500, "\r\n"));
+    expected.add(writeLinesFile("CHUNK_002.in", "B", 3, ""));
+
+    instance = new TestAdapter();
+    instance.init("DBTestPipe", "ChunkAdapter");
+
+    checkFiles(readAll(expected.size()), expected, new String[]{"001", "002"});
+  }
+
+  /**
+   * Write a file of numbered lines of varying length. Every 50th line is
+   * followed by a blank line and line 7 is longer than the chunk tail.
+   *
+   * @return The non blank lines that the adapter should give
+   */
+  private List<String> writeLinesFile(String fileName, String tag, int lineCount, String crlf) throws IOException
+  {
+    List<String> lines = new ArrayList<>();
+    StringBuilder content = new StringBuilder();
+
+    for (int i = 0 ; i < lineCount ; i++)
+    {
+      StringBuilder line = new StringBuilder(tag).append(";").append(i).append(";");
+      int padding = (i == 7) ? 70000 : (i * 17) % 150;
+      for (int j = 0 ; j < padding ; j++)
+      {
+        line.append((char) ('a' + (j % 26)));
+      }
+
+      lines.add(line.toString());
+      content.append(line);
+      content.append(((i % 3) == 0) ? "\n" : (crlf.isEmpty() ? "\n" : crlf));
+      if ((i % 50) == 0)
+      {
+        content.append("\n");
+      }
+    }
+
+    try (FileOutputStream out = new FileOutputStream(new File(TEST_DIR, fileName)))
+    {
+      out.write(content.toString().getBytes(Charset.forName("UTF-8")));
+    }
+
+    return lines;
+  }
+
+  /**
+   * Call loadBatch until we have the trailers of all of the files.
+   */
+  private List<IRecord> readAll(int fileCount) throws ProcessingException
+  {
+    List<IRecord> result = new ArrayList<>();
+    int trailers = 0;
+    int calls = 0;
+
+    while (trailers < fileCount)
+    {
+      for (IRecord record : instance.loadBatch())
+      {
+        result.add(record);
+        if (record instanceof TrailerRecord)
+        {
+          trailers++;
+        }
+      }
+
+      Assert.assertTrue("Files not finished", ++calls < 100000);
+    }
+
+    return result;
+  }
+
+  /**
+   * Check that the records are the files in order, each between a header and
+   * a trailer.
+   */
+  private void checkFiles(List<IRecord> records, List<List<String>> expected, String[] streamNames)
+  {
+    int pos = 0;
+
+    for (int file = 0 ; file < expected.size() ; file++)
+    {
+      Assert.assertTrue(records.get(pos) instanceof HeaderRecord);
+      Assert.assertEquals(streamNames[file], ((HeaderRecord) records.get(pos)).getStreamName());
+      pos++;
+
+      for (String line : expected.get(file))
+      {
+        Assert.assertTrue(records.get(pos) instanceof FlatRecord);
+        Assert.assertEquals(line, ((FlatRecord) records.get(pos)).getData());
+        pos++;
+      }
+
+      Assert.assertTrue(records.get(pos) instanceof TrailerRecord);
+      pos++;
+    }
+
+    Assert.assertEquals(records.size(), pos);
+  }
+
+  private static void clearTestDir()
+  {
+    File[] files = TEST_DIR.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.buffer;
+
+import OpenRate.record.FlatRecord;
+import OpenRate.record.IRecord;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+
+/**
+ * Tests the ring buffer implementation.
+ */
+public class RingQueueBufferTest {
+
+  public RingQueueBufferTest() {
+  }
+
+  /**
+   * Create a batch of numbered records.
+   */
+  private Collection<IRecord> getBatch(int start, int count) {
+    ArrayList<IRecord> batch = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      batch.add(new FlatRecord("Record", start + i));
+    }
+    return batch;
+  }
+
+  /**
+   * Test the capacity rounding, of class RingQueueBuffer.
+   */
+  @Test
+  public void testGetCapacity() {
+    System.out.println("getCapacity");
+
+    Assert.assertEquals(RingQueueBuffer.DEFAULT_CAPACITY, new RingQueueBuffer().getCapacity());
+    Assert.assertEquals(1024, new RingQueueBuffer(1024).getCapacity());
+    Assert.assertEquals(1024, new RingQueueBuffer(1000).getCapacity());
+  }
+
+  /**
+   * Test of push and pull methods, of class RingQueueBuffer. Records must come
+   * out in the order they went in, also when we wrap round the ring.
+   */
+  @Test
+  public void testPushPullOrder() {
+    System.out.println("pushPullOrder");
+
+    RingQueueBuffer instance = new RingQueueBuffer(16);
+    int expected = 0;
+
+    for (int lap = 0; lap < 10; lap++) {
+      instance.push(getBatch(lap * 10, 10));
+      Assert.assertEquals(10, instance.getEventCount());
+
+      Collection<IRecord> result = instance.pull(7);
+      Assert.assertEquals(7, result.size());
+      result.addAll(instance.pull(7));
+      Assert.assertEquals(10, result.size());
+      Assert.assertEquals(0, instance.getEventCount());
+
+      Iterator<IRecord> iter = result.iterator();
+      while (iter.hasNext()) {
+        Assert.assertEquals(expected++, ((FlatRecord) iter.next()).recordNumber);
+      }
+    }
+
+    // empty buffer gives an empty result
+    Assert.assertTrue(instance.pull(10).isEmpty());
+  }
+
+  /**
+   * Test that a batch bigger than the ring gets through, of class
+   * RingQueueBuffer.
+   */
+  @Test
+  public void testPushLargerThanCapacity() throws InterruptedException {
+    System.out.println("pushLargerThanCapacity");
+
+    final RingQueueBuffer instance = new RingQueueBuffer(8);
+
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        instance.push(getBatch(0, 100));
+      }
+    };
+    producer.start();
+
+    int expected = 0;
+    while (expected < 100) {
+      Iterator<IRecord> iter = instance.pull(5).iterator();
+      while (iter.hasNext()) {
+        Assert.assertEquals(expected++, ((FlatRecord) iter.next()).recordNumber);
+      }
+    }
+
+    producer.join();
+    Assert.assertEquals(0, instance.getEventCount());
+  }
+
+  /**
+   * Test of the back pressure push, of class RingQueueBuffer. A push over the
+   * high water mark must block until the buffer is drained to the low water
+   * mark.
+   */
+  @Test
+  public void testPushBackPressure() throws InterruptedException {
+    System.out.println("pushBackPressure");
+
+    final RingQueueBuffer instance = new RingQueueBuffer(64);
+
+    // under the high water mark we do not block
+    Assert.assertFalse(instance.push(getBatch(0, 10), 10, 5));
+
+    final AtomicInteger countAfterPush = new AtomicInteger(-1);
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        if (instance.push(getBatch(10, 10), 10, 5)) {
+          countAfterPush.set(instance.getEventCount());
+        }
+      }
+    };
+    producer.start();
+
+    // the producer must be blocked until we drain the buffer
+    producer.join(200);
+    Assert.assertTrue(producer.isAlive());
+    Assert.assertEquals(20, instance.getEventCount());
+
+    instance.pull(10);
+    producer.join(200);
+    Assert.assertTrue(producer.isAlive());
+
+    instance.pull(5);
+    producer.join(5000);
+    Assert.assertFalse(producer.isAlive());
+    Assert.assertEquals(5, countAfterPush.get());
+  }
+
+  /**
+   * Test concurrent producers and consumers, of class RingQueueBuffer. No
+   * record may be lost or duplicated.
+   */
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    System.out.println("concurrentAccess");
+
+    final RingQueueBuffer instance = new RingQueueBuffer(256);
+    final int producerCount = 4;
+    final int batchCount = 500;
+    final int batchSize = 10;
+    final int total = producerCount * batchCount * batchSize;
+    final AtomicInteger pulled = new AtomicInteger();
+    final boolean[] seen = new boolean[total];
+    ArrayList<Thread> threads = new ArrayList<>();
+
+    for (int p = 0; p < producerCount; p++) {
+      final int base = p * batchCount * batchSize;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int b = 0; b < batchCount; b++) {
+            instance.push(getBatch(base + b * batchSize, batchSize));
+          }
+        }
+      });
+    }
+
+    for (int c = 0; c < 3; c++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          while (pulled.get() < total) {
+            Iterator<IRecord> iter = instance.pull(batchSize).iterator();
+            while (iter.hasNext()) {
+              int recordNumber = ((FlatRecord) iter.next()).recordNumber;
+              synchronized (seen) {
+                Assert.assertFalse(seen[recordNumber]);
+                seen[recordNumber] = true;
+              }
+              pulled.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join(30000);
+    }
+
+    Assert.assertEquals(total, pulled.get());
+    Assert.assertEquals(0, instance.getEventCount());
+    for (int i = 0; i < total; i++) {
+      Assert.assertTrue(seen[i]);
+    }
+  }
+}
@@ -0,0 +1,297 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import OpenRate.OpenRate;
+import OpenRate.exception.ProcessingException;
+import OpenRate.resource.CacheFactory;
+import TestUtils.FrameworkUtils;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the striped transaction results of the aggregation cache merge
+ * into the same totals as a sequential aggregation.
+ */
+public class AggregationCacheTest
+{
+  // the number of threads aggregating into the same transaction
+  private static final int THREADS = 4;
+
+  // the number of records each thread aggregates
+  private static final int RECORDS = 2500;
+
+  private static AggregationCache instance;
+
+  public AggregationCacheTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestAggregation.properties.xml"));
+    FrameworkUtils.startupLoggers();
+    FrameworkUtils.startupTransactionManager();
+    FrameworkUtils.startupCaches();
+
+    instance = (AggregationCache) CacheFactory.getGlobalManager("AggregationTestCache").get("AggregationTestCache");
+  }
+
+  @AfterClass
+  public static void tearDownClass()
+  {
+    OpenRate.getApplicationInstance().cleanup();
+  }
+
+  @Before
+  public void setUp()
+  {
+    instance.purgeResults();
+  }
+
+  /**
+   * Test that records aggregated by several threads into one transaction give
+   * the totals of a sequential aggregation once the transaction commits, and
+   * that nothing is visible before the commit.
+   */
+  @Test
+  public void testConcurrentAggregationCommit() throws Exception
+  {
+    System.out.println("testConcurrentAggregationCommit");
+
+    aggregateConcurrently(1);
+    Assert.assertEquals(0, instance.countResults());
+
+    instance.commitTransaction(1);
+
+    Map<String, String> expected = expectedResults(1);
+    Assert.assertEquals(expected.size(), instance.countResults());
+    Assert.assertEquals(expected, resultMap(instance.getResults()));
+
+    // getResults clears the merged results
+    Assert.assertEquals(0, instance.countResults());
+  }
+
+  /**
+   * Test that a second transaction merges into the results of the first, and
+   * that a rolled back transaction leaves no trace.
+   */
+  @Test
+  public void testCommitMergeAndRollback() throws Exception
+  {
+    System.out.println("testCommitMergeAndRollback");
+
+    aggregateConcurrently(2);
+    aggregateConcurrently(3);
+    aggregateConcurrently(4);
+
+    instance.commitTransaction(2);
+    instance.rollbackTransaction(3);
+    instance.commitTransaction(4);
+
+    // committing a transaction that is already gone does nothing
+    instance.commitTransaction(3);
+
+    Assert.assertEquals(expectedResults(2), resultMap(instance.getResults()));
+  }
+
+  /**
+   * Aggregate THREADS * RECORDS records into the transaction, each thread
+   * working on an interleaved part of the records so that the threads hit the
+   * same keys at the same time.
+   */
+  private static void aggregateConcurrently(final int transactionNumber) throws Exception
+  {
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread[] workers = new Thread[THREADS];
+
+    for (int t = 0 ; t < THREADS ; t++)
+    {
+      final int offset = t;
+      workers[t] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            for (int i = 0 ; i < RECORDS ; i++)
+            {
+              int record = i * THREADS + offset;
+              instance.aggregate(getFields(record), getKeys(record), transactionNumber);
+            }
+          }
+          catch (ProcessingException ex)
+          {
+            failure.set(ex);
+          }
+        }
+      };
+      workers[t].start();
+    }
+
+    for (Thread worker : workers)
+    {
+      worker.join();
+    }
+
+    if (failure.get() != null)
+    {
+      throw failure.get();
+    }
+  }
+
+  private static String[] getFields(int record)
+  {
+    return new String[]{"ACC" + (record % 97), "SVC" + (record % 3), String.valueOf(1 + record % 10)};
+  }
+
+  private static ArrayList<String> getKeys(int record)
+  {
+    ArrayList<String> keys = new ArrayList<>();
+    keys.add("USAGE");
+    if (record % 5 == 0)
+    {
+      keys.add("PREMIUM");
+    }
+
+    return keys;
+  }
+
+  /**
+   * Work out the results of the aggregation sequentially, repeated the given
+   * number of times, in the result format of the cache.
+   */
+  private static Map<String, String> expectedResults(int repeats)
+  {
+    HashMap<String, Double> sums = new HashMap<>();
+    HashMap<String, Integer> counts = new HashMap<>();
+    HashMap<String, Double> maxs = new HashMap<>();
+    HashMap<String, Double> mins = new HashMap<>();
+
+    for (int record = 0 ; record < THREADS * RECORDS ; record++)
+    {
+      String[] fields = getFields(record);
+      double value = Double.parseDouble(fields[2]);
+
+      String sumKey = "SumByAccount;" + fields[0] + ";";
+      Double sum = sums.get(sumKey);
+      sums.put(sumKey, (sum == null ? 0 : sum) + value * repeats);
+
+      String countKey = "CountByAccountService;" + fields[0] + ";" + fields[1] + ";";
+      Integer count = counts.get(countKey);
+      counts.put(countKey, (count == null ? 0 : count) + repeats);
+
+      // the accumulated results start at zero
+      String maxKey = "MaxByService;" + fields[1] + ";";
+      Double max = maxs.get(maxKey);
+      maxs.put(maxKey, Math.max(max == null ? 0 : max, value));
+
+      if (getKeys(record).contains("PREMIUM"))
+      {
+        String minKey = "MinByService;" + fields[1] + ";";
+        Double min = mins.get(minKey);
+        mins.put(minKey, Math.min(min == null ? 0 : min, value));
+      }
+    }
+
+    HashMap<String, String> expected = new HashMap<>();
+    for (Map.Entry<String, Double> entry : sums.entrySet())
+    {
+      expected.put(entry.getKey(), entry.getValue() + ";");
+    }
+    for (Map.Entry<String, Integer> entry : counts.entrySet())
+    {
+      expected.put(entry.getKey(), entry.getValue() + ";");
+    }
+    for (Map.Entry<String, Double> entry : maxs.entrySet())
+    {
+      expected.put(entry.getKey(), entry.getValue() + ";");
+    }
+    for (Map.Entry<String, Double> entry : mins.entrySet())
+    {
+      expected.put(entry.getKey(), entry.getValue() + ";");
+    }
+
+    return expected;
+  }
+
+  /**
+   * Split the result lines into the scenario and grouping key, and the value.
+   */
+  private static Map<String, String> resultMap(ArrayList<String> results)
+  {
+    HashMap<String, String> resultMap = new HashMap<>();
+
+    for (String result : results)
+    {
+      int valueStart = result.lastIndexOf(';', result.length() - 2) + 1;
+      Assert.assertNull("Duplicate result <" + result + ">",
+                        resultMap.put(result.substring(0, valueStart), result.substring(valueStart)));
+    }
+
+    return resultMap;
+  }
+}
@@ -0,0 +1,121 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the bloom filter used in front of the duplicate check database.
+ */
+public class BloomFilterTest
+{
+  public BloomFilterTest()
+  {
+  }
+
+  /**
+   * Test that every key added is found, and that the sizing follows the rate.
+   */
+  @Test
+  public void testAddMightContain()
+  {
+    System.out.println("testAddMightContain");
+
+    BloomFilter instance = new BloomFilter(10000, 0.01);
+
+    // about 9.6 bits and 7 hashes per key for 1%
+    Assert.assertTrue(instance.getBitCount() >= 95851);
+    Assert.assertEquals(7, instance.getHashCount());
+
+    for (int idx = 0 ; idx < 10000 ; idx++)
+    {
+      instance.add(DuplicateCheckStore.hash("CDR" + idx));
+    }
+
+    for (int idx = 0 ; idx < 10000 ; idx++)
+    {
+      Assert.assertTrue(instance.mightContain(DuplicateCheckStore.hash("CDR" + idx)));
+    }
+  }
+
+  /**
+   * Test that the false positive rate is close to the one we asked for.
+   */
+  @Test
+  public void testFalsePositiveRate()
+  {
+    System.out.println("testFalsePositiveRate");
+
+    BloomFilter instance = new BloomFilter(10000, 0.01);
+
+    for (int idx = 0 ; idx < 10000 ; idx++)
+    {
+      instance.add(DuplicateCheckStore.hash("CDR" + idx));
+    }
+
+    int falsePositives = 0;
+    for (int idx = 0 ; idx < 100000 ; idx++)
+    {
+      if (instance.mightContain(DuplicateCheckStore.hash("NEW" + idx)))
+      {
+        falsePositives++;
+      }
+    }
+
+    // 1% would be 1000, allow some slack
+    Assert.assertTrue("False positives: " + falsePositives, falsePositives < 2000);
+  }
+}
@@ -0,0 +1,264 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import OpenRate.exception.InitializationException;
+import OpenRate.lang.ProductHolder;
+import OpenRate.lang.ProductList;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the product lookups of the customer cache.
+ */
+public class CustomerCacheTest
+{
+  public CustomerCacheTest()
+  {
+  }
+
+  private static CustomerCache createCache()
+  {
+    CustomerCache instance = new CustomerCache();
+
+    // the alias comes before the account, as in the DB loading
+    instance.addAlias("0401234", "C1");
+    instance.addCustId("C1", 1000, 9000, 7);
+    instance.addCPI("C1", "TEL", "P3", 3000, 9000);
+    instance.addCPI("C1", "SMS", "P2", 1000, 9000);
+    instance.addCPI("C1", "TEL", "P1", 1000, 4000);
+    instance.addCPI("C1", "TEL", "P4", 1000, 2000);
+    instance.addCPI("C1", "DATA", "P5", 1000, 9000);
+
+    return instance;
+  }
+
+  /**
+   * Test of the lookup into a product holder.
+   */
+  @Test
+  public void testGetProductsHolder()
+  {
+    System.out.println("testGetProductsHolder");
+
+    CustomerCache instance = createCache();
+    ProductHolder holder = new ProductHolder();
+
+    Assert.assertEquals("C1", instance.getCustId("0401234"));
+    Assert.assertTrue(instance.getProducts("0401234", "TEL", 3500, holder));
+    Assert.assertEquals(2, holder.getProductCount());
+    Assert.assertEquals(7, holder.getBalanceGroup());
+    Assert.assertEquals("TEL", holder.getService());
+    Assert.assertEquals("P1", holder.getProductID(0));
+    Assert.assertEquals("P3", holder.getProductID(1));
+    Assert.assertEquals(3000, holder.getUTCValidFrom(1));
+    Assert.assertEquals(9000, holder.getUTCValidTo(1));
+
+    // the holder is reused
+    Assert.assertTrue(instance.getProducts("0401234", "TEL", 1500, holder));
+    Assert.assertEquals(2, holder.getProductCount());
+    Assert.assertEquals("P1", holder.getProductID(0));
+    Assert.assertEquals("P4", holder.getProductID(1));
+
+    Assert.assertTrue(instance.getProducts("0401234", "SMS", 1500, holder));
+    Assert.assertEquals(1, holder.getProductCount());
+    Assert.assertEquals("P2", holder.getProductID(0));
+
+    // unknown service, valid account
+    Assert.assertTrue(instance.getProducts("0401234", "FAX", 1500, holder));
+    Assert.assertEquals(0, holder.getProductCount());
+
+    // outside of the account validity
+    Assert.assertFalse(instance.getProducts("0401234", "TEL", 9000, holder));
+    Assert.assertEquals(0, holder.getProductCount());
+  }
+
+  /**
+   * Test that the product list lookup gives the same products.
+   */
+  @Test
+  public void testGetProductsList()
+  {
+    System.out.println("testGetProductsList");
+
+    CustomerCache instance = createCache();
+    ProductList result = instance.getProducts("0401234", "TEL", 3500);
+
+    Assert.assertEquals(2, result.getProductCount());
+    Assert.assertEquals(7, result.getBalanceGroup());
+    Assert.assertEquals("P1", result.getProduct(0).getProductID());
+    Assert.assertEquals("P3", result.getProduct(1).getProductID());
+    Assert.assertEquals("TEL", result.getProduct(1).getService());
+    Assert.assertNull(instance.getProducts("0401234", "TEL", 500));
+  }
+
+  /**
+   * Test that the data restored from a snapshot gives the same lookups, and
+   * that a snapshot of other source data is not restored.
+   */
+  @Test
+  public void testSnapshot() throws IOException
+  {
+    System.out.println("testSnapshot");
+
+    File tmpFile = File.createTempFile("CustomerCacheTest", ".snap");
+    tmpFile.deleteOnExit();
+
+    CustomerCache instance = createCache();
+    instance.addERA("C1", "CUG", "12");
+    CacheSnapshot snapshot = new CacheSnapshot(tmpFile.getPath());
+    snapshot.write(instance, "stamp1");
+
+    // a snapshot of other data is ignored
+    CustomerCache restored = new CustomerCache();
+    Assert.assertFalse(snapshot.restore(restored, "stamp2"));
+    Assert.assertNull(restored.getCustId("0401234"));
+
+    Assert.assertTrue(snapshot.restore(restored, "stamp1"));
+    Assert.assertEquals("C1", restored.getCustId("0401234"));
+    Assert.assertEquals(7, restored.getBalanceGroup("C1"));
+    Assert.assertEquals("12", restored.getERA("C1", "CUG"));
+
+    ProductHolder holder = new ProductHolder();
+    Assert.assertTrue(restored.getProducts("0401234", "TEL", 3500, holder));
+    Assert.assertEquals(2, holder.getProductCount());
+    Assert.assertEquals("P1", holder.getProductID(0));
+    Assert.assertEquals("P3", holder.getProductID(1));
+
+    // products can still be added after restoring
+    restored.addCPI("C1", "TEL", "P6", 3000, 5000);
+    Assert.assertTrue(restored.getProducts("0401234", "TEL", 3500, holder));
+    Assert.assertEquals(3, holder.getProductCount());
+  }
+
+  /**
+   * Test restoring a snapshot into an instance which already has the services
+   * interned in another order, so that the service IDs of the snapshot map to
+   * IDs in a different order.
+   */
+  @Test
+  public void testSnapshotRemappedServices() throws IOException
+  {
+    System.out.println("testSnapshotRemappedServices");
+
+    File tmpFile = File.createTempFile("CustomerCacheTest", ".snap");
+    tmpFile.deleteOnExit();
+
+    CacheSnapshot snapshot = new CacheSnapshot(tmpFile.getPath());
+    snapshot.write(createCache(), "stamp1");
+
+    // intern the services in the reverse order of the snapshot
+    CustomerCache restored = new CustomerCache();
+    restored.addCustId("C2", 1000, 9000, 1);
+    restored.addCPI("C2", "DATA", "P9", 1000, 9000);
+    restored.addCPI("C2", "SMS", "P9", 1000, 9000);
+    restored.addCPI("C2", "TEL", "P9", 1000, 9000);
+
+    Assert.assertTrue(snapshot.restore(restored, "stamp1"));
+
+    ProductHolder holder = new ProductHolder();
+    Assert.assertTrue(restored.getProducts("0401234", "TEL", 3500, holder));
+    Assert.assertEquals(2, holder.getProductCount());
+    Assert.assertEquals("P1", holder.getProductID(0));
+    Assert.assertEquals("P3", holder.getProductID(1));
+
+    Assert.assertTrue(restored.getProducts("0401234", "TEL", 1500, holder));
+    Assert.assertEquals(2, holder.getProductCount());
+    Assert.assertEquals("P1", holder.getProductID(0));
+    Assert.assertEquals("P4", holder.getProductID(1));
+
+    Assert.assertTrue(restored.getProducts("0401234", "SMS", 1500, holder));
+    Assert.assertEquals(1, holder.getProductCount());
+    Assert.assertEquals("P2", holder.getProductID(0));
+
+    Assert.assertTrue(restored.getProducts("0401234", "DATA", 1500, holder));
+    Assert.assertEquals(1, holder.getProductCount());
+    Assert.assertEquals("P5", holder.getProductID(0));
+  }
+
+  /**
+   * Test that the shadow instance gets the select queries, so that a shadow
+   * reload from the database prepares its statements from them.
+   */
+  @Test
+  public void testShadowCacheQueries() throws InitializationException
+  {
+    System.out.println("testShadowCacheQueries");
+
+    CustomerCache instance = new CustomerCache();
+    instance.setSymbolicName("CustomerCache");
+    instance.CacheDataSourceType = "DB";
+    instance.cacheDataSourceName = "TestDB";
+    instance.aliasSelectQuery = "select ALIAS";
+    instance.customerSelectQuery = "select CUSTOMER";
+    instance.productSelectQuery = "select PRODUCT";
+    instance.eraSelectQuery = "select ERA";
+
+    CustomerCache shadow = (CustomerCache) instance.createShadowCache();
+
+    Assert.assertNotSame(instance, shadow);
+    Assert.assertEquals("DB", shadow.CacheDataSourceType);
+    Assert.assertEquals("TestDB", shadow.cacheDataSourceName);
+    Assert.assertEquals("select ALIAS", shadow.aliasSelectQuery);
+    Assert.assertEquals("select CUSTOMER", shadow.customerSelectQuery);
+    Assert.assertEquals("select PRODUCT", shadow.productSelectQuery);
+    Assert.assertEquals("select ERA", shadow.eraSelectQuery);
+
+    // the shadow prepares its own statements
+    Assert.assertNull(shadow.stmtAliasSelectQuery);
+  }
+}
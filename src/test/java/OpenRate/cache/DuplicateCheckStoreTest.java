@@ -0,0 +1,256 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the memory mapped duplicate check store.
+ */
+public class DuplicateCheckStoreTest
+{
+  // one day buckets, as the duplicate check cache uses
+  private static final long DAY = 86400;
+
+  public DuplicateCheckStoreTest()
+  {
+  }
+
+  /**
+   * Test of put and contains.
+   */
+  @Test
+  public void testPutContains() throws IOException
+  {
+    System.out.println("testPutContains");
+
+    File storeFile = newStoreFile();
+    DuplicateCheckStore instance = new DuplicateCheckStore(storeFile, 100, DAY);
+
+    Assert.assertTrue(instance.isEmpty());
+    Assert.assertTrue(instance.put("CDR1", 10 * DAY));
+    Assert.assertTrue(instance.put("CDR2", 10 * DAY + 5));
+    Assert.assertFalse(instance.put("CDR1", 11 * DAY));
+    Assert.assertTrue(instance.contains("CDR1"));
+    Assert.assertTrue(instance.contains("CDR2"));
+    Assert.assertFalse(instance.contains("CDR3"));
+    Assert.assertEquals(2, instance.size());
+
+    instance.close();
+    storeFile.delete();
+  }
+
+  /**
+   * Test that expiry drops whole buckets and that the expired slots are reused.
+   */
+  @Test
+  public void testExpire() throws IOException
+  {
+    System.out.println("testExpire");
+
+    File storeFile = newStoreFile();
+    DuplicateCheckStore instance = new DuplicateCheckStore(storeFile, 100, DAY);
+
+    instance.put("DAY1", DAY + 100);
+    instance.put("DAY2", 2 * DAY + 100);
+    instance.put("DAY3", 3 * DAY + 100);
+
+    // the cutoff is rounded down to the start of day 2
+    long[] expiring = instance.expiringHashes(2 * DAY + 500);
+    Assert.assertEquals(1, expiring.length);
+    Assert.assertEquals(DuplicateCheckStore.hash("DAY1"), expiring[0]);
+    Assert.assertEquals(1, instance.expire(2 * DAY + 500));
+    Assert.assertEquals(0, instance.expiringHashes(2 * DAY + 500).length);
+    Assert.assertFalse(instance.contains("DAY1"));
+    Assert.assertTrue(instance.contains("DAY2"));
+    Assert.assertTrue(instance.contains("DAY3"));
+    Assert.assertEquals(2, instance.size());
+
+    // too old to store, and an expired key can be added again
+    Assert.assertFalse(instance.put("OLD", DAY));
+    Assert.assertTrue(instance.put("DAY1", 3 * DAY));
+    Assert.assertTrue(instance.contains("DAY1"));
+    Assert.assertEquals(3, instance.size());
+
+    instance.close();
+    storeFile.delete();
+  }
+
+  /**
+   * Test that the table grows and compacts when it fills, and keeps all of
+   * the live keys.
+   */
+  @Test
+  public void testGrow() throws IOException
+  {
+    System.out.println("testGrow");
+
+    File storeFile = newStoreFile();
+    DuplicateCheckStore instance = new DuplicateCheckStore(storeFile, 10, DAY);
+    int initialCapacity = instance.getCapacity();
+
+    for (int i = 0 ; i < 1000 ; i++)
+    {
+      Assert.assertTrue(instance.put("KEY" + i, (i % 10) * DAY));
+    }
+
+    Assert.assertTrue(instance.getCapacity() > initialCapacity);
+    Assert.assertEquals(1000, instance.size());
+    for (int i = 0 ; i < 1000 ; i++)
+    {
+      Assert.assertTrue(instance.contains("KEY" + i));
+    }
+
+    // expire half of them and keep adding, the expired slots are reused so the
+    // table does not grow
+    Assert.assertEquals(500, instance.expire(5 * DAY));
+    int capacity = instance.getCapacity();
+    for (int i = 1000 ; i < 1400 ; i++)
+    {
+      Assert.assertTrue(instance.put("KEY" + i, 9 * DAY));
+    }
+    Assert.assertEquals(900, instance.size());
+    Assert.assertEquals(capacity, instance.getCapacity());
+    Assert.assertFalse(instance.contains("KEY0"));
+    Assert.assertTrue(instance.contains("KEY1399"));
+    instance.close();
+
+    // the compacted table replaced the store file
+    Assert.assertFalse(new File(storeFile.getPath() + ".tmp").exists());
+    instance = new DuplicateCheckStore(storeFile, 10, DAY);
+    Assert.assertEquals(capacity, instance.getCapacity());
+    Assert.assertEquals(900, instance.size());
+    Assert.assertTrue(instance.contains("KEY999"));
+    instance.close();
+
+    storeFile.delete();
+  }
+
+  /**
+   * Test that the store is kept across a close and open.
+   */
+  @Test
+  public void testReopen() throws IOException
+  {
+    System.out.println("testReopen");
+
+    File storeFile = newStoreFile();
+    DuplicateCheckStore instance = new DuplicateCheckStore(storeFile, 100, DAY);
+    for (int i = 0 ; i < 50 ; i++)
+    {
+      instance.put("KEY" + i, (i % 5) * DAY);
+    }
+    instance.expire(DAY);
+    instance.close();
+
+    instance = new DuplicateCheckStore(storeFile, 100, DAY);
+    Assert.assertFalse(instance.isEmpty());
+    Assert.assertEquals(40, instance.size());
+    Assert.assertFalse(instance.contains("KEY0"));
+    Assert.assertTrue(instance.contains("KEY1"));
+    Assert.assertTrue(instance.contains("KEY49"));
+    instance.close();
+
+    storeFile.delete();
+  }
+
+  /**
+   * Test that a commit which was not ended is seen when the store is opened
+   * again, also after the table has been compacted.
+   */
+  @Test
+  public void testOpenCommits() throws IOException
+  {
+    System.out.println("testOpenCommits");
+
+    File storeFile = newStoreFile();
+    DuplicateCheckStore instance = new DuplicateCheckStore(storeFile, 100, DAY);
+    Assert.assertFalse(instance.hasOpenCommits());
+
+    instance.startCommit();
+    instance.put("KEY", DAY);
+    instance.endCommit();
+    Assert.assertFalse(instance.hasOpenCommits());
+
+    // cut short, and grown while it was open
+    instance.startCommit();
+    for (int i = 0 ; i < 200 ; i++)
+    {
+      instance.put("KEY" + i, DAY);
+    }
+    instance.close();
+
+    instance = new DuplicateCheckStore(storeFile, 100, DAY);
+    Assert.assertTrue(instance.hasOpenCommits());
+    instance.clearOpenCommits();
+    instance.close();
+
+    instance = new DuplicateCheckStore(storeFile, 100, DAY);
+    Assert.assertFalse(instance.hasOpenCommits());
+    instance.close();
+
+    storeFile.delete();
+  }
+
+  private File newStoreFile() throws IOException
+  {
+    File storeFile = File.createTempFile("DuplicateCheckStoreTest", ".dat");
+    storeFile.delete();
+    return storeFile;
+  }
+}
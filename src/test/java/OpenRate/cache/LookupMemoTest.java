@@ -0,0 +1,155 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the bounded lookup memo.
+ */
+public class LookupMemoTest
+{
+  public LookupMemoTest()
+  {
+  }
+
+  /**
+   * Test of get, put and the statistics.
+   */
+  @Test
+  public void testGetPut()
+  {
+    System.out.println("testGetPut");
+
+    LookupMemo<String, String> instance = new LookupMemo<>(100);
+
+    Assert.assertNull(instance.get("G1", "0044"));
+    instance.put("G1", "0044", "UK", instance.getGeneration());
+    Assert.assertEquals("UK", instance.get("G1", "0044"));
+
+    // groups are kept apart
+    Assert.assertNull(instance.get("G2", "0044"));
+    Assert.assertEquals("1:2:0:1", instance.getStats());
+
+    instance.resetStats();
+    Assert.assertEquals("0:0:0:1", instance.getStats());
+  }
+
+  /**
+   * Test that the memo stays within its bounds and drops the least recently
+   * used results.
+   */
+  @Test
+  public void testEviction()
+  {
+    System.out.println("testEviction");
+
+    // one entry per stripe
+    LookupMemo<String, String> instance = new LookupMemo<>(16);
+
+    for (int i = 0 ; i < 1000 ; i++)
+    {
+      instance.put("G", Integer.toString(i), Integer.toString(i), instance.getGeneration());
+    }
+
+    Assert.assertTrue(instance.size() <= 16);
+    Assert.assertEquals("999", instance.get("G", "999"));
+    Assert.assertNull(instance.get("G", "0"));
+  }
+
+  /**
+   * Test that invalidation drops everything.
+   */
+  @Test
+  public void testInvalidate()
+  {
+    System.out.println("testInvalidate");
+
+    LookupMemo<LookupMemo.ArrayKey, String> instance = new LookupMemo<>(100);
+    String[] key = new String[]{"A", "B"};
+
+    instance.put("G", new LookupMemo.ArrayKey(key.clone()), "AB", instance.getGeneration());
+    Assert.assertEquals("AB", instance.get("G", new LookupMemo.ArrayKey(new String[]{"A", "B"})));
+
+    instance.invalidate();
+    Assert.assertNull(instance.get("G", new LookupMemo.ArrayKey(key)));
+    Assert.assertEquals(0, instance.size());
+  }
+
+  /**
+   * Test that a result computed before an invalidation is not stored after
+   * it.
+   */
+  @Test
+  public void testStalePut()
+  {
+    System.out.println("testStalePut");
+
+    LookupMemo<String, String> instance = new LookupMemo<>(100);
+
+    // the lookup starts, then the data is reloaded before it stores
+    Object generation = instance.getGeneration();
+    instance.invalidate();
+    instance.put("G", "0044", "OLD", generation);
+
+    Assert.assertNull(instance.get("G", "0044"));
+    Assert.assertEquals(0, instance.size());
+
+    // a lookup that started after the reload is stored
+    instance.put("G", "0044", "NEW", instance.getGeneration());
+    Assert.assertEquals("NEW", instance.get("G", "0044"));
+  }
+}
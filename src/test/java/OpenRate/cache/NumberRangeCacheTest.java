@@ -0,0 +1,178 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import OpenRate.exception.InitializationException;
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the range lookups of the number range cache.
+ */
+public class NumberRangeCacheTest
+{
+  public NumberRangeCacheTest()
+  {
+  }
+
+  private static ArrayList<String> result(String value)
+  {
+    ArrayList<String> resultList = new ArrayList<>();
+    resultList.add(value);
+    return resultList;
+  }
+
+  /**
+   * Test of the range and validity lookup.
+   */
+  @Test
+  public void testGetEntry() throws InitializationException
+  {
+    System.out.println("testGetEntry");
+
+    NumberRangeCache instance = new NumberRangeCache();
+    instance.addEntry("G1", 300, 399, 0, 0, result("C"));
+    instance.addEntry("G1", 100, 199, 1000, 2000, result("A1"));
+    instance.addEntry("G1", 100, 199, 2000, 0, result("A2"));
+    instance.addEntry("G1", 200, 299, 0, 0, result("B"));
+
+    Assert.assertEquals("A1", instance.getEntry("G1", 150, 1500));
+    Assert.assertEquals("A2", instance.getEntry("G1", 100, 2000));
+    Assert.assertEquals(NumberRangeCache.NO_RANGE_MATCH, instance.getEntry("G1", 150, 500));
+    Assert.assertEquals("B", instance.getEntry("G1", 299, 500));
+    Assert.assertEquals("C", instance.getEntry("G1", 300, 500));
+    Assert.assertEquals(NumberRangeCache.NO_RANGE_MATCH, instance.getEntry("G1", 400, 500));
+    Assert.assertEquals(NumberRangeCache.NO_RANGE_MATCH, instance.getEntry("G2", 150, 1500));
+    Assert.assertNull(instance.getEntryWithChildData("G1", 99, 1500));
+
+    // adding after a lookup is picked up by the next lookup
+    instance.addEntry("G1", 400, 499, 0, 0, result("D"));
+    Assert.assertEquals("D", instance.getEntry("G1", 400, 500));
+    Assert.assertEquals("5", instance.processControlEvent("ObjectCount", false, ""));
+  }
+
+  /**
+   * Test that the lookups agree with a linear search over random ranges,
+   * including overlapping ones and a "don't care" range.
+   */
+  @Test
+  public void testAgainstLinearSearch() throws InitializationException
+  {
+    System.out.println("testAgainstLinearSearch");
+
+    Random random = new Random(4321);
+    NumberRangeCache instance = new NumberRangeCache();
+    int entries = 5000;
+    long[] from = new long[entries];
+    long[] to = new long[entries];
+
+    for (int i = 0 ; i < entries ; i++)
+    {
+      from[i] = 1 + random.nextInt(1000000);
+      to[i] = from[i] + random.nextInt(500);
+      instance.addEntry("G", from[i], to[i], 0, 0, result(Integer.toString(i)));
+    }
+
+    for (int i = 0 ; i < 20000 ; i++)
+    {
+      long value = random.nextInt(1001000);
+
+      // the expected answer is the match with the lowest start, and for the
+      // same start, the first loaded
+      int expected = -1;
+      for (int j = 0 ; j < entries ; j++)
+      {
+        if ((from[j] <= value) && (to[j] >= value) &&
+            ((expected < 0) || (from[j] < from[expected])))
+        {
+          expected = j;
+        }
+      }
+
+      String expectedResult = (expected < 0) ? NumberRangeCache.NO_RANGE_MATCH : Integer.toString(expected);
+      Assert.assertEquals(expectedResult, instance.getEntry("G", value, 1000));
+    }
+
+    // a "don't care" range catches everything else
+    instance.addEntry("G", 0, 0, 0, 0, result("ALL"));
+    Assert.assertEquals("ALL", instance.getEntry("G", 5, 1000));
+    Assert.assertEquals("ALL", instance.getEntry("G", 2000000, 1000));
+  }
+
+  /**
+   * Test that a repeated range with overlapping validity is rejected.
+   */
+  @Test
+  public void testOverlap() throws InitializationException
+  {
+    System.out.println("testOverlap");
+
+    NumberRangeCache instance = new NumberRangeCache();
+    instance.addEntry("G1", 100, 199, 1000, 3000, result("A1"));
+    instance.addEntry("G1", 100, 199, 2000, 4000, result("A2"));
+
+    try
+    {
+      instance.buildIndexes();
+      Assert.fail("Overlap not detected");
+    }
+    catch (InitializationException ie)
+    {
+      Assert.assertTrue(ie.getMessage().contains("overlaps"));
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import OpenRate.OpenRate;
+import OpenRate.resource.CacheFactory;
+import TestUtils.FrameworkUtils;
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the persistence modes of the persistent indexed object. The
+ * files of the caches are kept in a test directory which is emptied before
+ * and after each test.
+ */
+public class PersistentIndexedObjectTest
+{
+  private static final File TEST_DIR = new File("target/JournalTest");
+
+  // The instances opened by the test, closed after it
+  private final ArrayList<PersistentIndexedObject> instances = new ArrayList<>();
+
+  public PersistentIndexedObjectTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+    OpenRate.getApplicationInstance();
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestJournal.properties.xml"));
+    FrameworkUtils.startupLoggers();
+  }
+
+  @AfterClass
+  public static void tearDownClass()
+  {
+    OpenRate.getApplicationInstance().cleanup();
+  }
+
+  @Before
+  public void setUp()
+  {
+    TEST_DIR.mkdirs();
+    clearTestDir();
+  }
+
+  @After
+  public void tearDown() throws Exception
+  {
+    for (PersistentIndexedObject instance : instances)
+    {
+      instance.closeJournal();
+    }
+    instances.clear();
+
+    clearTestDir();
+    TEST_DIR.delete();
+  }
+
+  /**
+   * Test that the committed changes of a journal persisted cache are
+   * recovered, and that uncommitted changes are not.
+   */
+  @Test
+  public void testJournalRecovery() throws Exception
+  {
+    System.out.println("testJournalRecovery");
+
+    PersistentIndexedObject journalCache = openCache("JournalCache");
+
+    journalCache.putObject("journal1", "value1");
+    journalCache.putObject("journal2", "value2");
+    journalCache.commitJournal();
+    journalCache.deleteObject("journal2");
+    journalCache.putObject("journal3", "value3");
+    journalCache.commitJournal();
+    journalCache.putObject("journal4", "uncommitted");
+
+    // stop without committing, and recover into a new instance
+    journalCache.closeJournal();
+    PersistentIndexedObject recovered = openCache("JournalCache");
+
+    Assert.assertEquals("value1", recovered.getObject("journal1"));
+    Assert.assertNull(recovered.getObject("journal2"));
+    Assert.assertEquals("value3", recovered.getObject("journal3"));
+    Assert.assertNull(recovered.getObject("journal4"));
+    Assert.assertEquals(2, recovered.getObjectKeySet().size());
+  }
+
+  /**
+   * Test that the changes of a committed transaction are recovered, and that
+   * the changes of a rolled back transaction are not journaled.
+   */
+  @Test
+  public void testTransactionJournal() throws Exception
+  {
+    System.out.println("testTransactionJournal");
+
+    PersistentIndexedObject journalCache = openCache("JournalCache");
+
+    journalCache.putTransObject("trans1", "value1", 1);
+    journalCache.putTransObject("trans2", "value2", 2);
+    journalCache.putTransObject("trans3", "value3", 1);
+    journalCache.deleteTransObject("trans3", 1);
+
+    // a rolled back transaction has nothing left to commit
+    journalCache.commitTransaction(1);
+    journalCache.rollbackTransaction(2);
+    journalCache.commitTransaction(2);
+
+    journalCache.closeJournal();
+    PersistentIndexedObject recovered = openCache("JournalCache");
+
+    Assert.assertEquals("value1", recovered.getObject("trans1"));
+    Assert.assertNull(recovered.getObject("trans2"));
+    Assert.assertNull(recovered.getObject("trans3"));
+    Assert.assertEquals(1, recovered.getObjectKeySet().size());
+  }
+
+  /**
+   * Test that a journal which passes the compaction size is moved aside and
+   * compacted into the snapshot on the background thread, while commits go on
+   * into a new journal.
+   */
+  @Test
+  public void testBackgroundCompaction() throws Exception
+  {
+    System.out.println("testBackgroundCompaction");
+
+    PersistentIndexedObject journalCache = openCache("CompactingJournalCache");
+    File journal = new File(TEST_DIR, "compact_test.dat.journal");
+    File oldJournal = new File(TEST_DIR, "compact_test.dat.journal.old");
+
+    // one commit larger than the compaction size
+    for (int i = 0 ; i < 50 ; i++)
+    {
+      journalCache.putObject("key" + i, "value" + i);
+    }
+    journalCache.deleteObject("key0");
+    journalCache.commitJournal();
+
+    // wait for the compaction to finish with the old journal
+    long timeout = System.currentTimeMillis() + 10000;
+    while (oldJournal.exists() && System.currentTimeMillis() < timeout)
+    {
+      Thread.sleep(10);
+    }
+    Assert.assertFalse("Compaction did not finish", oldJournal.exists());
+
+    // the journal was rotated, so everything is in the snapshot now
+    Assert.assertEquals(0, journal.length());
+
+    // commits go on into the new journal
+    journalCache.putObject("key1", "changed");
+    journalCache.putObject("after", "compaction");
+    journalCache.commitJournal();
+    Assert.assertTrue(journal.length() > 0);
+
+    journalCache.closeJournal();
+    PersistentIndexedObject recovered = openCache("CompactingJournalCache");
+
+    Assert.assertEquals(50, recovered.getObjectKeySet().size());
+    Assert.assertNull(recovered.getObject("key0"));
+    Assert.assertEquals("changed", recovered.getObject("key1"));
+    Assert.assertEquals("value49", recovered.getObject("key49"));
+    Assert.assertEquals("compaction", recovered.getObject("after"));
+  }
+
+  /**
+   * Test that the time to live of each object is kept through the journal and
+   * the journal snapshot, so that an object still expires after a restart.
+   */
+  @Test
+  public void testJournalKeepsTimeToLive() throws Exception
+  {
+    System.out.println("testJournalKeepsTimeToLive");
+
+    PersistentIndexedObject journalCache = openCache("JournalCache");
+
+    journalCache.putObject("expiring", "value1", 1);
+    journalCache.putObject("forever", "value2");
+    journalCache.commitJournal();
+    journalCache.closeJournal();
+
+    // recovered from the journal
+    PersistentIndexedObject recovered = openCache("JournalCache");
+    Assert.assertTrue(recovered.ObjectList.getExpiry("expiring") > 0);
+    Assert.assertEquals(0, recovered.ObjectList.getExpiry("forever"));
+
+    // recovered from the snapshot written on shutdown
+    recovered.saveCache();
+    PersistentIndexedObject restarted = openCache("JournalCache");
+    Assert.assertEquals(recovered.ObjectList.getExpiry("expiring"), restarted.ObjectList.getExpiry("expiring"));
+
+    assertExpires(restarted, "expiring");
+    Assert.assertEquals("value2", restarted.getObject("forever"));
+  }
+
+  /**
+   * Test that the time to live of each object is kept in the snapshot mode.
+   */
+  @Test
+  public void testSnapshotKeepsTimeToLive() throws Exception
+  {
+    System.out.println("testSnapshotKeepsTimeToLive");
+
+    PersistentIndexedObject snapshotCache = openCache("SnapshotCache");
+
+    snapshotCache.putObject("expiring", "value1", 1);
+    snapshotCache.putObject("forever", "value2");
+    snapshotCache.saveCache();
+
+    PersistentIndexedObject restarted = openCache("SnapshotCache");
+    Assert.assertEquals(snapshotCache.ObjectList.getExpiry("expiring"), restarted.ObjectList.getExpiry("expiring"));
+
+    assertExpires(restarted, "expiring");
+    Assert.assertEquals("value2", restarted.getObject("forever"));
+
+    // without expiring objects there is no expiry file
+    restarted.saveCache();
+    Assert.assertFalse(new File(TEST_DIR, "snapshot_test.dat.expiry").exists());
+  }
+
+  private void assertExpires(PersistentIndexedObject instance, String key) throws InterruptedException
+  {
+    long expiry = instance.ObjectList.getExpiry(key);
+
+    while (System.currentTimeMillis() <= expiry)
+    {
+      Thread.sleep(10);
+    }
+
+    Assert.assertEquals(1, instance.sweepExpiredObjects());
+    Assert.assertEquals(key, instance.pollExpiredObject().getKey());
+    Assert.assertNull(instance.getObject(key));
+  }
+
+  private PersistentIndexedObject openCache(String cacheName) throws Exception
+  {
+    PersistentIndexedObject instance = new PersistentIndexedObject();
+    instances.add(instance);
+    instance.loadCache(CacheFactory.RESOURCE_KEY, cacheName);
+    return instance;
+  }
+
+  private static void clearTestDir()
+  {
+    File[] files = TEST_DIR.listFiles();
+
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the sharded store used by the persistent indexed object cache.
+ */
+public class ShardedObjectStoreTest
+{
+  public ShardedObjectStoreTest()
+  {
+  }
+
+  /**
+   * Test that the objects are stored, found and removed across the shards.
+   */
+  @Test
+  public void testPutGetRemove()
+  {
+    System.out.println("testPutGetRemove");
+
+    ShardedObjectStore instance = new ShardedObjectStore(16, 1000);
+
+    for (int idx = 0 ; idx < 1000 ; idx++)
+    {
+      instance.put("Key" + idx, idx);
+    }
+
+    Assert.assertEquals(1000, instance.size());
+    Assert.assertEquals(1000, instance.keySet().size());
+    Assert.assertEquals(500, instance.get("Key500"));
+    Assert.assertNull(instance.get("Key1000"));
+
+    Assert.assertEquals(500, instance.remove("Key500"));
+    Assert.assertNull(instance.remove("Key500"));
+    Assert.assertFalse(instance.containsKey("Key500"));
+    Assert.assertEquals(999, instance.toMap().size());
+
+    instance.clear();
+    Assert.assertEquals(0, instance.size());
+  }
+
+  /**
+   * Test that the map view reads and writes the store.
+   */
+  @Test
+  public void testMapView()
+  {
+    System.out.println("testMapView");
+
+    ShardedObjectStore instance = new ShardedObjectStore(4, 100);
+    Map<String, Object> view = instance.asMap();
+
+    Assert.assertNull(view.put("Key1", "A"));
+    Assert.assertEquals("A", view.put("Key1", "B"));
+    view.put("Key2", "C");
+    instance.put("Key3", "D");
+
+    Assert.assertEquals("B", instance.get("Key1"));
+    Assert.assertEquals("D", view.get("Key3"));
+    Assert.assertTrue(view.containsKey("Key2"));
+    Assert.assertFalse(view.containsKey(3));
+    Assert.assertEquals(3, view.size());
+
+    // changes through the entries go to the store
+    Iterator<Map.Entry<String, Object>> entryIter = view.entrySet().iterator();
+    while (entryIter.hasNext())
+    {
+      Map.Entry<String, Object> tmpEntry = entryIter.next();
+      if (tmpEntry.getKey().equals("Key2"))
+      {
+        entryIter.remove();
+      }
+      else
+      {
+        tmpEntry.setValue("X");
+      }
+    }
+
+    Assert.assertFalse(instance.containsKey("Key2"));
+    Assert.assertEquals("X", instance.get("Key1"));
+    Assert.assertEquals("X", instance.get("Key3"));
+
+    Assert.assertEquals("X", view.remove("Key1"));
+    view.clear();
+    Assert.assertEquals(0, instance.size());
+  }
+
+  /**
+   * Test that only the objects past their time to live are removed.
+   */
+  @Test
+  public void testRemoveExpired()
+  {
+    System.out.println("testRemoveExpired");
+
+    ShardedObjectStore instance = new ShardedObjectStore(4, 100);
+    instance.setDefaultTimeToLive(1000);
+
+    long now = System.currentTimeMillis();
+    instance.put("Default", "A");
+    instance.put("Forever", "B", 0);
+    instance.put("Long", "C", 60000);
+
+    ArrayList<Map.Entry<String, Object>> expired = new ArrayList<>();
+
+    // nothing has expired yet
+    Assert.assertEquals(0, instance.removeExpired(now, expired));
+    Assert.assertTrue(expired.isEmpty());
+
+    // the default time to live has passed
+    Assert.assertEquals(1, instance.removeExpired(now + 2000, expired));
+    Assert.assertEquals("Default", expired.get(0).getKey());
+    Assert.assertEquals("A", expired.get(0).getValue());
+    Assert.assertEquals(2, instance.size());
+
+    // a long time later only the one without a time to live is left
+    expired.clear();
+    Assert.assertEquals(1, instance.removeExpired(now + 120000, expired));
+    Assert.assertEquals("Long", expired.get(0).getKey());
+    Assert.assertTrue(instance.containsKey("Forever"));
+  }
+
+  /**
+   * Test that a put, and an update, starts the time to live again, so that
+   * the object is kept when the old expiry time has passed.
+   */
+  @Test
+  public void testPutRefreshesTimeToLive() throws InterruptedException
+  {
+    System.out.println("testPutRefreshesTimeToLive");
+
+    ShardedObjectStore instance = new ShardedObjectStore(4, 100);
+    instance.setDefaultTimeToLive(1000);
+
+    instance.put("Key", "A");
+    long firstExpiry = instance.getExpiry("Key");
+    Assert.assertTrue(firstExpiry > 0);
+
+    Thread.sleep(50);
+    instance.put("Key", "B");
+    long secondExpiry = instance.getExpiry("Key");
+    Assert.assertTrue(secondExpiry > firstExpiry);
+
+    // the first expiry time has passed, but the put started it again
+    ArrayList<Map.Entry<String, Object>> expired = new ArrayList<>();
+    Assert.assertEquals(0, instance.removeExpired(firstExpiry, expired));
+    Assert.assertEquals("B", instance.get("Key"));
+
+    Thread.sleep(50);
+    instance.update("Key", new ShardedObjectStore.Updater()
+    {
+      @Override
+      public Object update(String key, Object value)
+      {
+        return value;
+      }
+    });
+    Assert.assertTrue(instance.getExpiry("Key") > secondExpiry);
+    Assert.assertEquals(0, instance.removeExpired(secondExpiry, expired));
+
+    // once the last expiry time has passed it goes
+    Assert.assertEquals(1, instance.removeExpired(instance.getExpiry("Key"), expired));
+    Assert.assertFalse(instance.containsKey("Key"));
+  }
+
+  /**
+   * Test that update creates, changes and removes objects.
+   */
+  @Test
+  public void testUpdate()
+  {
+    System.out.println("testUpdate");
+
+    ShardedObjectStore instance = new ShardedObjectStore(4, 100);
+
+    ShardedObjectStore.Updater increment = new ShardedObjectStore.Updater()
+    {
+      @Override
+      public Object update(String key, Object value)
+      {
+        return (value == null) ? 1 : (Integer) value + 1;
+      }
+    };
+
+    Assert.assertEquals(1, instance.update("Key", increment));
+    Assert.assertEquals(2, instance.update("Key", increment));
+    Assert.assertEquals(2, instance.get("Key"));
+
+    // returning null removes the key, or leaves it absent
+    ShardedObjectStore.Updater remove = new ShardedObjectStore.Updater()
+    {
+      @Override
+      public Object update(String key, Object value)
+      {
+        return null;
+      }
+    };
+
+    Assert.assertNull(instance.update("Key", remove));
+    Assert.assertFalse(instance.containsKey("Key"));
+    Assert.assertNull(instance.update("Other", remove));
+    Assert.assertEquals(0, instance.size());
+  }
+
+  /**
+   * Test that updates of the same key from many threads are not lost, while
+   * the expired objects are removed at the same time.
+   */
+  @Test
+  public void testConcurrentUpdate() throws InterruptedException
+  {
+    System.out.println("testConcurrentUpdate");
+
+    final ShardedObjectStore instance = new ShardedObjectStore(4, 100);
+    instance.setDefaultTimeToLive(60000);
+
+    final int threadCount = 8;
+    final int updateCount = 10000;
+
+    final ShardedObjectStore.Updater increment = new ShardedObjectStore.Updater()
+    {
+      @Override
+      public Object update(String key, Object value)
+      {
+        int[] counter = (value == null) ? new int[1] : (int[]) value;
+        counter[0]++;
+        return counter;
+      }
+    };
+
+    Thread[] threads = new Thread[threadCount];
+    for (int idx = 0 ; idx < threadCount ; idx++)
+    {
+      threads[idx] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          for (int count = 0 ; count < updateCount ; count++)
+          {
+            instance.update("Key", increment);
+          }
+        }
+      };
+      threads[idx].start();
+    }
+
+    // the key never gets near its expiry, so the sweeps must leave it alone
+    ArrayList<Map.Entry<String, Object>> expired = new ArrayList<>();
+    for (Thread thread : threads)
+    {
+      while (thread.isAlive())
+      {
+        instance.removeExpired(System.currentTimeMillis(), expired);
+        thread.join(1);
+      }
+    }
+
+    Assert.assertTrue(expired.isEmpty());
+    Assert.assertEquals(threadCount * updateCount, ((int[]) instance.get("Key"))[0]);
+  }
+
+  /**
+   * Test that the expiry times are kept by putWithExpiry and given by copyTo.
+   */
+  @Test
+  public void testCopyExpiries()
+  {
+    System.out.println("testCopyExpiries");
+
+    ShardedObjectStore instance = new ShardedObjectStore(4, 100);
+
+    instance.putWithExpiry("Expiring", "A", 123456789L);
+    instance.putWithExpiry("Forever", "B", 0);
+
+    Assert.assertEquals(123456789L, instance.getExpiry("Expiring"));
+    Assert.assertEquals(0, instance.getExpiry("Forever"));
+    Assert.assertEquals(0, instance.getExpiry("Missing"));
+    Assert.assertTrue(instance.hasExpiringEntries());
+
+    HashMap<String, Object> objects = new HashMap<>();
+    HashMap<String, Long> expiries = new HashMap<>();
+    instance.copyTo(objects, expiries);
+
+    Assert.assertEquals(2, objects.size());
+    Assert.assertEquals(1, expiries.size());
+    Assert.assertEquals(Long.valueOf(123456789L), expiries.get("Expiring"));
+
+    instance.remove("Expiring");
+    Assert.assertFalse(instance.hasExpiringEntries());
+  }
+}
@@ -0,0 +1,204 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.lang;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the compact digit tree against the object digit tree.
+ */
+public class CompactDigitTreeTest
+{
+  public CompactDigitTreeTest()
+  {
+  }
+
+  private static ArrayList<String> result(String... values)
+  {
+    ArrayList<String> resultList = new ArrayList<>();
+    for (String value : values)
+    {
+      resultList.add(value);
+    }
+    return resultList;
+  }
+
+  /**
+   * Test of the best match.
+   */
+  @Test
+  public void testMatch()
+  {
+    System.out.println("testMatch");
+
+    CompactDigitTree instance = new CompactDigitTree();
+    instance.addPrefix("0039", result("Italy", "EU"));
+    instance.addPrefix("0044", result("UK", "EU"));
+    instance.addPrefix("00447", result("UK Mobile", "EU"));
+
+    Assert.assertEquals("Italy", instance.match("00390612345"));
+    Assert.assertEquals("UK", instance.match("00441234"));
+    Assert.assertEquals("UK Mobile", instance.match("00447777"));
+    Assert.assertEquals("UK", instance.match("0044"));
+    Assert.assertEquals(DigitTree.NO_DIGIT_TREE_MATCH, instance.match("004"));
+    Assert.assertEquals(DigitTree.NO_DIGIT_TREE_MATCH, instance.match("1234"));
+    Assert.assertEquals(DigitTree.NO_DIGIT_TREE_MATCH, instance.match(""));
+    Assert.assertEquals("EU", instance.matchWithChildData("00447123").get(1));
+    Assert.assertEquals(DigitTree.NO_DIGIT_TREE_MATCH, instance.matchWithChildData("9").get(0));
+
+    // non digits end the match
+    Assert.assertEquals("UK", instance.match("0044#7"));
+  }
+
+  /**
+   * Test that equal result lists are interned.
+   */
+  @Test
+  public void testInterning()
+  {
+    System.out.println("testInterning");
+
+    CompactDigitTree instance = new CompactDigitTree();
+    instance.addPrefix("0049", result("Europe1"));
+    instance.addPrefix("0044", result("Europe1"));
+    instance.addPrefix("001", result("USA"));
+
+    Assert.assertEquals(2, instance.getResultCount());
+    Assert.assertSame(instance.matchWithChildData("0049"), instance.matchWithChildData("0044"));
+
+    // adding after trimming still works
+    instance.trimToSize();
+    instance.addPrefix("0033", result("Europe1"));
+    Assert.assertEquals(2, instance.getResultCount());
+    Assert.assertEquals("Europe1", instance.match("00331"));
+  }
+
+  /**
+   * Test that a prefix added with no results is not a match, as in the
+   * DigitTree.
+   */
+  @Test
+  public void testNullResults()
+  {
+    System.out.println("testNullResults");
+
+    DigitTree reference = new DigitTree();
+    CompactDigitTree instance = new CompactDigitTree();
+
+    reference.addPrefix("0044", result("UK"));
+    instance.addPrefix("0044", result("UK"));
+    reference.addPrefix("00447", null);
+    instance.addPrefix("00447", null);
+    reference.addPrefix("0039", null);
+    instance.addPrefix("0039", null);
+
+    Assert.assertEquals("UK", instance.match("004477"));
+    Assert.assertEquals(reference.match("004477"), instance.match("004477"));
+    Assert.assertEquals(DigitTree.NO_DIGIT_TREE_MATCH, instance.match("00391"));
+    Assert.assertEquals(reference.match("00391"), instance.match("00391"));
+    Assert.assertEquals(DigitTree.NO_DIGIT_TREE_MATCH, instance.matchWithChildData("00391").get(0));
+    Assert.assertEquals(reference.matchWithChildData("00391"), instance.matchWithChildData("00391"));
+  }
+
+  /**
+   * Test of an invalid prefix.
+   */
+  @Test(expected = ArrayIndexOutOfBoundsException.class)
+  public void testInvalidPrefix()
+  {
+    System.out.println("testInvalidPrefix");
+
+    CompactDigitTree instance = new CompactDigitTree();
+    instance.addPrefix("00A9", result("Bad"));
+  }
+
+  /**
+   * Test that the compact tree gives the same answers as the object tree for
+   * a random prefix set large enough to make the arrays grow.
+   */
+  @Test
+  public void testSameAsDigitTree()
+  {
+    System.out.println("testSameAsDigitTree");
+
+    Random random = new Random(1234);
+    DigitTree reference = new DigitTree();
+    CompactDigitTree instance = new CompactDigitTree();
+
+    for (int i = 0 ; i < 20000 ; i++)
+    {
+      String prefix = Long.toString(random.nextInt(100000000));
+      prefix = prefix.substring(0, 1 + random.nextInt(prefix.length()));
+      ArrayList<String> resultList = result("R" + random.nextInt(500));
+      reference.addPrefix(prefix, resultList);
+      instance.addPrefix(prefix, resultList);
+    }
+    instance.trimToSize();
+
+    Assert.assertEquals(reference.size(), instance.size());
+
+    for (int i = 0 ; i < 20000 ; i++)
+    {
+      String number = Long.toString(random.nextLong() & Long.MAX_VALUE);
+      Assert.assertEquals(reference.match(number), instance.match(number));
+      Assert.assertEquals(reference.matchWithChildData(number), instance.matchWithChildData(number));
+    }
+
+    Assert.assertTrue(instance.getMemoryEstimate() < reference.getMemoryEstimate());
+  }
+}
@@ -0,0 +1,281 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+
+package OpenRate.parser;
+
+import OpenRate.exception.ASN1Exception;
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the buffer based ASN.1 decoder, and that it decodes in the same way as
+ * the ASN1Parser.
+ */
+public class ASN1BufferDecoderTest
+{
+  // A captured Huawei CDR, the same one as in the ASN1ParserTest
+  private static final byte[] TEST_CDR = {
+    -128, 1, 7, -127, 7, -111, 50, -107, -103, -103, 25, -16, -126, 8, 38, 2,
+    3, 17, 70, 9, 18, -9, -125, 8, 83, 20, 84, 64, 36, 96, 73, -16,
+    -124, 7, -111, 50, -107, 35, -121, 82, -13, -123, 3, 51, 89, -128, -122, 7,
+    -111, 50, -107, -103, -103, 9, -15, -89, 8, -128, 2, 36, 84, -127, 2, 6,
+    -99, -120, 9, 18, 18, 49, 35, 67, 72, 43, 1, 0, -117, 1, 2, -65,
+    -127, 2, 3, -125, 1, 33, -65, -127, 5, 3, -128, 1, 2, -97, -127, 13,
+    1, 1, -97, -127, 39, 2, 43, 9, -97, -127, 40, 2, -104, 8, -97, -127,
+    60, 7, 38, -14, 48, 36, 84, 6, -99, -97, -127, 62, 1, 10, -97, -127,
+    64, 3, 38, -14, 48, -97, -127, 67, 1, -1, -97, -127, 73, 3, -95, 65,
+    65, -97, -127, 74, 5, 25, 10, 4, -22, 103, -97, -127, 104, 4, 107, -1,
+    -72, -1
+  };
+
+  public ASN1BufferDecoderTest()
+  {
+  }
+
+  private static byte[] toBytes(int... values)
+  {
+    byte[] result = new byte[values.length];
+
+    for (int idx = 0 ; idx < values.length ; idx++)
+    {
+      result[idx] = (byte) values[idx];
+    }
+
+    return result;
+  }
+
+  /**
+   * Test the decoding of the captured CDR, as in ASN1ParserTest.testParseCDR.
+   */
+  @Test
+  public void testDecodeCDR() throws Exception
+  {
+    System.out.println("decodeCDR");
+
+    StringBuilder recordContents = new StringBuilder();
+    HuaweiDef asn1Specification = new HuaweiDef();
+    asn1Specification.initTags();
+
+    ASN1BufferDecoder instance = new ASN1BufferDecoder();
+    instance.setBuffer(ByteBuffer.wrap(TEST_CDR));
+    Asn1Element element = new Asn1Element();
+
+    // get the cdr type
+    Assert.assertTrue(instance.readNextElement(element));
+    String cdrType = instance.decodeBytes(element);
+    recordContents.append(asn1Specification.getCDRName(cdrType)).append(";");
+
+    while (instance.ready())
+    {
+      Assert.assertTrue(instance.readNextElement(element));
+
+      String tagIndex = cdrType + ";" + element.getRawTag();
+
+      if (element.isConstructed())
+      {
+        instance.skipValue(element);
+      }
+
+      if (asn1Specification.getTagType(tagIndex) >= 0)
+      {
+        recordContents.append("{").append(asn1Specification.getTagName(tagIndex)).append("=").append(instance.decode(asn1Specification.getTagType(tagIndex), element)).append("};");
+      }
+    }
+
+    String expectedResult = "SMMT;{IMSI=260203114609127};{IMEI=531454402460490};{MSISDN=9132952387523};{Timestamp=1212312343482;0100};";
+    Assert.assertEquals(expectedResult, recordContents.toString());
+  }
+
+  /**
+   * Test that every element of the captured CDR decodes the same as with the
+   * ASN1Parser.
+   */
+  @Test
+  public void testAgainstASN1Parser() throws Exception
+  {
+    System.out.println("againstASN1Parser");
+
+    ASN1Parser parser = new ASN1Parser(new HuaweiDef());
+    parser.setDataToParse(TEST_CDR);
+
+    ASN1BufferDecoder instance = new ASN1BufferDecoder();
+    instance.setBuffer(ByteBuffer.wrap(TEST_CDR));
+    Asn1Element element = new Asn1Element();
+
+    while (parser.ready())
+    {
+      Asn1Class expected = parser.readNextElement();
+      Assert.assertTrue(instance.readNextElement(element));
+
+      Assert.assertEquals(expected.getRawTag(), element.getRawTag());
+      Assert.assertEquals(expected.getTag(), element.getTag());
+      Assert.assertEquals(expected.getLength(), element.getLength());
+      Assert.assertEquals(expected.isConstructed(), element.isConstructed());
+
+      if (expected.isConstructed())
+      {
+        parser.readBlock(expected.getLength());
+        instance.skipValue(element);
+      }
+      else
+      {
+        Assert.assertEquals(parser.parseBytes(expected.getOrigValue()), instance.decodeBytes(element));
+        Assert.assertEquals(parser.parseBCDString(expected.getOrigValue()), instance.decodeBCDString(element));
+        Assert.assertEquals(parser.parseBCDStringLE(expected.getOrigValue()), instance.decodeBCDStringLE(element));
+        Assert.assertEquals(parser.parseIA5String(expected.getOrigValue()), instance.decodeIA5String(element));
+      }
+    }
+
+    Assert.assertFalse(instance.ready());
+  }
+
+  /**
+   * Test the decoding of the length forms.
+   */
+  @Test
+  public void testReadNextElementLength() throws Exception
+  {
+    System.out.println("readNextElementLength");
+
+    ASN1BufferDecoder instance = new ASN1BufferDecoder();
+    Asn1Element element = new Asn1Element();
+
+    instance.setBuffer(ByteBuffer.wrap(toBytes(-96, -127, -35)));
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(221, element.getLength());
+
+    instance.setBuffer(ByteBuffer.wrap(toBytes(-96, -126, 1, 61)));
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(317, element.getLength());
+
+    instance.setBuffer(ByteBuffer.wrap(toBytes(48, -125, 1, -97, 41)));
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(106281, element.getLength());
+
+    instance.setBuffer(ByteBuffer.wrap(toBytes(48, -124, 1, -97, 1, 41)));
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(27197737, element.getLength());
+
+    // indefinite length
+    instance.setBuffer(ByteBuffer.wrap(toBytes(-95, -128)));
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertTrue(element.isIndefiniteLength());
+    Assert.assertEquals(0, element.getLength());
+
+    try
+    {
+      instance.setBuffer(ByteBuffer.wrap(toBytes(48, -123, 1, 1, 1, 1, 1)));
+      instance.readNextElement(element);
+      Assert.fail("Expected an ASN1Exception");
+    }
+    catch (ASN1Exception ex)
+    {
+      // expected
+    }
+  }
+
+  /**
+   * Test that an element that is not complete in the buffer is not consumed.
+   */
+  @Test
+  public void testIncompleteElement() throws Exception
+  {
+    System.out.println("incompleteElement");
+
+    ASN1BufferDecoder instance = new ASN1BufferDecoder();
+    Asn1Element element = new Asn1Element();
+    ByteBuffer buffer = ByteBuffer.wrap(TEST_CDR);
+
+    // the second element (tag 0x81, length 7) is cut short
+    buffer.limit(8);
+    instance.setBuffer(buffer);
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(3, buffer.position());
+    Assert.assertFalse(instance.readNextElement(element));
+    Assert.assertEquals(3, buffer.position());
+
+    // once the rest is there we can read it
+    buffer.limit(TEST_CDR.length);
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(12, buffer.position());
+    Assert.assertEquals("913295999919f0", instance.decodeBytes(element));
+  }
+
+  /**
+   * Test the integer decoding.
+   */
+  @Test
+  public void testDecodeInteger() throws Exception
+  {
+    System.out.println("decodeInteger");
+
+    ASN1BufferDecoder instance = new ASN1BufferDecoder();
+    Asn1Element element = new Asn1Element();
+
+    instance.setBuffer(ByteBuffer.wrap(toBytes(2, 2, 1, 44)));
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(300, instance.decodeInteger(element));
+
+    instance.setBuffer(ByteBuffer.wrap(toBytes(2, 2, -1, 56)));
+    Assert.assertTrue(instance.readNextElement(element));
+    Assert.assertEquals(-200, instance.decodeInteger(element));
+    Assert.assertEquals("-200", instance.decode(ASN1Parser.INTEGER, element));
+  }
+}
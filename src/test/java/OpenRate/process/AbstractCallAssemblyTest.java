@@ -0,0 +1,295 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.process;
+
+import OpenRate.OpenRate;
+import OpenRate.buffer.ArrayListQueueBuffer;
+import OpenRate.cache.CallAssemblyCache;
+import OpenRate.exception.ExceptionHandler;
+import OpenRate.lang.AssemblyCtx;
+import OpenRate.record.FlatRecord;
+import OpenRate.record.HeaderRecord;
+import OpenRate.record.IRecord;
+import OpenRate.record.TrailerRecord;
+import OpenRate.resource.CacheFactory;
+import TestUtils.FrameworkUtils;
+import TestUtils.TransactionUtils;
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.*;
+
+/**
+ * Tests the context handling of the abstract call assembly.
+ */
+public class AbstractCallAssemblyTest
+{
+  private static final File TEST_DIR = new File("target/CallAssemblyTest");
+
+  private static CallAssemblyCache assemblyCache;
+
+  public AbstractCallAssemblyTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+    // the cache is saved here on clean up
+    TEST_DIR.mkdirs();
+
+    // Set up the OpenRate internal logger - this is normally done by app startup
+    OpenRate.getApplicationInstance();
+
+    // Load the properties into the OpenRate object
+    FrameworkUtils.loadProperties(new URL("File:src/test/resources/TestCallAssembly.properties.xml"));
+
+    // Get the loggers
+    FrameworkUtils.startupLoggers();
+
+    // Get the transaction manager
+    FrameworkUtils.startupTransactionManager();
+
+    // Get the caches that we are using
+    FrameworkUtils.startupCaches();
+
+    assemblyCache = (CallAssemblyCache) CacheFactory.getGlobalManager("AssemblyCache").get("AssemblyCache");
+  }
+
+  @AfterClass
+  public static void tearDownClass()
+  {
+    OpenRate.getApplicationInstance().cleanup();
+
+    new File(TEST_DIR, "assembly.dat").delete();
+    TEST_DIR.delete();
+  }
+
+  /**
+   * Test that the partials of one call updated from many threads at the same
+   * time are all counted.
+   */
+  @Test
+  public void testConcurrentAssembly() throws Exception
+  {
+    System.out.println("testConcurrentAssembly");
+
+    final TestCallAssembly instance = new TestCallAssembly();
+    instance.init("DBTestPipe", "CallAssemblyTest");
+
+    final int threadCount = 8;
+    final int partialCount = 1000;
+
+    Assert.assertTrue(instance.startAssembly("Call1", 1, 10, 4, 6, 1000));
+    Assert.assertFalse(instance.startAssembly("Call1", 1, 10, 4, 6, 1000));
+    Assert.assertEquals(1, instance.getState("Call1"));
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0 ; i < threadCount ; i++)
+    {
+      final long startDate = 1000 - i;
+      Thread thread = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          for (int count = 0 ; count < partialCount ; count++)
+          {
+            instance.continueAssembly("Call1", 1, 10, 4, 6, startDate);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+
+    Assert.assertTrue(instance.endAssembly("Call1", 1, 10, 4, 6, 2000));
+
+    AssemblyCtx ctx = (AssemblyCtx) assemblyCache.getObject("Call1");
+    int partials = threadCount * partialCount + 2;
+    Assert.assertEquals(partials, instance.getCumulativeDuration("Call1"), 0);
+    Assert.assertEquals(partials * 10, ctx.totalData, 0);
+    Assert.assertEquals(partials * 4, ctx.uplink, 0);
+    Assert.assertEquals(partials * 6, ctx.downlink, 0);
+    Assert.assertEquals(1000 - threadCount + 1, ctx.StartDate);
+    Assert.assertEquals(2000, ctx.ClosedDate);
+    Assert.assertEquals(3, instance.getState("Call1"));
+
+    // a closed call takes no more partials, and a missing one gets no context
+    Assert.assertFalse(instance.continueAssembly("Call1", 1, 10, 4, 6, 1000));
+    Assert.assertFalse(instance.endAssembly("Call1", 1, 10, 4, 6, 1000));
+    Assert.assertFalse(instance.continueAssembly("Missing", 1, 10, 4, 6, 1000));
+    Assert.assertFalse(assemblyCache.containsObjectKey("Missing"));
+    Assert.assertEquals(partials, instance.getCumulativeDuration("Call1"), 0);
+
+    // clean up to make tests order independent
+    assemblyCache.deleteObject("Call1");
+  }
+
+  /**
+   * Test that the records for the expired contexts are emitted in front of
+   * the trailer of the transaction.
+   */
+  @Test
+  public void testExpiredBeforeTrailer() throws Exception
+  {
+    System.out.println("testExpiredBeforeTrailer");
+
+    ArrayListQueueBuffer inBuffer = new ArrayListQueueBuffer();
+    ArrayListQueueBuffer outBuffer = new ArrayListQueueBuffer();
+
+    TestCallAssembly instance = new TestCallAssembly();
+    instance.init("DBTestPipe", "CallAssemblyTest");
+    instance.setExceptionHandler(new ExceptionHandler());
+    instance.setInbound(inBuffer);
+    instance.setOutbound(outBuffer);
+
+    // forget anything expired before this test
+    assemblyCache.sweepExpiredObjects();
+    while (assemblyCache.pollExpiredObject() != null)
+    {
+      // drain
+    }
+
+    instance.startAssembly("Expire1", 1, 10, 4, 6, 1000);
+    instance.startAssembly("Expire2", 1, 10, 4, 6, 1000);
+
+    // wait for the contexts to pass their time to live
+    Thread.sleep(1100);
+    Assert.assertEquals(2, assemblyCache.sweepExpiredObjects());
+
+    int transNumber = TransactionUtils.getTM().openTransaction("test");
+    HeaderRecord tmpHDR = new HeaderRecord();
+    tmpHDR.setTransactionNumber(transNumber);
+    TrailerRecord tmpTLR = new TrailerRecord();
+    tmpTLR.setTransactionNumber(transNumber);
+
+    Collection<IRecord> input = new ArrayList<>();
+    input.add(tmpHDR);
+    input.add(new FlatRecord());
+    input.add(tmpTLR);
+    inBuffer.push(input);
+
+    Thread thread = new Thread(instance, "CallAssemblyTest.0");
+    thread.start();
+
+    int expectedCount = input.size() + 2;
+    while (outBuffer.getEventCount() < expectedCount)
+    {
+      Thread.sleep(10);
+    }
+
+    instance.markForShutdown();
+    thread.join(5000);
+
+    ArrayList<IRecord> output = new ArrayList<>(outBuffer.pull(expectedCount + 1));
+    Assert.assertEquals(expectedCount, output.size());
+    Assert.assertTrue(output.get(0) instanceof HeaderRecord);
+    Assert.assertTrue(output.get(1) instanceof FlatRecord);
+    Assert.assertTrue(output.get(4) instanceof TrailerRecord);
+
+    HashSet<String> expiredCalls = new HashSet<>();
+    expiredCalls.add(((ExpiredRecord) output.get(2)).CallID);
+    expiredCalls.add(((ExpiredRecord) output.get(3)).CallID);
+    Assert.assertTrue(expiredCalls.contains("Expire1"));
+    Assert.assertTrue(expiredCalls.contains("Expire2"));
+    Assert.assertNull(assemblyCache.pollExpiredObject());
+  }
+
+  /**
+   * Record emitted for an expired context.
+   */
+  private static class ExpiredRecord extends FlatRecord
+  {
+    final String CallID;
+
+    ExpiredRecord(String CallID)
+    {
+      this.CallID = CallID;
+    }
+  }
+
+  /**
+   * Call assembly that closes the expired contexts with a record.
+   */
+  private static class TestCallAssembly extends AbstractCallAssembly
+  {
+    @Override
+    public IRecord procValidRecord(IRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procErrorRecord(IRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    protected IRecord procExpiredAssembly(String CallID, AssemblyCtx AssemblyContext)
+    {
+      return new ExpiredRecord(CallID);
+    }
+  }
+}
@@ -55,10 +55,12 @@
 package OpenRate.process;
 
 import OpenRate.OpenRate;
+import OpenRate.cache.DuplicateCheckCache;
 import OpenRate.db.DBUtil;
 import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
 import OpenRate.record.IRecord;
+import OpenRate.resource.CacheFactory;
 import OpenRate.transaction.ITransactionManager;
 import OpenRate.transaction.TransactionManagerFactory;
 import OpenRate.utils.ConversionUtils;
@@ -66,10 +68,15 @@ import TestUtils.FrameworkUtils;
 import TestUtils.TransactionUtils;
 import java.net.URL;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.*;
 
 /**
@@ -146,6 +153,33 @@ public class AbstractDuplicateCheckTest
     JDBCChcon.prepareStatement("ALTER TABLE TEST_DUPLICATE_CHECK ADD CONSTRAINT idx_cdr_key UNIQUE (CDR_KEY)").execute();
     System.out.println("    Created Test Table and Index...");
 
+    // The table of the probing cache, with records it loads into its filter
+    try
+    {
+        JDBCChcon.prepareStatement("DROP TABLE TEST_DUPLICATE_PROBE;").execute();
+    }
+    catch (Exception ex)
+    {
+      if ((ex.getMessage().startsWith("Unknown table")) || // Mysql
+          (ex.getMessage().startsWith("user lacks")))      // HSQL
+        {
+        // It's OK
+        }
+        else
+        {
+        // Not OK, Assert.fail the case
+        message = "Error dropping table TEST_DUPLICATE_PROBE in test <AbstractDuplicateCheckTest>.";
+        Assert.fail(message);
+        }
+    }
+
+    JDBCChcon.prepareStatement("CREATE TABLE TEST_DUPLICATE_PROBE (CDR_KEY varchar(64),CDR_DATE timestamp)").execute();
+    JDBCChcon.prepareStatement("ALTER TABLE TEST_DUPLICATE_PROBE ADD CONSTRAINT idx_probe_key UNIQUE (CDR_KEY)").execute();
+    insertProbeRow(JDBCChcon, "Probe_Known1");
+    insertProbeRow(JDBCChcon, "Probe_Known2");
+    insertProbeRow(JDBCChcon, "Probe_Known3");
+    System.out.println("    Created Probe Table and Index...");
+
     // Get the caches that we are using
     FrameworkUtils.startupCaches();
           
@@ -702,6 +736,80 @@ public class AbstractDuplicateCheckTest
     Assert.assertEquals(countAfter-countBefore, 1);
   }
 
+  /**
+   * Test of duplicate checking from several threads in the same transaction,
+   * as the lanes of the partitioned mode do. Each key must be accepted exactly
+   * once, however the checks interleave.
+   */
+  @Test
+  public void testCheckDuplicateConcurrentInTransaction()
+  {
+    final int keyCount = 5000;
+    final long eventDate = new Date().getTime()/1000;
+    final AtomicInteger accepted = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    int oldTransNum;
+
+    System.out.println("testCheckDuplicateConcurrentInTransaction");
+
+    // Start a new transaction
+    transNumber = TransactionUtils.startTransactionPlugIn(instance);
+    System.out.println("testCheckDuplicate: Opened transaction <" + transNumber + ">");
+
+    // all the threads check the same keys
+    ArrayList<Thread> threads = new ArrayList<>();
+    for (int threadIdx = 0 ; threadIdx < 4 ; threadIdx++)
+    {
+      Thread checkThread = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          for (int idx = 0 ; idx < keyCount ; idx++)
+          {
+            try
+            {
+              if (instance.CheckDuplicate(eventDate, "Conc_" + idx) == false)
+              {
+                accepted.incrementAndGet();
+              }
+            }
+            catch (ProcessingException ex)
+            {
+              failed.set(true);
+            }
+          }
+        }
+      };
+      threads.add(checkThread);
+      checkThread.start();
+    }
+
+    for (Thread checkThread : threads)
+    {
+      try
+      {
+        checkThread.join();
+      }
+      catch (InterruptedException ex)
+      {
+        Assert.fail("Interrupted waiting for the check threads");
+      }
+    }
+
+    Assert.assertFalse(failed.get());
+    Assert.assertEquals(keyCount, accepted.get());
+
+    // Close the transaction - this will write the rows into the table
+    oldTransNum = transNumber;
+    transNumber = TransactionUtils.endTransactionPlugIn(instance,transNumber);
+    System.out.println("testCheckDuplicate: Closed transaction <" + oldTransNum + ">");
+
+    // Check that each key was written once
+    Assert.assertEquals(1, getTableRowCount(false, "Conc_0"));
+    Assert.assertEquals(1, getTableRowCount(false, "Conc_" + (keyCount - 1)));
+  }
+
   /**
    * Test of getBestMatch method, of class AbstractBestMatch.
    */
@@ -794,6 +902,120 @@ public class AbstractDuplicateCheckTest
     }    
   }
   
+  /**
+   * Test of the batch check of the old records. A record which is in the
+   * database is found by the probe, also when the batch needs more than one
+   * probe statement, and a record repeated in the batch is a duplicate.
+   */
+  @Test
+  public void testBatchCheckProbeHit() throws Exception
+  {
+    System.out.println("testBatchCheckProbeHit");
+
+    DuplicateCheckCache probeCache = getProbeCache();
+    long oldDate = getOldDate();
+
+    // three probes with a batch size of two need two statements
+    String[] keys = {"Probe_Miss1", "Probe_Known1", "Probe_Known2", "Probe_Miss2", "Probe_Known3", "Probe_Miss1"};
+    long[] dates = {oldDate, oldDate, oldDate, oldDate, oldDate, oldDate};
+
+    probeCache.CreateTransaction(9001);
+    boolean[] result = probeCache.DuplicateCheck(keys, dates, 9001);
+
+    Assert.assertFalse(result[0]);
+    Assert.assertTrue(result[1]);
+    Assert.assertTrue(result[2]);
+    Assert.assertFalse(result[3]);
+    Assert.assertTrue(result[4]);
+    Assert.assertTrue(result[5]);
+
+    // nothing is written until the commit
+    Assert.assertEquals(0, getProbeRowCount("Probe_Miss1"));
+    probeCache.CommitTransaction(9001);
+    Assert.assertEquals(1, getProbeRowCount("Probe_Miss1"));
+    Assert.assertEquals(1, getProbeRowCount("Probe_Miss2"));
+    Assert.assertEquals(1, getProbeRowCount("Probe_Known1"));
+  }
+
+  /**
+   * Test that a record which the bloom filter has never seen is not looked for
+   * in the database. A record written to the database behind the back of the
+   * cache is therefore not found.
+   */
+  @Test
+  public void testBatchCheckFilterSkipsDB() throws Exception
+  {
+    System.out.println("testBatchCheckFilterSkipsDB");
+
+    DuplicateCheckCache probeCache = getProbeCache();
+    long oldDate = getOldDate();
+
+    Connection JDBCChcon = FrameworkUtils.getDBConnection("DuplicateCheckProbeCache");
+    insertProbeRow(JDBCChcon, "Probe_Hidden");
+    DBUtil.close(JDBCChcon);
+
+    String[] keys = {"Probe_Hidden"};
+    long[] dates = {oldDate};
+
+    probeCache.CreateTransaction(9002);
+    boolean[] result = probeCache.DuplicateCheck(keys, dates, 9002);
+    probeCache.RollbackTransaction(9002);
+
+    Assert.assertFalse(result[0]);
+    Assert.assertEquals(1, getProbeRowCount("Probe_Hidden"));
+  }
+
+  /**
+   * Test that when some of the records of an insert batch are already in the
+   * database, the others are still inserted, and that all of them are then
+   * reported as duplicates.
+   */
+  @Test
+  public void testBatchInsertPartialFailure() throws Exception
+  {
+    System.out.println("testBatchInsertPartialFailure");
+
+    DuplicateCheckCache probeCache = getProbeCache();
+    long oldDate = getOldDate();
+
+    String[] keys = {"Partial_1", "Partial_2", "Partial_3", "Partial_4", "Partial_5"};
+    long[] dates = {oldDate, oldDate, oldDate, oldDate, oldDate};
+
+    probeCache.CreateTransaction(9003);
+    boolean[] result = probeCache.DuplicateCheck(keys, dates, 9003);
+    for (int idx = 0 ; idx < keys.length ; idx++)
+    {
+      Assert.assertFalse(result[idx]);
+    }
+
+    // another writer gets some of the records in before we commit
+    Connection JDBCChcon = FrameworkUtils.getDBConnection("DuplicateCheckProbeCache");
+    insertProbeRow(JDBCChcon, "Partial_2");
+    insertProbeRow(JDBCChcon, "Partial_4");
+    DBUtil.close(JDBCChcon);
+
+    probeCache.CommitTransaction(9003);
+
+    for (String key : keys)
+    {
+      Assert.assertEquals(1, getProbeRowCount(key));
+    }
+
+    // all of them are known now, but a new one is not
+    String[] recheckKeys = {"Partial_1", "Partial_2", "Partial_3", "Partial_4", "Partial_5", "Partial_6"};
+    long[] recheckDates = {oldDate, oldDate, oldDate, oldDate, oldDate, oldDate};
+
+    probeCache.CreateTransaction(9004);
+    result = probeCache.DuplicateCheck(recheckKeys, recheckDates, 9004);
+    probeCache.RollbackTransaction(9004);
+
+    for (int idx = 0 ; idx < keys.length ; idx++)
+    {
+      Assert.assertTrue(result[idx]);
+    }
+    Assert.assertFalse(result[5]);
+  }
+
   /**
    * Stub out the calls to the implementation processing - we don't need these
    * for unit testing.
@@ -913,6 +1135,71 @@ public class AbstractDuplicateCheckTest
     return rowCount;
   }
 
+ /**
+  * Get the cache which probes for the old records in batches.
+  *
+  * @return The probing cache
+  */
+  private DuplicateCheckCache getProbeCache() throws InitializationException
+  {
+    return (DuplicateCheckCache) CacheFactory.getGlobalManager("DuplicateCheckProbeCache").get("DuplicateCheckProbeCache");
+  }
+
+ /**
+  * Get a date between the buffer limit and the store limit of the probing
+  * cache, so that the record is only checked in the database.
+  *
+  * @return The UTC date 100 days ago
+  */
+  private long getOldDate()
+  {
+    return new Date().getTime()/1000 - 100*86400;
+  }
+
+ /**
+  * Insert a record 100 days old into the table of the probing cache.
+  *
+  * @param JDBCChcon The connection to use
+  * @param cdrKey The key to insert
+  * @throws SQLException
+  */
+  private static void insertProbeRow(Connection JDBCChcon, String cdrKey) throws SQLException
+  {
+    PreparedStatement insertStatement = JDBCChcon.prepareStatement("INSERT INTO TEST_DUPLICATE_PROBE (CDR_KEY,CDR_DATE) VALUES (?,?)");
+    insertStatement.setString(1, cdrKey);
+    insertStatement.setTimestamp(2, new Timestamp(new Date().getTime() - 100*86400000L));
+    insertStatement.execute();
+    DBUtil.close(insertStatement);
+  }
+
+ /**
+  * Get the row count for a key from the table of the probing cache.
+  *
+  * @param cdrKey The key to count
+  * @return The number of rows
+  */
+  private int getProbeRowCount(String cdrKey)
+  {
+    ResultSet result;
+    int rowCount = -1;
+
+    try
+    {
+      // Get a connection
+      Connection JDBCChcon = FrameworkUtils.getDBConnection("DuplicateCheckProbeCache");
+      result = JDBCChcon.prepareStatement("SELECT COUNT(*) FROM TEST_DUPLICATE_PROBE where CDR_KEY = '" + cdrKey + "'",ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY).executeQuery();
+      result.next();
+      rowCount = result.getInt(1);
+      DBUtil.close(JDBCChcon);
+    } catch (InitializationException | SQLException | ClassNotFoundException | InstantiationException | IllegalAccessException ex) {
+      // Not OK, Assert.fail the case
+      message = "Error counting rows in test <AbstractDuplicateCheckTest>, message <"+ex.getMessage()+">";
+      Assert.fail(message);
+    }
+
+    return rowCount;
+  }
+
  /**
   * Method to get an instance of the implementation. Done this way to allow
   * tests to be executed individually.
@@ -0,0 +1,651 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.process;
+
+import OpenRate.OpenRate;
+import OpenRate.buffer.ArrayListQueueBuffer;
+import OpenRate.exception.ExceptionHandler;
+import OpenRate.record.FlatRecord;
+import OpenRate.record.HeaderRecord;
+import OpenRate.record.IRecord;
+import OpenRate.record.TrailerRecord;
+import TestUtils.FrameworkUtils;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.*;
+
+/**
+ * Tests the parallel modes of the abstract plug in.
+ */
+public class AbstractPlugInTest
+{
+  private static URL FQConfigFileName;
+
+  // the number of streams and records per stream we push through
+  private static final int STREAMS = 5;
+  private static final int RECORDS = 200;
+
+  public AbstractPlugInTest()
+  {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+    FQConfigFileName = new URL("File:src/test/resources/TestFramework.properties.xml");
+
+    // Set up the OpenRate internal logger - this is normally done by app startup
+    OpenRate.getApplicationInstance();
+
+    // Load the properties into the OpenRate object
+    FrameworkUtils.loadProperties(FQConfigFileName);
+
+    // Get the loggers
+    FrameworkUtils.startupLoggers();
+  }
+
+  @AfterClass
+  public static void tearDownClass()
+  {
+    OpenRate.getApplicationInstance().cleanup();
+  }
+
+  /**
+   * Test that the ordered parallel mode delivers the batches in the order that
+   * they arrived, and that the headers and trailers are not overtaken.
+   */
+  @Test
+  public void testOrderedParallel() throws Exception
+  {
+    System.out.println("testOrderedParallel");
+
+    ArrayListQueueBuffer inBuffer = new ArrayListQueueBuffer();
+    ArrayListQueueBuffer outBuffer = new ArrayListQueueBuffer();
+
+    TestPlugIn instance = new TestPlugIn();
+    instance.setSymbolicName("OrderedTest");
+    instance.setPipeline(OpenRate.getPipelineFromMap("DBTestPipe"));
+    instance.setExceptionHandler(new ExceptionHandler());
+    instance.setInbound(inBuffer);
+    instance.setOutbound(outBuffer);
+    instance.processControlEvent("BatchSize", true, "7");
+    instance.processControlEvent("BufferSize", true, "100000");
+    Assert.assertEquals("OK", instance.processControlEvent("ParallelMode", true, "Ordered"));
+    Assert.assertEquals("Ordered", instance.processControlEvent("ParallelMode", false, ""));
+    Assert.assertTrue(instance.isOrderPreserving());
+
+    // fill the input with a set of streams
+    Collection<IRecord> input = new ArrayList<>();
+    for (int stream = 0 ; stream < STREAMS ; stream++)
+    {
+      input.add(new HeaderRecord());
+      for (int i = 0 ; i < RECORDS ; i++)
+      {
+        FlatRecord record = new FlatRecord();
+        record.setRecordID(stream * RECORDS + i);
+        input.add(record);
+      }
+      input.add(new TrailerRecord());
+    }
+    inBuffer.push(input);
+
+    // run with four threads
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0 ; i < 4 ; i++)
+    {
+      Thread thread = new Thread(instance, "OrderedTest." + i);
+      threads.add(thread);
+      thread.start();
+    }
+
+    // wait for everything to be processed
+    while (outBuffer.getEventCount() < input.size())
+    {
+      Thread.sleep(10);
+    }
+
+    instance.markForShutdown();
+    for (Thread thread : threads)
+    {
+      thread.join(5000);
+    }
+
+    // check the order of the output
+    Collection<IRecord> output = outBuffer.pull(input.size() + 1);
+    Assert.assertEquals(input.size(), output.size());
+
+    int expectedID = 0;
+    boolean inStream = false;
+    for (IRecord record : output)
+    {
+      if (record instanceof HeaderRecord)
+      {
+        Assert.assertFalse(inStream);
+        inStream = true;
+      }
+      else if (record instanceof TrailerRecord)
+      {
+        Assert.assertTrue(inStream);
+        inStream = false;
+      }
+      else
+      {
+        Assert.assertTrue(inStream);
+        Assert.assertEquals(expectedID++, record.getRecordID());
+      }
+    }
+    Assert.assertEquals(STREAMS * RECORDS, expectedID);
+
+    // no detail record may have been processed while a header was
+    Assert.assertFalse(instance.barrierOverlap);
+  }
+
+  /**
+   * Test that the partitioned parallel mode processes all records with the
+   * same key in the same thread and in order, and delivers the batches in the
+   * order that they arrived.
+   */
+  @Test
+  public void testPartitionedParallel() throws Exception
+  {
+    System.out.println("testPartitionedParallel");
+
+    ArrayListQueueBuffer inBuffer = new ArrayListQueueBuffer();
+    ArrayListQueueBuffer outBuffer = new ArrayListQueueBuffer();
+
+    TestPlugIn instance = new TestPlugIn();
+    instance.setSymbolicName("PartitionedTest");
+    instance.setPipeline(OpenRate.getPipelineFromMap("DBTestPipe"));
+    instance.setExceptionHandler(new ExceptionHandler());
+    instance.setInbound(inBuffer);
+    instance.setOutbound(outBuffer);
+    instance.processControlEvent("BatchSize", true, "50");
+    instance.processControlEvent("BufferSize", true, "100000");
+    instance.setNumThreads(4);
+    Assert.assertEquals("OK", instance.processControlEvent("ParallelMode", true, "Partitioned"));
+    Assert.assertEquals("Partitioned", instance.processControlEvent("ParallelMode", false, ""));
+    Assert.assertTrue(instance.isPartitioned());
+
+    Collection<IRecord> input = new ArrayList<>();
+    for (int stream = 0 ; stream < STREAMS ; stream++)
+    {
+      input.add(new HeaderRecord());
+      for (int i = 0 ; i < RECORDS ; i++)
+      {
+        FlatRecord record = new FlatRecord();
+        record.setRecordID(stream * RECORDS + i);
+        input.add(record);
+      }
+      input.add(new TrailerRecord());
+    }
+
+    // start all the lanes before the input arrives, so that the keys are
+    // spread over the same lanes for every batch
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0 ; i < 4 ; i++)
+    {
+      Thread thread = new Thread(instance, "PartitionedTest." + i);
+      threads.add(thread);
+      thread.start();
+    }
+    Thread.sleep(200);
+    inBuffer.push(input);
+
+    while (outBuffer.getEventCount() < input.size())
+    {
+      Thread.sleep(10);
+    }
+
+    instance.markForShutdown();
+    for (Thread thread : threads)
+    {
+      thread.join(5000);
+      Assert.assertFalse(thread.isAlive());
+    }
+
+    // the output order is unchanged
+    Collection<IRecord> output = outBuffer.pull(input.size() + 1);
+    Assert.assertArrayEquals(input.toArray(), output.toArray());
+
+    // every key stayed in one thread, in order, and the headers and trailers
+    // were not overlapped
+    Assert.assertFalse(instance.keyViolation);
+    Assert.assertFalse(instance.barrierOverlap);
+    Assert.assertEquals(TestPlugIn.KEYS, instance.keyThread.size());
+
+    // each lane kept its own state, and together they saw every record
+    int stateCount = 0;
+    for (Object state : instance.getPartitionStates())
+    {
+      stateCount += ((List<?>) state).size();
+    }
+    Assert.assertEquals(STREAMS * RECORDS, stateCount);
+    Assert.assertFalse(instance.stateViolation);
+  }
+
+  /**
+   * Test that the partitioned mode only waits for the lanes that are running,
+   * when fewer threads run than are configured, and when a lane starts late.
+   */
+  @Test
+  public void testPartitionedLiveLanes() throws Exception
+  {
+    System.out.println("testPartitionedLiveLanes");
+
+    ArrayListQueueBuffer inBuffer = new ArrayListQueueBuffer();
+    ArrayListQueueBuffer outBuffer = new ArrayListQueueBuffer();
+
+    TestPlugIn instance = new TestPlugIn();
+    instance.setSymbolicName("LiveLaneTest");
+    instance.setPipeline(OpenRate.getPipelineFromMap("DBTestPipe"));
+    instance.setExceptionHandler(new ExceptionHandler());
+    instance.setInbound(inBuffer);
+    instance.setOutbound(outBuffer);
+    instance.processControlEvent("BatchSize", true, "50");
+    instance.processControlEvent("BufferSize", true, "100000");
+    instance.setNumThreads(4);
+    instance.processControlEvent("ParallelMode", true, "Partitioned");
+
+    Collection<IRecord> input = new ArrayList<>();
+    input.add(new HeaderRecord());
+    for (int i = 0 ; i < RECORDS ; i++)
+    {
+      FlatRecord record = new FlatRecord();
+      record.setRecordID(i);
+      input.add(record);
+    }
+    input.add(new TrailerRecord());
+    inBuffer.push(input);
+
+    // only two of the four lanes run at first
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0 ; i < 2 ; i++)
+    {
+      Thread thread = new Thread(instance, "LiveLaneTest." + i);
+      threads.add(thread);
+      thread.start();
+    }
+
+    Thread.sleep(50);
+    Thread lateThread = new Thread(instance, "LiveLaneTest.late");
+    threads.add(lateThread);
+    lateThread.start();
+
+    long deadline = System.currentTimeMillis() + 20000;
+    while ((outBuffer.getEventCount() < input.size()) && (System.currentTimeMillis() < deadline))
+    {
+      Thread.sleep(10);
+    }
+
+    instance.markForShutdown();
+    for (Thread thread : threads)
+    {
+      thread.join(5000);
+      Assert.assertFalse(thread.isAlive());
+    }
+
+    Collection<IRecord> output = outBuffer.pull(input.size() + 1);
+    Assert.assertArrayEquals(input.toArray(), output.toArray());
+  }
+
+  /**
+   * Test that a stateful plug-in must supply its partition key to be run in
+   * the partitioned mode.
+   */
+  @Test
+  public void testPartitionKeySupplied() throws Exception
+  {
+    System.out.println("testPartitionKeySupplied");
+
+    TestPlugIn instance = new TestPlugIn();
+    instance.setSymbolicName("KeyTest");
+    instance.setPipeline(OpenRate.getPipelineFromMap("DBTestPipe"));
+    Assert.assertEquals("OK", instance.processControlEvent("ParallelMode", true, "Partitioned"));
+
+    // a plug-in without the key stays in the mode it was in
+    TestPlugIn keyless = new TestPlugIn()
+    {
+      @Override
+      protected boolean supportsPartitioning()
+      {
+        return false;
+      }
+    };
+    keyless.setSymbolicName("KeylessTest");
+    keyless.setPipeline(OpenRate.getPipelineFromMap("DBTestPipe"));
+    Assert.assertFalse("OK".equals(keyless.processControlEvent("ParallelMode", true, "Partitioned")));
+    Assert.assertFalse(keyless.isPartitioned());
+    Assert.assertEquals("OK", keyless.processControlEvent("ParallelMode", true, "Ordered"));
+  }
+
+  /**
+   * Test the parallel mode configuration.
+   */
+  @Test
+  public void testParallelModeConfig()
+  {
+    System.out.println("testParallelModeConfig");
+
+    TestPlugIn instance = new TestPlugIn();
+    instance.setSymbolicName("ConfigTest");
+    instance.setPipeline(OpenRate.getPipelineFromMap("DBTestPipe"));
+
+    Assert.assertEquals("Unordered", instance.processControlEvent("ParallelMode", false, ""));
+    Assert.assertEquals("Command Not Understood", instance.processControlEvent("ParallelMode", true, "Sideways"));
+    Assert.assertFalse(instance.isOrderPreserving());
+  }
+
+  /**
+   * Test that the emitted records are put in front of the record that was
+   * being processed when they were emitted, including those emitted while
+   * processing a trailer, and that emitting outside of the processing fails.
+   */
+  @Test
+  public void testEmitRecord() throws Exception
+  {
+    System.out.println("testEmitRecord");
+
+    ArrayListQueueBuffer inBuffer = new ArrayListQueueBuffer();
+    ArrayListQueueBuffer outBuffer = new ArrayListQueueBuffer();
+
+    EmitPlugIn instance = new EmitPlugIn();
+    instance.setSymbolicName("EmitTest");
+    instance.setPipeline(OpenRate.getPipelineFromMap("DBTestPipe"));
+    instance.setExceptionHandler(new ExceptionHandler());
+    instance.setInbound(inBuffer);
+    instance.setOutbound(outBuffer);
+    instance.processControlEvent("BatchSize", true, "7");
+    instance.processControlEvent("BufferSize", true, "100000");
+    instance.processControlEvent("ParallelMode", true, "Ordered");
+
+    try
+    {
+      instance.emitRecord(new FlatRecord());
+      Assert.fail("Emitting outside of the processing not detected");
+    }
+    catch (IllegalStateException ex)
+    {
+      // expected
+    }
+
+    Collection<IRecord> input = new ArrayList<>();
+    for (int stream = 0 ; stream < STREAMS ; stream++)
+    {
+      input.add(new HeaderRecord());
+      for (int i = 0 ; i < RECORDS ; i++)
+      {
+        FlatRecord record = new FlatRecord();
+        record.setRecordID(stream * RECORDS + i);
+        input.add(record);
+      }
+      input.add(new TrailerRecord());
+    }
+    inBuffer.push(input);
+
+    // one record emitted for every tenth detail, and one for each trailer
+    int expectedCount = input.size() + (STREAMS * RECORDS / 10) + STREAMS;
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0 ; i < 4 ; i++)
+    {
+      Thread thread = new Thread(instance, "EmitTest." + i);
+      threads.add(thread);
+      thread.start();
+    }
+
+    while (outBuffer.getEventCount() < expectedCount)
+    {
+      Thread.sleep(10);
+    }
+
+    instance.markForShutdown();
+    for (Thread thread : threads)
+    {
+      thread.join(5000);
+    }
+
+    ArrayList<IRecord> output = new ArrayList<>(outBuffer.pull(expectedCount + 1));
+    Assert.assertEquals(expectedCount, output.size());
+
+    // without the emitted records the output is the input
+    ArrayList<IRecord> original = new ArrayList<>();
+    int emittedCount = 0;
+    for (int idx = 0 ; idx < output.size() ; idx++)
+    {
+      IRecord record = output.get(idx);
+
+      if (record instanceof EmittedRecord)
+      {
+        // the next record is the one it was emitted for
+        Assert.assertSame(((EmittedRecord) record).anchor, output.get(idx + 1));
+        emittedCount++;
+      }
+      else
+      {
+        original.add(record);
+      }
+    }
+
+    Assert.assertEquals(expectedCount - input.size(), emittedCount);
+    Assert.assertArrayEquals(input.toArray(), original.toArray());
+  }
+
+  /**
+   * Record emitted by the EmitPlugIn, remembering the record it was emitted
+   * for.
+   */
+  private static class EmittedRecord extends FlatRecord
+  {
+    final IRecord anchor;
+
+    EmittedRecord(IRecord anchor)
+    {
+      this.anchor = anchor;
+    }
+  }
+
+  /**
+   * Plug in that emits a record for every tenth detail record and for every
+   * trailer.
+   */
+  private static class EmitPlugIn extends AbstractPlugIn
+  {
+    @Override
+    public IRecord procHeader(IRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procValidRecord(IRecord r)
+    {
+      if (r.getRecordID() % 10 == 0)
+      {
+        emitRecord(new EmittedRecord(r));
+      }
+
+      return r;
+    }
+
+    @Override
+    public IRecord procErrorRecord(IRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procTrailer(IRecord r)
+    {
+      emitRecord(new EmittedRecord(r));
+      return r;
+    }
+  }
+
+  /**
+   * Plug in that takes a random time to process records, so that the threads
+   * finish their batches out of order.
+   */
+  private static class TestPlugIn extends AbstractPlugIn
+  {
+    private final Random random = new Random(42);
+    private int activeDetails = 0;
+    volatile boolean barrierOverlap = false;
+
+    // key tracking for the partitioned mode
+    static final int KEYS = 13;
+    final Map<Integer, String> keyThread = new ConcurrentHashMap<>();
+    final Map<Integer, Integer> keyLastID = new ConcurrentHashMap<>();
+    volatile boolean keyViolation = false;
+
+    // the lane states must only be used by the thread of their lane
+    final Map<Object, String> stateThread = Collections.synchronizedMap(new IdentityHashMap<Object, String>());
+    volatile boolean stateViolation = false;
+
+    @Override
+    protected Object createPartitionState()
+    {
+      return new ArrayList<Integer>();
+    }
+
+    @Override
+    public Object getPartitionKey(IRecord r)
+    {
+      return r.getRecordID() % KEYS;
+    }
+
+    @Override
+    public IRecord procHeader(IRecord r)
+    {
+      checkBarrier();
+      return r;
+    }
+
+    @Override
+    public IRecord procValidRecord(IRecord r)
+    {
+      synchronized (this)
+      {
+        activeDetails++;
+      }
+
+      if (isPartitioned())
+      {
+        Integer key = r.getRecordID() % KEYS;
+        String thread = Thread.currentThread().getName();
+        String previousThread = keyThread.put(key, thread);
+        Integer previousID = keyLastID.put(key, r.getRecordID());
+
+        if (((previousThread != null) && (previousThread.equals(thread) == false)) ||
+            ((previousID != null) && (previousID > r.getRecordID())))
+        {
+          keyViolation = true;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Integer> state = (List<Integer>) getPartitionState();
+        String stateOwner = stateThread.put(state, thread);
+        if ((stateOwner != null) && (stateOwner.equals(thread) == false))
+        {
+          stateViolation = true;
+        }
+        state.add(r.getRecordID());
+      }
+
+      try
+      {
+        Thread.sleep(random.nextInt(2));
+      }
+      catch (InterruptedException ex)
+      {
+        // ignore
+      }
+
+      synchronized (this)
+      {
+        activeDetails--;
+      }
+
+      return r;
+    }
+
+    @Override
+    public IRecord procErrorRecord(IRecord r)
+    {
+      return r;
+    }
+
+    @Override
+    public IRecord procTrailer(IRecord r)
+    {
+      checkBarrier();
+      return r;
+    }
+
+    private synchronized void checkBarrier()
+    {
+      if (activeDetails > 0)
+      {
+        barrierOverlap = true;
+      }
+    }
+  }
+}
@@ -55,11 +55,14 @@
 package OpenRate.process;
 
 import OpenRate.OpenRate;
+import OpenRate.cache.RUMRateCache;
+import OpenRate.db.DBUtil;
 import OpenRate.exception.InitializationException;
 import OpenRate.exception.ProcessingException;
 import OpenRate.record.ChargePacket;
 import OpenRate.record.IRecord;
 import OpenRate.record.TimePacket;
+import OpenRate.resource.CacheFactory;
 import OpenRate.utils.ConversionUtils;
 import TestUtils.FrameworkUtils;
 import TestUtils.TestRatingRecord;
@@ -69,6 +72,8 @@ import java.sql.SQLException;
 import java.util.Calendar;
 import org.junit.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -725,6 +730,42 @@ public class AbstractRUMRateCalcTest {
     assertEquals(expResult, getRollUp(ratingRecord), 0.00001);
   }
 
+  /**
+   * Test that a shadow reload of the cache from the database picks up new
+   * price models, keeping the ones already loaded.
+   *
+   * @throws java.lang.Exception
+   */
+  @Test
+  public void testShadowReloadFromDB() throws Exception {
+    System.out.println("testShadowReloadFromDB");
+
+    RUMRateCache rateCache = (RUMRateCache) CacheFactory.getGlobalManager("RUMRateTestCache").get("RUMRateTestCache");
+    assertNull(rateCache.getPriceModel("TestModel8"));
+
+    Connection JDBCChcon = FrameworkUtils.getDBConnection("RUMRateTestCache");
+
+    try {
+      JDBCChcon.prepareStatement("INSERT INTO TEST_PRICE_MODEL (ID,PRICE_MODEL,STEP,TIER_FROM,TIER_TO,BEAT,FACTOR,CHARGE_BASE,VALID_FROM) values (1,'TestModel8',1,0,999999,60,2,60,'2000-01-01')").execute();
+      JDBCChcon.prepareStatement("INSERT INTO TEST_RUM_MAP (ID,PRICE_GROUP,STEP,PRICE_MODEL,RUM,RESOURCE,RESOURCE_ID,RUM_TYPE,CONSUME_FLAG) VALUES (1,'TestModel8',1,'TestModel8','DUR','EUR',978,'TIERED',0)").execute();
+
+      rateCache.reloadShadowData();
+
+      assertNotNull(rateCache.getPriceModel("TestModel8"));
+      assertNotNull(rateCache.getRUMMap("TestModel8"));
+      assertNotNull(rateCache.getPriceModel("TestModel1"));
+    } finally {
+      // clean up to make tests order independent
+      JDBCChcon.prepareStatement("DELETE FROM TEST_PRICE_MODEL WHERE PRICE_MODEL = 'TestModel8'").execute();
+      JDBCChcon.prepareStatement("DELETE FROM TEST_RUM_MAP WHERE PRICE_GROUP = 'TestModel8'").execute();
+      DBUtil.close(JDBCChcon);
+
+      rateCache.reloadShadowData();
+    }
+
+    assertNull(rateCache.getPriceModel("TestModel8"));
+  }
+
   /**
    * Roll up the charged values from each of the charge packets.
    *
@@ -208,6 +208,52 @@ public class AbstractRegexMatchFileTest
     
   }
 
+  /**
+   * Test of getRegexMatch method on a group large enough to be indexed, mixing
+   * literal, regex, exclusion and numerical fields. The first match in the
+   * order of definition must win.
+   */
+  @Test
+  public void testGetRegexMatchIndexed()
+  {
+    System.out.println("getRegexMatch (Indexed) File");
+
+    String Group = "IndexedMap";
+
+    Assert.assertEquals("BIG_TEL", instance.getRegexMatch(Group, new String[]{"TEL", "200"}));
+    Assert.assertEquals("TEL_ANY", instance.getRegexMatch(Group, new String[]{"TEL", "5"}));
+    Assert.assertEquals("T_FIVE", instance.getRegexMatch(Group, new String[]{"TXT", "5"}));
+    Assert.assertEquals("NOT_SMS_SEVEN", instance.getRegexMatch(Group, new String[]{"TXT", "7"}));
+    Assert.assertEquals("SMS_ANY", instance.getRegexMatch(Group, new String[]{"SMS", "7"}));
+    Assert.assertEquals("DATA_SMALL", instance.getRegexMatch(Group, new String[]{"DATA", "10"}));
+    Assert.assertEquals("DATA_BIG", instance.getRegexMatch(Group, new String[]{"DATA", "10.5"}));
+    Assert.assertEquals("DEFAULT", instance.getRegexMatch(Group, new String[]{"FAX", "1"}));
+  }
+
+  /**
+   * Test of getRegexMatch method on a group indexed on overlapping numerical
+   * ranges. The first map in the order of definition must win.
+   */
+  @Test
+  public void testGetRegexMatchRangeIndexed()
+  {
+    System.out.println("getRegexMatch (Range Indexed) File");
+
+    String Group = "RangeMap";
+
+    Assert.assertEquals("FIFTY", instance.getRegexMatch(Group, new String[]{"X", "50"}));
+    Assert.assertEquals("UNDER_TEN", instance.getRegexMatch(Group, new String[]{"X", "5"}));
+    Assert.assertEquals("NINETY_UP", instance.getRegexMatch(Group, new String[]{"X", "90"}));
+    Assert.assertEquals("NINETY_UP", instance.getRegexMatch(Group, new String[]{"X", "95"}));
+    Assert.assertEquals("TWENTY", instance.getRegexMatch(Group, new String[]{"X", "20"}));
+    Assert.assertEquals("THIRTY", instance.getRegexMatch(Group, new String[]{"X", "30"}));
+    Assert.assertEquals("HIGH", instance.getRegexMatch(Group, new String[]{"X", "45"}));
+    Assert.assertEquals("HIGH", instance.getRegexMatch(Group, new String[]{"X", "60"}));
+    Assert.assertEquals("LOW", instance.getRegexMatch(Group, new String[]{"X", "10"}));
+    Assert.assertEquals("LOW", instance.getRegexMatch(Group, new String[]{"X", "25"}));
+    Assert.assertEquals("OTHER", instance.getRegexMatch(Group, new String[]{"X", "40"}));
+  }
+
   /**
    * Test of getRegexMatchWithChildData method, of class AbstractRegexMatch.
    */
@@ -0,0 +1,176 @@
+/* ====================================================================
+ * Limited Evaluation License:
+ *
+ * This software is open source, but licensed. The license with this package
+ * is an evaluation license, which may not be used for productive systems. If
+ * you want a full license, please contact us.
+ *
+ * The exclusive owner of this work is the OpenRate project.
+ * This work, including all associated documents and components
+ * is Copyright of the OpenRate project 2006-2015.
+ *
+ * The following restrictions apply unless they are expressly relaxed in a
+ * contractual agreement between the license holder or one of its officially
+ * assigned agents and you or your organisation:
+ *
+ * 1) This work may not be disclosed, either in full or in part, in any form
+ *    electronic or physical, to any third party. This includes both in the
+ *    form of source code and compiled modules.
+ * 2) This work contains trade secrets in the form of architecture, algorithms
+ *    methods and technologies. These trade secrets may not be disclosed to
+ *    third parties in any form, either directly or in summary or paraphrased
+ *    form, nor may these trade secrets be used to construct products of a
+ *    similar or competing nature either by you or third parties.
+ * 3) This work may not be included in full or in part in any application.
+ * 4) You may not remove or alter any proprietary legends or notices contained
+ *    in or on this work.
+ * 5) This software may not be reverse-engineered or otherwise decompiled, if
+ *    you received this work in a compiled form.
+ * 6) This work is licensed, not sold. Possession of this software does not
+ *    imply or grant any right to you.
+ * 7) You agree to disclose any changes to this work to the copyright holder
+ *    and that the copyright holder may include any such changes at its own
+ *    discretion into the work
+ * 8) You agree not to derive other works from the trade secrets in this work,
+ *    and that any such derivation may make you liable to pay damages to the
+ *    copyright holder
+ * 9) You agree to use this software exclusively for evaluation purposes, and
+ *    that you shall not use this software to derive commercial profit or
+ *    support your business or personal activities.
+ *
+ * This software is provided "as is" and any expressed or impled warranties,
+ * including, but not limited to, the impled warranties of merchantability
+ * and fitness for a particular purpose are disclaimed. In no event shall
+ * The OpenRate Project or its officially assigned agents be liable to any
+ * direct, indirect, incidental, special, exemplary, or consequential damages
+ * (including but not limited to, procurement of substitute goods or services;
+ * Loss of use, data, or profits; or any business interruption) however caused
+ * and on theory of liability, whether in contract, strict liability, or tort
+ * (including negligence or otherwise) arising in any way out of the use of
+ * this software, even if advised of the possibility of such damage.
+ * This software contains portions by The Apache Software Foundation, Robert
+ * Half International.
+ * ====================================================================
+ */
+package OpenRate.utils;
+
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import org.junit.*;
+
+/**
+ * Tests the local time converter against the calendar it replaces.
+ */
+public class LocalTimeConverterTest {
+
+  public LocalTimeConverterTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test the local fields across the daylight saving changes of a year,
+   * checking against a GregorianCalendar in the same zone.
+   */
+  @Test
+  public void testToLocalAcrossDST() {
+    System.out.println("toLocalAcrossDST");
+    TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+    LocalTimeConverter instance = new LocalTimeConverter(zone);
+    GregorianCalendar cal = new GregorianCalendar(zone);
+
+    // 2015-01-01 00:00 UTC, stepping 37 minutes 13 seconds for a year
+    long utc = 1420070400L;
+    for (int idx = 0; idx < 14200; idx++) {
+      cal.setTimeInMillis(utc * 1000);
+      long local = instance.toLocal(utc);
+
+      Assert.assertEquals(cal.get(GregorianCalendar.DAY_OF_WEEK) - 1, LocalTimeConverter.getDayOfWeek(local));
+      Assert.assertEquals(cal.get(GregorianCalendar.HOUR_OF_DAY) * 60 + cal.get(GregorianCalendar.MINUTE), LocalTimeConverter.getMinuteOfDay(local));
+      Assert.assertEquals(cal.get(GregorianCalendar.SECOND), LocalTimeConverter.getSecondOfMinute(local));
+
+      utc += 37 * 60 + 13;
+    }
+  }
+
+  /**
+   * Test the start of the local day on the days of the daylight saving
+   * changes.
+   */
+  @Test
+  public void testGetStartOfDay() {
+    System.out.println("getStartOfDay");
+    TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+    LocalTimeConverter instance = new LocalTimeConverter(zone);
+    GregorianCalendar cal = new GregorianCalendar(zone);
+
+    // 2015-03-29 and 2015-10-25 at 12:00 UTC
+    long[] times = {1427630400L, 1445774400L, 1420070400L};
+    for (long utc : times) {
+      cal.setTimeInMillis(utc * 1000);
+      cal.set(GregorianCalendar.HOUR_OF_DAY, 0);
+      cal.set(GregorianCalendar.MINUTE, 0);
+      cal.set(GregorianCalendar.SECOND, 0);
+      cal.set(GregorianCalendar.MILLISECOND, 0);
+
+      Assert.assertEquals(cal.getTimeInMillis() / 1000, instance.getStartOfDay(utc));
+    }
+  }
+
+  /**
+   * Test a converter shared by threads working on days with different
+   * offsets, each of which keeps its own cached range.
+   */
+  @Test
+  public void testSharedBetweenThreads() throws Exception {
+    System.out.println("sharedBetweenThreads");
+    final TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+    final LocalTimeConverter instance = new LocalTimeConverter(zone);
+    final Throwable[] failure = new Throwable[1];
+
+    // 2015-01-15, 2015-03-29 (change day), 2015-07-15 and 2015-10-25 (change day)
+    long[] days = {1421280000L, 1427587200L, 1436918400L, 1445731200L};
+    Thread[] workers = new Thread[days.length];
+
+    for (int idx = 0; idx < days.length; idx++) {
+      final long dayStart = days[idx];
+      workers[idx] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            GregorianCalendar cal = new GregorianCalendar(zone);
+            for (long utc = dayStart; utc < dayStart + 86400; utc += 7) {
+              cal.setTimeInMillis(utc * 1000);
+              Assert.assertEquals(cal.get(GregorianCalendar.ZONE_OFFSET) + cal.get(GregorianCalendar.DST_OFFSET), instance.getOffset(utc) * 1000);
+            }
+          } catch (Throwable ex) {
+            failure[0] = ex;
+          }
+        }
+      };
+      workers[idx].start();
+    }
+
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+  }
+}